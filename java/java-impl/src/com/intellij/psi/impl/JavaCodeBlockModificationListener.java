@@ -45,13 +45,13 @@ public class JavaCodeBlockModificationListener implements PsiTreeChangePreproces
       case CHILD_ADDED:
       case CHILD_REMOVED:
       case CHILD_REPLACED:
-        processChange(event.getParent(), event.getOldChild(), event.getChild());
+        event.setChangedInsideCodeBlock(processChange(event.getParent(), event.getOldChild(), event.getChild()));
         break;
 
       case CHILDREN_CHANGED:
         // general childrenChanged() event after each change
         if (!event.isGenericChildrenChange()) {
-          processChange(event.getParent(), event.getParent(), null);
+          event.setChangedInsideCodeBlock(processChange(event.getParent(), event.getParent(), null));
         }
         break;
 
@@ -66,7 +66,10 @@ public class JavaCodeBlockModificationListener implements PsiTreeChangePreproces
     }
   }
 
-  private void processChange(final PsiElement parent, final PsiElement child1, final PsiElement child2) {
+  /**
+   * @return true if the change is inside a code block and modification counters are not changed
+   */
+  private boolean processChange(final PsiElement parent, final PsiElement child1, final PsiElement child2) {
     try {
       if (!isInsideCodeBlock(parent)) {
         if (parent != null && isClassOwner(parent.getContainingFile()) ||
@@ -77,15 +80,18 @@ public class JavaCodeBlockModificationListener implements PsiTreeChangePreproces
         else {
           myModificationTracker.incOutOfCodeBlockModificationCounter();
         }
-        return;
+        return false;
       }
 
       if (containsClassesInside(child1) || child2 != child1 && containsClassesInside(child2)) {
         myModificationTracker.incCounter();
+        return false;
       }
+      return true;
     }
     catch (PsiInvalidElementAccessException e) {
       myModificationTracker.incCounter(); // Shall not happen actually, just a pre-release paranoia
+      return false;
     }
   }
 
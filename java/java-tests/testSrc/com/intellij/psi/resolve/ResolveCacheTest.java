@@ -0,0 +1,138 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.resolve;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.psi.*;
+import com.intellij.psi.impl.PsiManagerImpl;
+import com.intellij.psi.impl.source.resolve.ResolveCache;
+import com.intellij.testFramework.fixtures.LightCodeInsightFixtureTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+public class ResolveCacheTest extends LightCodeInsightFixtureTestCase {
+  private PsiClass myClassA;
+  private PsiJavaCodeReferenceElement myRefInA;
+  private PsiJavaCodeReferenceElement myRefInB;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myClassA = ((PsiJavaFile)myFixture.addFileToProject("A.java", "class A { String a; void foo() { } }")).getClasses()[0];
+    PsiClass classB = ((PsiJavaFile)myFixture.addFileToProject("B.java", "class B { String b; }")).getClasses()[0];
+    myRefInA = getTypeReference(myClassA);
+    myRefInB = getTypeReference(classB);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myClassA = null;
+    myRefInA = null;
+    myRefInB = null;
+    super.tearDown();
+  }
+
+  public void testChangeInsideCodeBlockKeepsResultsOfOtherFiles() {
+    resolveBoth();
+    final PsiCodeBlock body = myClassA.getMethods()[0].getBody();
+    assertNotNull(body);
+    new WriteCommandAction.Simple(getProject()) {
+      @Override
+      protected void run() throws Throwable {
+        body.add(JavaPsiFacade.getElementFactory(getProject()).createStatementFromText("int i = 0;", null));
+      }
+    }.execute();
+
+    assertFalse(isCached(myRefInA));
+    assertTrue(isCached(myRefInB));
+  }
+
+  public void testChangeOutsideCodeBlockDropsAllResults() {
+    resolveBoth();
+    new WriteCommandAction.Simple(getProject()) {
+      @Override
+      protected void run() throws Throwable {
+        myClassA.add(JavaPsiFacade.getElementFactory(getProject()).createFieldFromText("int i;", null));
+      }
+    }.execute();
+
+    assertFalse(isCached(myRefInA));
+    assertFalse(isCached(myRefInB));
+  }
+
+  public void testDropCachesInReadActions() throws Exception {
+    resolveBoth();
+    // the physical results are put aside by the write action
+    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+      @Override
+      public void run() {
+        getPsiManagerImpl().dropResolveCaches();
+      }
+    });
+    resolveBoth();
+
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (int i = 0; i < 4; i++) {
+      futures.add(ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 1000; j++) {
+            ApplicationManager.getApplication().runReadAction(new Runnable() {
+              @Override
+              public void run() {
+                getPsiManagerImpl().dropResolveCaches();
+              }
+            });
+          }
+        }
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    assertFalse(isCached(myRefInA));
+    assertFalse(isCached(myRefInB));
+
+    // results cached afterwards survive the next change inside a code block
+    testChangeInsideCodeBlockKeepsResultsOfOtherFiles();
+  }
+
+  private void resolveBoth() {
+    assertNotNull(myRefInA.resolve());
+    assertNotNull(myRefInB.resolve());
+    assertTrue(isCached(myRefInA));
+    assertTrue(isCached(myRefInB));
+  }
+
+  private boolean isCached(PsiJavaCodeReferenceElement ref) {
+    return ResolveCache.getInstance(getProject()).isCached(ref, true, false, true);
+  }
+
+  private PsiManagerImpl getPsiManagerImpl() {
+    return (PsiManagerImpl)getPsiManager();
+  }
+
+  private static PsiJavaCodeReferenceElement getTypeReference(PsiClass psiClass) {
+    PsiTypeElement typeElement = psiClass.getFields()[0].getTypeElement();
+    assertNotNull(typeElement);
+    PsiJavaCodeReferenceElement reference = typeElement.getInnermostComponentReferenceElement();
+    assertNotNull(reference);
+    return reference;
+  }
+}
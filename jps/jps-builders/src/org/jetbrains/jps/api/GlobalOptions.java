@@ -11,4 +11,6 @@ public interface GlobalOptions {
   String GENERATE_CLASSPATH_INDEX_OPTION = "generate.classpath.index";
   String COMPILE_PARALLEL_OPTION = "compile.parallel";
   String COMPILE_PARALLEL_MAX_THREADS_OPTION = "compile.parallel.max.threads";
+  String VALIDATE_CONTENT_HASH_OPTION = "compile.validate.content.hash";
+  String OUTPUT_CACHE_DIR_OPTION = "compile.output.cache.dir";
 }
@@ -19,7 +19,8 @@ public class SharedBuilderThreadPool {
     }
     MAX_BUILDER_THREADS = maxThreads;
   }
-  private static final ExecutorService ourBuilderPool = Executors.newFixedThreadPool(Math.min(MAX_BUILDER_THREADS, Math.max(2, Runtime.getRuntime().availableProcessors())));
+  private static final int BUILDER_THREADS = Math.min(MAX_BUILDER_THREADS, Math.max(2, Runtime.getRuntime().availableProcessors()));
+  private static final ExecutorService ourBuilderPool = Executors.newFixedThreadPool(BUILDER_THREADS);
 
   public static final SharedBuilderThreadPool INSTANCE = new SharedBuilderThreadPool();
 
@@ -32,6 +33,11 @@ public class SharedBuilderThreadPool {
     return _submit(task, ourBuilderPool);
   }
 
+  /** @noinspection MethodMayBeStatic*/
+  public int getThreadCount() {
+    return BUILDER_THREADS;
+  }
+
   private static Future<?> _submit(final Runnable task, final ExecutorService service) {
     return service.submit(new Runnable() {
       public void run() {
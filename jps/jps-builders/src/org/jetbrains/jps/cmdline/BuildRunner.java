@@ -50,10 +50,11 @@ public class BuildRunner {
 
   public ProjectDescriptor load(MessageHandler msgHandler, File dataStorageRoot, BuildFSState fsState) throws IOException {
     final boolean inMemoryMappingsDelta = System.getProperty(GlobalOptions.USE_MEMORY_TEMP_CACHE_OPTION) != null;
+    final boolean validateContentHash = Boolean.parseBoolean(System.getProperty(GlobalOptions.VALIDATE_CONTENT_HASH_OPTION, "false"));
     ProjectTimestamps projectTimestamps = null;
     BuildDataManager dataManager = null;
     try {
-      projectTimestamps = new ProjectTimestamps(dataStorageRoot);
+      projectTimestamps = new ProjectTimestamps(dataStorageRoot, validateContentHash);
       dataManager = new BuildDataManager(dataStorageRoot, inMemoryMappingsDelta);
       if (dataManager.versionDiffers()) {
         myForceCleanCaches = true;
@@ -71,7 +72,7 @@ public class BuildRunner {
       }
       myForceCleanCaches = true;
       FileUtil.delete(dataStorageRoot);
-      projectTimestamps = new ProjectTimestamps(dataStorageRoot);
+      projectTimestamps = new ProjectTimestamps(dataStorageRoot, validateContentHash);
       dataManager = new BuildDataManager(dataStorageRoot, inMemoryMappingsDelta);
       // second attempt succeded
       msgHandler.processMessage(new CompilerMessage("build", BuildMessage.Kind.INFO, "Project rebuild forced: " + e.getMessage()));
@@ -84,6 +85,17 @@ public class BuildRunner {
 
   public void runBuild(ProjectDescriptor pd, CanceledStatus cs, @Nullable Callbacks.ConstantAffectionResolver constantSearch,
                        MessageHandler msgHandler, final boolean includeTests, BuildType buildType) throws Exception {
+    final long scanTimeBefore = pd.getFilesScanTime();
+    try {
+      doRunBuild(pd, cs, constantSearch, msgHandler, includeTests, buildType);
+    }
+    finally {
+      LOG.info("Scanning source roots for changed files took " + (pd.getFilesScanTime() - scanTimeBefore) + " ms");
+    }
+  }
+
+  private void doRunBuild(ProjectDescriptor pd, CanceledStatus cs, @Nullable Callbacks.ConstantAffectionResolver constantSearch,
+                          MessageHandler msgHandler, final boolean includeTests, BuildType buildType) throws Exception {
     for (int attempt = 0; attempt < 2; attempt++) {
       if (myForceCleanCaches && myModules.isEmpty() && myFilePaths.isEmpty()) {
         // if compilation scope is the whole project and cache rebuild is forced, use PROJECT_REBUILD for faster compilation
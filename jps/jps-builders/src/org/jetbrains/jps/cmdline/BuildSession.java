@@ -4,6 +4,7 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.FileSystemUtil;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.io.DataOutputStream;
 import org.jboss.netty.channel.Channel;
@@ -18,7 +19,7 @@ import org.jetbrains.jps.incremental.artifacts.instructions.ArtifactRootDescript
 import org.jetbrains.jps.incremental.fs.BuildFSState;
 import org.jetbrains.jps.incremental.fs.RootDescriptor;
 import org.jetbrains.jps.incremental.messages.*;
-import org.jetbrains.jps.incremental.storage.Timestamps;
+import org.jetbrains.jps.incremental.storage.TimestampStorage;
 import org.jetbrains.jps.service.SharedThreadPool;
 
 import java.io.*;
@@ -228,7 +229,7 @@ final class BuildSession implements Runnable, CanceledStatus {
     }
 
     if (pd != null) {
-      final Timestamps timestamps = pd.timestamps.getStorage();
+      final TimestampStorage timestamps = pd.timestamps.getStorage();
       ArtifactSourceTimestampStorage artifactTimestamps = pd.dataManager.getArtifactsBuildData().getTimestampStorage();
 
       for (String deleted : event.getDeletedPathsList()) {
@@ -258,10 +259,17 @@ final class BuildSession implements Runnable, CanceledStatus {
         final File file = new File(changed);
         final RootDescriptor rd = pd.rootsIndex.getModuleAndRoot(null, file);
         if (rd != null) {
-          if (Utils.IS_TEST_MODE) {
-            LOG.info("Applying dirty path from fs event: " + file.getPath());
+          if (timestamps.isContentUnchanged(file, FileSystemUtil.lastModified(file))) {
+            if (Utils.IS_TEST_MODE) {
+              LOG.info("Skipping dirty path with unchanged content: " + file.getPath());
+            }
+          }
+          else {
+            if (Utils.IS_TEST_MODE) {
+              LOG.info("Applying dirty path from fs event: " + file.getPath());
+            }
+            pd.fsState.markDirty(null, file, rd, timestamps);
           }
-          pd.fsState.markDirty(null, file, rd, timestamps);
         }
         else if (Utils.IS_TEST_MODE) {
           LOG.info("Skipping dirty path: " + file.getPath());
@@ -17,6 +17,7 @@ import org.jetbrains.jps.model.module.JpsModule;
 import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
 * @author Eugene Zhuravlev
@@ -35,6 +36,7 @@ public final class ProjectDescriptor {
   private int myUseCounter = 1;
   private Set<JpsSdk<?>> myProjectJavaSdks;
   private CompilerEncodingConfiguration myEncodingConfiguration;
+  private final AtomicLong myFilesScanTime = new AtomicLong();
 
   public ProjectDescriptor(Project project,
                            JpsModel jpsModel,
@@ -69,6 +71,17 @@ public final class ProjectDescriptor {
     return myProjectJavaSdks;
   }
 
+  /**
+   * @param time milliseconds spent scanning source roots to find changed files
+   */
+  public void addFilesScanTime(long time) {
+    myFilesScanTime.addAndGet(time);
+  }
+
+  public long getFilesScanTime() {
+    return myFilesScanTime.get();
+  }
+
   public BuildLoggingManager getLoggingManager() {
     return myLoggingManager;
   }
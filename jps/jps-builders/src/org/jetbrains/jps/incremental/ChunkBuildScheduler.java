@@ -0,0 +1,249 @@
+package org.jetbrains.jps.incremental;
+
+import com.intellij.openapi.diagnostic.Logger;
+import gnu.trove.TIntHashSet;
+import org.jetbrains.jps.ModuleChunk;
+import org.jetbrains.jps.model.module.JpsModule;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+
+/**
+ * Builds module chunks in parallel, every chunk is started as soon as all chunks it depends on are built.
+ * When there are more chunks ready to be built than free threads, chunks with the longest estimated path
+ * to the end of build (critical path) are started first.
+ */
+class ChunkBuildScheduler {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.ChunkBuildScheduler");
+
+  interface ChunkBuilder {
+    void build(ModuleChunk chunk) throws ProjectBuildException;
+  }
+
+  private final List<ModuleChunk> myChunks;
+  private final int[][] myDependents; // by chunk index
+  private final int[] myUnbuiltDependencies;
+  private final long[] myPathEstimates;
+
+  private final Object myLock = new Object();
+  private final PriorityQueue<Integer> myReady;
+  private int myRunning;
+  private int myFinished;
+  private Throwable myException;
+
+  // timeline, in milliseconds since start
+  private long myStart;
+  private long myEnd;
+  private final long[] myReadyTime;
+  private final long[] myStartTime;
+  private final long[] myFinishTime;
+  private final int[] myLastDependency; // the dependency that was built last, -1 if none
+  private int myLastFinished = -1;
+
+  /**
+   * @param chunks chunks in order of building, every chunk after chunks it depends on
+   * @param dependentsMap modules that depend on the module, directly or not
+   * @param estimates estimated build time by chunk index
+   */
+  ChunkBuildScheduler(List<ModuleChunk> chunks, Map<JpsModule, Set<JpsModule>> dependentsMap, long[] estimates) {
+    final int count = chunks.size();
+    myChunks = chunks;
+    myDependents = new int[count][];
+    myUnbuiltDependencies = new int[count];
+    myPathEstimates = new long[count];
+    myReadyTime = new long[count];
+    myStartTime = new long[count];
+    myFinishTime = new long[count];
+    myLastDependency = new int[count];
+    Arrays.fill(myFinishTime, -1);
+    Arrays.fill(myLastDependency, -1);
+
+    final Map<JpsModule, Integer> chunkIndices = new HashMap<JpsModule, Integer>();
+    for (int i = 0; i < count; i++) {
+      for (JpsModule module : chunks.get(i).getModules()) {
+        chunkIndices.put(module, i);
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      final TIntHashSet dependents = new TIntHashSet();
+      for (JpsModule module : chunks.get(i).getModules()) {
+        final Set<JpsModule> moduleDependents = dependentsMap.get(module);
+        if (moduleDependents == null) continue;
+        for (JpsModule dependent : moduleDependents) {
+          final Integer index = chunkIndices.get(dependent);
+          if (index != null && index.intValue() != i) {
+            dependents.add(index.intValue());
+          }
+        }
+      }
+      myDependents[i] = dependents.toArray();
+      for (int dependent : myDependents[i]) {
+        myUnbuiltDependencies[dependent]++;
+      }
+    }
+
+    for (int i = count - 1; i >= 0; i--) {
+      long longestDependentPath = 0;
+      for (int dependent : myDependents[i]) {
+        longestDependentPath = Math.max(longestDependentPath, myPathEstimates[dependent]);
+      }
+      myPathEstimates[i] = estimates[i] + longestDependentPath;
+    }
+
+    myReady = new PriorityQueue<Integer>(Math.max(1, count), new Comparator<Integer>() {
+      @Override
+      public int compare(Integer o1, Integer o2) {
+        final long path1 = myPathEstimates[o1.intValue()];
+        final long path2 = myPathEstimates[o2.intValue()];
+        if (path1 != path2) return path1 > path2 ? -1 : 1;
+        return o1.intValue() - o2.intValue();
+      }
+    });
+  }
+
+  /**
+   * Builds all chunks using at most {@code parallelism} threads of the executor; waits until all started chunks are finished.
+   * No more chunks are started after the first failure.
+   */
+  void run(final ChunkBuilder builder, Executor executor, int parallelism) throws ProjectBuildException {
+    synchronized (myLock) {
+      myStart = System.currentTimeMillis();
+      for (int i = 0; i < myChunks.size(); i++) {
+        if (myUnbuiltDependencies[i] == 0) {
+          myReady.add(i);
+        }
+      }
+
+      while (myFinished < myChunks.size()) {
+        if (myException == null) {
+          while (myRunning < parallelism && !myReady.isEmpty()) {
+            final int index = myReady.poll();
+            myRunning++;
+            executor.execute(new Runnable() {
+              @Override
+              public void run() {
+                buildChunk(builder, index);
+              }
+            });
+          }
+        }
+        if (myRunning == 0) {
+          if (myException == null) {
+            LOG.error("Cannot schedule " + (myChunks.size() - myFinished) + " chunks: dependencies are not built");
+          }
+          break;
+        }
+        try {
+          myLock.wait();
+        }
+        catch (InterruptedException e) {
+          LOG.info(e);
+          if (myException == null) {
+            myException = e;
+          }
+        }
+      }
+      myEnd = System.currentTimeMillis() - myStart;
+    }
+
+    final Throwable exception = myException;
+    if (exception != null) {
+      if (exception instanceof ProjectBuildException) {
+        throw (ProjectBuildException)exception;
+      }
+      throw new ProjectBuildException(exception);
+    }
+  }
+
+  private void buildChunk(ChunkBuilder builder, int index) {
+    synchronized (myLock) {
+      myStartTime[index] = System.currentTimeMillis() - myStart;
+    }
+    Throwable exception = null;
+    try {
+      builder.build(myChunks.get(index));
+    }
+    catch (Throwable e) {
+      LOG.info(e);
+      exception = e;
+    }
+    finally {
+      synchronized (myLock) {
+        final long now = System.currentTimeMillis() - myStart;
+        myFinishTime[index] = now;
+        myLastFinished = index;
+        myRunning--;
+        myFinished++;
+        if (exception != null && myException == null) {
+          myException = exception;
+        }
+        for (int dependent : myDependents[index]) {
+          if (--myUnbuiltDependencies[dependent] == 0) {
+            myReadyTime[dependent] = now;
+            myLastDependency[dependent] = index;
+            myReady.add(dependent);
+          }
+        }
+        myLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Chunks which were built one after another from the start to the end of build: no chunk on this path could start earlier
+   * than its predecessor finished.
+   */
+  List<ModuleChunk> getBuiltCriticalPath() {
+    synchronized (myLock) {
+      final LinkedList<ModuleChunk> path = new LinkedList<ModuleChunk>();
+      for (int i = myLastFinished; i >= 0; i = myLastDependency[i]) {
+        path.addFirst(myChunks.get(i));
+      }
+      return path;
+    }
+  }
+
+  /**
+   * For every chunk: when it could have been started since all its dependencies were built, when it was actually started
+   * (the difference is time spent waiting for a free thread) and finished, and which dependency it waited for.
+   */
+  String getTimelineReport(boolean withChunks) {
+    synchronized (myLock) {
+      long buildTime = 0;
+      final List<Integer> started = new ArrayList<Integer>();
+      for (int i = 0; i < myChunks.size(); i++) {
+        if (myFinishTime[i] >= 0) {
+          buildTime += myFinishTime[i] - myStartTime[i];
+          started.add(i);
+        }
+      }
+
+      final StringBuilder report = new StringBuilder();
+      report.append("Built ").append(started.size()).append(" chunks in ").append(myEnd).append(" ms, total chunk build time ")
+        .append(buildTime).append(" ms, average parallelism ").append(myEnd > 0 ? String.format("%.2f", (double)buildTime / myEnd) : "-");
+      report.append("\nCritical path:");
+      for (ModuleChunk chunk : getBuiltCriticalPath()) {
+        report.append(" ").append(chunk.getName());
+      }
+
+      if (withChunks) {
+        Collections.sort(started, new Comparator<Integer>() {
+          @Override
+          public int compare(Integer o1, Integer o2) {
+            final long diff = myStartTime[o1.intValue()] - myStartTime[o2.intValue()];
+            return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+          }
+        });
+        for (Integer index : started) {
+          final int i = index.intValue();
+          report.append("\n  ").append(myChunks.get(i).getName()).append(": ready at ").append(myReadyTime[i])
+            .append(", started at ").append(myStartTime[i]).append(", finished at ").append(myFinishTime[i]);
+          if (myLastDependency[i] >= 0) {
+            report.append(", waited for ").append(myChunks.get(myLastDependency[i]).getName());
+          }
+        }
+      }
+      return report.toString();
+    }
+  }
+}
@@ -1,13 +1,12 @@
 package org.jetbrains.jps.incremental;
 
-import com.intellij.openapi.util.io.FileSystemUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.jetbrains.jps.JpsPathUtil;
 import org.jetbrains.jps.ModuleChunk;
 import org.jetbrains.jps.ProjectChunks;
 import org.jetbrains.jps.cmdline.ProjectDescriptor;
 import org.jetbrains.jps.incremental.fs.BuildFSState;
+import org.jetbrains.jps.incremental.fs.FilesScanner;
 import org.jetbrains.jps.incremental.fs.RootDescriptor;
 import org.jetbrains.jps.incremental.storage.Timestamps;
 import org.jetbrains.jps.model.java.JpsJavaClasspathKind;
@@ -16,13 +15,11 @@ import org.jetbrains.jps.model.module.JpsDependencyElement;
 import org.jetbrains.jps.model.module.JpsModule;
 import org.jetbrains.jps.model.module.JpsModuleDependency;
 import org.jetbrains.jps.model.module.JpsModuleSourceDependency;
+import org.jetbrains.jps.service.SharedThreadPool;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
 
 /**
  * @author Eugene Zhuravlev
@@ -143,6 +140,8 @@ public class FSOperations {
     for (RootDescriptor rd : rootsIndex.getModuleRoots(context, module.getName())) {
       roots.add(rd);
     }
+    final List<RootDescriptor> rootsToScan = new ArrayList<RootDescriptor>();
+    final List<File> rootFiles = new ArrayList<File>();
     for (RootDescriptor rd : roots) {
       if (scope == DirtyMarkScope.TESTS) {
         if (!rd.isTestRoot) {
@@ -158,34 +157,36 @@ public class FSOperations {
         continue;
       }
       context.getProjectDescriptor().fsState.clearRecompile(rd);
-      traverseRecursively(context, rd, rd.root, excludes, tsStorage, forceMarkDirty, currentFiles);
+      rootsToScan.add(rd);
+      rootFiles.add(rd.root);
+    }
+    if (rootsToScan.isEmpty()) {
+      return;
     }
-  }
 
-  private static void traverseRecursively(CompileContext context, final RootDescriptor rd, final File file, Set<File> excludes, @NotNull final Timestamps tsStorage, final boolean forceDirty, @Nullable Set<File> currentFiles) throws IOException {
-    final File[] children = file.listFiles();
-    if (children != null) { // is directory
-      if (children.length > 0 && !JpsPathUtil.isUnder(excludes, file)) {
-        for (File child : children) {
-          traverseRecursively(context, rd, child, excludes, tsStorage, forceDirty, currentFiles);
+    final long start = System.currentTimeMillis();
+    final FilesScanner scanner = new FilesScanner(SharedThreadPool.getInstance(), Runtime.getRuntime().availableProcessors());
+    final List<List<FilesScanner.ScannedFile>> scanned = scanner.scan(rootFiles, excludes);
+    for (int i = 0; i < rootsToScan.size(); i++) {
+      final RootDescriptor rd = rootsToScan.get(i);
+      for (FilesScanner.ScannedFile scannedFile : scanned.get(i)) {
+        final File file = scannedFile.file;
+        boolean markDirty = forceMarkDirty;
+        if (!markDirty) {
+          markDirty = !tsStorage.isUpToDate(file, scannedFile.lastModified);
+        }
+        if (markDirty) {
+          // if it is full project rebuild, all storages are already completely cleared;
+          // so passing null because there is no need to access the storage to clear non-existing data
+          final Timestamps marker = context.isProjectRebuild() ? null : tsStorage;
+          context.getProjectDescriptor().fsState.markDirty(context, file, rd, marker);
+        }
+        if (currentFiles != null) {
+          currentFiles.add(file);
         }
       }
     }
-    else { // is file
-      boolean markDirty = forceDirty;
-      if (!markDirty) {
-        markDirty = tsStorage.getStamp(file) != FileSystemUtil.lastModified(file);
-      }
-      if (markDirty) {
-        // if it is full project rebuild, all storages are already completely cleared;
-        // so passing null because there is no need to access the storage to clear non-existing data
-        final Timestamps marker = context.isProjectRebuild() ? null : tsStorage;
-        context.getProjectDescriptor().fsState.markDirty(context, file, rd, marker);
-      }
-      if (currentFiles != null) {
-        currentFiles.add(file);
-      }
-    }
+    context.getProjectDescriptor().addFilesScanTime(System.currentTimeMillis() - start);
   }
 
   public enum DirtyMarkScope{
@@ -16,6 +16,8 @@ import org.jetbrains.jps.api.GlobalOptions;
 import org.jetbrains.jps.api.RequestFuture;
 import org.jetbrains.jps.api.SharedBuilderThreadPool;
 import org.jetbrains.jps.cmdline.ProjectDescriptor;
+import org.jetbrains.jps.incremental.cache.ChunkOutputCache;
+import org.jetbrains.jps.incremental.cache.LocalBuildOutputCache;
 import org.jetbrains.jps.incremental.fs.BuildFSState;
 import org.jetbrains.jps.incremental.fs.RootDescriptor;
 import org.jetbrains.jps.incremental.java.ExternalJavacDescriptor;
@@ -37,7 +39,7 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
@@ -73,6 +75,7 @@ public class IncProjectBuilder {
   private final float myTotalModulesWork;
   private final int myTotalModuleLevelBuilderCount;
   private final List<Future> myAsyncTasks = new ArrayList<Future>();
+  @Nullable private ChunkOutputCache myOutputCache;
 
   public IncProjectBuilder(ProjectDescriptor pd, BuilderRegistry builderRegistry, Map<String, String> builderParams, CanceledStatus cs,
                            @Nullable Callbacks.ConstantAffectionResolver constantSearch) {
@@ -85,6 +88,12 @@ public class IncProjectBuilder {
     myTestChunks = new ProjectChunks(pd.jpsProject, JpsJavaClasspathKind.TEST_COMPILE);
     myTotalModulesWork = (float)pd.rootsIndex.getTotalModuleCount() * 2;  /* multiply by 2 to reflect production and test sources */
     myTotalModuleLevelBuilderCount = builderRegistry.getModuleLevelBuilderCount();
+    final String outputCacheDir = System.getProperty(GlobalOptions.OUTPUT_CACHE_DIR_OPTION);
+    myOutputCache = StringUtil.isEmpty(outputCacheDir) ? null : new ChunkOutputCache(new LocalBuildOutputCache(new File(outputCacheDir)));
+  }
+
+  public void setOutputCache(@Nullable ChunkOutputCache outputCache) {
+    myOutputCache = outputCache;
   }
 
   public void addMessageHandler(MessageHandler handler) {
@@ -200,6 +209,9 @@ public class IncProjectBuilder {
     for (ModuleLevelBuilder builder : myBuilderRegistry.getModuleLevelBuilders()) {
       builder.buildStarted(context);
     }
+    if (myOutputCache != null) {
+      myOutputCache.buildStarted();
+    }
 
     try {
       if (context.isProjectRebuild() || forceCleanCaches) {
@@ -248,6 +260,13 @@ public class IncProjectBuilder {
       for (ModuleLevelBuilder builder : myBuilderRegistry.getModuleLevelBuilders()) {
         builder.buildFinished(context);
       }
+      if (myOutputCache != null && myOutputCache.getLookups() > 0) {
+        final int lookups = myOutputCache.getLookups();
+        final int hits = myOutputCache.getHits();
+        final String message = "Build output cache: " + hits + " of " + lookups + " module chunks restored (" + (hits * 100 / lookups) + "%)";
+        LOG.info(message);
+        context.processMessage(new CompilerMessage(BUILD_NAME, BuildMessage.Kind.INFO, message));
+      }
       context.processMessage(new ProgressMessage("Finished, saving caches..."));
     }
 
@@ -417,74 +436,38 @@ public class IncProjectBuilder {
     final ProjectDescriptor pd = context.getProjectDescriptor();
     try {
       if (PARALLEL_BUILD_ENABLED) {
-        final List<ChunkGroup> chunkGroups = buildChunkGroups(context, chunks);
-        for (ChunkGroup group : chunkGroups) {
-          final List<ModuleChunk> groupChunks = group.getChunks();
-          final int chunkCount = groupChunks.size();
-          if (chunkCount == 0) {
-            continue;
-          }
-          try {
-            if (chunkCount == 1) {
-              _buildChunk(createContextWrapper(context), scope, groupChunks.iterator().next());
-            }
-            else {
-              final CountDownLatch latch = new CountDownLatch(chunkCount);
-              final Ref<Throwable> exRef = new Ref<Throwable>(null);
-
-              if (LOG.isDebugEnabled()) {
-                final StringBuilder logBuilder = new StringBuilder("Building chunks in parallel: ");
-                for (ModuleChunk chunk : groupChunks) {
-                  logBuilder.append(chunk.getName()).append("; ");
-                }
-                LOG.debug(logBuilder.toString());
-              }
-
-              for (final ModuleChunk chunk : groupChunks) {
-                final CompileContext chunkLocalContext = createContextWrapper(context);
-                SharedBuilderThreadPool.INSTANCE.submitBuildTask(new Runnable() {
-                  @Override
-                  public void run() {
-                    try {
-                      _buildChunk(chunkLocalContext, scope, chunk);
-                    }
-                    catch (Throwable e) {
-                      synchronized (exRef) {
-                        if (exRef.isNull()) {
-                          exRef.set(e);
-                        }
-                      }
-                      LOG.info(e);
-                    }
-                    finally {
-                      latch.countDown();
-                    }
-                  }
-                });
-              }
-
+        final List<ModuleChunk> chunkList = chunks.getChunkList();
+        final ChunkBuildScheduler scheduler = new ChunkBuildScheduler(chunkList, buildDependentsMap(context), estimateBuildTimes(context, chunkList));
+        // storages are closed and flushed by one chunk at a time, other chunks may still be building meanwhile
+        final Object storagesLock = new Object();
+        try {
+          scheduler.run(new ChunkBuildScheduler.ChunkBuilder() {
+            @Override
+            public void build(ModuleChunk chunk) throws ProjectBuildException {
               try {
-                latch.await();
+                _buildChunk(createContextWrapper(context), scope, chunk);
               }
-              catch (InterruptedException e) {
-                LOG.info(e);
-              }
-
-              final Throwable exception = exRef.get();
-              if (exception != null) {
-                if (exception instanceof ProjectBuildException) {
-                  throw (ProjectBuildException)exception;
-                }
-                else {
-                  throw new ProjectBuildException(exception);
+              finally {
+                synchronized (storagesLock) {
+                  try {
+                    pd.dataManager.closeSourceToOutputStorages(Collections.singleton(chunk), context.isCompilingTests());
+                  }
+                  catch (IOException e) {
+                    throw new ProjectBuildException(e);
+                  }
+                  pd.dataManager.flush(true);
                 }
               }
             }
-          }
-          finally {
-            pd.dataManager.closeSourceToOutputStorages(groupChunks, context.isCompilingTests());
-            pd.dataManager.flush(true);
-          }
+          }, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+              SharedBuilderThreadPool.INSTANCE.submitBuildTask(command);
+            }
+          }, SharedBuilderThreadPool.INSTANCE.getThreadCount());
+        }
+        finally {
+          LOG.info(scheduler.getTimelineReport(LOG.isDebugEnabled()));
         }
       }
       else {
@@ -507,7 +490,9 @@ public class IncProjectBuilder {
 
   private void _buildChunk(CompileContext context, CompileScope scope, ModuleChunk chunk) throws ProjectBuildException {
     if (scope.isAffected(chunk)) {
+      final long started = System.currentTimeMillis();
       buildChunk(context, chunk);
+      saveChunkBuildTime(context, chunk, System.currentTimeMillis() - started);
     }
     else {
       final float fraction = updateFractionBuilderFinished(chunk.getModules().size());
@@ -527,7 +512,17 @@ public class IncProjectBuilder {
 
       myProjectDescriptor.fsState.beforeChunkBuildStart(context, chunk);
 
-      doneSomething = runModuleLevelBuilders(context, chunk);
+      final ChunkOutputCache.CachedChunk cached = myOutputCache != null ? myOutputCache.prepare(context, chunk, myBuilderRegistry) : null;
+      if (cached != null && myOutputCache.restore(context, chunk, cached)) {
+        doneSomething = true;
+        context.setDone(updateFractionBuilderFinished(chunk.getModules().size()));
+      }
+      else {
+        doneSomething = runModuleLevelBuilders(context, chunk);
+        if (cached != null && !Utils.errorsDetected(context) && !context.getCancelStatus().isCanceled()) {
+          myOutputCache.store(context, cached);
+        }
+      }
     }
     catch (ProjectBuildException e) {
       throw e;
@@ -856,10 +851,7 @@ public class IncProjectBuilder {
     }
   }
 
-  private static List<ChunkGroup> buildChunkGroups(CompileContext context, ProjectChunks chunks) {
-    final List<ModuleChunk> allChunks = chunks.getChunkList();
-
-    // building aux dependencies map
+  private static Map<JpsModule, Set<JpsModule>> buildDependentsMap(CompileContext context) {
     final Map<JpsModule, Set<JpsModule>> depsMap = new HashMap<JpsModule, Set<JpsModule>>();
     final boolean compilingTests = context.isCompilingTests();
     for (JpsModule module : context.getProjectDescriptor().jpsProject.getModules()) {
@@ -870,31 +862,47 @@ public class IncProjectBuilder {
         depsMap.put(module, dependent);
       }
     }
+    return depsMap;
+  }
 
-    final List<ChunkGroup> groups = new ArrayList<ChunkGroup>();
-    ChunkGroup currentGroup = new ChunkGroup();
-    groups.add(currentGroup);
-    for (ModuleChunk chunk : allChunks) {
-      if (dependsOnGroup(chunk, currentGroup, depsMap)) {
-        currentGroup = new ChunkGroup();
-        groups.add(currentGroup);
+  private static long[] estimateBuildTimes(CompileContext context, List<ModuleChunk> chunks) {
+    final ChunkBuildTimes buildTimes = context.getProjectDescriptor().dataManager.getChunkBuildTimes();
+    final long[] estimates = new long[chunks.size()];
+    long knownTotal = 0;
+    int knownCount = 0;
+    for (int i = 0; i < chunks.size(); i++) {
+      try {
+        final Long time = buildTimes.getBuildTime(chunks.get(i), context.isCompilingTests());
+        if (time != null) {
+          estimates[i] = time.longValue();
+          knownTotal += estimates[i];
+          knownCount++;
+          continue;
+        }
+      }
+      catch (IOException e) {
+        LOG.info(e);
       }
-      currentGroup.addChunk(chunk);
+      estimates[i] = -1;
     }
-    return groups;
+    // chunks never built before are expected to take average time
+    final long average = knownCount > 0 ? knownTotal / knownCount : 1;
+    for (int i = 0; i < estimates.length; i++) {
+      if (estimates[i] < 0) {
+        estimates[i] = average;
+      }
+    }
+    return estimates;
   }
 
-
-  public static boolean dependsOnGroup(ModuleChunk chunk, ChunkGroup group, Map<JpsModule, Set<JpsModule>> depsMap) {
-    for (ModuleChunk groupChunk : group.getChunks()) {
-      final Set<JpsModule> groupChunkModules = groupChunk.getModules();
-      for (JpsModule module : chunk.getModules()) {
-        if (Utils.intersects(depsMap.get(module), groupChunkModules)) {
-          return true;
-        }
-      }
+  private static void saveChunkBuildTime(CompileContext context, ModuleChunk chunk, long time) {
+    if (context.getCancelStatus().isCanceled()) return;
+    try {
+      context.getProjectDescriptor().dataManager.getChunkBuildTimes().saveBuildTime(chunk, context.isCompilingTests(), time);
+    }
+    catch (IOException e) {
+      LOG.info(e);
     }
-    return false;
   }
 
   private static void onChunkBuildComplete(CompileContext context, @NotNull ModuleChunk chunk) throws IOException {
@@ -1011,18 +1019,6 @@ public class IncProjectBuilder {
     outputRootsLayout.update(module.getName(), Pair.create(productionPath, testPath));
   }
 
-  private static class ChunkGroup {
-    private final List<ModuleChunk> myChunks = new ArrayList<ModuleChunk>();
-
-    public void addChunk(ModuleChunk chunk) {
-      myChunks.add(chunk);
-    }
-
-    public List<ModuleChunk> getChunks() {
-      return myChunks;
-    }
-  }
-
   private static final Set<Key> GLOBAL_CONTEXT_KEYS = new HashSet<Key>();
   static {
     // keys for data that must be visible to all threads
@@ -12,9 +12,11 @@ import org.jetbrains.jps.incremental.messages.ProgressMessage;
 import org.jetbrains.jps.incremental.storage.SourceToOutputMapping;
 import org.jetbrains.jps.model.module.JpsModule;
 
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Use {@link BuilderService} to register implementations of this class
@@ -54,6 +56,15 @@ public abstract class ModuleLevelBuilder extends Builder {
     ALL_COMPILED_FILES_KEY.set(context, null);
   }
 
+  /**
+   * Writes settings affecting outputs produced by this builder for the chunk, so outputs built with different settings are
+   * stored under different keys in the build output cache.
+   *
+   * @see org.jetbrains.jps.incremental.cache.ChunkOutputCache
+   */
+  public void updateOutputCacheKey(CompileContext context, ModuleChunk chunk, DataOutput key) throws IOException {
+  }
+
   /**
    * @param context
    * @param delta
@@ -260,7 +271,8 @@ public abstract class ModuleLevelBuilder extends Builder {
   private static class ModulesBasedFileFilter implements Mappings.DependentFilesFilter {
     private final CompileContext myContext;
     private final Set<JpsModule> myChunkModules;
-    private final Map<JpsModule, Set<JpsModule>> myCache = new HashMap<JpsModule, Set<JpsModule>>();
+    // the filter is called from several threads by the dependency analysis
+    private final Map<JpsModule, Set<JpsModule>> myCache = new ConcurrentHashMap<JpsModule, Set<JpsModule>>();
 
     private ModulesBasedFileFilter(CompileContext context, ModuleChunk chunk) {
       myContext = context;
@@ -0,0 +1,23 @@
+package org.jetbrains.jps.incremental.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+
+/**
+ * Storage for build outputs addressed by a hash of everything they are produced from. Since the same key always denotes the same data,
+ * an implementation may be shared between several builds, including ones running at the same time.
+ *
+ * @see LocalBuildOutputCache
+ * @see ChunkOutputCache
+ */
+public interface BuildOutputCache {
+  /**
+   * @return the data stored under the key or null if there is no such entry
+   */
+  @Nullable
+  byte[] get(@NotNull String key) throws IOException;
+
+  void put(@NotNull String key, @NotNull byte[] data) throws IOException;
+}
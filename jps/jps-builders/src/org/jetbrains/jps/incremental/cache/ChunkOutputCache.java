@@ -0,0 +1,541 @@
+package org.jetbrains.jps.incremental.cache;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileSystemUtil;
+import com.intellij.openapi.util.Ref;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.asm4.ClassReader;
+import org.jetbrains.ether.dependencyView.Callbacks;
+import org.jetbrains.ether.dependencyView.Mappings;
+import org.jetbrains.jps.CompilerExcludes;
+import org.jetbrains.jps.JpsPathUtil;
+import org.jetbrains.jps.ModuleChunk;
+import org.jetbrains.jps.ProjectPaths;
+import org.jetbrains.jps.cmdline.ProjectDescriptor;
+import org.jetbrains.jps.incremental.*;
+import org.jetbrains.jps.incremental.fs.FilesScanner;
+import org.jetbrains.jps.incremental.fs.RootDescriptor;
+import org.jetbrains.jps.incremental.messages.FileGeneratedEvent;
+import org.jetbrains.jps.incremental.storage.SourceToOutputMapping;
+import org.jetbrains.jps.model.java.JpsJavaExtensionService;
+import org.jetbrains.jps.model.module.JpsModule;
+import org.jetbrains.jps.service.SharedThreadPool;
+
+import java.io.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Caches outputs of module chunks in a {@link BuildOutputCache} under a key computed from everything the outputs depend on: sources of the
+ * chunk, its compilation classpath and settings of module-level builders (see {@link ModuleLevelBuilder#updateOutputCacheKey}).
+ * <p/>
+ * The cache is used only for chunks all sources of which are going to be compiled, that is on rebuild or on the first build of a chunk,
+ * so restored outputs never have to be merged with outputs of an earlier build. On a hit the output files are written to module output
+ * directories, source-to-output mappings are recorded and the dependency data is updated from the restored class files the same way
+ * {@link org.jetbrains.jps.incremental.java.JavaBuilder} does it for compiled ones.
+ */
+public class ChunkOutputCache {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.cache.ChunkOutputCache");
+  private static final int VERSION = 1;
+  private static final String FORM_EXTENSION = ".form";
+  private static final String CLASS_EXTENSION = ".class";
+
+  private final BuildOutputCache myStorage;
+  private final ConcurrentMap<File, byte[]> myClasspathHashes = new ConcurrentHashMap<File, byte[]>();
+  private final AtomicInteger myLookups = new AtomicInteger();
+  private final AtomicInteger myHits = new AtomicInteger();
+
+  public ChunkOutputCache(@NotNull BuildOutputCache storage) {
+    myStorage = storage;
+  }
+
+  /**
+   * Should be called before each build: outputs of dependencies may have changed since the previous one
+   */
+  public void buildStarted() {
+    myClasspathHashes.clear();
+    myLookups.set(0);
+    myHits.set(0);
+  }
+
+  public int getLookups() {
+    return myLookups.get();
+  }
+
+  public int getHits() {
+    return myHits.get();
+  }
+
+  /**
+   * @return the chunk sources and the cache key or null if outputs of the chunk can't be taken from the cache
+   */
+  @Nullable
+  public CachedChunk prepare(CompileContext context, ModuleChunk chunk, BuilderRegistry builders) throws IOException {
+    final boolean forTests = context.isCompilingTests();
+    if (Utils.hasRemovedSources(context)) {
+      return null;
+    }
+    // checked before the sources are scanned and hashed: on most builds some sources of the chunk have been compiled before
+    Set<File> dirty = null;
+    if (!context.isProjectRebuild()) {
+      dirty = collectFilesToCompileForFirstTime(context, chunk);
+      if (dirty == null || dirty.isEmpty()) {
+        return null;
+      }
+    }
+
+    final List<JpsModule> modules = new ArrayList<JpsModule>(chunk.getModules());
+    Collections.sort(modules, new Comparator<JpsModule>() {
+      @Override
+      public int compare(JpsModule o1, JpsModule o2) {
+        return o1.getName().compareTo(o2.getName());
+      }
+    });
+    final Map<JpsModule, List<SourceRoot>> roots = new HashMap<JpsModule, List<SourceRoot>>();
+    final List<SourceFile> sources = new ArrayList<SourceFile>();
+    for (JpsModule module : modules) {
+      if (context.getAnnotationProcessingProfile(module).isEnabled()) {
+        return null;
+      }
+      final File outputDir = context.getProjectPaths().getModuleOutputDir(module, forTests);
+      if (outputDir == null) {
+        return null;
+      }
+      final List<SourceRoot> moduleRoots = collectSources(context, module, outputDir);
+      if (moduleRoots == null) {
+        return null;
+      }
+      roots.put(module, moduleRoots);
+      for (SourceRoot root : moduleRoots) {
+        sources.addAll(root.sources);
+      }
+    }
+
+    if (sources.isEmpty()) {
+      return null;
+    }
+    if (dirty != null && !isEverythingToBeCompiled(context, sources, dirty)) {
+      return null;
+    }
+
+    final MessageDigest digest = createDigest();
+    final DataOutputStream key = new DataOutputStream(new DigestOutputStream(new NullOutputStream(), digest));
+    key.writeInt(VERSION);
+    key.writeBoolean(forTests);
+    for (JpsModule module : modules) {
+      key.writeUTF(module.getName());
+      final List<SourceRoot> moduleRoots = roots.get(module);
+      key.writeInt(moduleRoots.size());
+      for (SourceRoot root : moduleRoots) {
+        key.writeBoolean(root.isGeneratedSources);
+        key.writeUTF(root.prefix);
+        key.writeInt(root.sources.size());
+        for (SourceFile source : root.sources) {
+          key.writeUTF(source.relativePath);
+          key.write(hashContent(source.file));
+        }
+      }
+    }
+
+    final Set<File> chunkOutputs = new HashSet<File>();
+    for (JpsModule module : modules) {
+      chunkOutputs.add(context.getProjectPaths().getModuleOutputDir(module, forTests));
+    }
+    final ProjectPaths paths = context.getProjectPaths();
+    writeClasspath(paths.getCompilationClasspath(chunk, forTests, false), chunkOutputs, key);
+    writeClasspath(paths.getPlatformCompilationClasspath(chunk, forTests, false), chunkOutputs, key);
+
+    for (BuilderCategory category : BuilderCategory.values()) {
+      for (ModuleLevelBuilder builder : builders.getBuilders(category)) {
+        key.writeUTF(builder.getClass().getName());
+        builder.updateOutputCacheKey(context, chunk, key);
+      }
+    }
+    key.close();
+    return new CachedChunk(toHexString(digest.digest()), sources);
+  }
+
+  /**
+   * @return source roots of the module with their sources sorted by path or null if outputs of the module can't be cached
+   */
+  @Nullable
+  private static List<SourceRoot> collectSources(CompileContext context, JpsModule module, File outputDir) {
+    final ProjectDescriptor pd = context.getProjectDescriptor();
+    final List<RootDescriptor> roots = new ArrayList<RootDescriptor>();
+    for (RootDescriptor rd : pd.rootsIndex.getModuleRoots(context, module)) {
+      if (rd.isTestRoot != context.isCompilingTests() || !rd.root.exists()) {
+        continue;
+      }
+      if (rd.isTemp) {
+        return null;
+      }
+      roots.add(rd);
+    }
+    Collections.sort(roots, new Comparator<RootDescriptor>() {
+      @Override
+      public int compare(RootDescriptor o1, RootDescriptor o2) {
+        return o1.root.getPath().compareTo(o2.root.getPath());
+      }
+    });
+    final List<File> rootFiles = new ArrayList<File>();
+    for (RootDescriptor rd : roots) {
+      rootFiles.add(rd.root);
+    }
+    final Set<File> excludes = new HashSet<File>(pd.rootsIndex.getModuleExcludes(module));
+    final FilesScanner scanner = new FilesScanner(SharedThreadPool.getInstance(), Runtime.getRuntime().availableProcessors());
+    final List<List<FilesScanner.ScannedFile>> scanned = scanner.scan(rootFiles, excludes);
+
+    final List<SourceRoot> result = new ArrayList<SourceRoot>(roots.size());
+    for (int i = 0; i < roots.size(); i++) {
+      final RootDescriptor rd = roots.get(i);
+      final String rootPath = FileUtil.toSystemIndependentName(rd.root.getPath());
+      final String prefix = JpsJavaExtensionService.getInstance().getSourcePrefix(module, JpsPathUtil.pathToUrl(rootPath));
+
+      final List<SourceFile> rootSources = new ArrayList<SourceFile>();
+      for (FilesScanner.ScannedFile file : scanned.get(i)) {
+        final String relativePath = FileUtil.getRelativePath(rootPath, FileUtil.toSystemIndependentName(file.file.getPath()), '/');
+        if (relativePath == null) {
+          return null;
+        }
+        if (relativePath.endsWith(FORM_EXTENSION)) {
+          // bindings between forms and classes are kept outside of source-to-output mappings
+          return null;
+        }
+        rootSources.add(new SourceFile(module, outputDir, file.file, relativePath, file.lastModified));
+      }
+      Collections.sort(rootSources, new Comparator<SourceFile>() {
+        @Override
+        public int compare(SourceFile o1, SourceFile o2) {
+          return o1.relativePath.compareTo(o2.relativePath);
+        }
+      });
+      result.add(new SourceRoot(rd.isGeneratedSources, prefix != null ? prefix : "", rootSources));
+    }
+    return result;
+  }
+
+  /**
+   * @return files of the chunk marked for compilation or null if some of them have been compiled before
+   */
+  @Nullable
+  private static Set<File> collectFilesToCompileForFirstTime(final CompileContext context, ModuleChunk chunk) throws IOException {
+    final Set<File> dirty = new HashSet<File>();
+    final Ref<Boolean> compiledBefore = Ref.create(Boolean.FALSE);
+    FSOperations.processFilesToRecompile(context, chunk, new FileProcessor() {
+      @Override
+      public boolean apply(JpsModule module, File file, String sourceRoot) throws IOException {
+        final SourceToOutputMapping srcToOut =
+          context.getProjectDescriptor().dataManager.getSourceToOutputMap(module.getName(), context.isCompilingTests());
+        if (srcToOut.getState(FileUtil.toSystemIndependentName(file.getPath())) != null) {
+          compiledBefore.set(Boolean.TRUE);
+          return false;
+        }
+        dirty.add(file);
+        return true;
+      }
+    });
+    return compiledBefore.get() ? null : dirty;
+  }
+
+  private static boolean isEverythingToBeCompiled(CompileContext context, List<SourceFile> sources, Set<File> dirty) {
+    final CompilerExcludes excludes = context.getProjectDescriptor().project.getCompilerConfiguration().getExcludes();
+    for (SourceFile source : sources) {
+      if (!excludes.isExcluded(source.file) && !dirty.contains(source.file)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void writeClasspath(Collection<File> classpath, Set<File> chunkOutputs, DataOutput key) throws IOException {
+    key.writeInt(classpath.size());
+    for (File file : classpath) {
+      if (chunkOutputs.contains(file)) {
+        continue;
+      }
+      byte[] hash = myClasspathHashes.get(file);
+      if (hash == null) {
+        hash = hashClasspathEntry(file);
+        myClasspathHashes.put(file, hash);
+      }
+      key.write(hash);
+    }
+  }
+
+  /**
+   * Jars are identified by their content and directories by relative paths and content of the files under them,
+   * so the key doesn't depend on where the project and libraries are located
+   */
+  private static byte[] hashClasspathEntry(File file) throws IOException {
+    if (file.isFile()) {
+      return hashContent(file);
+    }
+    final MessageDigest digest = createDigest();
+    if (file.isDirectory()) {
+      final DataOutputStream out = new DataOutputStream(new DigestOutputStream(new NullOutputStream(), digest));
+      hashDirectory(file, "", out);
+      out.close();
+    }
+    return digest.digest();
+  }
+
+  private static void hashDirectory(File dir, String relativePath, DataOutput out) throws IOException {
+    final File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    Arrays.sort(children);
+    for (File child : children) {
+      final String childPath = relativePath + "/" + child.getName();
+      if (child.isDirectory()) {
+        hashDirectory(child, childPath, out);
+      }
+      else {
+        out.writeUTF(childPath);
+        out.write(hashContent(child));
+      }
+    }
+  }
+
+  /**
+   * Takes outputs of the chunk from the cache
+   *
+   * @return true if outputs have been restored, false if there is no cache entry for the chunk
+   */
+  public boolean restore(CompileContext context, ModuleChunk chunk, CachedChunk cached) throws IOException {
+    myLookups.incrementAndGet();
+    final List<List<CachedOutput>> outputs = load(cached);
+    if (outputs == null) {
+      return false;
+    }
+
+    final ProjectDescriptor pd = context.getProjectDescriptor();
+    final Mappings globalMappings = pd.dataManager.getMappings();
+    final Mappings delta = globalMappings.createDelta();
+    final Callbacks.Backend callback = delta.getCallback();
+    final FileGeneratedEvent event = new FileGeneratedEvent();
+    final List<File> files = new ArrayList<File>(cached.mySources.size());
+    for (int i = 0; i < cached.mySources.size(); i++) {
+      final SourceFile source = cached.mySources.get(i);
+      final SourceToOutputMapping srcToOut = getSourceToOutputMap(context, source);
+      final String sourcePath = source.getPath();
+      for (CachedOutput output : outputs.get(i)) {
+        final File outputFile = new File(source.outputDir, output.relativePath);
+        final String outputPath = FileUtil.toSystemIndependentName(outputFile.getPath());
+        FileUtil.writeToFile(outputFile, output.content);
+        srcToOut.appendData(sourcePath, outputPath);
+        if (output.relativePath.endsWith(CLASS_EXTENSION)) {
+          callback.associate(outputPath, sourcePath, new ClassReader(output.content));
+        }
+        event.add(source.outputDir.getPath(), output.relativePath);
+      }
+      files.add(source.file);
+    }
+
+    if (context.isProjectRebuild()) {
+      globalMappings.differentiateOnRebuild(delta);
+    }
+    else {
+      globalMappings.differentiateOnNonIncrementalMake(delta, Collections.<String>emptySet(), files);
+    }
+    globalMappings.integrate(delta);
+    context.processMessage(event);
+    myHits.incrementAndGet();
+    LOG.info("Outputs of " + chunk.getName() + " restored from cache entry " + cached.myKey);
+    return true;
+  }
+
+  @Nullable
+  private List<List<CachedOutput>> load(CachedChunk cached) {
+    try {
+      final byte[] data = myStorage.get(cached.myKey);
+      if (data == null) {
+        return null;
+      }
+      final DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)));
+      try {
+        if (in.readInt() != VERSION || in.readInt() != cached.mySources.size()) {
+          return null;
+        }
+        final List<List<CachedOutput>> result = new ArrayList<List<CachedOutput>>(cached.mySources.size());
+        for (int i = 0; i < cached.mySources.size(); i++) {
+          final int count = in.readInt();
+          final List<CachedOutput> outputs = new ArrayList<CachedOutput>(count);
+          for (int j = 0; j < count; j++) {
+            final String relativePath = in.readUTF();
+            final byte[] content = new byte[in.readInt()];
+            in.readFully(content);
+            outputs.add(new CachedOutput(relativePath, content));
+          }
+          result.add(outputs);
+        }
+        return result;
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Cannot read cache entry " + cached.myKey, e);
+      return null;
+    }
+  }
+
+  /**
+   * Puts outputs of the successfully built chunk to the cache. Nothing is stored if a source has been modified during the build
+   * or if outputs of a source are located outside of its module output directory.
+   */
+  public void store(CompileContext context, CachedChunk cached) {
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      // closing the stream releases the native memory held by its deflater, so it must happen on early returns as well
+      final DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes));
+      final boolean complete;
+      try {
+        complete = writeOutputs(context, cached, out);
+      }
+      finally {
+        out.close();
+      }
+      if (complete) {
+        myStorage.put(cached.myKey, bytes.toByteArray());
+      }
+    }
+    catch (IOException e) {
+      // a build must not fail because of the cache
+      LOG.info("Cannot store cache entry " + cached.myKey, e);
+    }
+  }
+
+  /**
+   * @return false if the outputs cannot be cached and nothing should be stored
+   */
+  private static boolean writeOutputs(CompileContext context, CachedChunk cached, DataOutputStream out) throws IOException {
+    out.writeInt(VERSION);
+    out.writeInt(cached.mySources.size());
+    for (SourceFile source : cached.mySources) {
+      if (FileSystemUtil.lastModified(source.file) != source.lastModified) {
+        return false;
+      }
+      final Collection<String> outputs = getSourceToOutputMap(context, source).getState(source.getPath());
+      if (outputs == null) {
+        out.writeInt(0);
+        continue;
+      }
+      out.writeInt(outputs.size());
+      final String outputRoot = FileUtil.toSystemIndependentName(source.outputDir.getPath());
+      for (String output : outputs) {
+        final String relativePath = FileUtil.getRelativePath(outputRoot, output, '/');
+        if (relativePath == null || relativePath.startsWith("..")) {
+          return false;
+        }
+        final byte[] content = FileUtil.loadFileBytes(new File(output));
+        out.writeUTF(relativePath);
+        out.writeInt(content.length);
+        out.write(content);
+      }
+    }
+    return true;
+  }
+
+  private static SourceToOutputMapping getSourceToOutputMap(CompileContext context, SourceFile source) throws IOException {
+    return context.getProjectDescriptor().dataManager.getSourceToOutputMap(source.module.getName(), context.isCompilingTests());
+  }
+
+  private static byte[] hashContent(File file) throws IOException {
+    return createDigest().digest(FileUtil.loadFileBytes(file));
+  }
+
+  private static MessageDigest createDigest() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IOException(e.getMessage());
+    }
+  }
+
+  private static String toHexString(byte[] bytes) {
+    final StringBuilder builder = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return builder.toString();
+  }
+
+  public static final class CachedChunk {
+    private final String myKey;
+    private final List<SourceFile> mySources;
+
+    private CachedChunk(String key, List<SourceFile> sources) {
+      myKey = key;
+      mySources = sources;
+    }
+
+    @NotNull
+    public String getKey() {
+      return myKey;
+    }
+  }
+
+  private static final class SourceRoot {
+    final boolean isGeneratedSources;
+    final String prefix;
+    final List<SourceFile> sources;
+
+    private SourceRoot(boolean isGeneratedSources, String prefix, List<SourceFile> sources) {
+      this.isGeneratedSources = isGeneratedSources;
+      this.prefix = prefix;
+      this.sources = sources;
+    }
+  }
+
+  private static final class SourceFile {
+    final JpsModule module;
+    final File outputDir;
+    final File file;
+    final String relativePath;
+    final long lastModified;
+
+    private SourceFile(JpsModule module, File outputDir, File file, String relativePath, long lastModified) {
+      this.module = module;
+      this.outputDir = outputDir;
+      this.file = file;
+      this.relativePath = relativePath;
+      this.lastModified = lastModified;
+    }
+
+    String getPath() {
+      return FileUtil.toSystemIndependentName(file.getPath());
+    }
+  }
+
+  private static final class CachedOutput {
+    final String relativePath;
+    final byte[] content;
+
+    private CachedOutput(String relativePath, byte[] content) {
+      this.relativePath = relativePath;
+      this.content = content;
+    }
+  }
+
+  private static final class NullOutputStream extends OutputStream {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package org.jetbrains.jps.incremental.cache;
+
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Keeps entries as files in a local directory. An entry is written to a temporary file first and then renamed,
+ * so builds sharing the directory never see partially written entries.
+ */
+public class LocalBuildOutputCache implements BuildOutputCache {
+  private final File myRoot;
+
+  public LocalBuildOutputCache(@NotNull File root) {
+    myRoot = root;
+  }
+
+  @Nullable
+  @Override
+  public byte[] get(@NotNull String key) throws IOException {
+    final File file = getEntryFile(key);
+    try {
+      return FileUtil.loadFileBytes(file);
+    }
+    catch (FileNotFoundException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public void put(@NotNull String key, @NotNull byte[] data) throws IOException {
+    final File file = getEntryFile(key);
+    if (file.exists()) {
+      return;
+    }
+    final File dir = file.getParentFile();
+    if (!FileUtil.createDirectory(dir)) {
+      throw new IOException("Cannot create directory " + dir.getPath());
+    }
+    final File temp = FileUtil.createTempFile(dir, key, ".tmp", true);
+    FileUtil.writeToFile(temp, data);
+    if (!temp.renameTo(file)) {
+      // the same entry has been stored by another build meanwhile
+      FileUtil.delete(temp);
+    }
+  }
+
+  private File getEntryFile(String key) {
+    return new File(new File(myRoot, key.substring(0, 2)), key);
+  }
+}
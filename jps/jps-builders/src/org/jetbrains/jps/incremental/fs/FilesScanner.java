@@ -0,0 +1,181 @@
+package org.jetbrains.jps.incremental.fs;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileAttributes;
+import com.intellij.openapi.util.io.FileSystemUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.jps.JpsPathUtil;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.Executor;
+
+/**
+ * Collects files under several roots together with their timestamps. Workers take directories to list from a shared queue,
+ * so the work is spread both across roots and across subdirectories of a single large root. Attributes of each directory entry are
+ * fetched with a single call which tells both whether it is a directory and its timestamp.
+ * An instance performs one scan at a time.
+ */
+public class FilesScanner {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.fs.FilesScanner");
+
+  private final Executor myExecutor;
+  private final int myParallelism;
+  private final Object myLock = new Object();
+  private final Deque<DirTask> myQueue = new ArrayDeque<DirTask>();
+  private int myRunning;
+  private int myWorkers;
+  private Throwable myException;
+
+  public FilesScanner(@NotNull Executor executor, int parallelism) {
+    myExecutor = executor;
+    myParallelism = Math.max(1, parallelism);
+  }
+
+  public static final class ScannedFile {
+    @NotNull
+    public final File file;
+    public final long lastModified;
+
+    public ScannedFile(@NotNull File file, long lastModified) {
+      this.file = file;
+      this.lastModified = lastModified;
+    }
+  }
+
+  /**
+   * Directories under excluded ones are not traversed. Same as for a sequential walk with {@link File#listFiles()},
+   * an entry which can't be listed is considered a file.
+   *
+   * @return files found under each of the roots, in the same order as roots
+   */
+  @NotNull
+  public List<List<ScannedFile>> scan(@NotNull List<File> roots, @NotNull Set<File> excludes) {
+    final List<List<ScannedFile>> result = new ArrayList<List<ScannedFile>>(roots.size());
+    synchronized (myLock) {
+      for (File root : roots) {
+        final List<ScannedFile> files = new ArrayList<ScannedFile>();
+        result.add(files);
+        myQueue.add(new DirTask(root, null, files, excludes));
+      }
+      myWorkers = myParallelism;
+    }
+    // the calling thread is one of the workers
+    for (int i = 1; i < myWorkers; i++) {
+      myExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          work();
+        }
+      });
+    }
+    work();
+
+    synchronized (myLock) {
+      while (myWorkers > 0) {
+        try {
+          myLock.wait();
+        }
+        catch (InterruptedException e) {
+          LOG.info(e);
+          if (myException == null) {
+            myException = e;
+          }
+        }
+      }
+      myQueue.clear();
+    }
+
+    final Throwable exception = myException;
+    if (exception != null) {
+      myException = null;
+      if (exception instanceof RuntimeException) {
+        throw (RuntimeException)exception;
+      }
+      if (exception instanceof Error) {
+        throw (Error)exception;
+      }
+      throw new RuntimeException(exception);
+    }
+    return result;
+  }
+
+  private void work() {
+    final List<DirTask> subdirs = new ArrayList<DirTask>();
+    final List<ScannedFile> files = new ArrayList<ScannedFile>();
+    DirTask task = null;
+    while (true) {
+      synchronized (myLock) {
+        if (task != null) {
+          task.files.addAll(files);
+          myQueue.addAll(subdirs);
+          myRunning--;
+          myLock.notifyAll();
+        }
+        while (myQueue.isEmpty() && myRunning > 0 && myException == null) {
+          try {
+            myLock.wait();
+          }
+          catch (InterruptedException e) {
+            LOG.info(e);
+            myException = e;
+          }
+        }
+        if (myQueue.isEmpty() || myException != null) {
+          myWorkers--;
+          myLock.notifyAll();
+          return;
+        }
+        task = myQueue.poll();
+        myRunning++;
+      }
+
+      subdirs.clear();
+      files.clear();
+      try {
+        process(task, subdirs, files);
+      }
+      catch (Throwable e) {
+        LOG.info(e);
+        synchronized (myLock) {
+          if (myException == null) {
+            myException = e;
+          }
+        }
+      }
+    }
+  }
+
+  private static void process(DirTask task, List<DirTask> subdirs, List<ScannedFile> files) {
+    final File[] children = task.dir.listFiles();
+    if (children == null) {
+      final FileAttributes attributes = task.attributes != null ? task.attributes : FileSystemUtil.getAttributes(task.dir);
+      files.add(new ScannedFile(task.dir, attributes != null ? attributes.lastModified : 0));
+    }
+    else if (children.length > 0 && !JpsPathUtil.isUnder(task.excludes, task.dir)) {
+      for (File child : children) {
+        final FileAttributes attributes = FileSystemUtil.getAttributes(child);
+        if (attributes != null && attributes.isDirectory()) {
+          subdirs.add(new DirTask(child, attributes, task.files, task.excludes));
+        }
+        else {
+          files.add(new ScannedFile(child, attributes != null ? attributes.lastModified : 0));
+        }
+      }
+    }
+  }
+
+  private static final class DirTask {
+    final File dir;
+    final FileAttributes attributes;
+    final List<ScannedFile> files;
+    final Set<File> excludes;
+
+    private DirTask(File dir, FileAttributes attributes, List<ScannedFile> files, Set<File> excludes) {
+      this.dir = dir;
+      this.attributes = attributes;
+      this.files = files;
+      this.excludes = excludes;
+    }
+  }
+}
@@ -143,6 +143,19 @@ public class JavaBuilder extends ModuleLevelBuilder {
     return "Java Builder";
   }
 
+  @Override
+  public void updateOutputCacheKey(CompileContext context, ModuleChunk chunk, DataOutput key) throws IOException {
+    key.writeBoolean(useEclipseCompiler(context));
+    key.writeInt(getCompilerSdkVersion(context));
+    key.writeUTF(SystemProperties.getJavaVersion());
+    key.writeBoolean(context.getProjectDescriptor().project.getCompilerConfiguration().isAddNotNullAssertions());
+    final List<String> options = getCompilationOptions(context, chunk, null, false);
+    key.writeInt(options.size());
+    for (String option : options) {
+      key.writeUTF(option);
+    }
+  }
+
   public ExitCode build(final CompileContext context, final ModuleChunk chunk) throws ProjectBuildException {
     try {
       final Set<File> filesToCompile = new HashSet<File>();
@@ -634,6 +647,13 @@ public class JavaBuilder extends ModuleLevelBuilder {
   }
 
   private static List<String> getCompilationOptions(CompileContext context, ModuleChunk chunk, AnnotationProcessingProfile profile) {
+    return getCompilationOptions(context, chunk, profile, true);
+  }
+
+  private static List<String> getCompilationOptions(CompileContext context,
+                                                    ModuleChunk chunk,
+                                                    AnnotationProcessingProfile profile,
+                                                    boolean reportProblems) {
     List<String> cached = JAVAC_OPTIONS.get(context);
     if (cached == null) {
       loadCommonJavacOptions(context);
@@ -644,7 +664,7 @@ public class JavaBuilder extends ModuleLevelBuilder {
     if (!isEncodingSet(options)) {
       final CompilerEncodingConfiguration config = context.getProjectDescriptor().getEncodingConfiguration();
       final String encoding = config.getPreferredModuleChunkEncoding(chunk);
-      if (config.getAllModuleChunkEncodings(chunk).size() > 1) {
+      if (reportProblems && config.getAllModuleChunkEncodings(chunk).size() > 1) {
         final StringBuilder msgBuilder = new StringBuilder();
         msgBuilder.append("Multiple encodings set for module chunk ").append(getChunkPresentableName(chunk));
         if (encoding != null) {
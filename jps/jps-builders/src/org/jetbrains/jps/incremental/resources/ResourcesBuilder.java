@@ -13,8 +13,10 @@ import org.jetbrains.jps.incremental.storage.SourceToOutputMapping;
 import org.jetbrains.jps.model.java.JpsJavaExtensionService;
 import org.jetbrains.jps.model.module.JpsModule;
 
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 /**
  * @author Eugene Zhuravlev
@@ -42,6 +44,15 @@ public class ResourcesBuilder extends ModuleLevelBuilder {
     }
   }
 
+  @Override
+  public void updateOutputCacheKey(CompileContext context, ModuleChunk chunk, DataOutput key) throws IOException {
+    final List<String> patterns = context.getProjectDescriptor().project.getCompilerConfiguration().getResourcePatterns();
+    key.writeInt(patterns.size());
+    for (String pattern : patterns) {
+      key.writeUTF(pattern);
+    }
+  }
+
   public ExitCode build(final CompileContext context, ModuleChunk chunk) throws ProjectBuildException {
     final ResourcePatterns patterns = ResourcePatterns.KEY.get(context);
     assert patterns != null;
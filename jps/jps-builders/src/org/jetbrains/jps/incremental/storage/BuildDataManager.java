@@ -19,7 +19,7 @@ import java.util.Map;
  *         Date: 10/7/11
  */
 public class BuildDataManager implements StorageOwner {
-  private static final int VERSION = 8;
+  private static final int VERSION = 9;
   private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.storage.BuildDataManager");
   private static final String SRC_TO_OUTPUTS_STORAGE = "src-out";
   private static final String SRC_TO_FORM_STORAGE = "src-form";
@@ -32,6 +32,7 @@ public class BuildDataManager implements StorageOwner {
   private final SourceToFormMapping mySrcToFormMap;
   private final ArtifactsBuildData myArtifactsBuildData;
   private final ModuleOutputRootsLayout myOutputRootsLayout;
+  private final ChunkBuildTimes myChunkBuildTimes;
   private final Mappings myMappings;
   private final File myDataStorageRoot;
   private final File myVersionFile;
@@ -40,6 +41,7 @@ public class BuildDataManager implements StorageOwner {
     myDataStorageRoot = dataStorageRoot;
     mySrcToFormMap = new SourceToFormMapping(new File(getSourceToFormsRoot(), "data"));
     myOutputRootsLayout = new ModuleOutputRootsLayout(new File(getOutputsLayoutRoot(), "data"));
+    myChunkBuildTimes = new ChunkBuildTimes(new File(getChunkBuildTimesRoot(), "data"));
     myMappings = new Mappings(getMappingsRoot(), useMemoryTempCaches);
     myArtifactsBuildData = new ArtifactsBuildData(new File(dataStorageRoot, "artifacts"));
     myVersionFile = new File(myDataStorageRoot, "version.dat");
@@ -49,6 +51,10 @@ public class BuildDataManager implements StorageOwner {
     return new File(myDataStorageRoot, "output-roots");
   }
 
+  private File getChunkBuildTimesRoot() {
+    return new File(myDataStorageRoot, "chunk-times");
+  }
+
   public SourceToOutputMapping getSourceToOutputMap(final String moduleName, final boolean testSources) throws IOException {
     String lowerCaseModuleName = moduleName.toLowerCase(Locale.US);
     final Map<String, SourceToOutputMapping> storageMap = testSources ? myTestSourceToOutputs : myProductionSourceToOutputs;
@@ -75,6 +81,10 @@ public class BuildDataManager implements StorageOwner {
     return myOutputRootsLayout;
   }
 
+  public ChunkBuildTimes getChunkBuildTimes() {
+    return myChunkBuildTimes;
+  }
+
   public Mappings getMappings() {
     return myMappings;
   }
@@ -103,6 +113,7 @@ public class BuildDataManager implements StorageOwner {
             wipeStorage(getOutputsLayoutRoot(), myOutputRootsLayout);
           }
           finally {
+            // chunk build times stay valid after rebuild
             final Mappings mappings = myMappings;
             if (mappings != null) {
               synchronized (mappings) {
@@ -133,6 +144,7 @@ public class BuildDataManager implements StorageOwner {
     }
     mySrcToFormMap.flush(memoryCachesOnly);
     myOutputRootsLayout.flush(memoryCachesOnly);
+    myChunkBuildTimes.flush(memoryCachesOnly);
     final Mappings mappings = myMappings;
     if (mappings != null) {
       synchronized (mappings) {
@@ -160,17 +172,22 @@ public class BuildDataManager implements StorageOwner {
             closeStorage(myOutputRootsLayout);
           }
           finally {
-            final Mappings mappings = myMappings;
-            if (mappings != null) {
-              try {
-                mappings.close();
-              }
-              catch (RuntimeException e) {
-                final Throwable cause = e.getCause();
-                if (cause instanceof IOException) {
-                  throw ((IOException)cause);
+            try {
+              closeStorage(myChunkBuildTimes);
+            }
+            finally {
+              final Mappings mappings = myMappings;
+              if (mappings != null) {
+                try {
+                  mappings.close();
+                }
+                catch (RuntimeException e) {
+                  final Throwable cause = e.getCause();
+                  if (cause instanceof IOException) {
+                    throw ((IOException)cause);
+                  }
+                  throw e;
                 }
-                throw e;
               }
             }
           }
@@ -0,0 +1,52 @@
+package org.jetbrains.jps.incremental.storage;
+
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.ModuleChunk;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Build times of module chunks from previous builds, used to build chunks on the critical path first
+ */
+public class ChunkBuildTimes extends AbstractStateStorage<String, Long> {
+
+  public ChunkBuildTimes(File storePath) throws IOException {
+    super(storePath, new EnumeratorStringDescriptor(), new LongExternalizer());
+  }
+
+  /**
+   * @return estimated build time in milliseconds or null if the chunk was never built
+   */
+  @Nullable
+  public Long getBuildTime(ModuleChunk chunk, boolean forTests) throws IOException {
+    return getState(getKey(chunk, forTests));
+  }
+
+  public void saveBuildTime(ModuleChunk chunk, boolean forTests, long time) throws IOException {
+    final String key = getKey(chunk, forTests);
+    synchronized (myDataLock) {
+      final Long previous = getState(key);
+      // smooth occasional spikes caused by other chunks built in parallel
+      update(key, previous == null ? time : (previous + time) / 2);
+    }
+  }
+
+  private static String getKey(ModuleChunk chunk, boolean forTests) {
+    return (forTests ? "tests:" : "production:") + chunk.getName();
+  }
+
+  private static class LongExternalizer implements DataExternalizer<Long> {
+    public void save(DataOutput out, Long value) throws IOException {
+      out.writeLong(value.longValue());
+    }
+
+    public Long read(DataInput in) throws IOException {
+      return in.readLong();
+    }
+  }
+}
@@ -17,8 +17,12 @@ public class ProjectTimestamps {
   private final File myTimestampsRoot;
 
   public ProjectTimestamps(final File dataStorageRoot) throws IOException {
+    this(dataStorageRoot, false);
+  }
+
+  public ProjectTimestamps(final File dataStorageRoot, final boolean validateContentHash) throws IOException {
     myTimestampsRoot = new File(dataStorageRoot, TIMESTAMP_STORAGE);
-    myTimestamps = new TimestampStorage(new File(myTimestampsRoot, "data"));
+    myTimestamps = new TimestampStorage(new File(myTimestampsRoot, "data"), validateContentHash);
   }
 
   public TimestampStorage getStorage() {
@@ -1,22 +1,41 @@
 package org.jetbrains.jps.incremental.storage;
 
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.IOUtil;
 import com.intellij.util.io.KeyDescriptor;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * @author Eugene Zhuravlev
  *         Date: 10/7/11
  */
 public class TimestampStorage extends AbstractStateStorage<File, TimestampValidityState> implements Timestamps {
+  private final boolean myValidateContentHash;
 
   public TimestampStorage(File storePath) throws IOException {
+    this(storePath, false);
+  }
+
+  /**
+   * @param validateContentHash if true, a hash of the file content is saved together with its timestamp, so a file whose timestamp
+   *                            changed but whose content stayed the same (e.g. after switching VCS branches back and forth)
+   *                            is not considered modified
+   */
+  public TimestampStorage(File storePath, boolean validateContentHash) throws IOException {
     super(storePath, new FileKeyDescriptor(), new StateExternalizer());
+    myValidateContentHash = validateContentHash;
+  }
+
+  public boolean isValidatingContentHash() {
+    return myValidateContentHash;
   }
 
   @Override
@@ -37,13 +56,87 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampValidi
 
   @Override
   public void saveStamp(File file, long timestamp) throws IOException {
+    if (myValidateContentHash) {
+      final Long hash = computeContentHashIfExists(file);
+      if (hash != null) {
+        update(file, new TimestampValidityState(timestamp, hash));
+        return;
+      }
+    }
     update(file, new TimestampValidityState(timestamp));
   }
 
+  @Override
+  public boolean isUpToDate(File file, long timestamp) throws IOException {
+    final TimestampValidityState state = getState(file);
+    if (state == null) {
+      return false;
+    }
+    return state.getTimestamp() == timestamp || isContentUnchanged(file, state, timestamp);
+  }
+
+  /**
+   * Unlike {@link #isUpToDate(File, long)} doesn't trust the timestamp, so it can be used for files reported as modified
+   *
+   * @return true if content hashes are kept and the file content is the same as when its stamp was saved
+   */
+  public boolean isContentUnchanged(File file, long timestamp) throws IOException {
+    if (!myValidateContentHash) {
+      return false;
+    }
+    final TimestampValidityState state = getState(file);
+    return state != null && isContentUnchanged(file, state, timestamp);
+  }
+
+  private boolean isContentUnchanged(File file, TimestampValidityState state, long timestamp) throws IOException {
+    if (!myValidateContentHash || !state.hasContentHash()) {
+      return false;
+    }
+    final Long hash = computeContentHashIfExists(file);
+    if (hash == null || hash != state.getContentHash()) {
+      return false;
+    }
+    if (state.getTimestamp() != timestamp) {
+      // remember the new timestamp to avoid hashing the file next time
+      update(file, new TimestampValidityState(timestamp, hash));
+    }
+    return true;
+  }
+
   public void removeStamp(File file) throws IOException {
     remove(file);
   }
 
+  /**
+   * @return first 64 bits of MD5 digest of the file content
+   */
+  public static long computeContentHash(File file) throws IOException {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("MD5");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IOException(e.getMessage());
+    }
+    final byte[] bytes = digest.digest(FileUtil.loadFileBytes(file));
+    long hash = 0;
+    for (int i = 0; i < 8; i++) {
+      hash = (hash << 8) | (bytes[i] & 0xFF);
+    }
+    return hash;
+  }
+
+  @Nullable
+  private static Long computeContentHashIfExists(File file) {
+    try {
+      return computeContentHash(file);
+    }
+    catch (IOException e) {
+      // the file has been deleted or can't be read, so it will be considered modified
+      return null;
+    }
+  }
+
   private static class FileKeyDescriptor implements KeyDescriptor<File> {
     private final byte[] buffer = IOUtil.allocReadWriteUTFBuffer();
 
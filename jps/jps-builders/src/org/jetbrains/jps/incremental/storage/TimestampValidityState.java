@@ -6,10 +6,13 @@ import java.io.IOException;
 
 /**
  * A simple implementation of ValidityState that is enough for most cases.
- * The file is considered modified if its timestamp is changed.
+ * The file is considered modified if its timestamp is changed. Optionally the state also keeps a hash of the file content
+ * which allows to tell whether a file with a changed timestamp is actually modified.
  */
 public final class TimestampValidityState implements ValidityState {
   private final long myTimestamp;
+  private final boolean myHasContentHash;
+  private final long myContentHash;
 
   /**
    * Loads the validity state from the specified stream.
@@ -19,6 +22,8 @@ public final class TimestampValidityState implements ValidityState {
    */
   public TimestampValidityState(DataInput is) throws IOException{
     myTimestamp = is.readLong();
+    myHasContentHash = is.readBoolean();
+    myContentHash = myHasContentHash ? is.readLong() : 0L;
   }
 
   /**
@@ -28,14 +33,40 @@ public final class TimestampValidityState implements ValidityState {
    */
   public TimestampValidityState(long timestamp) {
     myTimestamp = timestamp;
+    myHasContentHash = false;
+    myContentHash = 0L;
+  }
+
+  /**
+   * Creates a validity state with the specified timestamp and content hash.
+   *
+   * @param timestamp the timestamp for the validity state.
+   * @param contentHash the hash of the file content, see {@link TimestampStorage#computeContentHash(java.io.File)}
+   */
+  public TimestampValidityState(long timestamp, long contentHash) {
+    myTimestamp = timestamp;
+    myHasContentHash = true;
+    myContentHash = contentHash;
   }
 
   public long getTimestamp() {
     return myTimestamp;
   }
 
+  public boolean hasContentHash() {
+    return myHasContentHash;
+  }
+
+  public long getContentHash() {
+    return myContentHash;
+  }
+
   public boolean equalsTo(ValidityState otherState) {
-    return otherState instanceof TimestampValidityState && myTimestamp == ((TimestampValidityState)otherState).myTimestamp;
+    if (!(otherState instanceof TimestampValidityState)) {
+      return false;
+    }
+    final TimestampValidityState other = (TimestampValidityState)otherState;
+    return myTimestamp == other.myTimestamp && myHasContentHash == other.myHasContentHash && myContentHash == other.myContentHash;
   }
 
   /**
@@ -46,5 +77,9 @@ public final class TimestampValidityState implements ValidityState {
    */
   public void save(DataOutput out) throws IOException {
     out.writeLong(myTimestamp);
+    out.writeBoolean(myHasContentHash);
+    if (myHasContentHash) {
+      out.writeLong(myContentHash);
+    }
   }
 }
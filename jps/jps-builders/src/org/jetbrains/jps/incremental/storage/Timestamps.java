@@ -17,4 +17,10 @@ public interface Timestamps {
   void clean() throws IOException;
 
   long getStamp(File file) throws IOException;
+
+  /**
+   * @return true if the file is known to be unchanged since its stamp was saved: either the timestamp is the same or,
+   * if the storage keeps content hashes, the content is the same
+   */
+  boolean isUpToDate(File file, long timestamp) throws IOException;
 }
@@ -0,0 +1,177 @@
+package org.jetbrains.ether.dependencyView;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import junit.framework.TestCase;
+import org.jetbrains.asm4.ClassReader;
+import org.jetbrains.asm4.ClassWriter;
+import org.jetbrains.asm4.MethodVisitor;
+import org.jetbrains.asm4.Opcodes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Replays deltas of a large synthetic project through the dependency analysis: a hierarchy of base classes used by many dependent
+ * classes, its rebuild, and incremental makes which change members of some of the base classes.
+ */
+public class ParallelDifferentiateTest extends TestCase {
+  private static final int BASES = 500;
+  private static final int USERS = 20000;
+  private static final int CHANGED_PER_DELTA = 100;
+  private static final int DELTAS = 5;
+
+  private File myDataDir;
+  private Mappings myMappings;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDataDir = FileUtil.createTempDirectory("mappings", null);
+    myMappings = new Mappings(myDataDir, true);
+    rebuild(myMappings);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myMappings.close();
+    FileUtil.delete(myDataDir);
+    super.tearDown();
+  }
+
+  public void testParallelAnalysisFindsSameFiles() throws IOException {
+    for (int d = 0; d < DELTAS; d++) {
+      myMappings.setAnalysisParallelism(1);
+      final Set<File> sequential = replay(d);
+      myMappings.setAnalysisParallelism(4);
+      final Set<File> parallel = replay(d);
+      assertFalse(sequential.isEmpty());
+      assertEquals(sequential, parallel);
+    }
+  }
+
+  public void testPerformance() throws IOException {
+    myMappings.setAnalysisParallelism(Runtime.getRuntime().availableProcessors());
+    PlatformTestUtil.startPerformanceTest("Replaying deltas through dependency analysis", 15000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Throwable {
+        for (int d = 0; d < DELTAS; d++) {
+          replay(d);
+        }
+      }
+    }).cpuBound().usesAllCPUCores().assertTiming();
+  }
+
+  public void testRebuildPerformance() throws IOException {
+    PlatformTestUtil.startPerformanceTest("Integrating a rebuild into empty dependency data", 10000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Throwable {
+        final File dataDir = FileUtil.createTempDirectory("rebuild", null);
+        final Mappings mappings = new Mappings(dataDir, true);
+        try {
+          rebuild(mappings);
+        }
+        finally {
+          mappings.close();
+          FileUtil.delete(dataDir);
+        }
+      }
+    }).assertTiming();
+  }
+
+  private static void rebuild(Mappings mappings) throws IOException {
+    final Mappings delta = mappings.createDelta();
+    final Callbacks.Backend callback = delta.getCallback();
+    for (int i = 0; i < BASES; i++) {
+      associate(callback, "p/Base" + i, base(i, false));
+    }
+    for (int i = 0; i < USERS; i++) {
+      associate(callback, "p/User" + i, user(i));
+    }
+    mappings.differentiateOnRebuild(delta);
+    mappings.integrate(delta);
+  }
+
+  /**
+   * @return files affected by the delta
+   */
+  private Set<File> replay(int deltaIndex) throws IOException {
+    final Mappings delta = myMappings.createDelta();
+    final Callbacks.Backend callback = delta.getCallback();
+    final List<File> compiled = new ArrayList<File>();
+    for (int i = 0; i < CHANGED_PER_DELTA; i++) {
+      final int base = (deltaIndex * CHANGED_PER_DELTA + i) % BASES;
+      associate(callback, "p/Base" + base, base(base, true));
+      compiled.add(sourceFile("p/Base" + base));
+    }
+    final Set<File> affected = new HashSet<File>();
+    final boolean incremental = myMappings.differentiateOnIncrementalMake(
+      delta, Collections.<String>emptySet(), compiled, new HashSet<File>(compiled), affected, Mappings.DependentFilesFilter.ALL_FILES, null
+    );
+    assertTrue(incremental);
+    delta.close();
+    return affected;
+  }
+
+  private static void associate(Callbacks.Backend callback, String className, byte[] bytes) {
+    callback.associate("/out/" + className + ".class", sourceFile(className).getPath(), new ClassReader(bytes));
+  }
+
+  private static File sourceFile(String className) {
+    return new File("/src/" + className + ".java");
+  }
+
+  /**
+   * A changed base class returns a different type from one of its methods and no longer has another one
+   */
+  private static byte[] base(int index, boolean changed) {
+    final String name = "p/Base" + index;
+    final String superName = index < 10 ? "java/lang/Object" : "p/Base" + (index % 10);
+    final ClassWriter writer = new ClassWriter(0);
+    writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, name, null, superName, null);
+    writer.visitField(Opcodes.ACC_PUBLIC, "value" + index, "I", null, null).visitEnd();
+    addMethod(writer, "get" + index, changed ? "()J" : "()I");
+    if (!changed) {
+      addMethod(writer, "remove" + index, "()V");
+    }
+    addMethod(writer, "keep" + index, "()V");
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+
+  private static byte[] user(int index) {
+    final String name = "p/User" + index;
+    final int base = index % BASES;
+    final int used = (index * 7 + 3) % BASES;
+    final ClassWriter writer = new ClassWriter(0);
+    writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, name, null, "p/Base" + base, null);
+    final MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC, "use", "(Lp/Base" + used + ";)V", null, null);
+    mv.visitCode();
+    mv.visitVarInsn(Opcodes.ALOAD, 1);
+    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "p/Base" + used, "get" + used, "()I");
+    mv.visitInsn(Opcodes.POP);
+    mv.visitVarInsn(Opcodes.ALOAD, 1);
+    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "p/Base" + used, "remove" + used, "()V");
+    mv.visitVarInsn(Opcodes.ALOAD, 1);
+    mv.visitFieldInsn(Opcodes.GETFIELD, "p/Base" + used, "value" + used, "I");
+    mv.visitInsn(Opcodes.POP);
+    mv.visitInsn(Opcodes.RETURN);
+    mv.visitMaxs(1, 2);
+    mv.visitEnd();
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+
+  private static void addMethod(ClassWriter writer, String name, String desc) {
+    final MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC, name, desc, null, null);
+    mv.visitCode();
+    mv.visitInsn(desc.endsWith("V") ? Opcodes.RETURN : desc.endsWith("J") ? Opcodes.LCONST_0 : Opcodes.ICONST_0);
+    if (!desc.endsWith("V")) {
+      mv.visitInsn(desc.endsWith("J") ? Opcodes.LRETURN : Opcodes.IRETURN);
+    }
+    mv.visitMaxs(2, 1);
+    mv.visitEnd();
+  }
+}
@@ -0,0 +1,259 @@
+package org.jetbrains.ether.dependencyView;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.IntInlineKeyDescriptor;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TIntObjectProcedure;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Random;
+
+public class PersistentMultiMapletCacheTest extends TestCase {
+  // many more keys than fit into the cache, so changed values are also written back on eviction,
+  // and additions to keys which are not cached are also appended when too many of them are kept aside
+  private static final int KEYS = 10000;
+
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("maplet", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testChangesArePersisted() throws IOException {
+    final File file = new File(myDir, "map.tab");
+    final TIntObjectHashMap<TIntHashSet> expected = new TIntObjectHashMap<TIntHashSet>();
+    final Random random = new Random(1);
+
+    IntIntPersistentMultiMaplet maplet = new IntIntPersistentMultiMaplet(file, new IntInlineKeyDescriptor());
+    try {
+      for (int i = 0; i < 20000; i++) {
+        final int key = random.nextInt(KEYS);
+        final int value = random.nextInt(50);
+        switch (random.nextInt(6)) {
+          case 0:
+          case 1:
+            maplet.put(key, value);
+            getOrCreate(expected, key).add(value);
+            break;
+          case 2:
+            maplet.put(key, set(value, value + 1));
+            getOrCreate(expected, key).addAll(new int[]{value, value + 1});
+            break;
+          case 3:
+            maplet.removeFrom(key, value);
+            remove(expected, key, value);
+            break;
+          case 4:
+            maplet.replace(key, set(value));
+            expected.put(key, set(value));
+            break;
+          default:
+            final TIntHashSet current = maplet.get(key);
+            if (current != null) {
+              // changed in place and passed back, as Mappings.integrate does
+              current.add(value);
+              maplet.replace(key, current);
+              getOrCreate(expected, key).add(value);
+            }
+            else {
+              maplet.remove(key);
+            }
+        }
+        if (i % 10000 == 0) {
+          maplet.flush(true);
+        }
+      }
+      assertContents(expected, maplet);
+    }
+    finally {
+      maplet.close();
+    }
+
+    maplet = new IntIntPersistentMultiMaplet(file, new IntInlineKeyDescriptor());
+    try {
+      assertContents(expected, maplet);
+      final TIntObjectHashMap<TIntHashSet> stored = new TIntObjectHashMap<TIntHashSet>();
+      maplet.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
+        @Override
+        public boolean execute(int key, TIntHashSet value) {
+          stored.put(key, value);
+          return true;
+        }
+      });
+      assertEquals(expected.size(), stored.size());
+    }
+    finally {
+      maplet.close();
+    }
+  }
+
+  public void testObjectChangesArePersisted() throws IOException {
+    final File file = new File(myDir, "objects.tab");
+    final TIntObjectHashMap<Collection<Value>> expected = new TIntObjectHashMap<Collection<Value>>();
+    final Random random = new Random(1);
+
+    IntObjectPersistentMultiMaplet<Value> maplet = createObjectMaplet(file);
+    try {
+      for (int i = 0; i < 20000; i++) {
+        final int key = random.nextInt(KEYS);
+        final Value value = new Value(random.nextInt(50));
+        switch (random.nextInt(6)) {
+          case 0:
+          case 1:
+            maplet.put(key, value);
+            getOrCreateObjects(expected, key).add(value);
+            break;
+          case 2:
+            final Collection<Value> values = objects(value, new Value(value.myId + 1));
+            maplet.put(key, values);
+            getOrCreateObjects(expected, key).addAll(values);
+            break;
+          case 3:
+            maplet.removeFrom(key, value);
+            final Collection<Value> set = expected.get(key);
+            if (set != null && set.remove(value) && set.isEmpty()) {
+              expected.remove(key);
+            }
+            break;
+          case 4:
+            maplet.replace(key, objects(value));
+            expected.put(key, objects(value));
+            break;
+          default:
+            final Collection<Value> current = maplet.get(key);
+            if (current != null) {
+              current.add(value);
+              maplet.replace(key, current);
+              getOrCreateObjects(expected, key).add(value);
+            }
+            else {
+              maplet.remove(key);
+            }
+        }
+        if (i % 10000 == 0) {
+          maplet.flush(true);
+        }
+      }
+      assertObjectContents(expected, maplet);
+    }
+    finally {
+      maplet.close();
+    }
+
+    maplet = createObjectMaplet(file);
+    try {
+      assertObjectContents(expected, maplet);
+    }
+    finally {
+      maplet.close();
+    }
+  }
+
+  private static IntObjectPersistentMultiMaplet<Value> createObjectMaplet(File file) throws IOException {
+    return new IntObjectPersistentMultiMaplet<Value>(file, new IntInlineKeyDescriptor(), new DataExternalizer<Value>() {
+      @Override
+      public void save(DataOutput out, Value value) throws IOException {
+        out.writeInt(value.myId);
+      }
+
+      @Override
+      public Value read(DataInput in) throws IOException {
+        return new Value(in.readInt());
+      }
+    }, new CollectionFactory<Value>() {
+      @Override
+      public Collection<Value> create() {
+        return new HashSet<Value>();
+      }
+    });
+  }
+
+  private static void assertObjectContents(TIntObjectHashMap<Collection<Value>> expected, IntObjectPersistentMultiMaplet<Value> maplet) {
+    for (int key = 0; key < KEYS; key++) {
+      final Collection<Value> value = expected.get(key);
+      assertEquals(value, maplet.get(key));
+      assertEquals(value != null, maplet.containsKey(key));
+    }
+  }
+
+  private static Collection<Value> getOrCreateObjects(TIntObjectHashMap<Collection<Value>> map, int key) {
+    Collection<Value> set = map.get(key);
+    if (set == null) {
+      set = new HashSet<Value>();
+      map.put(key, set);
+    }
+    return set;
+  }
+
+  private static Collection<Value> objects(Value... values) {
+    final Collection<Value> result = new HashSet<Value>();
+    for (Value value : values) {
+      result.add(value);
+    }
+    return result;
+  }
+
+  private static void assertContents(TIntObjectHashMap<TIntHashSet> expected, IntIntPersistentMultiMaplet maplet) {
+    for (int key = 0; key < KEYS; key++) {
+      final TIntHashSet value = expected.get(key);
+      assertEquals(value, maplet.get(key));
+      assertEquals(value != null, maplet.containsKey(key));
+    }
+  }
+
+  private static TIntHashSet getOrCreate(TIntObjectHashMap<TIntHashSet> map, int key) {
+    TIntHashSet set = map.get(key);
+    if (set == null) {
+      set = new TIntHashSet();
+      map.put(key, set);
+    }
+    return set;
+  }
+
+  private static void remove(TIntObjectHashMap<TIntHashSet> map, int key, int value) {
+    final TIntHashSet set = map.get(key);
+    if (set != null && set.remove(value) && set.isEmpty()) {
+      map.remove(key);
+    }
+  }
+
+  private static TIntHashSet set(int... values) {
+    return new TIntHashSet(values);
+  }
+
+  private static class Value implements Streamable {
+    private final int myId;
+
+    private Value(int id) {
+      myId = id;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Value && ((Value)o).myId == myId;
+    }
+
+    @Override
+    public int hashCode() {
+      return myId;
+    }
+
+    @Override
+    public void toStream(DependencyContext context, PrintStream stream) {
+      stream.println(myId);
+    }
+  }
+}
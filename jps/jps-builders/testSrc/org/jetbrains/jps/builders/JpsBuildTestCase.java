@@ -71,9 +71,13 @@ public abstract class JpsBuildTestCase extends UsefulTestCase {
   }
 
   protected ProjectDescriptor createProjectDescriptor(final BuildLoggingManager buildLoggingManager) {
+    return createProjectDescriptor(buildLoggingManager, false);
+  }
+
+  protected ProjectDescriptor createProjectDescriptor(final BuildLoggingManager buildLoggingManager, final boolean validateContentHash) {
     try {
       final File dataStorageRoot = Utils.getDataStorageRoot(myProject);
-      ProjectTimestamps timestamps = new ProjectTimestamps(dataStorageRoot);
+      ProjectTimestamps timestamps = new ProjectTimestamps(dataStorageRoot, validateContentHash);
       BuildDataManager dataManager = new BuildDataManager(dataStorageRoot, true);
       return new ProjectDescriptor(myProject, myModel, new BuildFSState(true), timestamps, dataManager, buildLoggingManager);
     }
@@ -0,0 +1,162 @@
+package org.jetbrains.jps.incremental;
+
+import junit.framework.TestCase;
+import org.jetbrains.jps.ModuleChunk;
+import org.jetbrains.jps.model.JpsElementFactory;
+import org.jetbrains.jps.model.JpsProject;
+import org.jetbrains.jps.model.java.JpsJavaModuleType;
+import org.jetbrains.jps.model.module.JpsModule;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class ChunkBuildSchedulerTest extends TestCase {
+  private JpsProject myProject;
+  private final Map<JpsModule, Set<JpsModule>> myDependents = new HashMap<JpsModule, Set<JpsModule>>();
+  private final List<ModuleChunk> myChunks = new ArrayList<ModuleChunk>();
+  private ExecutorService myExecutor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myProject = JpsElementFactory.getInstance().createModel().getProject();
+    myExecutor = Executors.newFixedThreadPool(4);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myExecutor.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testSlowChunkDoesNotStallIndependentChunks() throws Exception {
+    final ModuleChunk slow = chunk("slow");
+    final ModuleChunk fast = chunk("fast");
+    final ModuleChunk afterSlow = chunk("afterSlow", slow);
+    final ModuleChunk afterFast = chunk("afterFast", fast);
+
+    final List<String> finished = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch afterFastBuilt = new CountDownLatch(1);
+    run(new long[]{300, 10, 10, 10}, 2, new ChunkBuildScheduler.ChunkBuilder() {
+      @Override
+      public void build(ModuleChunk chunk) throws ProjectBuildException {
+        // the slow chunk is building until the independent chunks are built by the other thread
+        if (chunk == slow && !await(afterFastBuilt)) throw new ProjectBuildException("afterFast is not built while slow is building");
+        finished.add(chunk.getName());
+        if (chunk == afterFast) afterFastBuilt.countDown();
+      }
+    });
+
+    assertEquals(4, finished.size());
+    assertTrue(finished.indexOf("afterFast") < finished.indexOf("slow"));
+    assertTrue(finished.indexOf("slow") < finished.indexOf("afterSlow"));
+  }
+
+  public void testCriticalPathStartsFirst() throws Exception {
+    chunk("single");
+    final ModuleChunk head = chunk("head");
+    final ModuleChunk middle = chunk("middle", head);
+    chunk("tail", middle);
+
+    final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+    final ChunkBuildScheduler scheduler = run(new long[]{70, 50, 50, 30}, 1, new ChunkBuildScheduler.ChunkBuilder() {
+      @Override
+      public void build(ModuleChunk chunk) throws ProjectBuildException {
+        started.add(chunk.getName());
+      }
+    });
+
+    assertEquals(Arrays.asList("head", "middle", "single", "tail"), started);
+    assertEquals(Arrays.asList("head", "middle", "tail"), names(scheduler.getBuiltCriticalPath()));
+  }
+
+  public void testDependenciesAreBuiltFirst() throws Exception {
+    final Random random = new Random(5);
+    for (int i = 0; i < 200; i++) {
+      final List<ModuleChunk> dependencies = new ArrayList<ModuleChunk>();
+      for (int j = 0; j < 3 && i > 0; j++) {
+        dependencies.add(myChunks.get(random.nextInt(i)));
+      }
+      chunk("m" + i, dependencies.toArray(new ModuleChunk[dependencies.size()]));
+    }
+
+    final Set<JpsModule> built = Collections.synchronizedSet(new HashSet<JpsModule>());
+    run(new long[200], 4, new ChunkBuildScheduler.ChunkBuilder() {
+      @Override
+      public void build(ModuleChunk chunk) throws ProjectBuildException {
+        final JpsModule module = chunk.representativeModule();
+        for (Map.Entry<JpsModule, Set<JpsModule>> entry : myDependents.entrySet()) {
+          if (entry.getValue().contains(module)) {
+            assertTrue(built.contains(entry.getKey()));
+          }
+        }
+        built.add(module);
+      }
+    });
+    assertEquals(200, built.size());
+  }
+
+  public void testNoChunksStartedAfterFailure() throws Exception {
+    final ModuleChunk failing = chunk("failing");
+    chunk("dependent", failing);
+
+    final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+    try {
+      run(new long[]{1, 1}, 2, new ChunkBuildScheduler.ChunkBuilder() {
+        @Override
+        public void build(ModuleChunk chunk) throws ProjectBuildException {
+          started.add(chunk.getName());
+          if (chunk == failing) throw new ProjectBuildException("failed");
+        }
+      });
+      fail();
+    }
+    catch (ProjectBuildException e) {
+      assertEquals("failed", e.getMessage());
+    }
+    assertEquals(Collections.singletonList("failing"), started);
+  }
+
+  private ModuleChunk chunk(String name, ModuleChunk... dependencies) {
+    final JpsModule module = myProject.addModule(name, JpsJavaModuleType.INSTANCE);
+    myDependents.put(module, new HashSet<JpsModule>());
+    for (ModuleChunk dependency : dependencies) {
+      final JpsModule dependencyModule = dependency.representativeModule();
+      // dependents map is transitive
+      for (Map.Entry<JpsModule, Set<JpsModule>> entry : myDependents.entrySet()) {
+        if (entry.getKey() == dependencyModule || entry.getValue().contains(dependencyModule)) {
+          entry.getValue().add(module);
+        }
+      }
+    }
+    final ModuleChunk chunk = new ModuleChunk(Collections.singleton(module));
+    myChunks.add(chunk);
+    return chunk;
+  }
+
+  private ChunkBuildScheduler run(long[] estimates, int parallelism, ChunkBuildScheduler.ChunkBuilder builder) throws ProjectBuildException {
+    final ChunkBuildScheduler scheduler = new ChunkBuildScheduler(myChunks, myDependents, estimates);
+    scheduler.run(builder, myExecutor, parallelism);
+    return scheduler;
+  }
+
+  private static List<String> names(List<ModuleChunk> chunks) {
+    final List<String> names = new ArrayList<String>();
+    for (ModuleChunk chunk : chunks) {
+      names.add(chunk.getName());
+    }
+    return names;
+  }
+
+  private static boolean await(CountDownLatch latch) {
+    try {
+      return latch.await(10, TimeUnit.SECONDS);
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package org.jetbrains.jps.incremental.cache;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.Assert;
+import org.jetbrains.jps.api.CanceledStatus;
+import org.jetbrains.jps.builders.BuildResult;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.cmdline.ProjectDescriptor;
+import org.jetbrains.jps.incremental.*;
+import org.jetbrains.jps.incremental.artifacts.ArtifactBuilderLoggerImpl;
+import org.jetbrains.jps.incremental.java.JavaBuilderLogger;
+import org.jetbrains.jps.model.artifact.JpsArtifact;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ChunkOutputCacheTest extends JpsBuildTestCase {
+  private File myProjectDir;
+  private ChunkOutputCache myCache;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myProjectDir = FileUtil.createTempDirectory("prj", null);
+    myCache = new ChunkOutputCache(new LocalBuildOutputCache(new File(myProjectDir, "cache")));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myProjectDir);
+    super.tearDown();
+  }
+
+  public void testOutputsRestoredOnFirstBuildWithoutBuildData() throws IOException {
+    final File src = new File(myProjectDir, "src");
+    FileUtil.writeToFile(new File(src, "p/A.java"), "package p; public class A { B b; }");
+    FileUtil.writeToFile(new File(src, "p/B.java"), "package p; public class B { class Inner {} }");
+    final File out = new File(myProjectDir, "out");
+    addModule("m", new String[]{src.getAbsolutePath()}, out.getAbsolutePath(), addJdk("1.6"));
+
+    final TestJavaBuilderLogger logger = new TestJavaBuilderLogger();
+    make(logger);
+    assertEquals(2, logger.myCompiledFiles.size());
+    assertEquals(1, myCache.getLookups());
+    assertEquals(0, myCache.getHits());
+
+    // same sources built on another machine: no outputs and no build data
+    buildOnAnotherMachine(out);
+    logger.clear();
+    make(logger);
+    assertEmpty(logger.myCompiledFiles);
+    assertEquals(1, myCache.getLookups());
+    assertEquals(1, myCache.getHits());
+    assertTrue(new File(out, "p/A.class").isFile());
+    assertTrue(new File(out, "p/B.class").isFile());
+    assertTrue(new File(out, "p/B$Inner.class").isFile());
+
+    FileUtil.writeToFile(new File(src, "p/A.java"), "package p; public class A { B b; int i; }");
+    buildOnAnotherMachine(out);
+    logger.clear();
+    make(logger);
+    assertEquals(2, logger.myCompiledFiles.size());
+    assertEquals(1, myCache.getLookups());
+    assertEquals(0, myCache.getHits());
+  }
+
+  private static void buildOnAnotherMachine(File out) throws IOException {
+    FileUtil.delete(out);
+    Utils.setSystemRoot(FileUtil.createTempDirectory("compile-server", null));
+  }
+
+  /**
+   * Java builder reports the files it compiles only on make, so the cache is exercised by the first make of a project without build data
+   */
+  private void make(JavaBuilderLogger logger) {
+    final ProjectDescriptor descriptor = createProjectDescriptor(new BuildLoggingManager(new ArtifactBuilderLoggerImpl(), logger));
+    try {
+      final IncProjectBuilder builder =
+        new IncProjectBuilder(descriptor, BuilderRegistry.getInstance(), Collections.<String, String>emptyMap(), CanceledStatus.NULL, null);
+      builder.setOutputCache(myCache);
+      final BuildResult result = new BuildResult();
+      builder.addMessageHandler(result);
+      builder.build(new AllProjectScope(descriptor.project, descriptor.jpsProject, Collections.<JpsArtifact>emptySet(), false), true, false,
+                    false);
+      result.assertSuccessful();
+    }
+    catch (RebuildRequestedException e) {
+      Assert.fail(e.getMessage());
+    }
+    finally {
+      descriptor.release();
+    }
+  }
+
+  private static class TestJavaBuilderLogger implements JavaBuilderLogger {
+    private final List<String> myCompiledFiles = new ArrayList<String>();
+    private boolean myInCompiledFiles;
+
+    @Override
+    public void log(String line) {
+      if ("Compiling files:".equals(line)) {
+        myInCompiledFiles = true;
+      }
+      else if ("End of files".equals(line)) {
+        myInCompiledFiles = false;
+      }
+      else if (myInCompiledFiles) {
+        myCompiledFiles.add(line);
+      }
+    }
+
+    @Override
+    public boolean isEnabled() {
+      return true;
+    }
+
+    public void clear() {
+      myCompiledFiles.clear();
+    }
+  }
+}
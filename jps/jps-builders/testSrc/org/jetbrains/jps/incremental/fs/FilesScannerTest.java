@@ -0,0 +1,100 @@
+package org.jetbrains.jps.incremental.fs;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class FilesScannerTest extends TestCase {
+  private File myDir;
+  private ExecutorService myExecutor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("filesScanner", null);
+    myExecutor = Executors.newFixedThreadPool(4);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myExecutor.shutdownNow();
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testSameFilesAsSequentialWalk() throws IOException {
+    final File root1 = new File(myDir, "src");
+    final File root2 = new File(myDir, "testSrc");
+    final Random random = new Random(1);
+    createTree(root1, random, 4);
+    createTree(root2, random, 3);
+    final File excluded = new File(root1, "d0");
+    assertTrue(excluded.isDirectory());
+    assertTrue(new File(root1, "empty").mkdirs());
+
+    final Set<File> excludes = Collections.singleton(excluded);
+    final List<List<FilesScanner.ScannedFile>> scanned = new FilesScanner(myExecutor, 4).scan(Arrays.asList(root1, root2), excludes);
+    assertEquals(2, scanned.size());
+    assertEquals(walk(root1, excludes), toMap(scanned.get(0)));
+    assertEquals(walk(root2, excludes), toMap(scanned.get(1)));
+    assertFalse(toMap(scanned.get(0)).isEmpty());
+    assertFalse(toMap(scanned.get(0)).containsKey(new File(excluded, "f0.java")));
+  }
+
+  public void testFileRoot() throws IOException {
+    final File file = new File(myDir, "A.java");
+    FileUtil.writeToFile(file, "class A {}");
+    final List<List<FilesScanner.ScannedFile>> scanned =
+      new FilesScanner(myExecutor, 2).scan(Collections.singletonList(file), Collections.<File>emptySet());
+    assertEquals(1, scanned.get(0).size());
+    assertEquals(file, scanned.get(0).get(0).file);
+    assertEquals(file.lastModified(), scanned.get(0).get(0).lastModified);
+  }
+
+  private static void createTree(File dir, Random random, int depth) throws IOException {
+    assertTrue(dir.mkdirs());
+    for (int i = 0; i < 5; i++) {
+      final File file = new File(dir, "f" + i + ".java");
+      FileUtil.writeToFile(file, "class f" + i + " {}");
+      assertTrue(file.setLastModified(1000000000000L + random.nextInt(1000000) * 1000L));
+    }
+    if (depth > 0) {
+      for (int i = 0; i < 3; i++) {
+        createTree(new File(dir, "d" + i), random, depth - 1);
+      }
+    }
+  }
+
+  private static Map<File, Long> walk(File root, final Set<File> excludes) {
+    final Map<File, Long> result = new HashMap<File, Long>();
+    new Object() {
+      void traverse(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+          if (children.length > 0 && !excludes.contains(file)) {
+            for (File child : children) {
+              traverse(child);
+            }
+          }
+        }
+        else {
+          result.put(file, file.lastModified());
+        }
+      }
+    }.traverse(root);
+    return result;
+  }
+
+  private static Map<File, Long> toMap(List<FilesScanner.ScannedFile> files) {
+    final Map<File, Long> result = new HashMap<File, Long>();
+    for (FilesScanner.ScannedFile file : files) {
+      assertNull(result.put(file.file, file.lastModified));
+    }
+    return result;
+  }
+}
@@ -0,0 +1,144 @@
+package org.jetbrains.jps.incremental.storage;
+
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.cmdline.ProjectDescriptor;
+import org.jetbrains.jps.incremental.AllProjectScope;
+import org.jetbrains.jps.incremental.BuildLoggingManager;
+import org.jetbrains.jps.incremental.artifacts.ArtifactBuilderLoggerImpl;
+import org.jetbrains.jps.incremental.java.JavaBuilderLogger;
+import org.jetbrains.jps.model.artifact.JpsArtifact;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ContentHashValidationTest extends JpsBuildTestCase {
+  private static final int CLASSES = 20;
+  private static final int CHANGED_ON_BRANCH = 10;
+
+  private File myProjectDir;
+  private long myInitialStamp;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myProjectDir = FileUtil.createTempDirectory("prj", null);
+    // whole seconds in the past, so the timestamps set by the test are distinct on any file system and precede the builds
+    myInitialStamp = (System.currentTimeMillis() / 1000 - 60) * 1000;
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myProjectDir);
+    super.tearDown();
+  }
+
+  public void testBranchRoundTripRecompilesTouchedFilesWithTimestampsOnly() throws IOException {
+    assertEquals(CHANGED_ON_BRANCH, buildAfterBranchRoundTrip(false).size());
+  }
+
+  public void testBranchRoundTripRecompilesNothingWithContentHashes() throws IOException {
+    assertEmpty(buildAfterBranchRoundTrip(true));
+  }
+
+  public void testModifiedContentIsRecompiledWithContentHashes() throws IOException {
+    final File src = createSources();
+    final TestJavaBuilderLogger logger = new TestJavaBuilderLogger();
+    final ProjectDescriptor descriptor = createProjectDescriptor(new BuildLoggingManager(new ArtifactBuilderLoggerImpl(), logger), true);
+    try {
+      make(descriptor);
+      final File file = new File(src, "A0.java");
+      FileUtil.writeToFile(file, "public class A0 { /* edited */ }");
+      touch(file);
+      logger.clear();
+      make(descriptor);
+      assertEquals(1, logger.myCompiledFiles.size());
+      assertTrue(logger.myCompiledFiles.get(0).endsWith("/A0.java"));
+    }
+    finally {
+      descriptor.release();
+    }
+  }
+
+  /**
+   * Changes some sources as checking out another branch would do and then restores their original content with new timestamps
+   *
+   * @return files compiled by the make after the round-trip
+   */
+  private List<String> buildAfterBranchRoundTrip(boolean validateContentHash) throws IOException {
+    final File src = createSources();
+    final TestJavaBuilderLogger logger = new TestJavaBuilderLogger();
+    final ProjectDescriptor descriptor =
+      createProjectDescriptor(new BuildLoggingManager(new ArtifactBuilderLoggerImpl(), logger), validateContentHash);
+    try {
+      make(descriptor);
+      assertEquals(CLASSES, logger.myCompiledFiles.size());
+
+      for (int i = 0; i < CHANGED_ON_BRANCH; i++) {
+        final File file = new File(src, "A" + i + ".java");
+        final String original = FileUtil.loadFile(file);
+        FileUtil.writeToFile(file, "public class A" + i + " { void onBranch() {} }");
+        FileUtil.writeToFile(file, original);
+        touch(file);
+      }
+
+      logger.clear();
+      make(descriptor);
+      return logger.myCompiledFiles;
+    }
+    finally {
+      descriptor.release();
+    }
+  }
+
+  private File createSources() throws IOException {
+    final File src = new File(myProjectDir, "src");
+    for (int i = 0; i < CLASSES; i++) {
+      final String body = i > 0 ? "A" + (i - 1) + " previous;" : "";
+      final File file = new File(src, "A" + i + ".java");
+      FileUtil.writeToFile(file, "public class A" + i + " { " + body + " }");
+      assertTrue(file.setLastModified(myInitialStamp));
+    }
+    addModule("m", new String[]{src.getAbsolutePath()}, new File(myProjectDir, "out").getAbsolutePath(), addJdk("1.6"));
+    return src;
+  }
+
+  private void make(ProjectDescriptor descriptor) {
+    final AllProjectScope scope = new AllProjectScope(descriptor.project, descriptor.jpsProject, Collections.<JpsArtifact>emptySet(), false);
+    doBuild(descriptor, scope, true, false, false).assertSuccessful();
+  }
+
+  private void touch(File file) {
+    assertTrue(file.setLastModified(myInitialStamp + 10000));
+  }
+
+  private static class TestJavaBuilderLogger implements JavaBuilderLogger {
+    private final List<String> myCompiledFiles = new ArrayList<String>();
+    private boolean myInCompiledFiles;
+
+    @Override
+    public void log(String line) {
+      if ("Compiling files:".equals(line)) {
+        myInCompiledFiles = true;
+      }
+      else if ("End of files".equals(line)) {
+        myInCompiledFiles = false;
+      }
+      else if (myInCompiledFiles) {
+        myCompiledFiles.add(line);
+      }
+    }
+
+    @Override
+    public boolean isEnabled() {
+      return true;
+    }
+
+    public void clear() {
+      myCompiledFiles.clear();
+    }
+  }
+}
@@ -5,8 +5,8 @@ import com.intellij.util.io.PersistentStringEnumerator;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Created by IntelliJ IDEA.
@@ -19,30 +19,20 @@ class DependencyContext {
   private final static String STRING_TABLE_NAME = "strings.tab";
   private final PersistentStringEnumerator myEnumerator;
 
-  private final Map<TypeRepr.AbstractType, TypeRepr.AbstractType> myTypeMap = new HashMap<TypeRepr.AbstractType, TypeRepr.AbstractType>();
-  private final Map<UsageRepr.Usage, UsageRepr.Usage> myUsageMap = new HashMap<UsageRepr.Usage, UsageRepr.Usage>();
+  private final ConcurrentMap<TypeRepr.AbstractType, TypeRepr.AbstractType> myTypeMap =
+    new ConcurrentHashMap<TypeRepr.AbstractType, TypeRepr.AbstractType>();
+  private final ConcurrentMap<UsageRepr.Usage, UsageRepr.Usage> myUsageMap = new ConcurrentHashMap<UsageRepr.Usage, UsageRepr.Usage>();
 
    UsageRepr.Usage getUsage(final UsageRepr.Usage u) {
-     final UsageRepr.Usage r = myUsageMap.get(u);
+     final UsageRepr.Usage r = myUsageMap.putIfAbsent(u, u);
 
-     if (r == null) {
-       myUsageMap.put(u, u);
-       return u;
-     }
-
-     return r;
+     return r == null ? u : r;
    }
 
   TypeRepr.AbstractType getType(final TypeRepr.AbstractType t) {
-    final TypeRepr.AbstractType r = myTypeMap.get(t);
-
-    if (r != null) {
-      return r;
-    }
-
-    myTypeMap.put(t, t);
+    final TypeRepr.AbstractType r = myTypeMap.putIfAbsent(t, t);
 
-    return t;
+    return r == null ? t : r;
   }
 
   void clearMemoryCaches() {
@@ -36,6 +36,12 @@ abstract class IntIntMultiMaplet implements Streamable {
 
   abstract TIntHashSet get(final int key);
 
+  /**
+   * Tells the maplet that values of the keys are going to be requested soon, so they can be read in a batch
+   */
+  void prefetch(final int[] keys) {
+  }
+
   abstract void put(final int key, final int value);
 
   abstract void put(final int key, final TIntHashSet value);
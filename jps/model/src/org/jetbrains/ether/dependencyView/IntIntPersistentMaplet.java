@@ -16,7 +16,6 @@
 package org.jetbrains.ether.dependencyView;
 
 import com.intellij.util.Processor;
-import com.intellij.util.containers.SLRUCache;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.KeyDescriptor;
 import com.intellij.util.io.PersistentHashMap;
@@ -39,7 +38,7 @@ public class IntIntPersistentMaplet extends IntIntMaplet {
   private static final Object NULL_OBJ = new Object();
   private static final int CACHE_SIZE = 512;
   private final PersistentHashMap<Integer, Integer> myMap;
-  private final SLRUCache<Integer, Object> myCache;
+  private final MapletCache<Object> myCache;
 
   public IntIntPersistentMaplet(final File file, final KeyDescriptor<Integer> k) {
     try {
@@ -54,10 +53,10 @@ public class IntIntPersistentMaplet extends IntIntMaplet {
           return in.readInt();
         }
       });
-      myCache = new SLRUCache<Integer, Object>(CACHE_SIZE, CACHE_SIZE) {
+      myCache = new MapletCache<Object>(CACHE_SIZE) {
         @NotNull
         @Override
-        public Object createValue(Integer key) {
+        protected Object load(int key) {
           try {
             final Integer v1 = myMap.get(key);
             return v1 == null? NULL_OBJ : v1;
@@ -92,8 +91,8 @@ public class IntIntPersistentMaplet extends IntIntMaplet {
   @Override
   public void put(final int key, final int value) {
     try {
-      myCache.remove(key);
       myMap.put(key, value);
+      myCache.invalidate(key);
     }
     catch (IOException e) {
       throw new RuntimeException(e);
@@ -114,8 +113,8 @@ public class IntIntPersistentMaplet extends IntIntMaplet {
   @Override
   public void remove(final int key) {
     try {
-      myCache.remove(key);
       myMap.remove(key);
+      myCache.invalidate(key);
     }
     catch (IOException e) {
       throw new RuntimeException(e);
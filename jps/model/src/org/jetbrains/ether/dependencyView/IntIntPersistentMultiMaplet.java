@@ -15,9 +15,9 @@
  */
 package org.jetbrains.ether.dependencyView;
 
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Ref;
 import com.intellij.util.Processor;
-import com.intellij.util.containers.SLRUCache;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.KeyDescriptor;
 import com.intellij.util.io.PersistentHashMap;
@@ -36,17 +36,20 @@ import java.io.*;
  * To change this template use File | Settings | File Templates.
  */
 class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.ether.dependencyView.IntIntPersistentMultiMaplet");
   private static final TIntHashSet NULL_COLLECTION = new TIntHashSet();
   private static final int CACHE_SIZE = 128;
   private final PersistentHashMap<Integer, TIntHashSet> myMap;
-  private final SLRUCache<Integer, TIntHashSet> myCache;
+  private final WriteBackMapletCache<TIntHashSet> myCache;
+  private final String myName;
 
   public IntIntPersistentMultiMaplet(final File file, final KeyDescriptor<Integer> keyExternalizer) throws IOException {
-    myMap = new PersistentHashMap<Integer, TIntHashSet>(file, keyExternalizer, new IntSetExternalizer());
-    myCache = new SLRUCache<Integer, TIntHashSet>(CACHE_SIZE, CACHE_SIZE) {
+    myName = file.getName();
+    myMap = new PersistentHashMap<Integer, TIntHashSet>(file, keyExternalizer, IntSetExternalizer.INSTANCE);
+    myCache = new WriteBackMapletCache<TIntHashSet>(CACHE_SIZE) {
       @NotNull
       @Override
-      public TIntHashSet createValue(Integer key) {
+      protected TIntHashSet load(int key) {
         try {
           final TIntHashSet collection = myMap.get(key);
           return collection == null? NULL_COLLECTION : collection;
@@ -55,11 +58,56 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
           throw new RuntimeException(e);
         }
       }
+
+      @NotNull
+      @Override
+      protected TIntHashSet merge(@NotNull TIntHashSet value, @NotNull TIntHashSet additions) {
+        final TIntHashSet result = value == NULL_COLLECTION ? new TIntHashSet() : value;
+        result.addAll(additions.toArray());
+        return result;
+      }
+
+      @Override
+      protected void storeAdditions(int key, @NotNull final TIntHashSet additions) {
+        try {
+          myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
+            @Override
+            public void append(DataOutput out) throws IOException {
+              IntSetExternalizer.INSTANCE.save(out, additions);
+            }
+          });
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+
+      @Override
+      protected void store(int key, @NotNull TIntHashSet value) {
+        try {
+          if (value == NULL_COLLECTION) {
+            myMap.remove(key);
+          }
+          else {
+            myMap.put(key, value);
+          }
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
     };
   }
 
   @Override
   public boolean containsKey(final int key) {
+    final TIntHashSet cached = myCache.getCached(key);
+    if (cached != null) {
+      return cached != NULL_COLLECTION;
+    }
+    if (myCache.hasAdditions(key)) {
+      return true;
+    }
     try {
       return myMap.containsMapping(key);
     }
@@ -74,121 +122,56 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
     return collection == NULL_COLLECTION? null : collection;
   }
 
+  @Override
+  public void prefetch(final int[] keys) {
+    myCache.prefetch(keys);
+  }
+
   @Override
   public void replace(int key, TIntHashSet value) {
-    try {
-      myCache.remove(key);
-      if (value == null || value.isEmpty()) {
-        myMap.remove(key);
-      }
-      else {
-        myMap.put(key, value);
-      }
+    if (value == null || value.isEmpty()) {
+      myCache.update(key, NULL_COLLECTION);
     }
-    catch (IOException e) {
-      throw new RuntimeException(e);
+    else if (value == myCache.getCached(key)) {
+      // the cached value has been changed in place by the caller
+      myCache.update(key, value);
+    }
+    else {
+      myCache.update(key, new TIntHashSet(value.toArray()));
     }
   }
 
   @Override
   public void put(final int key, final TIntHashSet value) {
-    try {
-      myCache.remove(key);
-      myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
-        public void append(final DataOutput out) throws IOException {
-          final Ref<IOException> exRef = new Ref<IOException>();
-          value.forEach(new TIntProcedure() {
-            @Override
-            public boolean execute(int value) {
-              try {
-                out.writeInt(value);
-              }
-              catch (IOException e) {
-                exRef.set(e);
-                return false;
-              }
-              return true;
-            }
-          });
-          final IOException exception = exRef.get();
-          if (exception != null) {
-            throw exception;
-          }
-        }
-      });
-    }
-    catch (IOException e) {
-      throw new RuntimeException(e);
+    if (!value.isEmpty()) {
+      myCache.add(key, new TIntHashSet(value.toArray()));
     }
   }
 
   @Override
   public void put(final int key, final int value) {
-    try {
-      myCache.remove(key);
-      myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
-        public void append(final DataOutput out) throws IOException {
-          out.writeInt(value);
-        }
-      });
-    }
-    catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+    myCache.add(key, new TIntHashSet(new int[]{value}));
   }
 
   @Override
   public void removeAll(int key, TIntHashSet values) {
-    try {
-      final TIntHashSet collection = myCache.get(key);
-
-      if (collection != NULL_COLLECTION) {
-        if (collection.removeAll(values.toArray())) {
-          myCache.remove(key);
-          if (collection.isEmpty()) {
-            myMap.remove(key);
-          }
-          else {
-            myMap.put(key, collection);
-          }
-        }
-      }
-    }
-    catch (IOException e) {
-      throw new RuntimeException(e);
+    final TIntHashSet collection = myCache.get(key);
+    if (collection != NULL_COLLECTION && collection.removeAll(values.toArray())) {
+      myCache.update(key, collection.isEmpty() ? NULL_COLLECTION : collection);
     }
   }
 
   @Override
   public void removeFrom(final int key, final int value) {
-    try {
-      final TIntHashSet collection = myCache.get(key);
-      if (collection != NULL_COLLECTION) {
-        if (collection.remove(value)) {
-          myCache.remove(key);
-          if (collection.isEmpty()) {
-            myMap.remove(key);
-          }
-          else {
-            myMap.put(key, collection);
-          }
-        }
-      }
-    }
-    catch (IOException e) {
-      throw new RuntimeException(e);
+    final TIntHashSet collection = myCache.get(key);
+    if (collection != NULL_COLLECTION && collection.remove(value)) {
+      myCache.update(key, collection.isEmpty() ? NULL_COLLECTION : collection);
     }
   }
 
   @Override
   public void remove(final int key) {
-    try {
-      myCache.remove(key);
-      myMap.remove(key);
-    }
-    catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+    myCache.update(key, NULL_COLLECTION);
   }
 
   @Override
@@ -225,6 +208,12 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
   }
 
   public void flush(boolean memoryCachesOnly) {
+    final long started = System.currentTimeMillis();
+    final int stored = myCache.flush();
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(myName + ": " + stored + " values written back in " + (System.currentTimeMillis() - started) + " ms");
+    }
+
     if (memoryCachesOnly) {
       if (myMap.isDirty()) {
         myMap.dropMemoryCaches();
@@ -232,11 +221,13 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
     }
     else {
       myMap.force();
+      LOG.info(myName + " cache: " + myCache.getStatistics());
     }
   }
 
   @Override
   public void forEachEntry(final TIntObjectProcedure<TIntHashSet> procedure) {
+    myCache.flush();
     try {
       myMap.processKeysWithExistingMapping(new Processor<Integer>() {
         @Override
@@ -256,6 +247,8 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
   }
 
   private static class IntSetExternalizer implements DataExternalizer<TIntHashSet> {
+    private static final IntSetExternalizer INSTANCE = new IntSetExternalizer();
+
     @Override
     public void save(final DataOutput out, final TIntHashSet value) throws IOException {
       final Ref<IOException> exRef = new Ref<IOException>(null);
@@ -15,8 +15,8 @@
  */
 package org.jetbrains.ether.dependencyView;
 
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.util.Processor;
-import com.intellij.util.containers.SLRUCache;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.KeyDescriptor;
 import com.intellij.util.io.PersistentHashMap;
@@ -35,22 +35,27 @@ import java.util.Collections;
  * To change this template use File | Settings | File Templates.
  */
 class IntObjectPersistentMultiMaplet<V extends Streamable> extends IntObjectMultiMaplet<V> {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.ether.dependencyView.IntObjectPersistentMultiMaplet");
   private static final Collection NULL_COLLECTION = Collections.emptySet();
   private static final int CACHE_SIZE = 128;
   private final PersistentHashMap<Integer, Collection<V>> myMap;
-  private final DataExternalizer<V> myValueExternalizer;
-  private final SLRUCache<Integer, Collection> myCache;
+  private final CollectionFactory<V> myCollectionFactory;
+  private final CollectionDataExternalizer<V> myExternalizer;
+  private final WriteBackMapletCache<Collection> myCache;
+  private final String myName;
 
   public IntObjectPersistentMultiMaplet(final File file,
                                         final KeyDescriptor<Integer> keyExternalizer,
                                         final DataExternalizer<V> valueExternalizer,
                                         final CollectionFactory<V> collectionFactory) throws IOException {
-    myValueExternalizer = valueExternalizer;
-    myMap = new PersistentHashMap<Integer, Collection<V>>(file, keyExternalizer, new CollectionDataExternalizer<V>(valueExternalizer, collectionFactory));
-    myCache = new SLRUCache<Integer, Collection>(CACHE_SIZE, CACHE_SIZE) {
+    myName = file.getName();
+    myCollectionFactory = collectionFactory;
+    myExternalizer = new CollectionDataExternalizer<V>(valueExternalizer, collectionFactory);
+    myMap = new PersistentHashMap<Integer, Collection<V>>(file, keyExternalizer, myExternalizer);
+    myCache = new WriteBackMapletCache<Collection>(CACHE_SIZE) {
       @NotNull
       @Override
-      public Collection createValue(Integer key) {
+      protected Collection load(int key) {
         try {
           final Collection<V> collection = myMap.get(key);
           return collection == null? NULL_COLLECTION : collection;
@@ -59,12 +64,57 @@ class IntObjectPersistentMultiMaplet<V extends Streamable> extends IntObjectMult
           throw new RuntimeException(e);
         }
       }
+
+      @NotNull
+      @Override
+      protected Collection merge(@NotNull Collection value, @NotNull Collection additions) {
+        final Collection<V> result = value == NULL_COLLECTION ? myCollectionFactory.create() : (Collection<V>)value;
+        result.addAll(additions);
+        return result;
+      }
+
+      @Override
+      protected void storeAdditions(int key, @NotNull final Collection additions) {
+        try {
+          myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
+            @Override
+            public void append(DataOutput out) throws IOException {
+              myExternalizer.save(out, (Collection<V>)additions);
+            }
+          });
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+
+      @Override
+      protected void store(int key, @NotNull Collection value) {
+        try {
+          if (value == NULL_COLLECTION) {
+            myMap.remove(key);
+          }
+          else {
+            myMap.put(key, (Collection<V>)value);
+          }
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
     };
   }
 
 
   @Override
   public boolean containsKey(final int key) {
+    final Collection cached = myCache.getCached(key);
+    if (cached != null) {
+      return cached != NULL_COLLECTION;
+    }
+    if (myCache.hasAdditions(key)) {
+      return true;
+    }
     try {
       return myMap.containsMapping(key);
     }
@@ -81,95 +131,55 @@ class IntObjectPersistentMultiMaplet<V extends Streamable> extends IntObjectMult
 
   @Override
   public void replace(int key, Collection<V> value) {
-    try {
-      myCache.remove(key);
-      if (value == null || value.isEmpty()) {
-        myMap.remove(key);
-      }
-      else {
-        myMap.put(key, value);
-      }
+    if (value == null || value.isEmpty()) {
+      myCache.update(key, NULL_COLLECTION);
     }
-    catch (IOException e) {
-      throw new RuntimeException(e);
+    else if (value == myCache.getCached(key)) {
+      // the cached value has been changed in place by the caller
+      myCache.update(key, value);
+    }
+    else {
+      final Collection<V> collection = myCollectionFactory.create();
+      collection.addAll(value);
+      myCache.update(key, collection);
     }
   }
 
   @Override
   public void put(final int key, final Collection<V> value) {
-    try {
-      myCache.remove(key);
-      myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
-        public void append(DataOutput out) throws IOException {
-          for (V v : value) {
-            myValueExternalizer.save(out, v);
-          }
-        }
-      });
-    }
-    catch (IOException e) {
-      throw new RuntimeException(e);
+    if (!value.isEmpty()) {
+      final Collection<V> additions = myCollectionFactory.create();
+      additions.addAll(value);
+      myCache.add(key, additions);
     }
   }
 
   @Override
   public void put(final int key, final V value) {
-    put(key, Collections.singleton(value));
+    final Collection<V> additions = myCollectionFactory.create();
+    additions.add(value);
+    myCache.add(key, additions);
   }
 
   @Override
   public void removeAll(int key, Collection<V> values) {
-    try {
-      final Collection collection = myCache.get(key);
-
-      if (collection != NULL_COLLECTION) {
-        if (collection.removeAll(values)) {
-          myCache.remove(key);
-          if (collection.isEmpty()) {
-            myMap.remove(key);
-          }
-          else {
-            myMap.put(key, (Collection<V>)collection);
-          }
-        }
-      }
-    }
-    catch (IOException e) {
-      throw new RuntimeException(e);
+    final Collection collection = myCache.get(key);
+    if (collection != NULL_COLLECTION && collection.removeAll(values)) {
+      myCache.update(key, collection.isEmpty() ? NULL_COLLECTION : collection);
     }
   }
 
   @Override
   public void removeFrom(final int key, final V value) {
-    try {
-      final Collection collection = myCache.get(key);
-
-      if (collection != NULL_COLLECTION) {
-        if (collection.remove(value)) {
-          myCache.remove(key);
-          if (collection.isEmpty()) {
-            myMap.remove(key);
-          }
-          else {
-            myMap.put(key, (Collection<V>)collection);
-          }
-        }
-      }
-    }
-    catch (IOException e) {
-      throw new RuntimeException(e);
+    final Collection collection = myCache.get(key);
+    if (collection != NULL_COLLECTION && collection.remove(value)) {
+      myCache.update(key, collection.isEmpty() ? NULL_COLLECTION : collection);
     }
   }
 
   @Override
   public void remove(final int key) {
-    try {
-      myCache.remove(key);
-      myMap.remove(key);
-    }
-    catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+    myCache.update(key, NULL_COLLECTION);
   }
 
   @Override
@@ -206,6 +216,12 @@ class IntObjectPersistentMultiMaplet<V extends Streamable> extends IntObjectMult
   }
 
   public void flush(boolean memoryCachesOnly) {
+    final long started = System.currentTimeMillis();
+    final int stored = myCache.flush();
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(myName + ": " + stored + " values written back in " + (System.currentTimeMillis() - started) + " ms");
+    }
+
     if (memoryCachesOnly) {
       if (myMap.isDirty()) {
         myMap.dropMemoryCaches();
@@ -213,11 +229,13 @@ class IntObjectPersistentMultiMaplet<V extends Streamable> extends IntObjectMult
     }
     else {
       myMap.force();
+      LOG.info(myName + " cache: " + myCache.getStatistics());
     }
   }
 
   @Override
   public void forEachEntry(final TIntObjectProcedure<Collection<V>> procedure) {
+    myCache.flush();
     try {
       myMap.processKeysWithExistingMapping(new Processor<Integer>() {
         @Override
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.ether.dependencyView;
+
+import com.intellij.util.containers.SLRUMap;
+import gnu.trove.TIntArrayList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory cache of values of a persistent maplet which may be queried from several threads at once.
+ * Values are loaded outside of the cache lock, so a lookup which misses the cache doesn't block lookups of other keys.
+ * <p/>
+ * The maplet writes its data through and must {@link #invalidate} the key after the persistent data has been written.
+ * A value loaded concurrently with a change of the key is not cached, so the cache never returns outdated values.
+ * Maplets which change values in the cache and write them back later use {@link WriteBackMapletCache}.
+ */
+abstract class MapletCache<V> {
+  private final SLRUMap<Integer, V> myMap;
+  private final int mySize;
+  // changed whenever a value may change, values loaded meanwhile are not cached
+  private long myModificationCount;
+
+  private long myLookups;
+  private long myHits;
+
+  MapletCache(final int size) {
+    myMap = new SLRUMap<Integer, V>(size, size) {
+      @Override
+      protected void onDropFromCache(final Integer key, final V value) {
+        dropped(key, value);
+      }
+    };
+    mySize = size;
+  }
+
+  /**
+   * @return value for the key or a null object if the maplet has no mapping for it
+   */
+  @NotNull
+  protected abstract V load(int key);
+
+  /**
+   * Called under the cache lock when a value is dropped from the cache.
+   */
+  protected void dropped(final int key, @NotNull final V value) {
+  }
+
+  @NotNull
+  V get(final int key) {
+    final long modificationCount;
+    synchronized (this) {
+      myLookups++;
+      final V cached = myMap.get(key);
+      if (cached != null) {
+        myHits++;
+        return cached;
+      }
+      modificationCount = myModificationCount;
+    }
+    final V value = load(key);
+    synchronized (this) {
+      return loaded(key, value, modificationCount == myModificationCount);
+    }
+  }
+
+  /**
+   * @return cached value of the key or null if it isn't cached
+   */
+  @Nullable
+  synchronized V getCached(final int key) {
+    return myMap.get(key);
+  }
+
+  /**
+   * Loads values of keys which are not cached yet in a single batch. Keys are loaded in ascending order,
+   * at most as many as fit into the cache.
+   */
+  void prefetch(final int[] keys) {
+    final TIntArrayList missing = new TIntArrayList();
+    final long modificationCount;
+    synchronized (this) {
+      for (int key : keys) {
+        if (myMap.get(key) == null) {
+          missing.add(key);
+          if (missing.size() == mySize) {
+            break;
+          }
+        }
+      }
+      modificationCount = myModificationCount;
+    }
+    if (missing.isEmpty()) {
+      return;
+    }
+    missing.sort();
+    final Object[] values = new Object[missing.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = load(missing.get(i));
+    }
+    synchronized (this) {
+      for (int i = 0; i < values.length; i++) {
+        //noinspection unchecked
+        loaded(missing.get(i), (V)values[i], modificationCount == myModificationCount);
+      }
+    }
+  }
+
+  /**
+   * Called under the cache lock with a value just loaded for a key which wasn't cached.
+   *
+   * @param cache false if the key may have been changed while the value was loaded
+   * @return the value to return for the key
+   */
+  @NotNull
+  protected V loaded(final int key, @NotNull final V value, final boolean cache) {
+    if (cache) {
+      myMap.put(key, value);
+    }
+    return value;
+  }
+
+  /**
+   * Called under the cache lock before a value is changed, values being loaded meanwhile are then not cached.
+   */
+  final void valuesChanged() {
+    myModificationCount++;
+  }
+
+  /**
+   * Called under the cache lock.
+   */
+  final void cacheValue(final int key, @NotNull final V value) {
+    myMap.put(key, value);
+  }
+
+  /**
+   * Called under the cache lock.
+   */
+  @NotNull
+  final Set<Map.Entry<Integer, V>> cachedEntries() {
+    return myMap.entrySet();
+  }
+
+  final int getCacheSize() {
+    return mySize;
+  }
+
+  synchronized void invalidate(final int key) {
+    myModificationCount++;
+    myMap.remove(key);
+  }
+
+  /**
+   * Drops all values from the cache.
+   */
+  synchronized void clear() {
+    myModificationCount++;
+    myMap.clear();
+  }
+
+  synchronized String getStatistics() {
+    final long hitRate = myLookups > 0 ? myHits * 100 / myLookups : 0;
+    return "hits " + hitRate + "% of " + myLookups + " lookups";
+  }
+}
@@ -5,6 +5,7 @@ import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.io.IntInlineKeyDescriptor;
+import gnu.trove.TIntArrayList;
 import gnu.trove.TIntHashSet;
 import gnu.trove.TIntIntProcedure;
 import gnu.trove.TIntObjectProcedure;
@@ -13,6 +14,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.asm4.ClassReader;
 import org.jetbrains.asm4.Opcodes;
+import org.jetbrains.jps.service.SharedThreadPool;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -20,8 +22,11 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.lang.annotation.RetentionPolicy;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by IntelliJ IDEA.
@@ -42,6 +47,8 @@ public class Mappings {
   private static final IntInlineKeyDescriptor INT_KEY_DESCRIPTOR = new IntInlineKeyDescriptor();
   private static final int DEFAULT_SET_CAPACITY = 32;
   private static final float DEFAULT_SET_LOAD_FACTOR = 0.98f;
+  private static final int DEFAULT_ANALYSIS_PARALLELISM =
+    Math.max(1, Integer.getInteger("jps.dependency.analysis.threads", Runtime.getRuntime().availableProcessors()));
   private static final CollectionFactory<ClassRepr> ourClassSetConstructor = new CollectionFactory<ClassRepr>() {
     public Set<ClassRepr> create() {
       return new HashSet<ClassRepr>(DEFAULT_SET_CAPACITY, DEFAULT_SET_LOAD_FACTOR);
@@ -75,6 +82,8 @@ public class Mappings {
   @Nullable
   private Collection<String> myRemovedFiles;
 
+  private int myAnalysisParallelism = DEFAULT_ANALYSIS_PARALLELISM;
+
   private Mappings(final Mappings base) throws IOException {
     myLock = base.myLock;
     myIsDelta = true;
@@ -130,6 +139,13 @@ public class Mappings {
     }
   }
 
+  /**
+   * @param parallelism maximum number of threads analysing differences of compiled files
+   */
+  void setAnalysisParallelism(final int parallelism) {
+    myAnalysisParallelism = Math.max(1, parallelism);
+  }
+
   public Mappings createDelta() {
     synchronized (myLock) {
       try {
@@ -666,20 +682,30 @@ public class Mappings {
   }
 
   private TIntHashSet addAllSubclasses(final int root, final TIntHashSet acc) {
-    final TIntHashSet directSubclasses = myClassToSubclasses.get(root);
-
     acc.add(root);
 
-    if (directSubclasses != null) {
-      directSubclasses.forEach(new TIntProcedure() {
-        @Override
-        public boolean execute(int s) {
-          if (!acc.contains(s)) {
-            addAllSubclasses(s, acc);
-          }
-          return true;
+    // breadth-first, so the subclasses of a whole level of the hierarchy are read in one batch
+    int[] level = {root};
+    while (level.length > 0) {
+      myClassToSubclasses.prefetch(level);
+
+      final TIntHashSet nextLevel = new TIntHashSet(DEFAULT_SET_CAPACITY, DEFAULT_SET_LOAD_FACTOR);
+      for (final int c : level) {
+        final TIntHashSet directSubclasses = myClassToSubclasses.get(c);
+
+        if (directSubclasses != null) {
+          directSubclasses.forEach(new TIntProcedure() {
+            @Override
+            public boolean execute(int s) {
+              if (acc.add(s)) {
+                nextLevel.add(s);
+              }
+              return true;
+            }
+          });
         }
-      });
+      }
+      level = nextLevel.toArray();
     }
     return acc;
   }
@@ -807,7 +833,7 @@ public class Mappings {
 
       final Collection<Triple> myQueue = new LinkedList<Triple>();
 
-      void addConstantWork(final int ownerClass, final FieldRepr changedField, final boolean isRemoved, boolean accessChanged) {
+      synchronized void addConstantWork(final int ownerClass, final FieldRepr changedField, final boolean isRemoved, boolean accessChanged) {
         final Future<Callbacks.ConstantAffection> future;
         if (myConstantSearch == null) {
           future = null;
@@ -868,6 +894,7 @@ public class Mappings {
 
     private class DiffState {
       final public TIntHashSet myDependants = new TIntHashSet(DEFAULT_SET_CAPACITY, DEFAULT_SET_LOAD_FACTOR);
+      final public Set<File> myAffectedFiles = new HashSet<File>();
 
       final public Set<UsageRepr.Usage> myAffectedUsages = new HashSet<UsageRepr.Usage>();
       final public Set<UsageRepr.AnnotationUsage> myAnnotationQuery = new HashSet<UsageRepr.AnnotationUsage>();
@@ -974,7 +1001,7 @@ public class Mappings {
             (it.access & Opcodes.ACC_ABSTRACT) > 0 ||
             (m.access & Opcodes.ACC_ABSTRACT) > 0) {
           debug("Class is abstract, or is interface, or added method in abstract => affecting all subclasses");
-          myFuture.affectSubclasses(it.name, myAffectedFiles, state.myAffectedUsages, state.myDependants, false);
+          myFuture.affectSubclasses(it.name, state.myAffectedFiles, state.myAffectedUsages, state.myDependants, false);
         }
 
         TIntHashSet propagated = null;
@@ -1086,7 +1113,7 @@ public class Mappings {
       affectedFiles.forEach(new TIntProcedure() {
         @Override
         public boolean execute(int file) {
-          myAffectedFiles.add(new File(myContext.getValue(file)));
+          state.myAffectedFiles.add(new File(myContext.getValue(file)));
           return true;
         }
       });
@@ -1190,7 +1217,7 @@ public class Mappings {
         @Override
         public boolean execute(int file) {
           final String f = myContext.getValue(file);
-          myAffectedFiles.add(new File(f));
+          state.myAffectedFiles.add(new File(f));
           return true;
         }
       });
@@ -1253,7 +1280,7 @@ public class Mappings {
                   final int fileName = myClassToSourceFile.get(aClass.name);
 
                   if (fileName > 0) {
-                    myAffectedFiles.add(new File(myContext.getValue(fileName)));
+                    state.myAffectedFiles.add(new File(myContext.getValue(fileName)));
                   }
                 }
               }
@@ -1273,7 +1300,7 @@ public class Mappings {
 
               if ((d.addedModifiers() & Opcodes.ACC_STATIC) > 0) {
                 debug("Added static specifier --- affecting subclasses");
-                myFuture.affectSubclasses(it.name, myAffectedFiles, state.myAffectedUsages, state.myDependants, false);
+                myFuture.affectSubclasses(it.name, state.myAffectedFiles, state.myAffectedUsages, state.myDependants, false);
               }
             }
             else {
@@ -1281,7 +1308,7 @@ public class Mappings {
                   (d.addedModifiers() & Opcodes.ACC_PUBLIC) > 0 ||
                   (d.addedModifiers() & Opcodes.ACC_ABSTRACT) > 0) {
                 debug("Added final, public or abstract specifier --- affecting subclasses");
-                myFuture.affectSubclasses(it.name, myAffectedFiles, state.myAffectedUsages, state.myDependants, false);
+                myFuture.affectSubclasses(it.name, state.myAffectedFiles, state.myAffectedUsages, state.myDependants, false);
               }
 
               if ((d.addedModifiers() & Opcodes.ACC_PROTECTED) > 0 && !((d.removedModifiers() & Opcodes.ACC_PRIVATE) > 0)) {
@@ -1326,13 +1353,13 @@ public class Mappings {
                 if (sourceFileName > 0) {
                   if (r.isLocal()) {
                     debug("Affecting local subclass (introduced field can potentially hide surrounding method parameters/local variables): ", sourceFileName);
-                    myAffectedFiles.add(new File(myContext.getValue(sourceFileName)));
+                    state.myAffectedFiles.add(new File(myContext.getValue(sourceFileName)));
                   }
                   else {
                     final int outerClass = r.getOuterClassName();
                     if (!isEmpty(outerClass) && myFuture.isFieldVisible(outerClass, f)) {
                       debug("Affecting inner subclass (introduced field can potentially hide surrounding class fields): ", sourceFileName);
-                      myAffectedFiles.add(new File(myContext.getValue(sourceFileName)));
+                      state.myAffectedFiles.add(new File(myContext.getValue(sourceFileName)));
                     }
                   }
                 }
@@ -1416,7 +1443,7 @@ public class Mappings {
             myDelayedWorks.addConstantWork(it.name, f, true, false);
           }
           else {
-            if (!incrementalDecision(it.name, f, myAffectedFiles, myFilter)) {
+            if (!incrementalDecision(it.name, f, state.myAffectedFiles, myFilter)) {
               debug("End of Differentiate, returning false");
               return false;
             }
@@ -1452,7 +1479,7 @@ public class Mappings {
               myDelayedWorks.addConstantWork(it.name, field, false, accessChanged);
             }
             else {
-              if (!incrementalDecision(it.name, field, myAffectedFiles, myFilter)) {
+              if (!incrementalDecision(it.name, field, state.myAffectedFiles, myFilter)) {
                 debug("End of Differentiate, returning false");
                 return false;
               }
@@ -1513,23 +1540,14 @@ public class Mappings {
       return true;
     }
 
-    private boolean processChangedClasses(final DiffState state) {
-      debug("Processing changed classes:");
+    private void registerChangedClasses(final DiffState state) {
       for (final Pair<ClassRepr, Difference> changed : state.myClassDiff.changed()) {
         final ClassRepr it = changed.first;
         final ClassRepr.Diff diff = (ClassRepr.Diff)changed.second;
 
         myDelta.addChangedClass(it.name);
 
-        debug("Changed: ", it.name);
-
-        final int addedModifiers = diff.addedModifiers();
-
-        final boolean superClassChanged = (diff.base() & Difference.SUPERCLASS) > 0;
-        final boolean interfacesChanged = !diff.interfaces().unchanged();
-        final boolean signatureChanged = (diff.base() & Difference.SIGNATURE) > 0;
-
-        if (superClassChanged) {
+        if ((diff.base() & Difference.SUPERCLASS) > 0) {
           myDelta.registerRemovedSuperClass(it.name, ((TypeRepr.ClassType)it.getSuperClass()).myClassName);
 
           final ClassRepr newClass = myDelta.getReprByName(it.name);
@@ -1539,7 +1557,7 @@ public class Mappings {
           myDelta.registerAddedSuperClass(it.name, ((TypeRepr.ClassType)newClass.getSuperClass()).myClassName);
         }
 
-        if (interfacesChanged) {
+        if (!diff.interfaces().unchanged()) {
           for (final TypeRepr.AbstractType typ : diff.interfaces().removed()) {
             myDelta.registerRemovedSuperClass(it.name, ((TypeRepr.ClassType)typ).myClassName);
           }
@@ -1548,10 +1566,22 @@ public class Mappings {
             myDelta.registerAddedSuperClass(it.name, ((TypeRepr.ClassType)typ).myClassName);
           }
         }
+      }
+    }
 
-        if (myEasyMode) {
-          continue;
-        }
+    private boolean processChangedClasses(final DiffState state) {
+      debug("Processing changed classes:");
+      for (final Pair<ClassRepr, Difference> changed : state.myClassDiff.changed()) {
+        final ClassRepr it = changed.first;
+        final ClassRepr.Diff diff = (ClassRepr.Diff)changed.second;
+
+        debug("Changed: ", it.name);
+
+        final int addedModifiers = diff.addedModifiers();
+
+        final boolean superClassChanged = (diff.base() & Difference.SUPERCLASS) > 0;
+        final boolean interfacesChanged = !diff.interfaces().unchanged();
+        final boolean signatureChanged = (diff.base() & Difference.SIGNATURE) > 0;
 
         myPresent.appendDependents(it, state.myDependants);
 
@@ -1566,7 +1596,7 @@ public class Mappings {
           debug("Extends changed: ", extendsChanged);
           debug("Interfaces removed: ", interfacesRemoved);
 
-          myFuture.affectSubclasses(it.name, myAffectedFiles, state.myAffectedUsages, state.myDependants,
+          myFuture.affectSubclasses(it.name, state.myAffectedFiles, state.myAffectedUsages, state.myDependants,
                                      extendsChanged || interfacesRemoved || signatureChanged);
         }
 
@@ -1577,7 +1607,7 @@ public class Mappings {
 
         if (it.isAnnotation() && it.getRetentionPolicy() == RetentionPolicy.SOURCE) {
           debug("Annotation, retention policy = SOURCE => a switch to non-incremental mode requested");
-          if (!incrementalDecision(it.getOuterClassName(), it, myAffectedFiles, myFilter)) {
+          if (!incrementalDecision(it.getOuterClassName(), it, state.myAffectedFiles, myFilter)) {
             debug("End of Differentiate, returning false");
             return false;
           }
@@ -1621,7 +1651,7 @@ public class Mappings {
 
             if (removedtargets.contains(ElemType.LOCAL_VARIABLE)) {
               debug("Removed target contains LOCAL_VARIABLE => a switch to non-incremental mode requested");
-              if (!incrementalDecision(it.getOuterClassName(), it, myAffectedFiles, myFilter)) {
+              if (!incrementalDecision(it.getOuterClassName(), it, state.myAffectedFiles, myFilter)) {
                 debug("End of Differentiate, returning false");
                 return false;
               }
@@ -1664,11 +1694,10 @@ public class Mappings {
       }
       debug("End of changed classes processing");
 
-      return !myEasyMode;
+      return true;
     }
 
-    private void processRemovedClases(final DiffState state) {
-      debug("Processing removed classes:");
+    private void registerRemovedClasses(final DiffState state) {
       for (final ClassRepr c : state.myClassDiff.removed()) {
         myDelta.addDeletedClass(c);
 
@@ -1677,54 +1706,60 @@ public class Mappings {
         if (fileName > 0) {
           myDelta.myChangedFiles.add(fileName);
         }
+      }
+    }
 
-        if (!myEasyMode) {
-          myPresent.appendDependents(c, state.myDependants);
-          debug("Adding usages of class ", c.name);
-          state.myAffectedUsages.add(c.createUsage());
-        }
+    private void processRemovedClases(final DiffState state) {
+      debug("Processing removed classes:");
+      for (final ClassRepr c : state.myClassDiff.removed()) {
+        myPresent.appendDependents(c, state.myDependants);
+        debug("Adding usages of class ", c.name);
+        state.myAffectedUsages.add(c.createUsage());
       }
       debug("End of removed classes processing.");
     }
 
-    private void processAddedClasses(final DiffState state) {
-      debug("Processing added classes:");
+    private void registerAddedClasses(final DiffState state) {
       for (final ClassRepr c : state.myClassDiff.added()) {
-        debug("Class name: ", c.name);
         myDelta.addChangedClass(c.name);
 
         for (final int sup : c.getSupers()) {
           myDelta.registerAddedSuperClass(c.name, sup);
         }
+      }
+    }
 
-        if (!myEasyMode) {
-          final TIntHashSet depClasses = myClassToClassDependency.get(c.name);
+    private void processAddedClasses(final DiffState state) {
+      debug("Processing added classes:");
+      for (final ClassRepr c : state.myClassDiff.added()) {
+        debug("Class name: ", c.name);
 
-          if (depClasses != null) {
-            final TIntHashSet fileNames = new TIntHashSet(DEFAULT_SET_CAPACITY, DEFAULT_SET_LOAD_FACTOR);
-            depClasses.forEach(new TIntProcedure() {
-              @Override
-              public boolean execute(int depClass) {
-                final int fName = myClassToSourceFile.get(depClass);
-                if (fName > 0) {
-                  fileNames.add(fName);
-                }
-                return true;
+        final TIntHashSet depClasses = myClassToClassDependency.get(c.name);
+
+        if (depClasses != null) {
+          final TIntHashSet fileNames = new TIntHashSet(DEFAULT_SET_CAPACITY, DEFAULT_SET_LOAD_FACTOR);
+          depClasses.forEach(new TIntProcedure() {
+            @Override
+            public boolean execute(int depClass) {
+              final int fName = myClassToSourceFile.get(depClass);
+              if (fName > 0) {
+                fileNames.add(fName);
               }
-            });
-            fileNames.forEach(new TIntProcedure() {
-              @Override
-              public boolean execute(int fName) {
-                final String f = myContext.getValue(fName);
-                final File theFile = new File(f);
-                if (myFilter == null || myFilter.accept(theFile)) {
-                  debug("Adding dependent file ", f);
-                  myAffectedFiles.add(theFile);
-                }
-                return true;
+              return true;
+            }
+          });
+          fileNames.forEach(new TIntProcedure() {
+            @Override
+            public boolean execute(int fName) {
+              final String f = myContext.getValue(fName);
+              final File theFile = new File(f);
+              if (myFilter == null || myFilter.accept(theFile)) {
+                debug("Adding dependent file ", f);
+                state.myAffectedFiles.add(theFile);
               }
-            });
-          }
+              return true;
+            }
+          });
         }
       }
 
@@ -1742,7 +1777,7 @@ public class Mappings {
           if (depFile > 0) {
             final File theFile = new File(myContext.getValue(depFile));
 
-            if (myAffectedFiles.contains(theFile) || myCompiledFiles.contains(theFile)) {
+            if (state.myAffectedFiles.contains(theFile) || myCompiledFiles.contains(theFile)) {
               return true;
             }
 
@@ -1765,7 +1800,7 @@ public class Mappings {
                 for (final UsageRepr.AnnotationUsage query : state.myAnnotationQuery) {
                   if (query.satisfies(usage)) {
                     debug("Added file due to annotation query");
-                    myAffectedFiles.add(theFile);
+                    state.myAffectedFiles.add(theFile);
 
                     return true;
                   }
@@ -1776,14 +1811,14 @@ public class Mappings {
 
                 if (constraint == null) {
                   debug("Added file with no constraints");
-                  myAffectedFiles.add(theFile);
+                  state.myAffectedFiles.add(theFile);
 
                   return true;
                 }
                 else {
                   if (constraint.checkResidence(depClass)) {
                     debug("Added file with satisfied constraint");
-                    myAffectedFiles.add(theFile);
+                    state.myAffectedFiles.add(theFile);
 
                     return true;
                   }
@@ -1797,6 +1832,120 @@ public class Mappings {
       });
     }
 
+    private boolean processFile(final DiffState state) {
+      final TIntArrayList classNames = new TIntArrayList();
+      for (final Pair<ClassRepr, Difference> changed : state.myClassDiff.changed()) {
+        classNames.add(changed.first.name);
+      }
+      for (final ClassRepr c : state.myClassDiff.removed()) {
+        classNames.add(c.name);
+      }
+      for (final ClassRepr c : state.myClassDiff.added()) {
+        classNames.add(c.name);
+      }
+      final int[] keys = classNames.toNativeArray();
+      myClassToClassDependency.prefetch(keys);
+      myClassToSubclasses.prefetch(keys);
+
+      if (!processChangedClasses(state)) {
+        return false;
+      }
+
+      processRemovedClases(state);
+      processAddedClasses(state);
+      calculateAffectedFiles(state);
+
+      return true;
+    }
+
+    /**
+     * Analyses differences of compiled files on several threads. The delta must have been fully registered before,
+     * so that the analysis only reads the shared data and collects its results in the states.
+     *
+     * @return false if the analysis decided to turn non-incremental
+     */
+    private boolean processFiles(final List<DiffState> states) {
+      final int threads = Math.min(myAnalysisParallelism, states.size());
+
+      if (threads < 2 || LOG.isDebugEnabled()) {
+        // keep the debug output of a file in one piece
+        for (final DiffState state : states) {
+          if (!processFile(state)) {
+            return false;
+          }
+        }
+        return true;
+      }
+
+      final AtomicInteger nextState = new AtomicInteger();
+      final AtomicBoolean nonIncremental = new AtomicBoolean();
+      final Runnable worker = new Runnable() {
+        @Override
+        public void run() {
+          int index;
+          while (!nonIncremental.get() && (index = nextState.getAndIncrement()) < states.size()) {
+            if (!processFile(states.get(index))) {
+              nonIncremental.set(true);
+            }
+          }
+        }
+      };
+
+      // the calling thread is one of the workers
+      final List<Future<?>> helpers = new ArrayList<Future<?>>(threads - 1);
+      boolean completed = false;
+      try {
+        for (int i = 1; i < threads; i++) {
+          helpers.add(SharedThreadPool.getInstance().executeOnPooledThread(worker));
+        }
+        worker.run();
+        completed = true;
+      }
+      finally {
+        if (!completed) {
+          // stop the helpers early, the exception is going to be rethrown anyway
+          nonIncremental.set(true);
+        }
+        waitFor(helpers);
+      }
+
+      return !nonIncremental.get();
+    }
+
+    private void waitFor(final List<Future<?>> futures) {
+      boolean interrupted = false;
+      Throwable error = null;
+      for (final Future<?> future : futures) {
+        while (true) {
+          try {
+            future.get();
+            break;
+          }
+          catch (InterruptedException e) {
+            interrupted = true;
+          }
+          catch (ExecutionException e) {
+            if (error == null) {
+              error = e.getCause();
+            }
+            break;
+          }
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      if (error instanceof RuntimeException) {
+        throw (RuntimeException)error;
+      }
+      if (error instanceof Error) {
+        throw (Error)error;
+      }
+      if (error != null) {
+        throw new RuntimeException(error);
+      }
+    }
+
     boolean differentiate() {
       synchronized (myLock) {
         myDelta.myIsDifferentiated = true;
@@ -1819,33 +1968,36 @@ public class Mappings {
           }
         });
 
+        final List<DiffState> states = new ArrayList<DiffState>(newClasses.size());
         for (final FileClasses compiledFile : newClasses) {
           final int fileName = compiledFile.myFileName;
           final Set<ClassRepr> classes = compiledFile.myFileClasses;
           final Set<ClassRepr> pastClasses = (Set<ClassRepr>)mySourceFileToClasses.get(fileName);
           final DiffState state = new DiffState(Difference.make(pastClasses, classes));
 
-          if (!processChangedClasses(state)) {
-            if (!myEasyMode) {
-              // turning non-incremental
-              return false;
-            }
-          }
-
-          processRemovedClases(state);
-          processAddedClasses(state);
+          registerChangedClasses(state);
+          registerRemovedClasses(state);
+          registerAddedClasses(state);
 
-          if (!myEasyMode) {
-            calculateAffectedFiles(state);
-          }
+          states.add(state);
         }
 
-        debug("End of Differentiate.");
-
         if (myEasyMode) {
+          debug("End of Differentiate.");
+          return false;
+        }
+
+        if (!processFiles(states)) {
+          // turning non-incremental
           return false;
         }
 
+        for (final DiffState state : states) {
+          myAffectedFiles.addAll(state.myAffectedFiles);
+        }
+
+        debug("End of Differentiate.");
+
         final Collection<String> removed = myDelta.myRemovedFiles;
         if (removed != null) {
           for (final String r : removed) {
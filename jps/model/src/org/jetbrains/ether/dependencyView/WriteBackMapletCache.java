@@ -0,0 +1,202 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.ether.dependencyView;
+
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TIntObjectProcedure;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+
+/**
+ * Maplet cache in which values are {@link #update}d, they are written back to the persistent data when they are dropped from the cache
+ * or on {@link #flush()}.
+ * <p/>
+ * Values which are only {@link #add}ed to a key that is not cached are not loaded: the additions are kept aside and are merged into
+ * the value when the key is looked up, or are appended to the persistent data when too many keys have additions or on {@link #flush()}.
+ * <p/>
+ * Additions to a cached key are merged into the cached value in place, which readers may hold; so the maplet must not be changed
+ * while it is read without a lock, as Mappings doesn't change its maplets while the differences are analysed in parallel.
+ */
+abstract class WriteBackMapletCache<V> extends MapletCache<V> {
+  private static final int ADDITIONS_PER_CACHED_VALUE = 16; // keys with additions kept aside at most, per cache size
+
+  private final TIntHashSet myDirtyKeys = new TIntHashSet();
+  private final TIntObjectHashMap<V> myAdditions = new TIntObjectHashMap<V>(); // of keys which are not cached
+
+  private long myStoredValues;
+  private long myStoredAdditions;
+  private long myFlushTime;
+
+  WriteBackMapletCache(final int size) {
+    super(size);
+  }
+
+  /**
+   * Writes a value changed with {@link #update} to the persistent data. Called under the cache lock.
+   */
+  protected abstract void store(int key, @NotNull V value);
+
+  /**
+   * Adds values to a value of the key. Called under the cache lock.
+   *
+   * @param value may be changed and returned unless it's the null object returned by {@link #load}
+   * @return the value with the additions
+   */
+  @NotNull
+  protected abstract V merge(@NotNull V value, @NotNull V additions);
+
+  /**
+   * Appends values {@link #add}ed to the key to its persistent data without reading it. Called under the cache lock.
+   */
+  protected abstract void storeAdditions(int key, @NotNull V additions);
+
+  @Override
+  protected void dropped(final int key, @NotNull final V value) {
+    if (myDirtyKeys.remove(key)) {
+      doStore(key, value);
+    }
+  }
+
+  /**
+   * @return the value with the additions kept aside for the key
+   */
+  @NotNull
+  @Override
+  protected V loaded(final int key, @NotNull V value, final boolean cache) {
+    final V additions = myAdditions.get(key);
+    if (additions != null) {
+      value = merge(value, additions);
+    }
+    super.loaded(key, value, cache);
+    if (cache && additions != null) {
+      myAdditions.remove(key);
+      myDirtyKeys.add(key);
+    }
+    return value;
+  }
+
+  /**
+   * @return true if values were added to the key and are not written to the persistent data yet
+   */
+  synchronized boolean hasAdditions(final int key) {
+    return myAdditions.containsKey(key);
+  }
+
+  /**
+   * Replaces the value of the key in the cache. The value is written to the persistent data later, so the cache takes
+   * ownership of it: the caller must not change the value after the call other than through this method.
+   */
+  synchronized void update(final int key, @NotNull final V value) {
+    valuesChanged();
+    // the previous value of the key is dropped from the cache by the put and must not be written
+    myDirtyKeys.remove(key);
+    myAdditions.remove(key);
+    cacheValue(key, value);
+    myDirtyKeys.add(key);
+  }
+
+  /**
+   * Adds values to the value of the key, which is not loaded if it isn't cached. The cache takes ownership of the additions.
+   */
+  synchronized void add(final int key, @NotNull final V additions) {
+    valuesChanged();
+    final V cached = getCached(key);
+    if (cached != null) {
+      final V value = merge(cached, additions);
+      myDirtyKeys.remove(key);
+      cacheValue(key, value);
+      myDirtyKeys.add(key);
+      return;
+    }
+    final V previous = myAdditions.get(key);
+    myAdditions.put(key, previous == null ? additions : merge(previous, additions));
+    if (myAdditions.size() > getCacheSize() * ADDITIONS_PER_CACHED_VALUE) {
+      storeAdditions();
+    }
+  }
+
+  @Override
+  synchronized void invalidate(final int key) {
+    myDirtyKeys.remove(key);
+    super.invalidate(key);
+  }
+
+  /**
+   * Writes all changed values to the persistent data; the values stay cached.
+   *
+   * @return number of written values
+   */
+  synchronized int flush() {
+    if (myDirtyKeys.isEmpty() && myAdditions.isEmpty()) {
+      return 0;
+    }
+    final long started = System.currentTimeMillis();
+    int count = storeAdditions();
+    for (Map.Entry<Integer, V> entry : cachedEntries()) {
+      if (myDirtyKeys.remove(entry.getKey())) {
+        doStore(entry.getKey(), entry.getValue());
+        count++;
+      }
+    }
+    myFlushTime += System.currentTimeMillis() - started;
+    return count;
+  }
+
+  /**
+   * Drops all values from the cache, changed values are written to the persistent data.
+   */
+  @Override
+  synchronized void clear() {
+    storeAdditions();
+    super.clear();
+    myDirtyKeys.clear();
+  }
+
+  @Override
+  synchronized String getStatistics() {
+    return super.getStatistics() + ", " + myStoredValues + " values written back, " +
+           myStoredAdditions + " additions appended, flushes took " + myFlushTime + " ms";
+  }
+
+  /**
+   * @return number of keys whose additions were written
+   */
+  private int storeAdditions() {
+    final int count = myAdditions.size();
+    if (count == 0) {
+      return 0;
+    }
+    // values being loaded may miss the additions written now, so they must not be cached
+    valuesChanged();
+    myAdditions.forEachEntry(new TIntObjectProcedure<V>() {
+      @Override
+      public boolean execute(int key, V additions) {
+        storeAdditions(key, additions);
+        return true;
+      }
+    });
+    myAdditions.clear();
+    myStoredAdditions += count;
+    return count;
+  }
+
+  private void doStore(final int key, final V value) {
+    store(key, value);
+    myStoredValues++;
+  }
+}
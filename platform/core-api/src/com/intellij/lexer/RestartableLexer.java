@@ -0,0 +1,28 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.lexer;
+
+/**
+ * Lexer which can be restarted from the start of any token in some states other than the initial one.
+ * <p/>
+ * Incremental relexing (see {@link com.intellij.openapi.editor.ex.util.LexerEditorHighlighter}) usually restarts a lexer only
+ * at tokens lexed in the initial state, which may be far from a change in files where such tokens are rare, e.g. inside huge
+ * string literals or comments. A restartable state must describe the lexer completely: {@link Lexer#start(CharSequence, int, int, int)}
+ * with it at a token start must produce exactly the tokens and states produced by the lexer there before.
+ */
+public interface RestartableLexer {
+  boolean isRestartableState(int state);
+}
@@ -23,12 +23,15 @@ import com.intellij.util.containers.SLRUCache;
 import com.intellij.util.io.AbstractStringEnumerator;
 import com.intellij.util.io.DataInputOutputUtil;
 import com.intellij.util.io.IOUtil;
+import com.intellij.util.io.UnsyncByteArrayInputStream;
+import gnu.trove.TIntArrayList;
 import gnu.trove.TIntObjectHashMap;
 import gnu.trove.TObjectIntHashMap;
 import jsr166e.SequenceLock;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -38,6 +41,10 @@ import java.util.List;
 import java.util.concurrent.locks.Lock;
 
 /**
+ * Serialized stub tree format: string count, stub count, an offset table with the encoded length of each string and
+ * the parent index and record length of each stub (in preorder), the strings and then the stub records. The table allows
+ * {@link #deserializeStubs(byte[], int, int...)} to materialize a subset of the tree without decoding other stubs and strings.
+ *
  * Author: dmitrylomov
  */
 public class StubSerializationHelper {
@@ -68,8 +75,14 @@ public class StubSerializationHelper {
     return myNameStorage.enumerate(serializer.getExternalId());
   }
 
-  private void doSerialize(final Stub rootStub, final StubOutputStream stream) throws IOException {
+  private void doSerialize(final Stub rootStub,
+                           final StubOutputStream stream,
+                           final int parentIndex,
+                           final TIntArrayList parents,
+                           final TIntArrayList recordLengths) throws IOException {
     final ObjectStubSerializer serializer = StubSerializationUtil.getSerializer(rootStub);
+    final int index = parents.size();
+    final int start = stream.size();
 
     DataInputOutputUtil.writeINT(stream, getClassId(serializer));
     serializer.serialize(rootStub, stream);
@@ -77,8 +90,10 @@ public class StubSerializationHelper {
     final List<? extends Stub> children = rootStub.getChildrenStubs();
     final int childrenSize = children.size();
     DataInputOutputUtil.writeINT(stream, childrenSize);
+    parents.add(parentIndex);
+    recordLengths.add(stream.size() - start);
     for (int i = 0; i < childrenSize; ++i) {
-      doSerialize(children.get(i), stream);
+      doSerialize(children.get(i), stream, index, parents, recordLengths);
     }
   }
 
@@ -86,14 +101,27 @@ public class StubSerializationHelper {
     BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
     FileLocalStringEnumerator storage = new FileLocalStringEnumerator();
     StubOutputStream stubOutputStream = new StubOutputStream(out, storage);
+    TIntArrayList parents = new TIntArrayList();
+    TIntArrayList recordLengths = new TIntArrayList();
+
+    doSerialize(rootStub, stubOutputStream, -1, parents, recordLengths);
 
-    doSerialize(rootStub, stubOutputStream);
+    BufferExposingByteArrayOutputStream strings = new BufferExposingByteArrayOutputStream();
+    DataOutputStream stringStream = new DataOutputStream(strings);
     DataOutputStream resultStream = new DataOutputStream(stream);
     DataInputOutputUtil.writeINT(resultStream, storage.myStrings.size());
+    DataInputOutputUtil.writeINT(resultStream, parents.size());
     byte[] buffer = IOUtil.allocReadWriteUTFBuffer();
     for(String s:storage.myStrings) {
-      IOUtil.writeUTFFast(buffer, resultStream, s);
+      int start = stringStream.size();
+      IOUtil.writeUTFFast(buffer, stringStream, s);
+      DataInputOutputUtil.writeINT(resultStream, stringStream.size() - start);
     }
+    for (int i = 0; i < parents.size(); i++) {
+      DataInputOutputUtil.writeINT(resultStream, i - parents.get(i));
+      DataInputOutputUtil.writeINT(resultStream, recordLengths.get(i));
+    }
+    resultStream.write(strings.getInternalBuffer(), 0, strings.size());
     resultStream.write(out.getInternalBuffer(), 0, out.size());
   }
 
@@ -159,6 +187,11 @@ public class StubSerializationHelper {
     FileLocalStringEnumerator storage = new FileLocalStringEnumerator();
     StubInputStream inputStream = new StubInputStream(stream, storage);
     final int size = DataInputOutputUtil.readINT(inputStream);
+    final int stubCount = DataInputOutputUtil.readINT(inputStream);
+    // offset table is only needed for partial deserialization
+    for (int i = 0; i < size + 2 * stubCount; i++) {
+      DataInputOutputUtil.readINT(inputStream);
+    }
     byte[] buffer = IOUtil.allocReadWriteUTFBuffer();
 
     int i = 1;
@@ -172,20 +205,78 @@ public class StubSerializationHelper {
   }
 
   private Stub deserialize(StubInputStream stream, Stub parentStub) throws IOException {
+    Stub stub = deserializeStub(stream, parentStub);
+    int childCount = DataInputOutputUtil.readINT(stream);
+    for (int i = 0; i < childCount; i++) {
+      deserialize(stream, stub);
+    }
+    return stub;
+  }
+
+  private Stub deserializeStub(StubInputStream stream, Stub parentStub) throws IOException {
     final int id = DataInputOutputUtil.readINT(stream);
     final ObjectStubSerializer serializer = getClassById(id);
     if (serializer == null) {
       LOG.error("No serializer registered for stub: ID=" + id + "; parent stub class=" + (parentStub != null? parentStub.getClass().getName() : "null"));
     }
 
-    Stub stub = serializer.deserialize(stream, parentStub);
-    int childCount = DataInputOutputUtil.readINT(stream);
-    for (int i = 0; i < childCount; i++) {
-      deserialize(stream, stub);
-    }
-    return stub;
+    return serializer.deserialize(stream, parentStub);
   }
 
+  /**
+   * Materializes only the stubs with the given preorder indices (0 is the root) and their ancestors. The stubs are read
+   * in place from the serialized bytes, strings are decoded when a stub refers to them, and the resulting tree contains only
+   * the materialized stubs.
+   *
+   * @return the stubs corresponding to stubIndices
+   */
+  @NotNull
+  public Stub[] deserializeStubs(@NotNull byte[] bytes, int length, @NotNull int... stubIndices) throws IOException {
+    DataInputStream input = new DataInputStream(new UnsyncByteArrayInputStream(bytes, 0, length));
+    final int stringCount = DataInputOutputUtil.readINT(input);
+    final int stubCount = DataInputOutputUtil.readINT(input);
+    final int[] stringOffsets = new int[stringCount];
+    int offset = 0;
+    for (int i = 0; i < stringCount; i++) {
+      stringOffsets[i] = offset;
+      offset += DataInputOutputUtil.readINT(input);
+    }
+    final int stringsLength = offset;
+    final int[] parents = new int[stubCount];
+    final int[] recordOffsets = new int[stubCount];
+    offset = 0;
+    for (int i = 0; i < stubCount; i++) {
+      parents[i] = i - DataInputOutputUtil.readINT(input);
+      recordOffsets[i] = offset;
+      offset += DataInputOutputUtil.readINT(input);
+    }
+    final int stringsStart = length - input.available();
+    final int recordsStart = stringsStart + stringsLength;
+
+    final boolean[] needed = new boolean[stubCount];
+    for (int index : stubIndices) {
+      if (index < 0 || index >= stubCount) {
+        throw new IllegalArgumentException("Stub index " + index + " is out of range, stub count=" + stubCount);
+      }
+      for (int i = index; i >= 0 && !needed[i]; i = parents[i]) {
+        needed[i] = true;
+      }
+    }
+
+    LazyStringEnumerator storage = new LazyStringEnumerator(bytes, length, stringsStart, stringOffsets);
+    Stub[] stubs = new Stub[stubCount];
+    for (int i = 0; i < stubCount; i++) {
+      if (!needed[i]) continue;
+      StubInputStream stream = new StubInputStream(new UnsyncByteArrayInputStream(bytes, recordsStart + recordOffsets[i], length), storage);
+      stubs[i] = deserializeStub(stream, i == 0 ? null : stubs[parents[i]]);
+    }
+
+    Stub[] result = new Stub[stubIndices.length];
+    for (int i = 0; i < stubIndices.length; i++) {
+      result[i] = stubs[stubIndices[i]];
+    }
+    return result;
+  }
 
   private ObjectStubSerializer getClassById(int id) {
     return myIdToSerializer.get(id);
@@ -232,4 +323,54 @@ public class StubSerializationHelper {
     public void force() {
     }
   }
+
+  private class LazyStringEnumerator implements AbstractStringEnumerator {
+    private final byte[] myBytes;
+    private final int myLength;
+    private final int myStart;
+    private final int[] myOffsets;
+    private final String[] myStrings;
+    private final byte[] myBuffer = IOUtil.allocReadWriteUTFBuffer();
+
+    private LazyStringEnumerator(byte[] bytes, int length, int start, int[] offsets) {
+      myBytes = bytes;
+      myLength = length;
+      myStart = start;
+      myOffsets = offsets;
+      myStrings = new String[offsets.length];
+    }
+
+    @Override
+    public int enumerate(@Nullable String value) throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String valueOf(int idx) throws IOException {
+      if (idx == 0) return null;
+      String s = myStrings[idx - 1];
+      if (s == null) {
+        DataInputStream input = new DataInputStream(new UnsyncByteArrayInputStream(myBytes, myStart + myOffsets[idx - 1], myLength));
+        myStrings[idx - 1] = s = myStringInterner.get(IOUtil.readUTFFast(myBuffer, input));
+      }
+      return s;
+    }
+
+    @Override
+    public void markCorrupted() {
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    @Override
+    public boolean isDirty() {
+      return false;
+    }
+
+    @Override
+    public void force() {
+    }
+  }
 }
@@ -50,9 +50,8 @@ import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.lang.reflect.Field;
 import java.util.AbstractList;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -73,7 +72,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
   private IElementType[] myLexTypes;
   private int myCurrentLexeme;
 
-  private final MyList myProduction = new MyList();
+  private final MarkerProduction myProduction = new MarkerProduction();
 
   private final Lexer myLexer;
   private final TokenSet myWhitespaces;
@@ -95,29 +94,23 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
 
   private Map<Key, Object> myUserData = null;
 
-  private final LimitedPool<StartMarker> START_MARKERS = new LimitedPool<StartMarker>(2000, new LimitedPool.ObjectFactory<StartMarker>() {
+  // markers recycled by a builder are reused by builders created later in the same thread, e.g. by indexing the next file
+  private static final ThreadLocal<LimitedPool<StartMarker>> START_MARKERS = new ThreadLocal<LimitedPool<StartMarker>>() {
     @Override
-    public StartMarker create() {
-      return new StartMarker();
-    }
-
-    @Override
-    public void cleanup(final StartMarker startMarker) {
-      startMarker.clean();
-    }
-  });
-
-  private final LimitedPool<DoneMarker> DONE_MARKERS = new LimitedPool<DoneMarker>(2000, new LimitedPool.ObjectFactory<DoneMarker>() {
-    @Override
-    public DoneMarker create() {
-      return new DoneMarker();
-    }
+    protected LimitedPool<StartMarker> initialValue() {
+      return new LimitedPool<StartMarker>(2000, new LimitedPool.ObjectFactory<StartMarker>() {
+        @Override
+        public StartMarker create() {
+          return new StartMarker();
+        }
 
-    @Override
-    public void cleanup(final DoneMarker doneMarker) {
-      doneMarker.clean();
+        @Override
+        public void cleanup(final StartMarker startMarker) {
+          startMarker.clean();
+        }
+      });
     }
-  });
+  };
 
   private static final WhitespacesAndCommentsBinder DEFAULT_LEFT_EDGE_TOKEN_BINDER = new WhitespacesAndCommentsBinder() {
     @Override
@@ -253,8 +246,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
   public LighterASTNode getLatestDoneMarker() {
     int index = myProduction.size() - 1;
     while (index >= 0) {
-      ProductionMarker marker = myProduction.get(index);
-      if (marker instanceof DoneMarker) return ((DoneMarker)marker).myStart;
+      if (myProduction.isDone(index)) return myProduction.get(index);
       --index;
     }
     return null;
@@ -288,7 +280,10 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
   private static class StartMarker extends ProductionMarker implements Marker {
     private PsiBuilderImpl myBuilder;
     private IElementType myType;
-    private DoneMarker myDoneMarker;
+    private int myDoneLexemeIndex = -1;
+    private WhitespacesAndCommentsBinder myDoneEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
+    private boolean myCollapse;
+    private String myErrorMessage;
     private Throwable myDebugAllocationPosition;
     private ProductionMarker myFirstChild;
     private ProductionMarker myLastChild;
@@ -303,7 +298,10 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
       super.clean();
       myBuilder = null;
       myType = null;
-      myDoneMarker = null;
+      myDoneLexemeIndex = -1;
+      myDoneEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
+      myCollapse = false;
+      myErrorMessage = null;
       myDebugAllocationPosition = null;
       myFirstChild = myLastChild = null;
       myHC = -1;
@@ -328,12 +326,12 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
           lexIdx = lastLeaf;
           hc += child.hc();
           if (child instanceof StartMarker) {
-            lexIdx = ((StartMarker)child).myDoneMarker.myLexemeIndex;
+            lexIdx = ((StartMarker)child).myDoneLexemeIndex;
           }
           child = child.myNext;
         }
 
-        for (int i = builder.myLexStarts[lexIdx]; i < builder.myLexStarts[myDoneMarker.myLexemeIndex]; i++) {
+        for (int i = builder.myLexStarts[lexIdx]; i < builder.myLexStarts[myDoneLexemeIndex]; i++) {
           hc += bufArray != null ? bufArray[i] : buf.charAt(i);
         }
 
@@ -350,7 +348,11 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
 
     @Override
     public int getEndOffset() {
-      return myBuilder.myLexStarts[myDoneMarker.myLexemeIndex];
+      return myBuilder.myLexStarts[myDoneLexemeIndex];
+    }
+
+    private boolean isDone() {
+      return myDoneLexemeIndex >= 0;
     }
 
     public void addChild(ProductionMarker node) {
@@ -400,8 +402,8 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
     @Override
     public void doneBefore(final IElementType type, final Marker before, final String errorMessage) {
       final StartMarker marker = (StartMarker)before;
-      myBuilder.myProduction.add(myBuilder.myProduction.lastIndexOf(marker),
-                                 new ErrorItem(myBuilder, errorMessage, marker.myLexemeIndex));
+      myBuilder.myProduction.add(myBuilder.myProduction.lastIndexOf(marker, false),
+                                 new ErrorItem(myBuilder, errorMessage, marker.myLexemeIndex), false);
       doneBefore(type, before);
     }
 
@@ -435,19 +437,19 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
       }
 
       if (right != null) {
-        if (myDoneMarker == null) throw new IllegalArgumentException("Cannot set right-edge processor for unclosed marker");
-        myDoneMarker.myEdgeTokenBinder = right;
+        if (!isDone()) throw new IllegalArgumentException("Cannot set right-edge processor for unclosed marker");
+        myDoneEdgeTokenBinder = right;
       }
     }
   }
 
   private Marker precede(final StartMarker marker) {
-    int idx = myProduction.lastIndexOf(marker);
+    int idx = myProduction.lastIndexOf(marker, false);
     if (idx < 0) {
       LOG.error("Cannot precede dropped or rolled-back marker");
     }
     StartMarker pre = createMarker(marker.myLexemeIndex);
-    myProduction.add(idx, pre);
+    myProduction.add(idx, pre, false);
     return pre;
   }
 
@@ -564,63 +566,6 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
 
   }
 
-  private static class DoneMarker extends ProductionMarker {
-    private StartMarker myStart;
-    private boolean myCollapse = false;
-
-    public DoneMarker() {
-      myEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
-    }
-
-    public DoneMarker(final StartMarker marker, final int currentLexeme) {
-      this();
-      myLexemeIndex = currentLexeme;
-      myStart = marker;
-    }
-
-    @Override
-    public void clean() {
-      super.clean();
-      myStart = null;
-      myEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
-    }
-
-    @Override
-    public int hc() {
-      throw new UnsupportedOperationException("Shall not be called on this kind of markers");
-    }
-
-    @Override
-    public IElementType getTokenType() {
-      throw new UnsupportedOperationException("Shall not be called on this kind of markers");
-    }
-
-    @Override
-    public int getEndOffset() {
-      throw new UnsupportedOperationException("Shall not be called on this kind of markers");
-    }
-
-    @Override
-    public int getStartOffset() {
-      throw new UnsupportedOperationException("Shall not be called on this kind of markers");
-    }
-  }
-
-  private static class DoneWithErrorMarker extends DoneMarker {
-    private String myMessage;
-
-    public DoneWithErrorMarker(final StartMarker marker, final int currentLexeme, final String message) {
-      super(marker, currentLexeme);
-      myMessage = message;
-    }
-
-    @Override
-    public void clean() {
-      super.clean();
-      myMessage = null;
-    }
-  }
-
   private static class ErrorItem extends ProductionMarker {
     private final PsiBuilderImpl myBuilder;
     private String myMessage;
@@ -796,7 +741,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
   }
 
   private StartMarker createMarker(final int lexemeIndex) {
-    StartMarker marker = START_MARKERS.alloc();
+    StartMarker marker = START_MARKERS.get().alloc();
     marker.myLexemeIndex = lexemeIndex;
     marker.myBuilder = this;
 
@@ -815,86 +760,79 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
     return myCurrentLexeme >= myLexemeCount;
   }
 
-  @SuppressWarnings({"SuspiciousMethodCalls"})
   private void rollbackTo(Marker marker) {
     myCurrentLexeme = ((StartMarker)marker).myLexemeIndex;
     myTokenTypeChecked = true;
-    int idx = myProduction.lastIndexOf(marker);
+    int idx = myProduction.lastIndexOf((StartMarker)marker, false);
     if (idx < 0) {
       LOG.error("The marker must be added before rolled back to.");
     }
     myProduction.removeRange(idx, myProduction.size());
-    START_MARKERS.recycle((StartMarker)marker);
+    START_MARKERS.get().recycle((StartMarker)marker);
   }
 
-  @SuppressWarnings({"SuspiciousMethodCalls"})
   public void drop(Marker marker) {
-    final DoneMarker doneMarker = ((StartMarker)marker).myDoneMarker;
-    if (doneMarker != null) {
-      myProduction.remove(myProduction.lastIndexOf(doneMarker));
-      DONE_MARKERS.recycle(doneMarker);
+    final StartMarker startMarker = (StartMarker)marker;
+    if (startMarker.isDone()) {
+      myProduction.remove(myProduction.lastIndexOf(startMarker, true));
     }
-    final boolean removed = myProduction.remove(myProduction.lastIndexOf(marker)) == marker;
+    final boolean removed = myProduction.remove(myProduction.lastIndexOf(startMarker, false)) == marker;
     if (!removed) {
       LOG.error("The marker must be added before it is dropped.");
     }
-    START_MARKERS.recycle((StartMarker)marker);
+    START_MARKERS.get().recycle(startMarker);
   }
 
   public void error(Marker marker, String message) {
     doValidityChecks(marker, null);
 
-    DoneWithErrorMarker doneMarker = new DoneWithErrorMarker((StartMarker)marker, myCurrentLexeme, message);
-    boolean tieToTheLeft = isEmpty(((StartMarker)marker).myLexemeIndex, myCurrentLexeme);
-    if (tieToTheLeft) ((StartMarker)marker).myEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
+    final StartMarker startMarker = (StartMarker)marker;
+    startMarker.myDoneLexemeIndex = myCurrentLexeme;
+    startMarker.myErrorMessage = message;
+    boolean tieToTheLeft = isEmpty(startMarker.myLexemeIndex, myCurrentLexeme);
+    if (tieToTheLeft) startMarker.myEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
 
-    ((StartMarker)marker).myDoneMarker = doneMarker;
-    myProduction.add(doneMarker);
+    myProduction.add(myProduction.size(), startMarker, true);
   }
 
-  @SuppressWarnings({"SuspiciousMethodCalls"})
   public void errorBefore(Marker marker, String message, Marker before) {
     doValidityChecks(marker, before);
 
-    int beforeIndex = myProduction.lastIndexOf(before);
+    int beforeIndex = myProduction.lastIndexOf((StartMarker)before, false);
 
-    DoneWithErrorMarker doneMarker = new DoneWithErrorMarker((StartMarker)marker, ((StartMarker)before).myLexemeIndex, message);
-    boolean tieToTheLeft = isEmpty(((StartMarker)marker).myLexemeIndex, ((StartMarker)before).myLexemeIndex);
-    if (tieToTheLeft) ((StartMarker)marker).myEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
+    final StartMarker startMarker = (StartMarker)marker;
+    startMarker.myDoneLexemeIndex = ((StartMarker)before).myLexemeIndex;
+    startMarker.myErrorMessage = message;
+    boolean tieToTheLeft = isEmpty(startMarker.myLexemeIndex, ((StartMarker)before).myLexemeIndex);
+    if (tieToTheLeft) startMarker.myEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
 
-    ((StartMarker)marker).myDoneMarker = doneMarker;
-    myProduction.add(beforeIndex, doneMarker);
+    myProduction.add(beforeIndex, startMarker, true);
   }
 
   public void done(final Marker marker) {
     doValidityChecks(marker, null);
 
-    DoneMarker doneMarker = DONE_MARKERS.alloc();
-    doneMarker.myStart = (StartMarker)marker;
-    doneMarker.myLexemeIndex = myCurrentLexeme;
-    boolean tieToTheLeft = doneMarker.myStart.myType.isLeftBound() &&
-                           isEmpty(((StartMarker)marker).myLexemeIndex, myCurrentLexeme);
-    if (tieToTheLeft) ((StartMarker)marker).myEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
+    final StartMarker startMarker = (StartMarker)marker;
+    startMarker.myDoneLexemeIndex = myCurrentLexeme;
+    boolean tieToTheLeft = startMarker.myType.isLeftBound() &&
+                           isEmpty(startMarker.myLexemeIndex, myCurrentLexeme);
+    if (tieToTheLeft) startMarker.myEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
 
-    ((StartMarker)marker).myDoneMarker = doneMarker;
-    myProduction.add(doneMarker);
+    myProduction.add(myProduction.size(), startMarker, true);
   }
 
-  @SuppressWarnings({"SuspiciousMethodCalls"})
   public void doneBefore(Marker marker, Marker before) {
     doValidityChecks(marker, before);
 
-    int beforeIndex = myProduction.lastIndexOf(before);
+    int beforeIndex = myProduction.lastIndexOf((StartMarker)before, false);
 
-    DoneMarker doneMarker = DONE_MARKERS.alloc();
-    doneMarker.myLexemeIndex = ((StartMarker)before).myLexemeIndex;
-    doneMarker.myStart = (StartMarker)marker;
-    boolean tieToTheLeft = doneMarker.myStart.myType.isLeftBound() &&
-                           isEmpty(((StartMarker)marker).myLexemeIndex, ((StartMarker)before).myLexemeIndex);
-    if (tieToTheLeft) ((StartMarker)marker).myEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
+    final StartMarker startMarker = (StartMarker)marker;
+    startMarker.myDoneLexemeIndex = ((StartMarker)before).myLexemeIndex;
+    boolean tieToTheLeft = startMarker.myType.isLeftBound() &&
+                           isEmpty(startMarker.myLexemeIndex, ((StartMarker)before).myLexemeIndex);
+    if (tieToTheLeft) startMarker.myEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
 
-    ((StartMarker)marker).myDoneMarker = doneMarker;
-    myProduction.add(beforeIndex, doneMarker);
+    myProduction.add(beforeIndex, startMarker, true);
   }
 
   private boolean isEmpty(final int startIdx, final int endIdx) {
@@ -907,26 +845,25 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
 
   public void collapse(final Marker marker) {
     done(marker);
-    ((StartMarker)marker).myDoneMarker.myCollapse = true;
+    ((StartMarker)marker).myCollapse = true;
   }
 
-  @SuppressWarnings({"UseOfSystemOutOrSystemErr", "SuspiciousMethodCalls", "ThrowableResultOfMethodCallIgnored"})
+  @SuppressWarnings({"UseOfSystemOutOrSystemErr", "ThrowableResultOfMethodCallIgnored"})
   private void doValidityChecks(final Marker marker, @Nullable final Marker before) {
-    final DoneMarker doneMarker = ((StartMarker)marker).myDoneMarker;
-    if (doneMarker != null) {
+    if (((StartMarker)marker).isDone()) {
       LOG.error("Marker already done.");
     }
 
     if (!myDebugMode) return;
 
-    int idx = myProduction.lastIndexOf(marker);
+    int idx = myProduction.lastIndexOf((StartMarker)marker, false);
     if (idx < 0) {
       LOG.error("Marker has never been added.");
     }
 
     int endIdx = myProduction.size();
     if (before != null) {
-      endIdx = myProduction.lastIndexOf(before);
+      endIdx = myProduction.lastIndexOf((StartMarker)before, false);
       if (endIdx < 0) {
         LOG.error("'Before' marker has never been added.");
       }
@@ -937,9 +874,9 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
 
     for (int i = endIdx - 1; i > idx; i--) {
       Object item = myProduction.get(i);
-      if (item instanceof StartMarker) {
+      if (item instanceof StartMarker && !myProduction.isDone(i)) {
         StartMarker otherMarker = (StartMarker)item;
-        if (otherMarker.myDoneMarker == null) {
+        if (!otherMarker.isDone()) {
           final Throwable debugAllocOther = otherMarker.myDebugAllocationPosition;
           final Throwable debugAllocThis = ((StartMarker)marker).myDebugAllocationPosition;
           if (debugAllocOther != null) {
@@ -968,14 +905,14 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
       return buildTree();
     }
     finally {
-      for (ProductionMarker marker : myProduction) {
-        if (marker instanceof StartMarker) {
-          START_MARKERS.recycle((StartMarker)marker);
-        }
-        else if (marker instanceof DoneMarker) {
-          DONE_MARKERS.recycle((DoneMarker)marker);
+      final LimitedPool<StartMarker> pool = START_MARKERS.get();
+      for (int i = 0; i < myProduction.size(); i++) {
+        final ProductionMarker marker = myProduction.get(i);
+        if (marker instanceof StartMarker && !myProduction.isDone(i)) {
+          pool.recycle((StartMarker)marker);
         }
       }
+      myProduction.clear();
     }
   }
 
@@ -1083,6 +1020,13 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
 
       if (curNode == null) LOG.error("Unexpected end of the production");
 
+      if (myProduction.isDone(i)) {
+        if (item != curNode) LOG.error(UNBALANCED_MESSAGE);
+        curNode = nodes.pop();
+        curDepth--;
+        continue;
+      }
+
       item.myParent = curNode;
       if (item instanceof StartMarker) {
         final StartMarker marker = (StartMarker)item;
@@ -1093,11 +1037,6 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
         curDepth++;
         if (curDepth > maxDepth) maxDepth = curDepth;
       }
-      else if (item instanceof DoneMarker) {
-        if (((DoneMarker)item).myStart != curNode) LOG.error(UNBALANCED_MESSAGE);
-        curNode = nodes.pop();
-        curDepth--;
-      }
       else if (item instanceof ErrorItem) {
         int curToken = item.myLexemeIndex;
         if (curToken == lastErrorIndex) continue;
@@ -1111,8 +1050,8 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
       LOG.error("Tokens " + missed + " were not inserted into the tree. " +(myFile != null? myFile.getLanguage()+", ":"")+"Text:\n" + myText);
     }
 
-    if (rootMarker.myDoneMarker.myLexemeIndex < myLexemeCount) {
-      final List<IElementType> missed = CollectionFactory.arrayList(myLexTypes, rootMarker.myDoneMarker.myLexemeIndex, myLexemeCount);
+    if (rootMarker.myDoneLexemeIndex < myLexemeCount) {
+      final List<IElementType> missed = CollectionFactory.arrayList(myLexTypes, rootMarker.myDoneLexemeIndex, myLexemeCount);
       LOG.error("Tokens " + missed + " are outside of root element \"" + rootMarker.myType + "\". Text:\n" + myText);
     }
 
@@ -1138,16 +1077,17 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
     for (int i = 1, size = myProduction.size() - 1; i < size; i++) {
       final ProductionMarker item = myProduction.get(i);
 
-      if (item instanceof StartMarker && ((StartMarker)item).myDoneMarker == null) {
+      if (item instanceof StartMarker && !((StartMarker)item).isDone()) {
         LOG.error(UNBALANCED_MESSAGE);
       }
 
-      final int prevProductionLexIndex = myProduction.get(i - 1).myLexemeIndex;
-      int idx = item.myLexemeIndex;
+      final int prevProductionLexIndex = myProduction.getLexemeIndex(i - 1);
+      final int lexemeIndex = myProduction.getLexemeIndex(i);
+      int idx = lexemeIndex;
       while (idx > prevProductionLexIndex && whitespaceOrComment(myLexTypes[idx - 1])) idx--;
       final int wsStartIndex = idx;
 
-      int wsEndIndex = item.myLexemeIndex;
+      int wsEndIndex = lexemeIndex;
       while (wsEndIndex < myLexemeCount && whitespaceOrComment(myLexTypes[wsEndIndex])) wsEndIndex++;
 
       if (wsTokens == null) wsTokens = new RelativeTokenTypesView();
@@ -1156,7 +1096,8 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
       if (tokenTextGetter == null) tokenTextGetter = new RelativeTokenTextView();
       tokenTextGetter.configure(wsStartIndex);
 
-      item.myLexemeIndex = wsStartIndex + item.myEdgeTokenBinder.getEdgePosition(wsTokens, atEnd, tokenTextGetter);
+      final WhitespacesAndCommentsBinder edgeTokenBinder = myProduction.getEdgeTokenBinder(i);
+      myProduction.setLexemeIndex(i, wsStartIndex + edgeTokenBinder.getEdgePosition(wsTokens, atEnd, tokenTextGetter));
     }
   }
 
@@ -1212,22 +1153,29 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
     CompositeElement curNode = rootNode;
 
     int lexIndex = rootMarker.myLexemeIndex;
-    ProductionMarker item = rootMarker.myFirstChild != null ? rootMarker.myFirstChild : rootMarker.myDoneMarker;
+    // the current item is either a child marker or the end of a composite marker if isDone is set
+    ProductionMarker item = rootMarker.myFirstChild != null ? rootMarker.myFirstChild : rootMarker;
+    boolean isDone = rootMarker.myFirstChild == null;
     while (true) {
-      lexIndex = insertLeaves(lexIndex, item.myLexemeIndex, curNode);
+      lexIndex = insertLeaves(lexIndex, isDone ? ((StartMarker)item).myDoneLexemeIndex : item.myLexemeIndex, curNode);
 
-      if (item == rootMarker.myDoneMarker) break;
+      if (isDone && item == rootMarker) break;
 
-      if (item instanceof StartMarker) {
+      if (isDone) {
+        curMarker = (StartMarker)item.myParent;
+        curNode = curNode.getTreeParent();
+      }
+      else if (item instanceof StartMarker) {
         final StartMarker marker = (StartMarker)item;
-        if (!marker.myDoneMarker.myCollapse) {
+        if (!marker.myCollapse) {
           curMarker = marker;
 
           final CompositeElement childNode = createComposite(marker);
           curNode.rawAddChildrenWithoutNotifications(childNode);
           curNode = childNode;
 
-          item = marker.myFirstChild != null ? marker.myFirstChild : marker.myDoneMarker;
+          item = marker.myFirstChild != null ? marker.myFirstChild : marker;
+          isDone = marker.myFirstChild == null;
           continue;
         }
         else {
@@ -1238,13 +1186,9 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
         final CompositeElement errorElement = Factory.createErrorElement(((ErrorItem)item).myMessage);
         curNode.rawAddChildrenWithoutNotifications(errorElement);
       }
-      else if (item instanceof DoneMarker) {
-        curMarker = (StartMarker)((DoneMarker)item).myStart.myParent;
-        curNode = curNode.getTreeParent();
-        item = ((DoneMarker)item).myStart;
-      }
 
-      item = item.myNext != null ? item.myNext : curMarker.myDoneMarker;
+      isDone = item.myNext == null;
+      item = isDone ? curMarker : item.myNext;
     }
   }
 
@@ -1267,17 +1211,16 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
 
   private int collapseLeaves(final CompositeElement ast, final StartMarker startMarker) {
     final int start = myLexStarts[startMarker.myLexemeIndex];
-    final int end = myLexStarts[startMarker.myDoneMarker.myLexemeIndex];
+    final int end = myLexStarts[startMarker.myDoneLexemeIndex];
     final TreeElement leaf = createLeaf(startMarker.myType, start, end);
     ast.rawAddChildrenWithoutNotifications(leaf);
-    return startMarker.myDoneMarker.myLexemeIndex;
+    return startMarker.myDoneLexemeIndex;
   }
 
   private static CompositeElement createComposite(final StartMarker marker) {
     final IElementType type = marker.myType;
     if (type == TokenType.ERROR_ELEMENT) {
-      String message = marker.myDoneMarker instanceof DoneWithErrorMarker ? ((DoneWithErrorMarker)marker.myDoneMarker).myMessage : null;
-      return Factory.createErrorElement(message);
+      return Factory.createErrorElement(marker.myErrorMessage);
     }
 
     if (type == null) {
@@ -1292,8 +1235,8 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
     if (node instanceof ErrorItem) return ((ErrorItem)node).myMessage;
     if (node instanceof StartMarker) {
       final StartMarker marker = (StartMarker)node;
-      if (marker.myType == TokenType.ERROR_ELEMENT && marker.myDoneMarker instanceof DoneWithErrorMarker) {
-        return ((DoneWithErrorMarker)marker.myDoneMarker).myMessage;
+      if (marker.myType == TokenType.ERROR_ELEMENT) {
+        return marker.myErrorMessage;
       }
     }
 
@@ -1459,6 +1402,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
 
     private int count;
     private LighterASTNode[] nodes;
+    private LighterASTNode[] myDisposedNodes; // children array returned by a consumer, reused to collect children of the next node
 
     @Override
     public int getChildren(@NotNull final LighterASTNode item, @NotNull final Ref<LighterASTNode[]> into) {
@@ -1477,8 +1421,8 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
       while (child != null) {
         lexIndex = insertLeaves(lexIndex, child.myLexemeIndex, marker.myBuilder);
 
-        if (child instanceof StartMarker && ((StartMarker)child).myDoneMarker.myCollapse) {
-          int lastIndex = ((StartMarker)child).myDoneMarker.myLexemeIndex;
+        if (child instanceof StartMarker && ((StartMarker)child).myCollapse) {
+          int lastIndex = ((StartMarker)child).myDoneLexemeIndex;
           insertLeaf(child.getTokenType(), marker.myBuilder, child.myLexemeIndex, lastIndex);
         }
         else {
@@ -1487,12 +1431,12 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
         }
 
         if (child instanceof StartMarker) {
-          lexIndex = ((StartMarker)child).myDoneMarker.myLexemeIndex;
+          lexIndex = ((StartMarker)child).myDoneLexemeIndex;
         }
         child = child.myNext;
       }
 
-      insertLeaves(lexIndex, marker.myDoneMarker.myLexemeIndex, marker.myBuilder);
+      insertLeaves(lexIndex, marker.myDoneLexemeIndex, marker.myBuilder);
       into.set(nodes);
       nodes = null;
 
@@ -1511,12 +1455,16 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
           myPool.recycle((Token)node);
         }
       }
+      if (myDisposedNodes == null || myDisposedNodes.length < nodes.length) {
+        myDisposedNodes = nodes;
+      }
     }
 
     private void ensureCapacity() {
       LighterASTNode[] old = nodes;
       if (old == null) {
-        old = new LighterASTNode[10];
+        old = myDisposedNodes != null ? myDisposedNodes : new LighterASTNode[10];
+        myDisposedNodes = null;
         nodes = old;
       }
       else if (count >= old.length) {
@@ -1615,61 +1563,88 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
   }
 
   /**
-   * just to make removeRange method available.
+   * Production markers in the order of their edges. Both edges of a composite element are represented by its {@link StartMarker},
+   * end edges are flagged in a parallel array, so that completing a marker doesn't allocate anything.
    */
-  private static class MyList extends ArrayList<ProductionMarker> {
-    private static final Field ourElementDataField;
-
-    static {
-      Field f;
-      try {
-        f = ArrayList.class.getDeclaredField("elementData");
-        f.setAccessible(true);
-      }
-      catch(NoSuchFieldException e) {
-        // IBM J9 does not have the field
-        f = null;
+  private static class MarkerProduction {
+    private ProductionMarker[] myMarkers = new ProductionMarker[256];
+    private boolean[] myDone = new boolean[256];
+    private int mySize;
 
-      }
-      ourElementDataField = f;
+    public int size() {
+      return mySize;
     }
 
-    private Object[] cachedElementData;
+    public boolean isEmpty() {
+      return mySize == 0;
+    }
 
-    @Override
-    public void removeRange(final int fromIndex, final int toIndex) {
-      super.removeRange(fromIndex, toIndex);
+    public ProductionMarker get(final int index) {
+      return myMarkers[index];
     }
 
-    MyList() {
-      super(256);
+    public boolean isDone(final int index) {
+      return myDone[index];
     }
 
-    @Override
-    public int lastIndexOf(final Object o) {
-      if (cachedElementData == null) return super.lastIndexOf(o);
-      for (int i = size() - 1; i >= 0; i--) {
-        if (cachedElementData[i] == o) return i;
-      }
-      return -1;
+    public int getLexemeIndex(final int index) {
+      return myDone[index] ? ((StartMarker)myMarkers[index]).myDoneLexemeIndex : myMarkers[index].myLexemeIndex;
     }
 
-    @Override
-    public void ensureCapacity(final int minCapacity) {
-      if (cachedElementData == null || minCapacity >= cachedElementData.length) {
-        super.ensureCapacity(minCapacity);
-        initCachedField();
+    public void setLexemeIndex(final int index, final int lexemeIndex) {
+      if (myDone[index]) {
+        ((StartMarker)myMarkers[index]).myDoneLexemeIndex = lexemeIndex;
+      }
+      else {
+        myMarkers[index].myLexemeIndex = lexemeIndex;
       }
     }
 
-    private void initCachedField() {
-      if (ourElementDataField == null) return;
-      try {
-        cachedElementData = (Object[])ourElementDataField.get(this);
+    public WhitespacesAndCommentsBinder getEdgeTokenBinder(final int index) {
+      return myDone[index] ? ((StartMarker)myMarkers[index]).myDoneEdgeTokenBinder : myMarkers[index].myEdgeTokenBinder;
+    }
+
+    public void add(final ProductionMarker marker) {
+      add(mySize, marker, false);
+    }
+
+    public void add(final int index, final ProductionMarker marker, final boolean done) {
+      if (mySize == myMarkers.length) {
+        final int newLength = mySize * 3 / 2;
+        myMarkers = Arrays.copyOf(myMarkers, newLength);
+        myDone = Arrays.copyOf(myDone, newLength);
       }
-      catch (Exception e) {
-        LOG.error(e);
+      System.arraycopy(myMarkers, index, myMarkers, index + 1, mySize - index);
+      System.arraycopy(myDone, index, myDone, index + 1, mySize - index);
+      myMarkers[index] = marker;
+      myDone[index] = done;
+      mySize++;
+    }
+
+    public int lastIndexOf(final ProductionMarker marker, final boolean done) {
+      for (int i = mySize - 1; i >= 0; i--) {
+        if (myMarkers[i] == marker && myDone[i] == done) return i;
       }
+      return -1;
+    }
+
+    public ProductionMarker remove(final int index) {
+      final ProductionMarker marker = myMarkers[index];
+      removeRange(index, index + 1);
+      return marker;
+    }
+
+    public void removeRange(final int fromIndex, final int toIndex) {
+      System.arraycopy(myMarkers, toIndex, myMarkers, fromIndex, mySize - toIndex);
+      System.arraycopy(myDone, toIndex, myDone, fromIndex, mySize - toIndex);
+      final int newSize = mySize - (toIndex - fromIndex);
+      Arrays.fill(myMarkers, newSize, mySize, null);
+      mySize = newSize;
+    }
+
+    public void clear() {
+      Arrays.fill(myMarkers, 0, mySize, null);
+      mySize = 0;
     }
   }
 
@@ -54,6 +54,13 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
    */
   private static final int MAX_DEFERRED_CHANGES_NUMBER = 10000;
 
+  /**
+   * Texts of this length and longer are kept in an {@link ImmutableText} rope instead of a plain array: inserting a char into
+   * a huge array shifts the whole tail, and every {@link #getCharArray() snapshot} of an array-backed text has to copy it.
+   */
+  @SuppressWarnings("UseOfArchaicSystemPropertyAccessors")
+  private static final int ROPE_THRESHOLD = Integer.getInteger("idea.document.rope.threshold", 1 << 20);
+
   private final TextChangesStorage myDeferredChangesStorage;
 
   private volatile int myStart; // start offset in myArray (used as an optimization when call substring())
@@ -61,6 +68,8 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
 
   private volatile CharSequence myOriginalSequence;
   private volatile char[] myArray;
+  private volatile ImmutableText myRope; // not null in rope mode, myArray and myOriginalSequence are null then
+  private volatile Reference<char[]> myRopeCharsRef; // materialized rope for getChars()
   private volatile Reference<String> myStringRef; // buffers String value - for not to generate it every time
   private volatile int myBufferSize;
   private volatile int myDeferredShift;
@@ -101,7 +110,12 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   CharArray(final int bufferSize, @NotNull char[] data, int length) {
     myBufferSize = bufferSize;
     myDeferredChangesStorage = new TextChangesStorage();
-    myArray = Arrays.copyOf(data, length);
+    if (length >= ROPE_THRESHOLD) {
+      myRope = ImmutableText.valueOf(data, 0, length);
+    }
+    else {
+      myArray = Arrays.copyOf(data, length);
+    }
     myCount = length;
 
     if (myDebug) {
@@ -166,9 +180,17 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
 
   private void setText(@NotNull CharSequence chars) {
     assertConsistency();
-    myOriginalSequence = chars.toString();
+    if (chars.length() >= ROPE_THRESHOLD) {
+      myRope = ImmutableText.valueOf(chars);
+      myOriginalSequence = null;
+    }
+    else {
+      myRope = null;
+      myOriginalSequence = chars.toString();
+    }
     myArray = null;
     myStringRef = null;
+    myRopeCharsRef = null;
     myCount = chars.length();
     assert myStart == 0; // can't change substring
     myDeferredChangesStorage.clear();
@@ -183,6 +205,16 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   }
 
   private void assertConsistency() {
+    ImmutableText rope = myRope;
+    if (rope != null) {
+      assert myArray == null && myOriginalSequence == null && myDeferredShift == 0;
+      assert myCount == rope.length();
+      if (myDebug) {
+        String string = myStringRef == null ? null : myStringRef.get();
+        assert string == null || string.equals(rope.toString());
+      }
+      return;
+    }
     if (isDeferredChangeMode()) {
       assert myOriginalSequence == null;
     }
@@ -255,7 +287,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   private void doReplace(int startOffset, int endOffset, @NotNull CharSequence newString) {
     prepareForModification();
 
-    if (isDeferredChangeMode()) {
+    if (myRope != null) {
+      setRope(myRope.replace(startOffset, endOffset, newString));
+    }
+    else if (isDeferredChangeMode()) {
       storeChange(new TextChangeImpl(newString, startOffset, endOffset));
       if (myDebug) {
         myDebugArray.doReplace(startOffset, endOffset, newString);
@@ -292,7 +327,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     }
     prepareForModification();
 
-    if (isDeferredChangeMode()) {
+    if (myRope != null) {
+      setRope(myRope.delete(startIndex, endIndex));
+    }
+    else if (isDeferredChangeMode()) {
       storeChange(new TextChangeImpl("", startIndex, endIndex));
       if (myDebug) {
         myDebugArray.doRemove(startIndex, endIndex);
@@ -320,7 +358,16 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   private void doInsert(@NotNull CharSequence s, final int startIndex) {
     prepareForModification();
 
-    if (isDeferredChangeMode()) {
+    if (myRope == null && !isDeferredChangeMode() && myCount + s.length() >= ROPE_THRESHOLD) {
+      myRope = ImmutableText.valueOf(myArray, myStart, myStart + myCount);
+      myArray = null;
+      myStart = 0;
+    }
+
+    if (myRope != null) {
+      setRope(myRope.insert(startIndex, s));
+    }
+    else if (isDeferredChangeMode()) {
       storeChange(new TextChangeImpl(s, startIndex));
       if (myDebug) {
         myDebugArray.doInsert(s, startIndex);
@@ -339,6 +386,13 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     }
   }
 
+  private void setRope(@NotNull ImmutableText rope) {
+    myRope = rope;
+    myCount = rope.length();
+    myStringRef = null;
+    myRopeCharsRef = null;
+  }
+
   /**
    * Stores given change at collection of deferred changes (merging it with others if necessary) and updates current object
    * state ({@link #length() length} etc).
@@ -380,6 +434,8 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   @NotNull
   public CharSequence getCharArray() {
     assertConsistency();
+    ImmutableText rope = myRope;
+    if (rope != null) return rope;
     CharSequence originalSequence = myOriginalSequence;
     return originalSequence == null ? this : originalSequence;
   }
@@ -388,7 +444,11 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     assertConsistency();
     String str = myStringRef == null ? null : myStringRef.get();
     if (str == null) {
-      if (!myHasDeferredChanges) {
+      ImmutableText rope = myRope;
+      if (rope != null) {
+        str = rope.toString();
+      }
+      else if (!myHasDeferredChanges) {
         if (myOriginalSequence != null) {
           str = myOriginalSequence.toString();
         }
@@ -421,6 +481,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     if (i < 0 || i >= length()) {
       throw new IndexOutOfBoundsException("Wrong offset: " + i + "; count:" + length());
     }
+    ImmutableText rope = myRope;
+    if (rope != null) {
+      return rope.charAt(i);
+    }
     i += myStart;
     final char result;
     if (!myHasDeferredChanges) {
@@ -450,6 +514,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     assertReadAccess();
     assertConsistency();
     if (start == 0 && end == length()) return this;
+    ImmutableText rope = myRope;
+    if (rope != null) {
+      return rope.subSequence(start, end);
+    }
     if (myOriginalSequence != null) {
       return myOriginalSequence.subSequence(start, end);
     }
@@ -462,6 +530,25 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   public char[] getChars() {
     assertReadAccess();
     assertConsistency();
+    ImmutableText rope = myRope;
+    if (rope != null) {
+      // slow track, clients which care about huge documents should use getCharArray() instead
+      Reference<char[]> ref = myRopeCharsRef;
+      char[] chars = ref == null ? null : ref.get();
+      if (chars == null) {
+        chars = rope.toCharArray();
+        lock.lock();
+        try {
+          if (myRope == rope) {
+            myRopeCharsRef = new SoftReference<char[]>(chars);
+          }
+        }
+        finally {
+          lock.unlock();
+        }
+      }
+      return chars;
+    }
     char[] array = myArray;
     CharSequence originalSequence = myOriginalSequence;
     if (myHasDeferredChanges || originalSequence != null && array == null) {
@@ -486,6 +573,11 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   public void getChars(@NotNull final char[] dst, final int dstOffset) {
     assertReadAccess();
     assertConsistency();
+    ImmutableText rope = myRope;
+    if (rope != null) {
+      rope.getChars(0, rope.length(), dst, dstOffset);
+      return;
+    }
     flushDeferredChanged();
     if (myOriginalSequence == null) {
       System.arraycopy(myArray, myStart, dst, dstOffset, length());
@@ -519,7 +611,11 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   private CharSequence doSubString(int start, int end) {
     if (start == end) return "";
     final CharSequence result;
-    if (myOriginalSequence == null) {
+    ImmutableText rope = myRope;
+    if (rope != null) {
+      result = rope.subtext(start, end);
+    }
+    else if (myOriginalSequence == null) {
       result = myDeferredChangesStorage.substring(myArray, start + myStart, end + myStart);
     }
     else {
@@ -559,9 +655,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
 
   /**
    * @return    <code>true</code> if this object is in the defer changes mode, see {@link #setDeferredChangeMode(boolean)};
+   *            a rope-backed text applies changes immediately, so it never defers them
    */
   public boolean isDeferredChangeMode() {
-    return myDeferredChangeMode;
+    return myDeferredChangeMode && myRope == null;
   }
 
   public boolean hasDeferredChanges() {
@@ -671,7 +768,7 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   @NonNls
   @NotNull
   public String dumpState() {
-    return "deferred changes mode: " + isDeferredChangeMode()+", length: " + length()+" (data array length: " + myCount+
+    return "deferred changes mode: " + isDeferredChangeMode()+", rope: " + (myRope != null) + ", length: " + length()+" (data array length: " + myCount+
            ", deferred shift: " + myDeferredShift+"); view offsets: [" + myStart+"; "+myCount+"]; deferred changes: "+myDeferredChangesStorage;
   }
   
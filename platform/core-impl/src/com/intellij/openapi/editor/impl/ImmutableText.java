@@ -0,0 +1,356 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.util.text.CharArrayUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Immutable text stored as a balanced binary tree (rope) of small char arrays.
+ * <p/>
+ * Insertion, removal and replacement take <code>O(log n)</code> time and produce a new instance sharing all untouched
+ * blocks with the original one, so a text instance may be used as a cheap snapshot of a huge document. Both subtrees of
+ * every composite node are kept within twice the length of each other (see {@link #concatNodes(Node, Node)}).
+ * <p/>
+ * Sequential {@link #charAt(int)} calls are served from the last accessed leaf without descending the tree.
+ *
+ * @see CharArray
+ */
+final class ImmutableText implements CharSequence {
+  static final int BLOCK_SIZE = 1 << 9;
+  private static final int BLOCK_MASK = -BLOCK_SIZE;
+
+  static final ImmutableText EMPTY = new ImmutableText(new LeafNode(new char[0]));
+
+  @NotNull private final Node myNode;
+  private volatile LeafPosition myLastLeaf;
+  private int myHash;
+
+  private ImmutableText(@NotNull Node node) {
+    myNode = node;
+  }
+
+  @NotNull
+  static ImmutableText valueOf(@NotNull CharSequence text) {
+    if (text instanceof ImmutableText) return (ImmutableText)text;
+    int length = text.length();
+    if (length == 0) return EMPTY;
+    if (length <= BLOCK_SIZE) {
+      char[] chars = new char[length];
+      CharArrayUtil.getChars(text, chars, 0);
+      return new ImmutableText(new LeafNode(chars));
+    }
+    return valueOf(CharArrayUtil.fromSequence(text), 0, length);
+  }
+
+  @NotNull
+  static ImmutableText valueOf(@NotNull char[] chars, int start, int end) {
+    return start == end ? EMPTY : new ImmutableText(nodeOf(chars, start, end - start));
+  }
+
+  @NotNull
+  private static Node nodeOf(@NotNull char[] chars, int offset, int length) {
+    if (length <= BLOCK_SIZE) {
+      return new LeafNode(Arrays.copyOfRange(chars, offset, offset + length));
+    }
+    // split on a block boundary so that all leaves except the last one are full
+    int half = ((length + BLOCK_SIZE) >> 1) & BLOCK_MASK;
+    return new CompositeNode(nodeOf(chars, offset, half), nodeOf(chars, offset + half, length - half));
+  }
+
+  @NotNull
+  ImmutableText concat(@NotNull ImmutableText that) {
+    if (that.length() == 0) return this;
+    if (length() == 0) return that;
+    return new ImmutableText(concatNodes(myNode, that.myNode));
+  }
+
+  @NotNull
+  ImmutableText insert(int index, @NotNull CharSequence text) {
+    if (text.length() == 0) return this;
+    return subtext(0, index).concat(valueOf(text)).concat(subtext(index));
+  }
+
+  @NotNull
+  ImmutableText delete(int start, int end) {
+    if (start == end) return this;
+    checkRange(start, end);
+    return subtext(0, start).concat(subtext(end));
+  }
+
+  @NotNull
+  ImmutableText replace(int start, int end, @NotNull CharSequence text) {
+    checkRange(start, end);
+    return subtext(0, start).concat(valueOf(text)).concat(subtext(end));
+  }
+
+  @NotNull
+  ImmutableText subtext(int start) {
+    return subtext(start, length());
+  }
+
+  @NotNull
+  ImmutableText subtext(int start, int end) {
+    checkRange(start, end);
+    if (start == 0 && end == length()) return this;
+    if (start == end) return EMPTY;
+    return new ImmutableText(myNode.subNode(start, end));
+  }
+
+  @Override
+  public int length() {
+    return myNode.length();
+  }
+
+  @Override
+  public char charAt(int index) {
+    LeafPosition leaf = myLastLeaf;
+    if (leaf == null || index < leaf.offset || index >= leaf.offset + leaf.node.chars.length) {
+      if (index < 0 || index >= length()) {
+        throw new IndexOutOfBoundsException("Wrong offset: " + index + "; count:" + length());
+      }
+      myLastLeaf = leaf = findLeaf(index);
+    }
+    return leaf.node.chars[index - leaf.offset];
+  }
+
+  @NotNull
+  private LeafPosition findLeaf(int index) {
+    Node node = myNode;
+    int offset = 0;
+    while (node instanceof CompositeNode) {
+      CompositeNode composite = (CompositeNode)node;
+      int headLength = composite.head.length();
+      if (index - offset < headLength) {
+        node = composite.head;
+      }
+      else {
+        offset += headLength;
+        node = composite.tail;
+      }
+    }
+    return new LeafPosition((LeafNode)node, offset);
+  }
+
+  @NotNull
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return subtext(start, end);
+  }
+
+  /**
+   * Copies characters in the given range to the destination array.
+   */
+  void getChars(int start, int end, @NotNull char[] dest, int destPos) {
+    checkRange(start, end);
+    myNode.getChars(start, end, dest, destPos);
+  }
+
+  @NotNull
+  char[] toCharArray() {
+    char[] chars = new char[length()];
+    myNode.getChars(0, chars.length, chars, 0);
+    return chars;
+  }
+
+  @NotNull
+  @Override
+  public String toString() {
+    return new String(toCharArray());
+  }
+
+  /**
+   * @return height of the tree, leaf has zero depth
+   */
+  int getDepth() {
+    return myNode.depth();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof ImmutableText)) return false;
+    ImmutableText that = (ImmutableText)o;
+    int length = length();
+    if (length != that.length() || hashCode() != that.hashCode()) return false;
+    for (int i = 0; i < length; i++) {
+      if (charAt(i) != that.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    int hash = myHash;
+    if (hash == 0) {
+      for (int i = 0, length = length(); i < length; i++) {
+        hash = 31 * hash + charAt(i);
+      }
+      myHash = hash;
+    }
+    return hash;
+  }
+
+  private void checkRange(int start, int end) {
+    if (start < 0 || start > end || end > length()) {
+      throw new IndexOutOfBoundsException("Wrong range: [" + start + ", " + end + "); count:" + length());
+    }
+  }
+
+  @NotNull
+  private static Node concatNodes(@NotNull Node head, @NotNull Node tail) {
+    int length = head.length() + tail.length();
+    if (length <= BLOCK_SIZE) {
+      char[] chars = new char[length];
+      head.getChars(0, head.length(), chars, 0);
+      tail.getChars(0, tail.length(), chars, head.length());
+      return new LeafNode(chars);
+    }
+
+    if (head.length() << 1 < tail.length() && tail instanceof CompositeNode) {
+      // head is too small, returns (head + tail.head) + tail.tail
+      CompositeNode composite = (CompositeNode)tail;
+      if (composite.head.length() > composite.tail.length()) {
+        composite = composite.rightRotation();
+      }
+      return new CompositeNode(concatNodes(head, composite.head), composite.tail);
+    }
+    if (tail.length() << 1 < head.length() && head instanceof CompositeNode) {
+      // tail is too small, returns head.head + (head.tail + tail)
+      CompositeNode composite = (CompositeNode)head;
+      if (composite.tail.length() > composite.head.length()) {
+        composite = composite.leftRotation();
+      }
+      return new CompositeNode(composite.head, concatNodes(composite.tail, tail));
+    }
+    return new CompositeNode(head, tail);
+  }
+
+  private static class LeafPosition {
+    @NotNull final LeafNode node;
+    final int offset;
+
+    private LeafPosition(@NotNull LeafNode node, int offset) {
+      this.node = node;
+      this.offset = offset;
+    }
+  }
+
+  private abstract static class Node {
+    abstract int length();
+
+    abstract int depth();
+
+    @NotNull
+    abstract Node subNode(int start, int end);
+
+    abstract void getChars(int start, int end, @NotNull char[] dest, int destPos);
+  }
+
+  private static class LeafNode extends Node {
+    @NotNull final char[] chars;
+
+    private LeafNode(@NotNull char[] chars) {
+      this.chars = chars;
+    }
+
+    @Override
+    int length() {
+      return chars.length;
+    }
+
+    @Override
+    int depth() {
+      return 0;
+    }
+
+    @NotNull
+    @Override
+    Node subNode(int start, int end) {
+      if (start == 0 && end == chars.length) return this;
+      return new LeafNode(Arrays.copyOfRange(chars, start, end));
+    }
+
+    @Override
+    void getChars(int start, int end, @NotNull char[] dest, int destPos) {
+      System.arraycopy(chars, start, dest, destPos, end - start);
+    }
+  }
+
+  private static class CompositeNode extends Node {
+    @NotNull final Node head;
+    @NotNull final Node tail;
+    private final int myLength;
+    private final int myDepth;
+
+    private CompositeNode(@NotNull Node head, @NotNull Node tail) {
+      this.head = head;
+      this.tail = tail;
+      myLength = head.length() + tail.length();
+      myDepth = Math.max(head.depth(), tail.depth()) + 1;
+    }
+
+    @Override
+    int length() {
+      return myLength;
+    }
+
+    @Override
+    int depth() {
+      return myDepth;
+    }
+
+    @NotNull
+    private CompositeNode rightRotation() {
+      if (!(head instanceof CompositeNode)) return this;
+      CompositeNode p = (CompositeNode)head;
+      return new CompositeNode(p.head, new CompositeNode(p.tail, tail));
+    }
+
+    @NotNull
+    private CompositeNode leftRotation() {
+      if (!(tail instanceof CompositeNode)) return this;
+      CompositeNode q = (CompositeNode)tail;
+      return new CompositeNode(new CompositeNode(head, q.head), q.tail);
+    }
+
+    @NotNull
+    @Override
+    Node subNode(int start, int end) {
+      int headLength = head.length();
+      if (end <= headLength) return head.subNode(start, end);
+      if (start >= headLength) return tail.subNode(start - headLength, end - headLength);
+      if (start == 0 && end == myLength) return this;
+      return concatNodes(head.subNode(start, headLength), tail.subNode(0, end - headLength));
+    }
+
+    @Override
+    void getChars(int start, int end, @NotNull char[] dest, int destPos) {
+      int headLength = head.length();
+      if (start < headLength) {
+        int headEnd = Math.min(end, headLength);
+        head.getChars(start, headEnd, dest, destPos);
+        destPos += headEnd - start;
+        start = headEnd;
+      }
+      if (end > headLength) {
+        tail.getChars(start - headLength, end - headLength, dest, destPos);
+      }
+    }
+  }
+}
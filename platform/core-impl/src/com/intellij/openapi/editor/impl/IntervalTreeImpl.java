@@ -15,6 +15,8 @@
  */
 package com.intellij.openapi.editor.impl;
 
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.editor.ex.DisposableIterator;
 import com.intellij.openapi.util.Getter;
 import com.intellij.openapi.util.ProperTextRange;
@@ -47,6 +49,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
   protected abstract int compareEqualStartIntervals(@NotNull IntervalNode<T> i1, @NotNull IntervalNode<T> i2);
   private final ReferenceQueue<T> myReferenceQueue = new ReferenceQueue<T>();
   private int deadReferenceCount;
+  private boolean myPurgeScheduled; // guarded by write lock
 
   protected static class IntervalNode<E extends MutableInterval> extends RedBlackTree.Node<E> implements MutableInterval {
     private volatile int myStart;
@@ -1064,7 +1067,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     node.maxEnd = realMax - deltaUpToRoot;
   }
 
-  private void correctMaxUp(IntervalNode<T> node) {
+  void correctMaxUp(IntervalNode<T> node) {
     int delta = node == null ? 0 : node.computeDeltaUpToRoot();
     assert delta == 0 : delta;
     while (node != null) {
@@ -1212,9 +1215,32 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
 
     deadReferenceCount += dead;
     if (deadReferenceCount > Math.max(1, size() / 3)) {
+      schedulePurgeDeadNodes();
+    }
+  }
+
+  // dead nodes are harmless until purged, so the edit which happened to notice them shouldn't pay for the whole tree traversal
+  private void schedulePurgeDeadNodes() {
+    if (myPurgeScheduled) return;
+    Application application = ApplicationManager.getApplication();
+    if (application == null || application.isUnitTestMode()) {
       purgeDeadNodes();
-      deadReferenceCount = 0;
+      return;
     }
+    myPurgeScheduled = true;
+    application.executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          l.writeLock().lock();
+          myPurgeScheduled = false;
+          purgeDeadNodes();
+        }
+        finally {
+          l.writeLock().unlock();
+        }
+      }
+    });
   }
 
   private void purgeDeadNodes() {
@@ -1223,6 +1249,58 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     collectGced(getRoot(), gced);
     deleteNodes(gced);
     checkMax(true);
+    deadReferenceCount = 0;
+  }
+
+  // all deltas from the root down to the node must be cleared, as they are for the nodes affected by a document change
+  boolean hasNeighbourWithSameStart(@NotNull IntervalNode<T> node) {
+    int start = node.intervalStart();
+    IntervalNode<T> left = node.getLeft();
+    if (left != null) {
+      if (maxNodeStart(left, 0) >= start) return true;
+    }
+    else {
+      IntervalNode<T> child = node;
+      IntervalNode<T> parent = node.getParent();
+      while (parent != null && parent.getLeft() == child) {
+        child = parent;
+        parent = parent.getParent();
+      }
+      if (parent != null && parent.intervalStart() >= start) return true;
+    }
+    IntervalNode<T> right = node.getRight();
+    if (right != null) {
+      if (minNodeStart(right, 0) <= start) return true;
+    }
+    else {
+      IntervalNode<T> child = node;
+      IntervalNode<T> parent = node.getParent();
+      while (parent != null && parent.getRight() == child) {
+        child = parent;
+        parent = parent.getParent();
+      }
+      if (parent != null && parent.intervalStart() <= start) return true;
+    }
+    return false;
+  }
+
+  // start of the rightmost node in the subtree, invalid nodes don't apply their own delta
+  private static int maxNodeStart(@NotNull IntervalNode<?> root, int deltaUp) {
+    while (true) {
+      if (root.isValid()) deltaUp += root.delta;
+      IntervalNode<?> right = root.getRight();
+      if (right == null) return root.intervalStart() + deltaUp;
+      root = right;
+    }
+  }
+
+  private static int minNodeStart(@NotNull IntervalNode<?> root, int deltaUp) {
+    while (true) {
+      if (root.isValid()) deltaUp += root.delta;
+      IntervalNode<?> left = root.getLeft();
+      if (left == null) return root.intervalStart() + deltaUp;
+      root = left;
+    }
   }
 
   @Override
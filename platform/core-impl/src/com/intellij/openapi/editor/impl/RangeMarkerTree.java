@@ -28,6 +28,7 @@ import com.intellij.util.Processor;
 import com.intellij.util.SmartList;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -196,7 +197,31 @@ public class RangeMarkerTree<T extends RangeMarkerEx> extends IntervalTreeImpl<T
       checkMax(false);
 
       if (!affected.isEmpty()) {
+        // nodes updated in place stay in the tree, the rest is moved; markers of the first updatedCount moved nodes are updated already
+        List<IntervalNode<T>> moved = new ArrayList<IntervalNode<T>>(affected.size());
+        List<IntervalNode<T>> notUpdated = new ArrayList<IntervalNode<T>>(affected.size());
         for (IntervalNode<T> node : affected) {
+          switch (updateInPlace(node, e)) {
+            case UPDATED_IN_PLACE:
+              break;
+            case UPDATED:
+              moved.add(node);
+              break;
+            case INVALIDATED:
+              removeNode(node);
+              checkMax(false);
+              node.clearDelta();
+              node.setParent(null);
+              node.setLeft(null);
+              node.setRight(null);
+              break;
+            default:
+              notUpdated.add(node);
+          }
+        }
+        int updatedCount = moved.size();
+        moved.addAll(notUpdated);
+        for (IntervalNode<T> node : moved) {
           // assumption: interval.getEndOffset() will never be accessed during remove()
           int startOffset = node.intervalStart();
           int endOffset = node.intervalEnd();
@@ -211,26 +236,16 @@ public class RangeMarkerTree<T extends RangeMarkerEx> extends IntervalTreeImpl<T
           assert node.intervalEnd() == endOffset;
         }
         checkMax(true);
-        for (IntervalNode<T> node : affected) {
+        for (int n = 0; n < moved.size(); n++) {
+          IntervalNode<T> node = moved.get(n);
           List<Getter<T>> keys = node.intervals;
           if (keys.isEmpty()) continue; // collected away
 
-          RangeMarkerImpl marker = null;
-          for (int i = keys.size() - 1; i >= 0; i--) {
-            Getter<T> key = keys.get(i);
-            marker = (RangeMarkerImpl)key.get();
-            if (marker != null) {
-              if (!marker.isValid()) {
-                // marker can become invalid on its own, e.g. FoldRegion
-                node.removeIntervalInternal(i);
-                marker = null;
-                continue;
-              }
-              break;
-            }
-          }
+          RangeMarkerImpl marker = findMarkerToUpdate(node);
           if (marker == null) continue; // node remains removed from the tree
-          marker.documentChanged(e);
+          if (n >= updatedCount) {
+            marker.documentChanged(e);
+          }
           if (marker.isValid()) {
             RMNode<T> insertedNode = (RMNode)findOrInsert(node);
             // can change if two range become the one
@@ -259,6 +274,52 @@ public class RangeMarkerTree<T extends RangeMarkerEx> extends IntervalTreeImpl<T
     }
   }
 
+  @Nullable
+  private RangeMarkerImpl findMarkerToUpdate(@NotNull IntervalNode<T> node) {
+    List<Getter<T>> keys = node.intervals;
+    for (int i = keys.size() - 1; i >= 0; i--) {
+      RangeMarkerImpl marker = (RangeMarkerImpl)keys.get(i).get();
+      if (marker != null) {
+        if (!marker.isValid()) {
+          // marker can become invalid on its own, e.g. FoldRegion
+          node.removeIntervalInternal(i);
+          continue;
+        }
+        return marker;
+      }
+    }
+    return null;
+  }
+
+  private enum InPlaceUpdateResult {UPDATED_IN_PLACE, UPDATED, INVALIDATED, NOT_UPDATED}
+
+  /**
+   * Most of the markers affected by a change start before it and only move their end, e.g. the ones enclosing the edited code.
+   * Such a node keeps its place in the tree unless a neighbour starts at the same offset (they are ordered by length then),
+   * so it's updated where it is instead of being removed and inserted back.
+   */
+  @NotNull
+  private InPlaceUpdateResult updateInPlace(@NotNull IntervalNode<T> node, @NotNull DocumentEvent e) {
+    int start = node.intervalStart();
+    if (start >= e.getOffset() || hasNeighbourWithSameStart(node)) return InPlaceUpdateResult.NOT_UPDATED;
+    node.setValid(true); // markers check their validity through the node
+    RangeMarkerImpl marker = findMarkerToUpdate(node);
+    if (marker == null) {
+      node.setValid(false);
+      return InPlaceUpdateResult.NOT_UPDATED;
+    }
+    marker.documentChanged(e);
+    if (!marker.isValid()) {
+      return InPlaceUpdateResult.INVALIDATED;
+    }
+    if (node.intervalStart() != start) {
+      node.setValid(false);
+      return InPlaceUpdateResult.UPDATED;
+    }
+    correctMaxUp(node);
+    return InPlaceUpdateResult.UPDATED_IN_PLACE;
+  }
+
   // returns true if all deltas involved are still 0
   private boolean collectAffectedMarkersAndShiftSubtrees(IntervalNode<T> root,
                                                          @NotNull DocumentEvent e,
@@ -271,11 +332,6 @@ public class RangeMarkerTree<T extends RangeMarkerEx> extends IntervalTreeImpl<T
 
     int offset = e.getOffset();
     int affectedEndOffset = offset + e.getOldLength();
-    boolean hasAliveKeys = root.hasAliveKey(false);
-    if (!hasAliveKeys) {
-      // marker was garbage collected
-      affected.add(root);
-    }
     if (offset > maxEnd) {
       // no need to bother
     }
@@ -296,7 +352,8 @@ public class RangeMarkerTree<T extends RangeMarkerEx> extends IntervalTreeImpl<T
     else {
       if (offset <= root.intervalEnd()) {
         // unlucky enough so that change affects the interval
-        if (hasAliveKeys) affected.add(root); // otherwise we've already added it
+        // (or its markers were garbage collected, then the node is dropped; the ones elsewhere are left to purgeDeadNodes())
+        affected.add(root);
         root.setValid(false);  //make invisible
       }
 
@@ -83,6 +83,9 @@ public abstract class AbstractModificationTracker implements PsiTreeChangePrepro
     if (!changedInsideCodeBlock) {
       processOutOfCodeBlockModification(event);
     }
+    else {
+      event.setChangedInsideCodeBlock(true);
+    }
   }
 
   protected void processOutOfCodeBlockModification(final PsiTreeChangeEventImpl event) {
@@ -23,6 +23,7 @@ import com.intellij.psi.PsiTreeChangeEvent;
 
 public class PsiTreeChangeEventImpl extends PsiTreeChangeEvent{
   private boolean isGeneric;
+  private boolean myChangedInsideCodeBlock;
 
   public enum PsiEventType {
     BEFORE_CHILD_ADDITION,
@@ -122,4 +123,14 @@ public class PsiTreeChangeEventImpl extends PsiTreeChangeEvent{
   public void setGeneric(boolean generic) {
     isGeneric = generic;
   }
+
+  // set by tree change preprocessors for changes which can't affect anything outside the code block they are in,
+  // i.e. which don't change out of code block modification count
+  public boolean isChangedInsideCodeBlock() {
+    return myChangedInsideCodeBlock;
+  }
+
+  public void setChangedInsideCodeBlock(boolean changedInsideCodeBlock) {
+    myChangedInsideCodeBlock = changedInsideCodeBlock;
+  }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2000-2009 JetBrains s.r.o.
+ * Copyright 2000-2012 JetBrains s.r.o.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,34 +16,64 @@
 
 package com.intellij.psi.impl.source.resolve;
 
+import com.intellij.injected.editor.VirtualFileWindow;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.components.ServiceManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProgressIndicatorProvider;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.*;
-import com.intellij.psi.PsiElement;
-import com.intellij.psi.PsiPolyVariantReference;
-import com.intellij.psi.PsiReference;
-import com.intellij.psi.ResolveResult;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.*;
 import com.intellij.psi.impl.AnyPsiChangeListener;
 import com.intellij.psi.impl.PsiManagerImpl;
+import com.intellij.psi.impl.PsiTreeChangeEventImpl;
 import com.intellij.reference.SoftReference;
 import com.intellij.util.containers.ConcurrentWeakHashMap;
 import com.intellij.util.messages.MessageBus;
+import gnu.trove.THashSet;
 import gnu.trove.TObjectHashingStrategy;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class ResolveCache {
   private static final Logger LOG = Logger.getInstance("#com.intellij.psi.impl.source.resolve.ResolveCache");
+  private static final String[] MAP_NAMES = new String[2*2*2];
   private final Map[] myMaps = new Map[2*2*2]; //boolean physical, boolean incompleteCode, boolean isPoly
   private final AtomicInteger myClearCount = new AtomicInteger(0);
   private final RecursionGuard myGuard = RecursionManager.createGuard("resolveCache");
 
+  // statistics by map index
+  private final AtomicLongArray myHits = new AtomicLongArray(myMaps.length);
+  private final AtomicLongArray myMisses = new AtomicLongArray(myMaps.length);
+  private final AtomicLongArray myEvictions = new AtomicLongArray(myMaps.length);
+
+  // Physical results are not dropped as soon as PSI is about to change but are put aside until the change is over. If all
+  // PSI events of the change were inside code blocks (see PsiTreeChangeEventImpl#isChangedInsideCodeBlock()) and did not change
+  // the out of code block modification count, only results for references in changed files are dropped, since nothing outside
+  // a code block may refer to its contents. Maps are put aside in write action only: caches may also be dropped from read actions
+  // of several threads at once (see PsiManagerImpl#dropResolveCaches()), which clear all physical results instead. So the fields
+  // below are changed in write action only, except for myMapsBeforeChange which may be dropped concurrently.
+  @Nullable private final PsiManager myPsiManager;
+  private volatile Map[] myMapsBeforeChange; // physical maps put aside in beforePsiChanged(), null if there is no change in progress
+  private boolean myChangeStarted; // there were PSI events after myMapsBeforeChange were put aside
+  private boolean myBeforeEventExpected; // beforePsiChanged() was not followed by a PSI event yet, e.g. after dropResolveCaches()
+  private boolean myChangeIsLocal = true;
+  private final Set<VirtualFile> myChangedFiles = new THashSet<VirtualFile>();
+  private long myOutOfCodeBlockModificationCount;
+
+  static {
+    for (int i = 0; i < MAP_NAMES.length; i++) {
+      MAP_NAMES[i] = ((i & 4) == 0 ? "physical" : "non-physical") + ((i & 2) == 0 ? " incomplete" : "") + ((i & 1) == 0 ? " poly" : "");
+    }
+  }
+
   public static ResolveCache getInstance(Project project) {
     ProgressIndicatorProvider.checkCanceled(); // We hope this method is being called often enough to cancel daemon processes smoothly
     return ServiceManager.getService(project, ResolveCache.class);
@@ -61,20 +91,39 @@ public class ResolveCache {
   public interface Resolver extends AbstractResolver<PsiReference,PsiElement>{
   }
 
+  /**
+   * Creates a cache which drops all the results on any PSI change.
+   */
   public ResolveCache(@NotNull MessageBus messageBus) {
+    this(messageBus, null);
+  }
+
+  public ResolveCache(@NotNull MessageBus messageBus, @Nullable PsiManager psiManager) {
+    myPsiManager = psiManager;
     for (int i = 0; i < myMaps.length; i++) {
       myMaps[i] = createWeakMap();
     }
     messageBus.connect().subscribe(PsiManagerImpl.ANY_PSI_CHANGE_TOPIC, new AnyPsiChangeListener() {
       @Override
       public void beforePsiChanged(boolean isPhysical) {
-        clearCache(isPhysical);
+        if (isPhysical && myPsiManager != null && ApplicationManager.getApplication().isWriteAccessAllowed()) {
+          putAsideBeforeChange();
+        }
+        else {
+          clearCache(isPhysical);
+        }
       }
 
       @Override
       public void afterPsiChanged(boolean isPhysical) {
+        if (isPhysical && myPsiManager != null && ApplicationManager.getApplication().isWriteAccessAllowed()) {
+          invalidateAfterChange();
+        }
       }
     });
+    if (psiManager != null) {
+      psiManager.addPsiTreeChangeListener(new ChangedFilesCollector());
+    }
   }
 
   private static <K,V> ConcurrentWeakHashMap<K, V> createWeakMap() {
@@ -84,8 +133,134 @@ public class ResolveCache {
 
   public void clearCache(boolean isPhysical) {
     myClearCount.incrementAndGet();
+    if (isPhysical) {
+      dropMapsBeforeChange();
+    }
     int startIndex = isPhysical ? 0 : 1;
-    for (int i=startIndex;i<2;i++)for (int j=0;j<2;j++)for (int k=0;k<2;k++) myMaps[i*4+j*2+k].clear();
+    for (int i=startIndex;i<2;i++)for (int j=0;j<2;j++)for (int k=0;k<2;k++) evictAll(i*4+j*2+k, myMaps[i*4+j*2+k]);
+  }
+
+  private void evictAll(int index, @NotNull Map map) {
+    myEvictions.addAndGet(index, map.size());
+    map.clear();
+  }
+
+  private void putAsideBeforeChange() {
+    myClearCount.incrementAndGet();
+    if (myBeforeEventExpected) {
+      // previous beforePsiChanged() was not followed by a PSI event, i.e. the caches were dropped explicitly
+      if (myChangeStarted) {
+        myChangeIsLocal = false;
+      }
+      else {
+        dropMapsBeforeChange();
+      }
+    }
+    myBeforeEventExpected = true;
+
+    if (myMapsBeforeChange == null) {
+      Map[] maps = new Map[4];
+      for (int i = 0; i < 4; i++) {
+        maps[i] = myMaps[i];
+        myMaps[i] = createWeakMap();
+      }
+      myMapsBeforeChange = maps;
+      myChangeStarted = false;
+      myChangeIsLocal = true;
+      myChangedFiles.clear();
+      myOutOfCodeBlockModificationCount = getOutOfCodeBlockModificationCount();
+    }
+    else {
+      // one more change of the same PSI transaction, results computed in between may be already out of date
+      for (int i = 0; i < 4; i++) {
+        evictAll(i, myMaps[i]);
+      }
+    }
+    for (int i = 4; i < myMaps.length; i++) {
+      evictAll(i, myMaps[i]);
+    }
+  }
+
+  private void invalidateAfterChange() {
+    if (myBeforeEventExpected) {
+      myBeforeEventExpected = false;
+      myChangeIsLocal = false;
+    }
+    boolean local = myChangeIsLocal && getOutOfCodeBlockModificationCount() == myOutOfCodeBlockModificationCount;
+    if (myMapsBeforeChange != null) {
+      if (local && myChangeStarted && !myChangedFiles.isEmpty()) {
+        for (int i = 0; i < 4; i++) {
+          evictAll(i, myMaps[i]);
+          evictChangedFiles(i, myMapsBeforeChange[i]);
+          myMaps[i] = myMapsBeforeChange[i];
+        }
+        myMapsBeforeChange = null;
+      }
+      else {
+        dropMapsBeforeChange();
+      }
+    }
+    else if (!local) {
+      // more events of a PSI transaction after the maps were already restored
+      clearCache(true);
+    }
+    else if (!myChangedFiles.isEmpty()) {
+      for (int i = 0; i < 4; i++) {
+        evictChangedFiles(i, myMaps[i]);
+      }
+    }
+    myChangeIsLocal = true;
+    myChangedFiles.clear();
+    myOutOfCodeBlockModificationCount = getOutOfCodeBlockModificationCount();
+  }
+
+  private void dropMapsBeforeChange() {
+    Map[] maps = myMapsBeforeChange;
+    if (maps == null) return;
+    myMapsBeforeChange = null;
+    for (int i = 0; i < 4; i++) {
+      myEvictions.addAndGet(i, maps[i].size());
+    }
+  }
+
+  private void evictChangedFiles(int index, @NotNull Map<?, ?> map) {
+    int evicted = 0;
+    for (Iterator<? extends Map.Entry<?, ?>> iterator = map.entrySet().iterator(); iterator.hasNext(); ) {
+      Object getter = iterator.next().getValue();
+      VirtualFile file = getter instanceof TaggedGetter ? ((TaggedGetter)getter).getFile() : null;
+      if (file == null || myChangedFiles.contains(file)) {
+        iterator.remove();
+        evicted++;
+      }
+    }
+    myEvictions.addAndGet(index, evicted);
+  }
+
+  private long getOutOfCodeBlockModificationCount() {
+    assert myPsiManager != null;
+    return myPsiManager.getModificationTracker().getOutOfCodeBlockModificationCount();
+  }
+
+  @Nullable
+  private static VirtualFile getFileToInvalidate(@Nullable PsiFile file) {
+    if (file == null) return null;
+    VirtualFile virtualFile = file.getViewProvider().getVirtualFile();
+    return virtualFile instanceof VirtualFileWindow ? ((VirtualFileWindow)virtualFile).getDelegate() : virtualFile;
+  }
+
+  /**
+   * Statistics of the cache maps: hits, misses and results dropped because of PSI changes or garbage collected.
+   */
+  @NotNull
+  public String getStatistics() {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < myMaps.length; i++) {
+      builder.append(MAP_NAMES[i]).append(": ").append(myMaps[i].size()).append(" results, ")
+        .append(myHits.get(i)).append(" hits, ")
+        .append(myMisses.get(i)).append(" misses, ")
+        .append(myEvictions.get(i)).append(" evictions\n");
+    }
+    return builder.toString();
   }
 
   @Nullable
@@ -99,12 +274,18 @@ public class ResolveCache {
 
     int clearCountOnStart = myClearCount.intValue();
     boolean physical = ref.getElement().isPhysical();
-    Map<TRef, Getter<TResult>> map = getMap(physical, incompleteCode, isPoly);
+    int index = getIndex(physical, incompleteCode, isPoly);
+    Map<TRef, Getter<TResult>> map = getMap(index);
     Getter<TResult> reference = map.get(ref);
     TResult result = reference == null ? null : reference.get();
     if (result != null) {
+      myHits.incrementAndGet(index);
       return result;
     }
+    myMisses.incrementAndGet(index);
+    if (reference instanceof SoftGetter) {
+      myEvictions.incrementAndGet(index);
+    }
 
     Computable<TResult> computable = new Computable<TResult>() {
       @Override
@@ -119,7 +300,7 @@ public class ResolveCache {
     LOG.assertTrue(element == null || element.isValid(), result);
 
     if (stamp.mayCacheNow() && clearCountOnStart == myClearCount.intValue()) {
-      cache(ref, map, result, isPoly);
+      cache(ref, map, result, isPoly, physical && myPsiManager != null);
     }
     return result;
   }
@@ -134,7 +315,7 @@ public class ResolveCache {
   }
 
   public <T extends PsiPolyVariantReference> boolean isCached(@NotNull T ref, boolean physical, boolean incompleteCode, boolean isPoly) {
-    Map<T, Getter<ResolveResult[]>> map = getMap(physical, incompleteCode, isPoly);
+    Map<T, Getter<ResolveResult[]>> map = getMap(getIndex(physical, incompleteCode, isPoly));
     Getter<ResolveResult[]> reference = map.get(ref);
     return reference != null && reference.get() != null;
   }
@@ -154,9 +335,21 @@ public class ResolveCache {
     return resolve(ref, resolver, needToPreventRecursion, incompleteCode, false);
   }
 
-  private <TRef extends PsiReference,TResult> Map<TRef, Getter<TResult>> getMap(boolean physical, boolean incompleteCode, boolean isPoly) {
+  private static int getIndex(boolean physical, boolean incompleteCode, boolean isPoly) {
+    return (physical ? 0 : 1)*4 + (incompleteCode ? 0 : 1)*2 + (isPoly ? 0 : 1);
+  }
+
+  private <TRef extends PsiReference,TResult> Map<TRef, Getter<TResult>> getMap(int index) {
     //noinspection unchecked
-    return myMaps[(physical ? 0 : 1)*4 + (incompleteCode ? 0 : 1)*2 + (isPoly ? 0 : 1)];
+    return myMaps[index];
+  }
+
+  private interface TaggedGetter<T> extends Getter<T> {
+    /**
+     * @return the file of the reference the result was computed for
+     */
+    @Nullable
+    VirtualFile getFile();
   }
 
   private static class SoftGetter<T> extends SoftReference<T> implements Getter<T> {
@@ -164,31 +357,147 @@ public class ResolveCache {
       super(referent);
     }
   }
+
+  private static class TaggedSoftGetter<T> extends SoftGetter<T> implements TaggedGetter<T> {
+    private final VirtualFile myFile;
+
+    public TaggedSoftGetter(T referent, @Nullable VirtualFile file) {
+      super(referent);
+      myFile = file;
+    }
+
+    @Override
+    public VirtualFile getFile() {
+      return myFile;
+    }
+  }
+
+  private static class TaggedStaticGetter<T> extends StaticGetter<T> implements TaggedGetter<T> {
+    private final VirtualFile myFile;
+
+    public TaggedStaticGetter(T value, @Nullable VirtualFile file) {
+      super(value);
+      myFile = file;
+    }
+
+    @Override
+    public VirtualFile getFile() {
+      return myFile;
+    }
+  }
+
   private static final Getter<ResolveResult[]> EMPTY_POLY_RESULT = new StaticGetter<ResolveResult[]>(ResolveResult.EMPTY_ARRAY);
   private static final Getter<Object> NULL_RESULT = new StaticGetter<Object>(null);
   private static <TRef extends PsiReference, TResult> void cache(@NotNull TRef ref,
                                                                  @NotNull Map<TRef, Getter<TResult>> map,
                                                                  TResult result,
-                                                                 boolean isPoly) {
+                                                                 boolean isPoly,
+                                                                 boolean tagWithFile) {
     // optimization: less contention
     Getter<TResult> cached = map.get(ref);
     if (cached != null && cached.get() == result) {
       return;
     }
+    VirtualFile file = tagWithFile ? getFileToInvalidate(ref.getElement().getContainingFile()) : null;
     Getter<TResult> reference;
     if (result == null) {
       // no use in creating SoftReference to null
       //noinspection unchecked
-      reference = (Getter<TResult>)NULL_RESULT;
+      reference = tagWithFile ? new TaggedStaticGetter<TResult>(null, file) : (Getter<TResult>)NULL_RESULT;
     }
     else if (isPoly && ((Object[])result).length == 0 && result.getClass() == ResolveResult[].class) {
       // no use in creating SoftReference to empty array
       //noinspection unchecked
-      reference = (Getter<TResult>)EMPTY_POLY_RESULT;
+      reference = tagWithFile ? new TaggedStaticGetter<TResult>(result, file) : (Getter<TResult>)EMPTY_POLY_RESULT;
     }
     else {
-      reference = new SoftGetter<TResult>(result);
+      reference = tagWithFile ? new TaggedSoftGetter<TResult>(result, file) : new SoftGetter<TResult>(result);
     }
     map.put(ref, reference);
   }
+
+  private class ChangedFilesCollector implements PsiTreeChangeListener {
+    @Override
+    public void beforeChildAddition(@NotNull PsiTreeChangeEvent event) {
+      beforeChange();
+    }
+
+    @Override
+    public void beforeChildRemoval(@NotNull PsiTreeChangeEvent event) {
+      beforeChange();
+    }
+
+    @Override
+    public void beforeChildReplacement(@NotNull PsiTreeChangeEvent event) {
+      beforeChange();
+    }
+
+    @Override
+    public void beforeChildMovement(@NotNull PsiTreeChangeEvent event) {
+      beforeChange();
+    }
+
+    @Override
+    public void beforeChildrenChange(@NotNull PsiTreeChangeEvent event) {
+      beforeChange();
+    }
+
+    @Override
+    public void beforePropertyChange(@NotNull PsiTreeChangeEvent event) {
+      beforeChange();
+    }
+
+    @Override
+    public void childAdded(@NotNull PsiTreeChangeEvent event) {
+      changed(event);
+    }
+
+    @Override
+    public void childRemoved(@NotNull PsiTreeChangeEvent event) {
+      changed(event);
+    }
+
+    @Override
+    public void childReplaced(@NotNull PsiTreeChangeEvent event) {
+      changed(event);
+    }
+
+    @Override
+    public void childrenChanged(@NotNull PsiTreeChangeEvent event) {
+      changed(event);
+    }
+
+    @Override
+    public void childMoved(@NotNull PsiTreeChangeEvent event) {
+      changed(event);
+    }
+
+    @Override
+    public void propertyChanged(@NotNull PsiTreeChangeEvent event) {
+      changed(event);
+    }
+
+    private void beforeChange() {
+      // changes of non-physical PSI outside of write action don't concern the maps put aside
+      if (!ApplicationManager.getApplication().isWriteAccessAllowed()) return;
+      myChangeStarted = true;
+      myBeforeEventExpected = false;
+    }
+
+    private void changed(@NotNull PsiTreeChangeEvent event) {
+      if (!ApplicationManager.getApplication().isWriteAccessAllowed()) return;
+      VirtualFile file = getFileToInvalidate(event.getFile());
+      if (file == null) {
+        myChangeIsLocal = false;
+        return;
+      }
+      myChangedFiles.add(file);
+      if (!(event instanceof PsiTreeChangeEventImpl)) {
+        myChangeIsLocal = false;
+      }
+      else if (!((PsiTreeChangeEventImpl)event).isGenericChildrenChange() && !((PsiTreeChangeEventImpl)event).isChangedInsideCodeBlock()) {
+        myChangeIsLocal = false;
+      }
+    }
+  }
 }
@@ -35,6 +35,16 @@ public abstract class StubTreeLoader {
 
   @Nullable
   public abstract ObjectStubTree readFromVFile(Project project, final VirtualFile vFile);
+
+  /**
+   * Same as {@link #readFromVFile(Project, VirtualFile)}, but doesn't load the stubs below the root, so it's cheap for large files
+   * when only the file stub data is needed.
+   */
+  @Nullable
+  public Stub readRootStubFromVFile(Project project, final VirtualFile vFile) {
+    ObjectStubTree tree = readFromVFile(project, vFile);
+    return tree != null ? tree.getRoot() : null;
+  }
   
   public abstract void rebuildStubTree(VirtualFile virtualFile);
 
@@ -310,7 +310,7 @@ public class PsiSearchHelperImpl implements PsiSearchHelper {
       public boolean value(Integer integer) {
         return (integer.intValue() & searchContext) != 0;
       }
-    }, collectProcessor, getWordEntries(text, caseSensitively));
+    }, collectProcessor, entries);
 
     final FileIndexFacade index = FileIndexFacade.getInstance(myManager.getProject());
     return ContainerUtil.process(collectProcessor.getResults(), new ReadActionProcessor<VirtualFile>() {
@@ -31,6 +31,11 @@ public abstract class SerializationManagerEx extends SerializationManager {
 
   public abstract Stub deserialize(InputStream stream);
 
+  /**
+   * Deserializes only the stubs with the given preorder indices and their ancestors from serialized stub tree bytes.
+   */
+  public abstract Stub[] deserializeStubs(byte[] bytes, int length, int... stubIndices);
+
   public abstract boolean isNameStorageCorrupted();
 
   public abstract void repairNameStorage();
@@ -170,4 +170,18 @@ public class SerializationManagerImpl extends SerializationManagerEx implements
       throw new RuntimeException(e);
     }
   }
+
+  @Override
+  public Stub[] deserializeStubs(byte[] bytes, int length, int... stubIndices) {
+    initSerializers();
+
+    try {
+      return myStubSerializationHelper.deserializeStubs(bytes, length, stubIndices);
+    }
+    catch (IOException e) {
+      nameStorageCrashed();
+      LOG.info(e);
+      throw new RuntimeException(e);
+    }
+  }
 }
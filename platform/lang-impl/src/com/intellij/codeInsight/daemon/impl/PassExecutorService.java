@@ -17,6 +17,7 @@
 package com.intellij.codeInsight.daemon.impl;
 
 import com.intellij.codeHighlighting.HighlightingPass;
+import com.intellij.codeHighlighting.Pass;
 import com.intellij.codeHighlighting.TextEditorHighlightingPass;
 import com.intellij.concurrency.Job;
 import com.intellij.concurrency.JobImpl;
@@ -30,6 +31,7 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.fileEditor.FileEditor;
+import com.intellij.openapi.fileEditor.FileEditorManager;
 import com.intellij.openapi.fileEditor.TextEditor;
 import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
@@ -40,6 +42,7 @@ import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.Consumer;
@@ -48,6 +51,8 @@ import com.intellij.util.containers.ContainerUtil;
 import gnu.trove.THashMap;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import java.util.*;
 import java.util.concurrent.CancellationException;
@@ -61,11 +66,15 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public abstract class PassExecutorService implements Disposable {
   private static final Logger LOG = Logger.getInstance("#com.intellij.codeInsight.daemon.impl.PassExecutorService");
+  // the greater the priority the later the pass is started, see Job.DEFAULT_PRIORITY
+  private static final int BACKGROUND_EDITOR_PRIORITY_DELTA = 1;
+  private static final int DEFERRED_PASS_PRIORITY_DELTA = 2;
 
   private final Map<ScheduledPass, Job<Void>> mySubmittedPasses = new ConcurrentHashMap<ScheduledPass, Job<Void>>();
   private final Project myProject;
   private volatile boolean isDisposed;
   private final AtomicInteger nextPassId = new AtomicInteger(100);
+  private final PassTimeStatistics myStatistics = new PassTimeStatistics();
 
   public PassExecutorService(Project project) {
     myProject = project;
@@ -75,6 +84,9 @@ public abstract class PassExecutorService implements Disposable {
   public void dispose() {
     cancelAll(true);
     isDisposed = true;
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Highlighting pass times:\n" + myStatistics.getReport());
+    }
   }
 
   public void cancelAll(boolean waitForTermination) {
@@ -95,10 +107,22 @@ public abstract class PassExecutorService implements Disposable {
     mySubmittedPasses.clear();
   }
 
+  /**
+   * Passes of the focused editor are started first, passes of other editors are started when there are free threads.
+   * When highlighting latency in the focused editor exceeds the "daemon.pass.time.budget" registry value, passes which take more
+   * time than that on average are started after all other passes.
+   */
   public void submitPasses(Map<FileEditor, HighlightingPass[]> passesMap, DaemonProgressIndicator updateProgress, final int jobPriority) {
     if (isDisposed()) return;
     int id = 1;
 
+    FileEditor focusedEditor = findFocusedEditor(passesMap.keySet());
+    updateProgress.putUserData(SUBMIT_TIME_KEY, System.currentTimeMillis());
+    updateProgress.putUserData(FOCUSED_EDITOR_KEY, focusedEditor);
+    int budget = Registry.intValue("daemon.pass.time.budget");
+    long latency = myStatistics.getAverageLatency();
+    long deferredPassTime = budget > 0 && latency > budget ? budget : -1;
+
     // (doc, passId) -> created pass
     Map<Pair<Document, Integer>, ScheduledPass> toBeSubmitted = new THashMap<Pair<Document, Integer>, ScheduledPass>(passesMap.size());
     // null keys are ok
@@ -173,6 +197,7 @@ public abstract class PassExecutorService implements Disposable {
       });
       int passId = -1;
       TextEditorHighlightingPass currentPass = null;
+      int priority = fileEditors.contains(focusedEditor) ? jobPriority : jobPriority + BACKGROUND_EDITOR_PRIORITY_DELTA;
       for (int i = 0; i <= passes.size(); i++) {
         int newId = -1;
         if (i < passes.size()) {
@@ -181,13 +206,14 @@ public abstract class PassExecutorService implements Disposable {
         }
         if (newId != passId) {
           createScheduledPass(fileEditors, currentPass, toBeSubmitted, passes, freePasses, dependentPasses, updateProgress, threadsToStartCountdown,
-                              jobPriority);
+                              priority, deferredPassTime);
           passId = newId;
         }
       }
     }
 
-    log(updateProgress, null, "---------------------starting------------------------ " + threadsToStartCountdown.get(), freePasses);
+    log(updateProgress, null, "---------------------starting------------------------ " + threadsToStartCountdown.get(), freePasses,
+        "latency: " + latency + "; budget: " + budget);
 
     for (ScheduledPass dependentPass : dependentPasses) {
       mySubmittedPasses.put(dependentPass, JobImpl.NULL_JOB);
@@ -205,17 +231,23 @@ public abstract class PassExecutorService implements Disposable {
                                             @NotNull List<ScheduledPass> dependentPasses,
                                             @NotNull DaemonProgressIndicator updateProgress,
                                             @NotNull AtomicInteger threadsToStartCountdown,
-                                            int jobPriority) {
+                                            int jobPriority,
+                                            long deferredPassTime) {
     int passId = pass.getId();
     Document document = pass.getDocument();
     Pair<Document, Integer> key = Pair.create(document, passId);
     ScheduledPass scheduledPass = toBeSubmitted.get(key);
     if (scheduledPass != null) return scheduledPass;
-    scheduledPass = new ScheduledPass(fileEditors, pass, updateProgress, threadsToStartCountdown, jobPriority);
+    int priority = jobPriority;
+    if (deferredPassTime >= 0 && passId != Pass.UPDATE_ALL && myStatistics.getAverageWallTime(pass) > deferredPassTime) {
+      log(updateProgress, pass, "Deferred, average time: " + myStatistics.getAverageWallTime(pass));
+      priority += DEFERRED_PASS_PRIORITY_DELTA;
+    }
+    scheduledPass = new ScheduledPass(fileEditors, pass, updateProgress, threadsToStartCountdown, priority);
     toBeSubmitted.put(key, scheduledPass);
     for (int predecessorId : pass.getCompletionPredecessorIds()) {
       ScheduledPass predecessor = findOrCreatePredecessorPass(fileEditors, document, toBeSubmitted, textEditorHighlightingPasses, freePasses, dependentPasses,
-                                                              updateProgress, threadsToStartCountdown, jobPriority, predecessorId);
+                                                              updateProgress, threadsToStartCountdown, jobPriority, deferredPassTime, predecessorId);
       if (predecessor != null) {
         predecessor.mySuccessorsOnCompletion.add(scheduledPass);
         scheduledPass.myRunningPredecessorsCount.incrementAndGet();
@@ -223,7 +255,8 @@ public abstract class PassExecutorService implements Disposable {
     }
     for (int predecessorId : pass.getStartingPredecessorIds()) {
       ScheduledPass predecessor = findOrCreatePredecessorPass(fileEditors, document, toBeSubmitted, textEditorHighlightingPasses, freePasses,
-                                                              dependentPasses, updateProgress, threadsToStartCountdown, jobPriority, predecessorId);
+                                                              dependentPasses, updateProgress, threadsToStartCountdown, jobPriority, deferredPassTime,
+                                                              predecessorId);
       if (predecessor != null) {
         predecessor.mySuccessorsOnSubmit.add(scheduledPass);
         scheduledPass.myRunningPredecessorsCount.incrementAndGet();
@@ -247,13 +280,15 @@ public abstract class PassExecutorService implements Disposable {
                                                     final DaemonProgressIndicator updateProgress,
                                                     final AtomicInteger myThreadsToStartCountdown,
                                                     final int jobPriority,
+                                                    final long deferredPassTime,
                                                     final int predecessorId) {
     Pair<Document, Integer> predKey = Pair.create(document, predecessorId);
     ScheduledPass predecessor = toBeSubmitted.get(predKey);
     if (predecessor == null) {
       TextEditorHighlightingPass textEditorPass = findPassById(predecessorId, textEditorHighlightingPasses);
       predecessor = textEditorPass == null ? null : createScheduledPass(fileEditors, textEditorPass, toBeSubmitted, textEditorHighlightingPasses, freePasses,
-                                                                        dependentPasses, updateProgress, myThreadsToStartCountdown, jobPriority);
+                                                                        dependentPasses, updateProgress, myThreadsToStartCountdown, jobPriority,
+                                                                        deferredPassTime);
     }
     return predecessor;
   }
@@ -354,7 +389,15 @@ public abstract class PassExecutorService implements Disposable {
                 }
 
                 if (!myUpdateProgress.isCanceled()) {
-                  myPass.collectInformation(myUpdateProgress);
+                  long start = System.nanoTime();
+                  long cpuStart = PassTimeStatistics.getCurrentThreadCpuTime();
+                  try {
+                    myPass.collectInformation(myUpdateProgress);
+                  }
+                  finally {
+                    myStatistics.passFinished(myPass, System.nanoTime() - start, PassTimeStatistics.getCurrentThreadCpuTime() - cpuStart,
+                                              myUpdateProgress.isCanceled());
+                  }
                 }
               }
               catch (ProcessCanceledException e) {
@@ -427,6 +470,12 @@ public abstract class PassExecutorService implements Disposable {
       log(updateProgress, pass, " is canceled during apply, sorry");
       return;
     }
+    if (pass.getId() == Pass.UPDATE_ALL && fileEditors.contains(updateProgress.getUserData(FOCUSED_EDITOR_KEY))) {
+      Long submitTime = updateProgress.getUserData(SUBMIT_TIME_KEY);
+      if (submitTime != null) {
+        myStatistics.latencyMeasured(System.currentTimeMillis() - submitTime);
+      }
+    }
     boolean applied = false;
     for (final FileEditor fileEditor : fileEditors) {
       LOG.assertTrue(fileEditor != null);
@@ -466,8 +515,25 @@ public abstract class PassExecutorService implements Disposable {
     return isDisposed;
   }
 
+  @Nullable
+  private FileEditor findFocusedEditor(@NotNull Collection<FileEditor> fileEditors) {
+    Editor selectedEditor = FileEditorManager.getInstance(myProject).getSelectedTextEditor();
+    if (selectedEditor == null) return null;
+    for (FileEditor fileEditor : fileEditors) {
+      if (fileEditor instanceof TextEditor && ((TextEditor)fileEditor).getEditor() == selectedEditor) {
+        return fileEditor;
+      }
+    }
+    return null;
+  }
+
   protected abstract void afterApplyInformationToEditor(TextEditorHighlightingPass pass, FileEditor fileEditor, ProgressIndicator updateProgress);
 
+  @TestOnly
+  PassTimeStatistics getStatistics() {
+    return myStatistics;
+  }
+
   public List<TextEditorHighlightingPass> getAllSubmittedPasses() {
     List<TextEditorHighlightingPass> result = new ArrayList<TextEditorHighlightingPass>(mySubmittedPasses.size());
     for (ScheduledPass scheduledPass : mySubmittedPasses.keySet()) {
@@ -509,6 +575,8 @@ public abstract class PassExecutorService implements Disposable {
     }
   }
 
+  private static final Key<Long> SUBMIT_TIME_KEY = Key.create("SUBMIT_TIME_KEY");
+  private static final Key<FileEditor> FOCUSED_EDITOR_KEY = Key.create("FOCUSED_EDITOR_KEY");
   private static final Key<Throwable> THROWABLE_KEY = Key.create("THROWABLE_KEY");
   private static void saveException(Throwable e, DaemonProgressIndicator indicator) {
     indicator.putUserDataIfAbsent(THROWABLE_KEY, e);
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.codeInsight.daemon.impl;
+
+import com.intellij.codeHighlighting.TextEditorHighlightingPass;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wall and CPU time spent collecting information by highlighting passes of each type, and the latency of highlighting in the
+ * focused editor, i.e. the time since passes were submitted until {@link com.intellij.codeHighlighting.Pass#UPDATE_ALL} results
+ * were applied to it.
+ */
+class PassTimeStatistics {
+  private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+  private static final boolean CPU_TIME_SUPPORTED = THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported();
+
+  private final ConcurrentMap<String, PassTimes> myTimes = new ConcurrentHashMap<String, PassTimes>();
+  private volatile long myAverageLatency = -1;
+
+  static long getCurrentThreadCpuTime() {
+    return CPU_TIME_SUPPORTED ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : 0;
+  }
+
+  void passFinished(@NotNull TextEditorHighlightingPass pass, long wallNanos, long cpuNanos, boolean canceled) {
+    String type = getType(pass);
+    PassTimes times = myTimes.get(type);
+    if (times == null) {
+      PassTimes newTimes = new PassTimes(type);
+      times = myTimes.putIfAbsent(type, newTimes);
+      if (times == null) times = newTimes;
+    }
+    times.add(wallNanos, cpuNanos, canceled);
+  }
+
+  /**
+   * @return average wall time in milliseconds of completed passes of the same type, -1 if no such pass has been completed
+   */
+  long getAverageWallTime(@NotNull TextEditorHighlightingPass pass) {
+    PassTimes times = myTimes.get(getType(pass));
+    return times == null ? -1 : times.getAverageWallTime();
+  }
+
+  void latencyMeasured(long latency) {
+    long average = myAverageLatency;
+    myAverageLatency = average < 0 ? latency : (average + latency) / 2;
+  }
+
+  /**
+   * @return moving average of the focused editor highlighting latency in milliseconds, -1 if it hasn't been measured yet
+   */
+  long getAverageLatency() {
+    return myAverageLatency;
+  }
+
+  @NotNull
+  String getReport() {
+    List<PassTimes> times = new ArrayList<PassTimes>(myTimes.values());
+    Collections.sort(times, new Comparator<PassTimes>() {
+      @Override
+      public int compare(PassTimes o1, PassTimes o2) {
+        return o1.myType.compareTo(o2.myType);
+      }
+    });
+    StringBuilder report = new StringBuilder();
+    report.append("Average latency: ").append(myAverageLatency).append(" ms");
+    for (PassTimes passTimes : times) {
+      report.append('\n');
+      passTimes.appendTo(report);
+    }
+    return report.toString();
+  }
+
+  @NotNull
+  private static String getType(@NotNull TextEditorHighlightingPass pass) {
+    return pass.getClass().getName();
+  }
+
+  private static class PassTimes {
+    private final String myType;
+    private int myCount;
+    private int myCanceledCount;
+    private long myWallTime;
+    private long myCpuTime;
+    private long myMaxWallTime;
+
+    private PassTimes(@NotNull String type) {
+      myType = type;
+    }
+
+    private synchronized void add(long wallNanos, long cpuNanos, boolean canceled) {
+      if (canceled) {
+        myCanceledCount++;
+        return;
+      }
+      myCount++;
+      myWallTime += wallNanos;
+      myCpuTime += cpuNanos;
+      myMaxWallTime = Math.max(myMaxWallTime, wallNanos);
+    }
+
+    private synchronized long getAverageWallTime() {
+      return myCount == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(myWallTime / myCount);
+    }
+
+    private synchronized void appendTo(@NotNull StringBuilder report) {
+      report.append(myType).append(": ").append(myCount).append(" completed, ").append(myCanceledCount).append(" canceled");
+      if (myCount > 0) {
+        report.append(", average wall ").append(TimeUnit.NANOSECONDS.toMillis(myWallTime / myCount)).append(" ms")
+          .append(", average cpu ").append(TimeUnit.NANOSECONDS.toMillis(myCpuTime / myCount)).append(" ms")
+          .append(", max wall ").append(TimeUnit.NANOSECONDS.toMillis(myMaxWallTime)).append(" ms");
+      }
+    }
+  }
+}
@@ -39,6 +39,7 @@ import java.util.*;
 public class DefaultChooseByNameItemProvider implements ChooseByNameItemProvider {
   private static final Logger LOG = Logger.getInstance("#com.intellij.ide.util.gotoByName.ChooseByNameIdea");
   private WeakReference<PsiElement> myContext;
+  private volatile NameSignatures myNameSignatures;
 
   public DefaultChooseByNameItemProvider(PsiElement context) {
     myContext = new WeakReference<PsiElement>(context);
@@ -64,7 +65,7 @@ public class DefaultChooseByNameItemProvider implements ChooseByNameItemProvider
     if (empty && !base.canShowListForEmptyPattern()) return;
 
     List<String> namesList = new ArrayList<String>();
-    String[] names = base.getNames(everywhere);
+    NameSignatures names = getNameSignatures(base.getNames(everywhere));
     getNamesByPattern(base, names, indicator, namesList, namePattern,
                       modifiedNamePattern != null ? NameUtil.MatchingCaseSensitivity.ALL : NameUtil.MatchingCaseSensitivity.NONE);
 
@@ -130,6 +131,19 @@ public class DefaultChooseByNameItemProvider implements ChooseByNameItemProvider
     }
   }
 
+  /**
+   * Signatures are built once for the names array which is retrieved once per popup and checkbox state,
+   * and then reused on every keystroke
+   */
+  @NotNull
+  private NameSignatures getNameSignatures(@NotNull String[] names) {
+    NameSignatures signatures = myNameSignatures;
+    if (signatures == null || !signatures.isBuiltFor(names)) {
+      myNameSignatures = signatures = new NameSignatures(names);
+    }
+    return signatures;
+  }
+
   protected void sortNamesList(@NotNull String namePattern, List<String> namesList) {
     // Here we sort using namePattern to have similar logic with empty qualified patten case
     Collections.sort(namesList, new MatchesComparator(namePattern));
@@ -228,12 +242,12 @@ public class DefaultChooseByNameItemProvider implements ChooseByNameItemProvider
   @Override
   public List<String> filterNames(@NotNull ChooseByNameBase base, @NotNull String[] names, @NotNull String pattern) {
     List<String> res = new ArrayList<String>();
-    getNamesByPattern(base, names, null, res, pattern, NameUtil.MatchingCaseSensitivity.NONE);
+    getNamesByPattern(base, getNameSignatures(names), null, res, pattern, NameUtil.MatchingCaseSensitivity.NONE);
     return res;
   }
 
   private static void getNamesByPattern(@NotNull ChooseByNameBase base,
-                                        @NotNull String[] names,
+                                        @NotNull NameSignatures signatures,
                                         @Nullable ProgressIndicator indicator,
                                         @NotNull final List<String> list,
                                         @NotNull String pattern,
@@ -248,12 +262,19 @@ public class DefaultChooseByNameItemProvider implements ChooseByNameItemProvider
     }
 
     final MinusculeMatcher matcher = buildPatternMatcher(pattern, caseSensitivity);
+    // custom matchers don't have to match every pattern char
+    final long patternSignature = base.getModel() instanceof CustomMatcherModel ? 0 : NameSignatures.getPatternSignature(pattern);
+    final String[] names = signatures.getNames();
 
     try {
-      for (String name : names) {
+      for (int i = 0; i < names.length; i++) {
         if (indicator != null && indicator.isCanceled()) {
           break;
         }
+        if (!signatures.mayMatch(i, patternSignature)) {
+          continue;
+        }
+        String name = names[i];
         if (matches(base, pattern, matcher, name)) {
           list.add(name);
         }
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.ide.util.gotoByName;
+
+import com.intellij.openapi.util.text.StringUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Signatures of all names shown in a 'choose by name' popup, used to skip names which can't match the pattern without running
+ * {@link com.intellij.psi.codeStyle.MinusculeMatcher} on them.
+ * <p/>
+ * Signature of a name is a set of ASCII chars it contains, case-insensitive letters and digits take a bit each, other chars share
+ * the remaining bits. The matcher matches every pattern char except wildcards (<code>' '</code> and <code>'*'</code>) with some name
+ * char, equal or equal ignoring case, so a name can match only if its signature contains the signature of the pattern.
+ */
+class NameSignatures {
+  private static final int LETTERS = 26;
+  private static final int DIGITS = 10;
+  private static final int OTHERS = Long.SIZE - LETTERS - DIGITS;
+
+  @NotNull private final String[] myNames;
+  @NotNull private final long[] mySignatures;
+
+  NameSignatures(@NotNull String[] names) {
+    myNames = names;
+    mySignatures = new long[names.length];
+    for (int i = 0; i < names.length; i++) {
+      String name = names[i];
+      mySignatures[i] = name == null ? 0 : getNameSignature(name);
+    }
+  }
+
+  boolean isBuiltFor(@NotNull String[] names) {
+    return myNames == names;
+  }
+
+  @NotNull
+  String[] getNames() {
+    return myNames;
+  }
+
+  /**
+   * @return <code>false</code> if the name can't match a pattern with the given {@link #getPatternSignature(String) signature}
+   */
+  boolean mayMatch(int index, long patternSignature) {
+    return (mySignatures[index] & patternSignature) == patternSignature;
+  }
+
+  static long getNameSignature(@NotNull String name) {
+    long signature = 0;
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (c < 128) {
+        signature |= getCharSignature(c);
+      }
+      else {
+        // some non-ASCII chars are equal to ASCII ones ignoring case, e.g. Kelvin sign
+        signature |= getCharSignature(StringUtil.toLowerCase(c)) | getCharSignature(StringUtil.toUpperCase(c));
+      }
+    }
+    return signature;
+  }
+
+  static long getPatternSignature(@NotNull String pattern) {
+    long signature = 0;
+    for (int i = 0; i < pattern.length(); i++) {
+      char c = pattern.charAt(i);
+      if (c != ' ' && c != '*') {
+        signature |= getCharSignature(c);
+      }
+    }
+    return signature;
+  }
+
+  private static long getCharSignature(char c) {
+    if (c >= 128) return 0;
+    if (c >= 'a' && c <= 'z') return 1L << (c - 'a');
+    if (c >= 'A' && c <= 'Z') return 1L << (c - 'A');
+    if (c >= '0' && c <= '9') return 1L << (LETTERS + c - '0');
+    return 1L << (LETTERS + DIGITS + c % OTHERS);
+  }
+}
@@ -59,6 +59,13 @@ public class SerializedStubTree {
     return SerializationManagerEx.getInstanceEx().deserialize(new UnsyncByteArrayInputStream(myBytes));
   }
 
+  /**
+   * Deserializes only the stubs with the given indices in the stub tree plain list and their ancestors
+   */
+  public Stub[] getStubs(int... stubIndices) {
+    return SerializationManagerEx.getInstanceEx().deserializeStubs(myBytes, myLength, stubIndices);
+  }
+
   public boolean equals(final Object that) {
     if (this == that) {
       return true;
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.util.indexing.IndexStorage;
+import com.intellij.util.indexing.MapReduceIndex;
+import com.intellij.util.indexing.MemoryIndexStorage;
+import com.intellij.util.indexing.StorageException;
+import com.intellij.util.io.KeyDescriptor;
+import gnu.trove.THashMap;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Stub index split by key hash into shards, each with its own storage and lock, so an update of some keys
+ * blocks only readers of keys from the same shards.
+ *
+ * @see #lockAll(List)
+ */
+class ShardedStubIndex<K> {
+  private final KeyDescriptor<K> myKeyDescriptor;
+  private final Shard<K>[] myShards;
+
+  ShardedStubIndex(@NotNull KeyDescriptor<K> keyDescriptor, @NotNull IndexStorage<K, StubIdList>[] storages) {
+    myKeyDescriptor = keyDescriptor;
+    //noinspection unchecked
+    myShards = new Shard[storages.length];
+    for (int i = 0; i < storages.length; i++) {
+      myShards[i] = new Shard<K>(storages[i]);
+    }
+  }
+
+  @NotNull
+  MapReduceIndex<K, StubIdList, Void> getShard(@NotNull K key) {
+    return myShards[getShardIndex(key)];
+  }
+
+  @NotNull
+  List<? extends MapReduceIndex<K, StubIdList, Void>> getShards() {
+    return Arrays.asList(myShards);
+  }
+
+  private int getShardIndex(@NotNull K key) {
+    // the hash is persistent, unlike Object.hashCode(), so keys stay in their shards between sessions
+    return (myKeyDescriptor.getHashCode(key) & 0x7fffffff) % myShards.length;
+  }
+
+  @NotNull
+  Collection<K> getAllKeys() throws StorageException {
+    Set<K> allKeys = new HashSet<K>();
+    for (Shard<K> shard : myShards) {
+      allKeys.addAll(shard.getAllKeys());
+    }
+    return allKeys;
+  }
+
+  /**
+   * Adds write locks of the shards storing the given keys in the order of shards, see {@link #lockAll(List)}
+   */
+  void collectWriteLocks(@NotNull Collection<?> keys, @NotNull List<Lock> result) {
+    final boolean[] affected = new boolean[myShards.length];
+    for (Object key : keys) {
+      //noinspection unchecked
+      affected[getShardIndex((K)key)] = true;
+    }
+    for (int i = 0; i < myShards.length; i++) {
+      if (affected[i]) {
+        result.add(myShards[i].getWriteLock());
+      }
+    }
+  }
+
+  void collectWriteLocks(@NotNull List<Lock> result) {
+    for (Shard<K> shard : myShards) {
+      result.add(shard.getWriteLock());
+    }
+  }
+
+  /**
+   * Should be called under write locks of the shards storing old and new keys
+   */
+  void update(int inputId, @NotNull Map<K, StubIdList> oldValues, @NotNull Map<K, StubIdList> newValues) throws StorageException {
+    if (myShards.length == 1) {
+      myShards[0].updateWithMap(inputId, newValues, oldValues.keySet());
+      return;
+    }
+
+    final Map<Shard<K>, Map<K, StubIdList>> newByShard = new THashMap<Shard<K>, Map<K, StubIdList>>();
+    final Map<Shard<K>, Collection<K>> oldByShard = new THashMap<Shard<K>, Collection<K>>();
+    for (Map.Entry<K, StubIdList> entry : newValues.entrySet()) {
+      Shard<K> shard = myShards[getShardIndex(entry.getKey())];
+      Map<K, StubIdList> map = newByShard.get(shard);
+      if (map == null) {
+        newByShard.put(shard, map = new THashMap<K, StubIdList>());
+      }
+      map.put(entry.getKey(), entry.getValue());
+    }
+    for (K key : oldValues.keySet()) {
+      Shard<K> shard = myShards[getShardIndex(key)];
+      Collection<K> keys = oldByShard.get(shard);
+      if (keys == null) {
+        oldByShard.put(shard, keys = new ArrayList<K>());
+      }
+      keys.add(key);
+    }
+
+    for (Shard<K> shard : myShards) {
+      Map<K, StubIdList> newData = newByShard.get(shard);
+      Collection<K> oldKeys = oldByShard.get(shard);
+      if (newData == null && oldKeys == null) continue;
+      shard.updateWithMap(inputId,
+                          newData != null ? newData : Collections.<K, StubIdList>emptyMap(),
+                          oldKeys != null ? oldKeys : Collections.<K>emptyList());
+    }
+  }
+
+  void flush() throws StorageException {
+    for (Shard<K> shard : myShards) {
+      shard.flush();
+    }
+  }
+
+  void clear() throws StorageException {
+    for (Shard<K> shard : myShards) {
+      shard.clear();
+    }
+  }
+
+  void dispose() {
+    for (Shard<K> shard : myShards) {
+      shard.dispose();
+    }
+  }
+
+  void setBufferingEnabled(boolean enabled) {
+    for (Shard<K> shard : myShards) {
+      ((MemoryIndexStorage)shard.getStorage()).setBufferingEnabled(enabled);
+    }
+  }
+
+  void clearMemoryMap() {
+    for (Shard<K> shard : myShards) {
+      shard.getWriteLock().lock();
+      try {
+        ((MemoryIndexStorage)shard.getStorage()).clearMemoryMap();
+      }
+      finally {
+        shard.getWriteLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * Acquires all the locks one by one in the given order. Writers must list the locks in the same order,
+   * by stub index and then by shard, as {@link StubIndexImpl#getWriteLocks(Map)} does, so they can't deadlock with each other.
+   * A writer waiting for a busy shard is queued for its lock, so readers coming later can't starve it.
+   */
+  static void lockAll(@NotNull List<Lock> locks) {
+    for (Lock lock : locks) {
+      lock.lock();
+    }
+  }
+
+  static void unlockAll(@NotNull List<Lock> locks) {
+    for (int i = locks.size() - 1; i >= 0; i--) {
+      locks.get(i).unlock();
+    }
+  }
+
+  private static class Shard<K> extends MapReduceIndex<K, StubIdList, Void> {
+    private Shard(@NotNull IndexStorage<K, StubIdList> storage) {
+      super(null, null, storage);
+    }
+
+    private void updateWithMap(int inputId, @NotNull Map<K, StubIdList> newData, @NotNull final Collection<K> oldKeys) throws StorageException {
+      updateWithMap(inputId, newData, new Callable<Collection<K>>() {
+        @Override
+        public Collection<K> call() throws Exception {
+          return oldKeys;
+        }
+      });
+    }
+  }
+}
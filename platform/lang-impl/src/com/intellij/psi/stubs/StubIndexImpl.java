@@ -45,6 +45,7 @@ import com.intellij.psi.util.PsiUtilCore;
 import com.intellij.util.CommonProcessors;
 import com.intellij.util.Processor;
 import com.intellij.util.SmartList;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.indexing.*;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.DataInputOutputUtil;
@@ -58,7 +59,6 @@ import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 
@@ -73,7 +73,10 @@ import java.util.concurrent.locks.Lock;
 public class StubIndexImpl extends StubIndex implements ApplicationComponent, PersistentStateComponent<StubIndexState> {
   private static final AtomicReference<Boolean> ourForcedClean = new AtomicReference<Boolean>(null);
   private static final Logger LOG = Logger.getInstance("#com.intellij.psi.stubs.StubIndexImpl");
-  private final Map<StubIndexKey<?,?>, MyIndex<?>> myIndices = new THashMap<StubIndexKey<?,?>, MyIndex<?>>();
+  // number of shards each stub index is split into by key hash, changing it rebuilds stub indices
+  private static final int SHARD_COUNT = Math.max(1, SystemProperties.getIntProperty("idea.stub.index.shards", 8));
+
+  private final Map<StubIndexKey<?,?>, ShardedStubIndex<?>> myIndices = new THashMap<StubIndexKey<?,?>, ShardedStubIndex<?>>();
   private final TObjectIntHashMap<ID<?, ?>> myIndexIdToVersionMap = new TObjectIntHashMap<ID<?, ?>>();
 
   private StubIndexState myPreviouslyRegistered;
@@ -110,11 +113,12 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
     final StubIndexKey<K, ?> indexKey = extension.getKey();
     final int version = extension.getVersion();
     myIndexIdToVersionMap.put(indexKey, version);
+    final int storageVersion = (version << 8) + SHARD_COUNT;
     final File versionFile = IndexInfrastructure.getVersionFile(indexKey);
     final boolean versionFileExisted = versionFile.exists();
     final File indexRootDir = IndexInfrastructure.getIndexRootDir(indexKey);
     boolean needRebuild = false;
-    if (forceClean || IndexInfrastructure.versionDiffers(versionFile, version)) {
+    if (forceClean || IndexInfrastructure.versionDiffers(versionFile, storageVersion)) {
       final String[] children = indexRootDir.list();
       // rebuild only if there exists what to rebuild
       needRebuild = !forceClean && (versionFileExisted || children != null && children.length > 0);
@@ -122,32 +126,45 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
         LOG.info("Version has changed for stub index " + extension.getKey() + ". The index will be rebuilt.");
       }
       FileUtil.delete(indexRootDir);
-      IndexInfrastructure.rewriteVersion(versionFile, version);
+      IndexInfrastructure.rewriteVersion(versionFile, storageVersion);
     }
 
+    final File storageFile = IndexInfrastructure.getStorageFile(indexKey);
     for (int attempt = 0; attempt < 2; attempt++) {
+      //noinspection unchecked
+      final IndexStorage<K, StubIdList>[] storages = new IndexStorage[SHARD_COUNT];
       try {
-        final MapIndexStorage<K, StubIdList> storage = new MapIndexStorage<K, StubIdList>(
-          IndexInfrastructure.getStorageFile(indexKey),
-          extension.getKeyDescriptor(),
-          new StubIdExternalizer(),
-          extension.getCacheSize()
-        );
-        final MemoryIndexStorage<K, StubIdList> memStorage = new MemoryIndexStorage<K, StubIdList>(storage);
-        myIndices.put(indexKey, new MyIndex<K>(memStorage));
+        for (int i = 0; i < storages.length; i++) {
+          final MapIndexStorage<K, StubIdList> storage = new MapIndexStorage<K, StubIdList>(
+            new File(storageFile.getPath() + "_" + i),
+            extension.getKeyDescriptor(),
+            new StubIdExternalizer(),
+            Math.max(1, extension.getCacheSize() / SHARD_COUNT)
+          );
+          storages[i] = new MemoryIndexStorage<K, StubIdList>(storage);
+        }
+        myIndices.put(indexKey, new ShardedStubIndex<K>(extension.getKeyDescriptor(), storages));
         break;
       }
       catch (IOException e) {
         LOG.info(e);
+        for (IndexStorage<K, StubIdList> storage : storages) {
+          if (storage == null) break;
+          try {
+            storage.close();
+          }
+          catch (StorageException ignored) {
+          }
+        }
         needRebuild = true;
         FileUtil.delete(indexRootDir);
-        IndexInfrastructure.rewriteVersion(versionFile, version);
+        IndexInfrastructure.rewriteVersion(versionFile, storageVersion);
       }
     }
     return needRebuild;
   }
 
-  private static class StubIdExternalizer implements DataExternalizer<StubIdList> {
+  static class StubIdExternalizer implements DataExternalizer<StubIdList> {
     @Override
     public void save(final DataOutput out, @NotNull final StubIdList value) throws IOException {
       int size = value.size();
@@ -209,7 +226,7 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
     final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
     final PsiManager psiManager = PsiManager.getInstance(project);
 
-    final MyIndex<Key> index = (MyIndex<Key>)myIndices.get(indexKey);
+    final MapReduceIndex<Key, StubIdList, Void> index = ((ShardedStubIndex<Key>)myIndices.get(indexKey)).getShard(key);
 
     try {
       try {
@@ -366,7 +383,7 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
   public <K> Collection<K> getAllKeys(@NotNull StubIndexKey<K, ?> indexKey, @NotNull Project project) {
     FileBasedIndex.getInstance().ensureUpToDate(StubUpdatingIndex.INDEX_ID, project, GlobalSearchScope.allScope(project));
 
-    final MyIndex<K> index = (MyIndex<K>)myIndices.get(indexKey);
+    final ShardedStubIndex<K> index = (ShardedStubIndex<K>)myIndices.get(indexKey);
     try {
       return index.getAllKeys();
     }
@@ -401,34 +418,26 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
   }
 
   public void dispose() {
-    for (UpdatableIndex index : myIndices.values()) {
+    for (ShardedStubIndex<?> index : myIndices.values()) {
       index.dispose();
     }
   }
 
   public void setDataBufferingEnabled(final boolean enabled) {
-    for (UpdatableIndex index : myIndices.values()) {
-      final IndexStorage indexStorage = ((MapReduceIndex)index).getStorage();
-      ((MemoryIndexStorage)indexStorage).setBufferingEnabled(enabled);
+    for (ShardedStubIndex<?> index : myIndices.values()) {
+      index.setBufferingEnabled(enabled);
     }
   }
 
   public void cleanupMemoryStorage() {
-    for (UpdatableIndex index : myIndices.values()) {
-      final IndexStorage indexStorage = ((MapReduceIndex)index).getStorage();
-      index.getWriteLock().lock();
-      try {
-        ((MemoryIndexStorage)indexStorage).clearMemoryMap();
-      }
-      finally {
-        index.getWriteLock().unlock();
-      }
+    for (ShardedStubIndex<?> index : myIndices.values()) {
+      index.clearMemoryMap();
     }
   }
 
 
   public void clearAllIndices() {
-    for (UpdatableIndex index : myIndices.values()) {
+    for (ShardedStubIndex<?> index : myIndices.values()) {
       try {
         index.clear();
       }
@@ -461,8 +470,29 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
     myPreviouslyRegistered = state;
   }
 
-  public final Lock getWriteLock(StubIndexKey indexKey) {
-    return myIndices.get(indexKey).getWriteLock();
+  /**
+   * @return write locks of the index shards storing the given keys of the given stub indices, to be acquired with {@link ShardedStubIndex#lockAll(List)}.
+   * The locks are always listed in the same order, by stub index and then by shard.
+   */
+  @NotNull
+  public List<Lock> getWriteLocks(@NotNull Map<StubIndexKey, ? extends Collection<?>> keys) {
+    final List<Lock> locks = new ArrayList<Lock>();
+    for (Map.Entry<StubIndexKey<?, ?>, ShardedStubIndex<?>> entry : myIndices.entrySet()) {
+      final Collection<?> indexKeys = keys.get(entry.getKey());
+      if (indexKeys != null) {
+        entry.getValue().collectWriteLocks(indexKeys, locks);
+      }
+    }
+    return locks;
+  }
+
+  @NotNull
+  public List<Lock> getAllWriteLocks() {
+    final List<Lock> locks = new ArrayList<Lock>();
+    for (ShardedStubIndex<?> index : myIndices.values()) {
+      index.collectWriteLocks(locks);
+    }
+    return locks;
   }
 
   public Collection<StubIndexKey> getAllStubIndexKeys() {
@@ -470,19 +500,13 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
   }
 
   public void flush(StubIndexKey key) throws StorageException {
-    final MyIndex<?> index = myIndices.get(key);
-    index.flush();
+    myIndices.get(key).flush();
   }
 
   public <K> void updateIndex(@NotNull StubIndexKey key, int fileId, @NotNull final Map<K, StubIdList> oldValues, @NotNull Map<K, StubIdList> newValues) {
     try {
-      final MyIndex<K> index = (MyIndex<K>)myIndices.get(key);
-      index.updateWithMap(fileId, newValues, new Callable<Collection<K>>() {
-        @Override
-        public Collection<K> call() throws Exception {
-          return oldValues.keySet();
-        }
-      });
+      final ShardedStubIndex<K> index = (ShardedStubIndex<K>)myIndices.get(key);
+      index.update(fileId, oldValues, newValues);
     }
     catch (StorageException e) {
       LOG.info(e);
@@ -490,17 +514,6 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
     }
   }
 
-  private static class MyIndex<K> extends MapReduceIndex<K, StubIdList, Void> {
-    public MyIndex(final IndexStorage<K, StubIdList> storage) {
-      super(null, null, storage);
-    }
-
-    @Override
-    public void updateWithMap(final int inputId, @NotNull final Map<K, StubIdList> newData, @NotNull Callable<Collection<K>> oldKeysGetter) throws StorageException {
-      super.updateWithMap(inputId, newData, oldKeysGetter);
-    }
-  }
-
   public static <Key, Psi extends PsiElement> Collection<Psi> safeGet(@NotNull StubIndexKey<Key, Psi> indexKey,
                                                                       @NotNull Key key,
                                                                       @NotNull final Project project,
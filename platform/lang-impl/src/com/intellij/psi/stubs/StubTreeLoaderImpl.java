@@ -83,6 +83,21 @@ public class StubTreeLoaderImpl extends StubTreeLoader {
   @Override
   @Nullable
   public ObjectStubTree readFromVFile(Project project, final VirtualFile vFile) {
+    SerializedStubTree tree = readSerializedTree(project, vFile);
+    if (tree == null) return null;
+    Stub stub = tree.getStub(false);
+    return stub instanceof PsiFileStub ? new StubTree((PsiFileStub)stub) : new ObjectStubTree((ObjectStubBase)stub, true);
+  }
+
+  @Override
+  @Nullable
+  public Stub readRootStubFromVFile(Project project, VirtualFile vFile) {
+    SerializedStubTree tree = readSerializedTree(project, vFile);
+    return tree != null ? tree.getStubs(0)[0] : null;
+  }
+
+  @Nullable
+  private static SerializedStubTree readSerializedTree(Project project, final VirtualFile vFile) {
     if (DumbService.getInstance(project).isDumb()) {
       return null;
     }
@@ -94,8 +109,7 @@ public class StubTreeLoaderImpl extends StubTreeLoader {
       final int size = datas.size();
 
       if (size == 1) {
-        Stub stub = datas.get(0).getStub(false);
-        return stub instanceof PsiFileStub ? new StubTree((PsiFileStub)stub) : new ObjectStubTree((ObjectStubBase)stub, true);
+        return datas.get(0);
       }
       else if (size != 0) {
         LOG.error("Twin stubs: " + vFile.getPresentableUrl() + " has " + size + " stub versions. Should only have one. id=" + id);
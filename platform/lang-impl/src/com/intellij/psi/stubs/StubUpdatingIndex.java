@@ -38,6 +38,7 @@ import java.io.DataOutput;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.locks.Lock;
 
 /*
  * @author max
@@ -47,7 +48,7 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
 
   public static final ID<Integer, SerializedStubTree> INDEX_ID = ID.create("Stubs");
 
-  private static final int VERSION = 21;
+  private static final int VERSION = 23;
 
   private static final DataExternalizer<SerializedStubTree> KEY_EXTERNALIZER = new DataExternalizer<SerializedStubTree>() {
     @Override
@@ -219,6 +220,21 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
     }
   }
 
+  @NotNull
+  private static Map<StubIndexKey, Collection<Object>> getAffectedKeys(@NotNull final Map<StubIndexKey, Map<Object, StubIdList>> oldStubTree,
+                                                                       @NotNull final Map<StubIndexKey, Map<Object, StubIdList>> newStubTree) {
+    final Map<StubIndexKey, Collection<Object>> result = new HashMap<StubIndexKey, Collection<Object>>();
+    for (StubIndexKey key : getAffectedIndices(oldStubTree, newStubTree)) {
+      final Set<Object> keys = new HashSet<Object>();
+      final Map<Object, StubIdList> oldMap = oldStubTree.get(key);
+      final Map<Object, StubIdList> newMap = newStubTree.get(key);
+      if (oldMap != null) keys.addAll(oldMap.keySet());
+      if (newMap != null) keys.addAll(newMap.keySet());
+      result.put(key, keys);
+    }
+    return result;
+  }
+
   @NotNull
   private static Collection<StubIndexKey> getAffectedIndices(@NotNull final Map<StubIndexKey, Map<Object, StubIdList>> oldStubTree,
                                                              @NotNull final Map<StubIndexKey, Map<Object, StubIdList>> newStubTree) {
@@ -257,31 +273,47 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
       final Map<StubIndexKey, Map<Object, StubIdList>> newStubTree = getStubTree(newData);
 
       final StubIndexImpl stubIndex = getStubIndex();
-      final Collection<StubIndexKey> allStubIndices = stubIndex.getAllStubIndexKeys();
-      try {
-        // first write-lock affected stub indices to avoid deadlocks
-        for (StubIndexKey key : allStubIndices) {
-          stubIndex.getWriteLock(key).lock();
+      while (true) {
+        // write-lock the shards of stub indices with affected keys before this index to avoid deadlocks,
+        // old keys are read ahead of locking and the update is retried if the old stub tree changes meanwhile
+        final Map<Integer, SerializedStubTree> expectedOldData;
+        getReadLock().lock();
+        try {
+          expectedOldData = readOldData(inputId);
+        }
+        finally {
+          getReadLock().unlock();
         }
+        final Map<StubIndexKey, Map<Object, StubIdList>> oldStubTree = getStubTree(expectedOldData);
+        final List<Lock> locks = stubIndex.getWriteLocks(getAffectedKeys(oldStubTree, newStubTree));
 
+        ShardedStubIndex.lockAll(locks);
         try {
           getWriteLock().lock();
+          try {
+            if (!readOldData(inputId).equals(expectedOldData)) continue;
 
-          final Map<Integer, SerializedStubTree> oldData = readOldData(inputId);
-          final Map<StubIndexKey, Map<Object, StubIdList>> oldStubTree = getStubTree(oldData);
+            super.updateWithMap(inputId, newData, oldKeysGetter);
 
-          super.updateWithMap(inputId, newData, oldKeysGetter);
-
-          updateStubIndices(getAffectedIndices(oldStubTree, newStubTree), inputId, oldStubTree, newStubTree);
+            updateStubIndices(getAffectedIndices(oldStubTree, newStubTree), inputId, oldStubTree, newStubTree);
+            return;
+          }
+          finally {
+            getWriteLock().unlock();
+          }
         }
         finally {
-          getWriteLock().unlock();
+          ShardedStubIndex.unlockAll(locks);
         }
       }
-      finally {
-        for (StubIndexKey key : allStubIndices) {
-          stubIndex.getWriteLock(key).unlock();
-        }
+    }
+
+    @Override
+    protected void updateWithMaps(@NotNull SortedMap<Integer, Map<Integer, SerializedStubTree>> newData) throws StorageException {
+      // stub indices are updated from old and new stub trees of every file, so apply inputs one by one,
+      // each of them locks only the stub index shards it affects and readers of other keys aren't blocked during reindexing
+      for (Map.Entry<Integer, Map<Integer, SerializedStubTree>> entry : newData.entrySet()) {
+        updateWithMap(entry.getKey(), entry.getValue(), getOldKeysGetter(entry.getKey()));
       }
     }
 
@@ -325,7 +357,7 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
       return stubTree;
     }
 
-    /*MUST be called under the WriteLock*/
+    /*MUST be called under the ReadLock or WriteLock*/
     @NotNull
     private Map<Integer, SerializedStubTree> readOldData(final int key) throws StorageException {
       final Map<Integer, SerializedStubTree> result = new HashMap<Integer, SerializedStubTree>();
@@ -362,24 +394,22 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
     @Override
     public void clear() throws StorageException {
       final StubIndexImpl stubIndex = StubIndexImpl.getInstanceOrInvalidate();
-      final Collection<StubIndexKey> allStubIndexKeys = stubIndex != null? stubIndex.getAllStubIndexKeys() : Collections.<StubIndexKey>emptyList();
+      final List<Lock> locks = stubIndex != null ? stubIndex.getAllWriteLocks() : Collections.<Lock>emptyList();
+      ShardedStubIndex.lockAll(locks);
       try {
-        for (StubIndexKey key : allStubIndexKeys) {
-          //noinspection ConstantConditions
-          stubIndex.getWriteLock(key).lock();
-        }
         getWriteLock().lock();
-        if (stubIndex != null) {
-          stubIndex.clearAllIndices();
+        try {
+          if (stubIndex != null) {
+            stubIndex.clearAllIndices();
+          }
+          super.clear();
+        }
+        finally {
+          getWriteLock().unlock();
         }
-        super.clear();
       }
       finally {
-        getWriteLock().unlock();
-        for (StubIndexKey key : allStubIndexKeys) {
-          //noinspection ConstantConditions
-          stubIndex.getWriteLock(key).unlock();
-        }
+        ShardedStubIndex.unlockAll(locks);
       }
     }
 
@@ -973,8 +973,8 @@ public class FileBasedIndexImpl extends FileBasedIndex {
                                                       @Nullable Condition<V> valueChecker,
                                                       @NotNull final Processor<VirtualFile> processor) {
     ProjectIndexableFilesFilter filesSet = projectIndexableFiles(filter.getProject());
-    final TIntHashSet set = collectFileIdsContainingAllKeys(indexId, dataKeys, filter, valueChecker, filesSet);
-    return set != null && processVirtualFiles(set, filter, processor);
+    final SortedIdSet set = collectFileIdsContainingAllKeys(indexId, dataKeys, filter, valueChecker);
+    return set != null && processVirtualFiles(set, filter, filesSet, processor);
   }
 
   private static final Key<SoftReference<ProjectIndexableFilesFilter>> ourProjectFilesSetKey = Key.create("projectFiles");
@@ -1057,22 +1057,21 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     }
   }
 
-  @Nullable 
-  private <K, V> TIntHashSet collectFileIdsContainingAllKeys(@NotNull final ID<K, V> indexId,
+  @Nullable
+  private <K, V> SortedIdSet collectFileIdsContainingAllKeys(@NotNull final ID<K, V> indexId,
                                                              @NotNull final Collection<K> dataKeys,
                                                              @NotNull final GlobalSearchScope filter,
-                                                             @Nullable final Condition<V> valueChecker,
-                                                             @Nullable final ProjectIndexableFilesFilter projectFilesFilter) {
-    final ThrowableConvertor<UpdatableIndex<K, V, FileContent>, TIntHashSet, StorageException> convertor =
-      new ThrowableConvertor<UpdatableIndex<K, V, FileContent>, TIntHashSet, StorageException>() {
+                                                             @Nullable final Condition<V> valueChecker) {
+    final ThrowableConvertor<UpdatableIndex<K, V, FileContent>, SortedIdSet, StorageException> convertor =
+      new ThrowableConvertor<UpdatableIndex<K, V, FileContent>, SortedIdSet, StorageException>() {
         @Nullable
         @Override
-        public TIntHashSet convert(@NotNull UpdatableIndex<K, V, FileContent> index) throws StorageException {
-          TIntHashSet mainIntersection = null;
+        public SortedIdSet convert(@NotNull UpdatableIndex<K, V, FileContent> index) throws StorageException {
+          SortedIdSet mainIntersection = null;
 
           for (K dataKey : dataKeys) {
             ProgressManager.checkCanceled();
-            final TIntHashSet copy = new TIntHashSet();
+            SortedIdSet keyIds = null;
             final ValueContainer<V> container = index.getData(dataKey);
 
             for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
@@ -1081,36 +1080,22 @@ public class FileBasedIndexImpl extends FileBasedIndex {
                 continue;
               }
 
-              ValueContainer.IntIterator iterator = container.getInputIdsIterator(value);
-
-              if (mainIntersection == null || iterator.size() < mainIntersection.size()) {
-                for (final ValueContainer.IntIterator inputIdsIterator = iterator; inputIdsIterator.hasNext(); ) {
-                  final int id = inputIdsIterator.next();
-                  if (mainIntersection == null && (projectFilesFilter == null || projectFilesFilter.contains(id)) ||
-                      mainIntersection != null && mainIntersection.contains(id)
-                     ) {
-                    copy.add(id);
-                  }
-                }
-              } else {
-                mainIntersection.forEach(new TIntProcedure() {
-                  final ValueContainer.IntPredicate predicate = container.getValueAssociationPredicate(value);
-                  @Override
-                  public boolean execute(int id) {
-                    if (predicate.contains(id)) copy.add(id);
-                    return true;
-                  }
-                });
-              }
+              final ValueContainer.IntIterator ids = container.getInputIdsIterator(value);
+              // the smaller of the intersection and the posting list is iterated, the larger one is probed
+              SortedIdSet valueIds = mainIntersection != null
+                                     ? SortedIdSet.intersection(mainIntersection, ids, container.getValueAssociationPredicate(value))
+                                     : SortedIdSet.fromIterator(ids);
+              keyIds = keyIds == null ? valueIds : SortedIdSet.union(keyIds, valueIds);
             }
 
-            mainIntersection = copy;
-            if (mainIntersection.isEmpty()) {
-              return new TIntHashSet();
+            if (keyIds == null || keyIds.isEmpty()) {
+              return new SortedIdSet();
             }
+            mainIntersection = keyIds;
           }
 
-          return mainIntersection;
+          // the result may be the posting list of the index itself, copy it (contents is shared until the list is modified)
+          return mainIntersection != null ? mainIntersection.clone() : null;
         }
       };
 
@@ -1118,14 +1103,16 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     return processExceptions(indexId, null, filter, convertor);
   }
 
-  private static boolean processVirtualFiles(@NotNull TIntHashSet ids,
+  private static boolean processVirtualFiles(@NotNull SortedIdSet ids,
                                              @NotNull final GlobalSearchScope filter,
+                                             @Nullable final ProjectIndexableFilesFilter projectFilesFilter,
                                              @NotNull final Processor<VirtualFile> processor) {
     final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
     return ids.forEach(new TIntProcedure() {
       @Override
       public boolean execute(int id) {
         ProgressManager.checkCanceled();
+        if (projectFilesFilter != null && !projectFilesFilter.contains(id)) return true;
         VirtualFile file = IndexInfrastructure.findFileByIdIfCached(fs, id);
         if (file != null && filter.accept(file)) {
           return processor.process(file);
@@ -1159,34 +1146,31 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
       try {
         index.getReadLock().lock();
-        final List<TIntHashSet> locals = new ArrayList<TIntHashSet>();
+        final List<SortedIdSet> locals = new ArrayList<SortedIdSet>();
         for (K dataKey : dataKeys) {
-          TIntHashSet local = new TIntHashSet();
-          locals.add(local);
+          SortedIdSet local = new SortedIdSet();
           final ValueContainer<V> container = index.getData(dataKey);
 
           for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext();) {
             final V value = valueIt.next();
-            for (final ValueContainer.IntIterator inputIdsIterator = container.getInputIdsIterator(value); inputIdsIterator.hasNext();) {
-              final int id = inputIdsIterator.next();
-              local.add(id);
-            }
+            local = SortedIdSet.union(local, SortedIdSet.fromIterator(container.getInputIdsIterator(value)));
           }
+          locals.add(local);
         }
 
         if (locals.isEmpty()) {
           return true;
         }
 
-        Collections.sort(locals, new Comparator<TIntHashSet>() {
+        Collections.sort(locals, new Comparator<SortedIdSet>() {
           @Override
-          public int compare(TIntHashSet o1, TIntHashSet o2) {
+          public int compare(SortedIdSet o1, SortedIdSet o2) {
             return o1.size() - o2.size();
           }
         });
 
         final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
-        TIntIterator ids = join(locals).iterator();
+        ValueContainer.IntIterator ids = join(locals).iterator();
         ProjectIndexableFilesFilter projectIndexableFilesFilter = projectIndexableFiles(project);
         while (ids.hasNext()) {
           int id = ids.next();
@@ -1220,20 +1204,10 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   }
 
   @NotNull
-  private static TIntHashSet join(@NotNull List<TIntHashSet> locals) {
-    TIntHashSet result = locals.get(0);
-    if (locals.size() > 1) {
-      TIntIterator it = result.iterator();
-
-      while (it.hasNext()) {
-        int id = it.next();
-        for (int i = 1; i < locals.size(); i++) {
-          if (!locals.get(i).contains(id)) {
-            it.remove();
-            break;
-          }
-        }
-      }
+  private static SortedIdSet join(@NotNull List<SortedIdSet> locals) {
+    SortedIdSet result = locals.get(0);
+    for (int i = 1; i < locals.size() && !result.isEmpty(); i++) {
+      result = SortedIdSet.intersection(result, locals.get(i));
     }
     return result;
   }
@@ -1614,14 +1588,34 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   }
 
   public void processRefreshedFile(@NotNull Project project, @NotNull final com.intellij.ide.caches.FileContent fileContent) {
+    processRefreshedFile(project, fileContent, null);
+  }
+
+  void processRefreshedFile(@NotNull Project project, @NotNull final com.intellij.ide.caches.FileContent fileContent,
+                            @Nullable IndexingBatch batch) {
     myChangedFilesCollector.ensureAllInvalidateTasksCompleted();
-    myChangedFilesCollector.processFileImpl(project, fileContent, false);
+    myChangedFilesCollector.processFileImpl(project, fileContent, false, batch);
   }
 
   public void indexFileContent(@Nullable Project project, @NotNull com.intellij.ide.caches.FileContent content) {
+    indexFileContent(project, content, null);
+  }
+
+  /**
+   * With non-null batch the data for {@link MapReduceIndex}es is only mapped and added to the batch,
+   * it is applied when the batch is full or by {@link #flushIndexingBatch(IndexingBatch)}
+   */
+  void indexFileContent(@Nullable Project project, @NotNull com.intellij.ide.caches.FileContent content, @Nullable IndexingBatch batch) {
+    indexFileContent(project, content, batch, false);
+  }
+
+  private void indexFileContent(@Nullable Project project, @NotNull com.intellij.ide.caches.FileContent content,
+                                @Nullable IndexingBatch batch, boolean scheduledForUpdate) {
     myChangedFilesCollector.ensureAllInvalidateTasksCompleted();
     final VirtualFile file = content.getVirtualFile();
+    final long modificationStamp = file.getModificationStamp();
     FileContentImpl fc = null;
+    Map<ID<?, ?>, Map<?, ?>> mappedData = null;
 
     PsiFile psiFile = null;
 
@@ -1652,7 +1646,14 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
           try {
             ProgressManager.checkCanceled();
-            updateSingleIndex(indexId, file, fc);
+            final UpdatableIndex<?, ?, FileContent> index = getIndex(indexId);
+            if (batch != null && index instanceof MapReduceIndex) {
+              if (mappedData == null) mappedData = new THashMap<ID<?, ?>, Map<?, ?>>();
+              mappedData.put(indexId, mapContent((MapReduceIndex<?, ?, FileContent>)index, fc));
+            }
+            else {
+              updateSingleIndex(indexId, file, fc);
+            }
           }
           catch (ProcessCanceledException e) {
             myChangedFilesCollector.scheduleForUpdate(file);
@@ -1671,6 +1672,151 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     } finally {
       FileTypeManagerImpl.cacheFileType(file, null);
     }
+
+    if (mappedData != null && batch.add(new MappedFile(file, modificationStamp, scheduledForUpdate, mappedData)) >= INDEXING_BATCH_SIZE) {
+      flushIndexingBatch(batch);
+    }
+  }
+
+  @NotNull
+  private static Map<?, ?> mapContent(@NotNull final MapReduceIndex<?, ?, FileContent> index, @NotNull final FileContent content) {
+    final Ref<Map<?, ?>> result = new Ref<Map<?, ?>>();
+    ProgressManager.getInstance().executeNonCancelableSection(new Runnable() {
+      @Override
+      public void run() {
+        result.set(index.map(content));
+      }
+    });
+    return result.get();
+  }
+
+  private static final int INDEXING_BATCH_SIZE = 100; // mapped data is kept in memory until the batch is applied
+
+  /**
+   * Content of indexed files mapped for {@link MapReduceIndex}es, the data is applied to every index at once for the whole batch.
+   * The batch may be shared by several indexing threads.
+   */
+  static final class IndexingBatch {
+    private List<MappedFile> myFiles = new ArrayList<MappedFile>();
+
+    private synchronized int add(@NotNull MappedFile file) {
+      myFiles.add(file);
+      return myFiles.size();
+    }
+
+    @NotNull
+    private synchronized List<MappedFile> takeAll() {
+      final List<MappedFile> files = myFiles;
+      myFiles = new ArrayList<MappedFile>();
+      return files;
+    }
+  }
+
+  private static final class MappedFile {
+    private final VirtualFile myFile;
+    private final long myModificationStamp;
+    private final boolean myScheduledForUpdate;
+    private final Map<ID<?, ?>, Map<?, ?>> myData;
+
+    private MappedFile(@NotNull VirtualFile file, long modificationStamp, boolean scheduledForUpdate, @NotNull Map<ID<?, ?>, Map<?, ?>> data) {
+      myFile = file;
+      myModificationStamp = modificationStamp;
+      myScheduledForUpdate = scheduledForUpdate;
+      myData = data;
+    }
+  }
+
+  void flushIndexingBatch(@NotNull IndexingBatch batch) {
+    final List<MappedFile> files = batch.takeAll();
+    if (files.isEmpty()) return;
+    // no file can change while the data is applied and the files are stamped
+    ApplicationManager.getApplication().runReadAction(new Runnable() {
+      @Override
+      public void run() {
+        applyMappedData(files);
+      }
+    });
+  }
+
+  private void applyMappedData(@NotNull List<MappedFile> files) {
+    final Map<ID<?, ?>, SortedMap<Integer, Map<?, ?>>> data = new THashMap<ID<?, ?>, SortedMap<Integer, Map<?, ?>>>();
+    final List<MappedFile> appliedFiles = new ArrayList<MappedFile>(files.size());
+    for (MappedFile mappedFile : files) {
+      final VirtualFile file = mappedFile.myFile;
+      if (!file.isValid()) continue;
+      if (file.getModificationStamp() != mappedFile.myModificationStamp) {
+        // the file was changed after its content had been mapped (e.g. indexing was interrupted by a write action)
+        myChangedFilesCollector.scheduleForUpdate(file);
+        continue;
+      }
+      appliedFiles.add(mappedFile);
+      final int inputId = Math.abs(getFileId(file));
+      for (Map.Entry<ID<?, ?>, Map<?, ?>> entry : mappedFile.myData.entrySet()) {
+        SortedMap<Integer, Map<?, ?>> indexData = data.get(entry.getKey());
+        if (indexData == null) data.put(entry.getKey(), indexData = new TreeMap<Integer, Map<?, ?>>());
+        indexData.put(inputId, entry.getValue());
+      }
+    }
+
+    for (Map.Entry<ID<?, ?>, SortedMap<Integer, Map<?, ?>>> entry : data.entrySet()) {
+      final ID<?, ?> indexId = entry.getKey();
+      try {
+        if (updateMappedData(indexId, entry.getValue())) {
+          for (MappedFile mappedFile : appliedFiles) {
+            if (mappedFile.myData.containsKey(indexId)) {
+              IndexingStamp.update(mappedFile.myFile, indexId, IndexInfrastructure.getIndexCreationStamp(indexId));
+            }
+          }
+        }
+      }
+      catch (StorageException e) {
+        requestRebuild(indexId);
+        LOG.info(e);
+      }
+    }
+
+    for (MappedFile mappedFile : appliedFiles) {
+      if (mappedFile.myScheduledForUpdate) {
+        myChangedFilesCollector.myFilesToUpdate.remove(mappedFile.myFile);
+      }
+      IndexingStamp.flushCache(mappedFile.myFile);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private boolean updateMappedData(@NotNull ID<?, ?> indexId, @NotNull final SortedMap<Integer, Map<?, ?>> data) throws StorageException {
+    if (ourRebuildStatus.get(indexId).get() == REQUIRES_REBUILD) {
+      return false; // the index is scheduled for rebuild, no need to update
+    }
+    myLocalModCount++;
+
+    final MapReduceIndex index = (MapReduceIndex)getIndex(indexId);
+    assert index != null;
+    final Ref<StorageException> exRef = new Ref<StorageException>(null);
+
+    final StorageGuard.Holder lock = setDataBufferingEnabled(false);
+    try {
+      ProgressManager.getInstance().executeNonCancelableSection(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            index.updateMapped(data);
+          }
+          catch (StorageException e) {
+            exRef.set(e);
+          }
+        }
+      });
+    }
+    finally {
+      lock.leave();
+    }
+
+    final StorageException storageException = exRef.get();
+    if (storageException != null) {
+      throw storageException;
+    }
+    return true;
   }
 
   private void updateSingleIndex(final ID<?, ?> indexId, @NotNull final VirtualFile file, @Nullable final FileContent currentFC) throws StorageException {
@@ -1723,6 +1869,62 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     });
   }
 
+  private void removeDataFromIndex(final ID<?, ?> indexId, @NotNull final List<VirtualFile> files) throws StorageException {
+    final UpdatableIndex<?, ?, FileContent> index = getIndex(indexId);
+    assert index != null;
+    if (!(index instanceof MapReduceIndex)) {
+      for (VirtualFile file : files) {
+        updateSingleIndex(indexId, file, null);
+      }
+      return;
+    }
+    if (ourRebuildStatus.get(indexId).get() == REQUIRES_REBUILD) {
+      return; // the index is scheduled for rebuild, no need to update
+    }
+    myLocalModCount++;
+
+    final Map<Integer, FileContent> inputs = new THashMap<Integer, FileContent>(files.size());
+    for (VirtualFile file : files) {
+      inputs.put(Math.abs(getFileId(file)), null);
+    }
+    final Ref<StorageException> exRef = new Ref<StorageException>(null);
+
+    final StorageGuard.Holder lock = setDataBufferingEnabled(false);
+    try {
+      ProgressManager.getInstance().executeNonCancelableSection(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            ((MapReduceIndex<?, ?, FileContent>)index).update(inputs);
+          }
+          catch (StorageException e) {
+            exRef.set(e);
+          }
+        }
+      });
+    }
+    finally {
+      lock.leave();
+    }
+
+    final StorageException storageException = exRef.get();
+    if (storageException != null) {
+      throw storageException;
+    }
+
+    ApplicationManager.getApplication().runReadAction(new Runnable() {
+      @Override
+      public void run() {
+        for (VirtualFile file : files) {
+          if (file.isValid()) {
+            // mark the file as unindexed
+            IndexingStamp.update(file, indexId, IndexInfrastructure.INVALID_STAMP);
+          }
+        }
+      }
+    });
+  }
+
   private boolean needsFileContentLoading(ID<?, ?> indexId) {
     return !myNotRequiringContentIndices.contains(indexId);
   }
@@ -1739,6 +1941,22 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     }
   }
 
+  private static final int REMOVAL_BATCH_SIZE = 1000;
+
+  private final class RemoveFileDataTask extends InvalidationTask {
+    private final Collection<ID<?, ?>> myAffectedIndices;
+
+    private RemoveFileDataTask(@NotNull VirtualFile file, @NotNull Collection<ID<?, ?>> affectedIndices) {
+      super(file);
+      myAffectedIndices = affectedIndices;
+    }
+
+    @Override
+    public void run() {
+      myChangedFilesCollector.removeFileDataFromIndices(myAffectedIndices, getSubj());
+    }
+  }
+
   private final class ChangedFilesCollector extends VirtualFileAdapter {
     private final Set<VirtualFile> myFilesToUpdate = new ConcurrentHashSet<VirtualFile>();
     private final Queue<InvalidationTask> myFutureInvalidations = new ConcurrentLinkedQueue<InvalidationTask>();
@@ -1894,12 +2112,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
             scheduleForUpdate(file);
           }
           else {
-            myFutureInvalidations.offer(new InvalidationTask(file) {
-              @Override
-              public void run() {
-                removeFileDataFromIndices(affectedIndices, file);
-              }
-            });
+            myFutureInvalidations.offer(new RemoveFileDataTask(file, affectedIndices));
           }
         }
         if (!markForReindex) {
@@ -1908,12 +2121,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
             // Currently the file is about to be deleted and previously it was scheduled for update and not processed up to now.
             // Because the file was scheduled for update, at the moment of scheduling it was marked as unindexed, 
             // so, to be on the safe side, we have to schedule data invalidation from all content-requiring indices for this file
-            myFutureInvalidations.offer(new InvalidationTask(file) {
-              @Override
-              public void run() {
-                removeFileDataFromIndices(myRequiringContentIndices, file);
-              }
-            });
+            myFutureInvalidations.offer(new RemoveFileDataTask(file, myRequiringContentIndices));
           }
         }
         
@@ -1959,6 +2167,9 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       final ProgressIndicator indicator = current != null ? current : new EmptyProgressIndicator();
       indicator.setText("");
       int count = 0;
+      // data removal of many files (e.g. after branch switch) is applied to every index in batches
+      final Map<ID<?, ?>, List<VirtualFile>> removalBatch = new THashMap<ID<?, ?>, List<VirtualFile>>();
+      final Set<VirtualFile> batchFiles = new THashSet<VirtualFile>();
       while (true) {
         InvalidationTask task = myFutureInvalidations.poll();
 
@@ -1967,7 +2178,54 @@ public class FileBasedIndexImpl extends FileBasedIndex {
         }
         indicator.setFraction((double)count++ /size);
         indicator.setText2(task.getSubj().getPresentableUrl());
-        task.run();
+        if (task instanceof RemoveFileDataTask && !batchFiles.contains(task.getSubj())) {
+          batchFiles.add(task.getSubj());
+          for (ID<?, ?> indexId : ((RemoveFileDataTask)task).myAffectedIndices) {
+            List<VirtualFile> files = removalBatch.get(indexId);
+            if (files == null) removalBatch.put(indexId, files = new ArrayList<VirtualFile>());
+            files.add(task.getSubj());
+          }
+          if (batchFiles.size() < REMOVAL_BATCH_SIZE) continue;
+        }
+        else if (task instanceof RemoveFileDataTask) { // the same file must be processed after the batch
+          removeFilesDataFromIndices(removalBatch, batchFiles);
+          task.run();
+          continue;
+        }
+        removeFilesDataFromIndices(removalBatch, batchFiles);
+        if (!(task instanceof RemoveFileDataTask)) task.run();
+      }
+      removeFilesDataFromIndices(removalBatch, batchFiles);
+    }
+
+    private void removeFilesDataFromIndices(@NotNull Map<ID<?, ?>, List<VirtualFile>> batch, @NotNull Set<VirtualFile> batchFiles) {
+      if (batchFiles.isEmpty()) return;
+      Throwable unexpectedError = null;
+      for (Map.Entry<ID<?, ?>, List<VirtualFile>> entry : batch.entrySet()) {
+        final ID<?, ?> indexId = entry.getKey();
+        try {
+          removeDataFromIndex(indexId, entry.getValue());
+        }
+        catch (StorageException e) {
+          LOG.info(e);
+          requestRebuild(indexId);
+        }
+        catch (ProcessCanceledException ignored) {
+        }
+        catch (Throwable e) {
+          LOG.info(e);
+          if (unexpectedError == null) {
+            unexpectedError = e;
+          }
+        }
+      }
+      for (VirtualFile file : batchFiles) {
+        IndexingStamp.flushCache(file);
+      }
+      batch.clear();
+      batchFiles.clear();
+      if (unexpectedError != null) {
+        LOG.error(unexpectedError);
       }
     }
 
@@ -2016,7 +2274,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
           try {
             myForceUpdateSemaphore.down();
             // process only files that can affect result
-            processFileImpl(project, new com.intellij.ide.caches.FileContent(file), onlyRemoveOutdatedData);
+            processFileImpl(project, new com.intellij.ide.caches.FileContent(file), onlyRemoveOutdatedData, null);
           }
           finally {
             myForceUpdateSemaphore.up();
@@ -2036,8 +2294,17 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       }
     }
 
-    private void processFileImpl(Project project, @NotNull final com.intellij.ide.caches.FileContent fileContent, boolean onlyRemoveOutdatedData) {
+    private void processFileImpl(Project project, @NotNull final com.intellij.ide.caches.FileContent fileContent, boolean onlyRemoveOutdatedData,
+                                 @Nullable IndexingBatch batch) {
       final VirtualFile file = fileContent.getVirtualFile();
+      if (batch != null && !onlyRemoveOutdatedData) {
+        // the file stays scheduled until its data is applied, so that queries meanwhile reindex it rather than miss the changes
+        if (myFilesToUpdate.contains(file) && file.isValid()) {
+          indexFileContent(project, fileContent, batch, true);
+          IndexingStamp.flushCache(file);
+        }
+        return;
+      }
       final boolean reallyRemoved = myFilesToUpdate.remove(file);
       if (reallyRemoved && file.isValid()) {
         if (onlyRemoveOutdatedData) {
@@ -116,6 +116,8 @@ public class FileBasedIndexProjectHandler extends AbstractProjectComponent imple
   }
 
   private class RefreshCacheUpdater implements CacheUpdater {
+    private final FileBasedIndexImpl.IndexingBatch myBatch = new FileBasedIndexImpl.IndexingBatch();
+
     @Override
     public int getNumberOfPendingUpdateJobs() {
       return myIndex.getNumberOfPendingInvalidations();
@@ -129,15 +131,17 @@ public class FileBasedIndexProjectHandler extends AbstractProjectComponent imple
 
     @Override
     public void processFile(FileContent fileContent) {
-      myIndex.processRefreshedFile(myProject, fileContent);
+      myIndex.processRefreshedFile(myProject, fileContent, myBatch);
     }
 
     @Override
     public void updatingDone() {
+      myIndex.flushIndexingBatch(myBatch);
     }
 
     @Override
     public void canceled() {
+      myIndex.flushIndexingBatch(myBatch);
     }
   }
 }
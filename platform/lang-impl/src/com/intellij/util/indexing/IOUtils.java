@@ -15,68 +15,63 @@
  */
 package com.intellij.util.indexing;
 
-import com.intellij.idea.StartupUtil;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.util.io.CompressionCodec;
 import com.intellij.util.io.DataInputOutputUtil;
-import org.xerial.snappy.Snappy;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.lang.ref.SoftReference;
-import java.lang.reflect.Field;
 
 /**
  * @author Maxim.Mossienko
  */
 public class IOUtils {
-  private static final boolean ourCanUseSnappy;
-
-  static {
-    boolean canUseSnappy = false;
-    try {
-      if (!StartupUtil.NO_SNAPPY) {
-        Field impl = Snappy.class.getDeclaredField("impl");
-        impl.setAccessible(true);
-        canUseSnappy = impl.get(null) != null;
-      }
-    }
-    catch (Throwable ignored) { }
-
-    ourCanUseSnappy = canUseSnappy;
-  }
-
   private static final int COMPRESSION_THRESHOLD = 64;
-  private static final ThreadLocal<SoftReference<byte[]>> spareBufferLocal = new ThreadLocal<SoftReference<byte[]>>();
+  private static final ThreadLocal<SoftReference<BufferExposingByteArrayOutputStream>> spareBufferLocal =
+    new ThreadLocal<SoftReference<BufferExposingByteArrayOutputStream>>();
 
+  /**
+   * Writes the length, negative for compressed data which is prefixed with {@link CompressionCodec#getId() codec id} then.
+   */
   public static int writeCompressed(DataOutput out, byte[] bytes, int length) throws IOException {
-    if (length > COMPRESSION_THRESHOLD && ourCanUseSnappy) {
-      SoftReference<byte[]> reference = spareBufferLocal.get();
-      byte[] compressedOutputBuffer = reference != null ? reference.get():null;
-      int maxCompressedSize = 32 + length + length / 6; // snappy.cc#MaxCompressedLength
-      if (compressedOutputBuffer == null || compressedOutputBuffer.length < maxCompressedSize) {
-        compressedOutputBuffer = new byte[maxCompressedSize];
-        spareBufferLocal.set(new SoftReference<byte[]>(compressedOutputBuffer));
+    if (length > COMPRESSION_THRESHOLD) {
+      SoftReference<BufferExposingByteArrayOutputStream> reference = spareBufferLocal.get();
+      BufferExposingByteArrayOutputStream compressed = reference != null ? reference.get() : null;
+      if (compressed == null) {
+        compressed = new BufferExposingByteArrayOutputStream(length);
+        spareBufferLocal.set(new SoftReference<BufferExposingByteArrayOutputStream>(compressed));
+      }
+      CompressionCodec codec = CompressionCodec.getPreferred();
+      try {
+        int compressedSize = codec.compress(bytes, 0, length, compressed);
+        if (compressedSize < length) {
+          DataInputOutputUtil.writeINT(out, -compressedSize);
+          out.writeByte(codec.getId());
+          out.write(compressed.getInternalBuffer(), 0, compressedSize);
+          return compressedSize;
+        }
+      }
+      finally {
+        compressed.reset();
       }
-      int compressedSize = Snappy.rawCompress(bytes, 0, length, compressedOutputBuffer, 0);
-      DataInputOutputUtil.writeINT(out, -compressedSize);
-      out.write(compressedOutputBuffer, 0, compressedSize);
-      return compressedSize;
-    } else {
-      DataInputOutputUtil.writeINT(out, length);
-      out.write(bytes, 0, length);
-      return length;
     }
+    DataInputOutputUtil.writeINT(out, length);
+    out.write(bytes, 0, length);
+    return length;
   }
 
   public static byte[] readCompressed(DataInput in) throws IOException {
     int size = DataInputOutputUtil.readINT(in);
-    byte[] bytes = new byte[Math.abs(size)];
-    in.readFully(bytes);
     if (size >= 0) {
+      byte[] bytes = new byte[size];
+      in.readFully(bytes);
       return bytes;
-    } else {
-      if (!ourCanUseSnappy) throw new IOException("Can not read compressed data");
-      return Snappy.uncompress(bytes);
     }
+    CompressionCodec codec = CompressionCodec.forId(in.readByte());
+    byte[] bytes = new byte[-size];
+    in.readFully(bytes);
+    return codec.decompress(bytes, 0, bytes.length);
   }
 }
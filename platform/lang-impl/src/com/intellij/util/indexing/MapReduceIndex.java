@@ -24,6 +24,7 @@ import com.intellij.util.CommonProcessors;
 import com.intellij.util.Processor;
 import com.intellij.util.io.PersistentHashMap;
 import gnu.trove.THashMap;
+import gnu.trove.TIntArrayList;
 import gnu.trove.TObjectObjectProcedure;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -212,15 +213,121 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
   public final void update(final int inputId, @Nullable Input content) throws StorageException {
     assert myInputsIndex != null;
 
-    final Map<Key, Value> data = content != null ? myIndexer.map(content) : Collections.<Key, Value>emptyMap();
+    updateWithMap(inputId, map(content), getOldKeysGetter(inputId));
+  }
+
+  /**
+   * Updates data of several inputs at once, null content means the input data should be removed.
+   * Inputs are mapped before taking the write lock, then all changes are applied under single lock hold, grouped by key.
+   */
+  public void update(@NotNull Map<Integer, Input> inputs) throws StorageException {
+    assert myInputsIndex != null;
+
+    final SortedMap<Integer, Map<Key, Value>> newData = new TreeMap<Integer, Map<Key, Value>>();
+    for (Map.Entry<Integer, Input> entry : inputs.entrySet()) {
+      newData.put(entry.getKey(), map(entry.getValue()));
+    }
+
+    updateWithMaps(newData);
+  }
+
+  /**
+   * Maps the input content without touching the storage, null content is mapped to no data.
+   * The result may be applied later together with data of other inputs by {@link #updateMapped(SortedMap)}.
+   */
+  @NotNull
+  public Map<Key, Value> map(@Nullable Input content) {
+    return content != null ? myIndexer.map(content) : Collections.<Key, Value>emptyMap();
+  }
+
+  /**
+   * Replaces data of several inputs by the given data mapped by {@link #map(Object)}, all changes are applied under single lock hold
+   */
+  public void updateMapped(@NotNull SortedMap<Integer, Map<Key, Value>> newData) throws StorageException {
+    assert myInputsIndex != null;
+
+    updateWithMaps(newData);
+  }
 
-    updateWithMap(inputId, data, new Callable<Collection<Key>>() {
+  @NotNull
+  protected Callable<Collection<Key>> getOldKeysGetter(final int inputId) {
+    return new Callable<Collection<Key>>() {
       @Override
       public Collection<Key> call() throws Exception {
         final Collection<Key> oldKeys = myInputsIndex.get(inputId);
         return oldKeys == null? Collections.<Key>emptyList() : oldKeys;
       }
-    });
+    };
+  }
+
+  protected void updateWithMaps(@NotNull SortedMap<Integer, Map<Key, Value>> newData) throws StorageException {
+    getWriteLock().lock();
+    try {
+      // visiting every key once keeps its value container hot in the storage cache
+      final Map<Key, KeyUpdate<Value>> updates = new THashMap<Key, KeyUpdate<Value>>();
+      for (Map.Entry<Integer, Map<Key, Value>> entry : newData.entrySet()) {
+        final int inputId = entry.getKey();
+        try {
+          for (Key key : getOldKeysGetter(inputId).call()) {
+            getKeyUpdate(updates, key).myRemovedInputs.add(inputId);
+          }
+        }
+        catch (Exception e) {
+          throw new StorageException(e);
+        }
+        for (Map.Entry<Key, Value> keyAndValue : entry.getValue().entrySet()) {
+          final KeyUpdate<Value> update = getKeyUpdate(updates, keyAndValue.getKey());
+          update.myAddedInputs.add(inputId);
+          update.myAddedValues.add(keyAndValue.getValue());
+        }
+      }
+
+      for (Map.Entry<Key, KeyUpdate<Value>> entry : updates.entrySet()) {
+        final Key key = entry.getKey();
+        final KeyUpdate<Value> update = entry.getValue();
+        for (int i = 0; i < update.myRemovedInputs.size(); i++) {
+          myStorage.removeAllValues(key, update.myRemovedInputs.get(i));
+        }
+        for (int i = 0; i < update.myAddedInputs.size(); i++) {
+          myStorage.addValue(key, update.myAddedInputs.get(i), update.myAddedValues.get(i));
+        }
+      }
+
+      if (myInputsIndex != null) {
+        try {
+          for (Map.Entry<Integer, Map<Key, Value>> entry : newData.entrySet()) {
+            final Set<Key> newKeys = entry.getValue().keySet();
+            if (newKeys.size() > 0) {
+              myInputsIndex.put(entry.getKey(), newKeys);
+            }
+            else {
+              myInputsIndex.remove(entry.getKey());
+            }
+          }
+        }
+        catch (IOException e) {
+          throw new StorageException(e);
+        }
+      }
+    }
+    finally {
+      getWriteLock().unlock();
+    }
+  }
+
+  @NotNull
+  private static <Key, Value> KeyUpdate<Value> getKeyUpdate(@NotNull Map<Key, KeyUpdate<Value>> updates, Key key) {
+    KeyUpdate<Value> update = updates.get(key);
+    if (update == null) {
+      updates.put(key, update = new KeyUpdate<Value>());
+    }
+    return update;
+  }
+
+  private static class KeyUpdate<Value> {
+    private final TIntArrayList myRemovedInputs = new TIntArrayList(1);
+    private final TIntArrayList myAddedInputs = new TIntArrayList(1);
+    private final List<Value> myAddedValues = new ArrayList<Value>(1);
   }
 
   protected void updateWithMap(final int inputId, @NotNull Map<Key, Value> newData, @NotNull Callable<Collection<Key>> oldKeysGetter) throws StorageException {
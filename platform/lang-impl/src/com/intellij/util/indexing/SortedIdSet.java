@@ -0,0 +1,492 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.util.ArrayUtil;
+import gnu.trove.TIntProcedure;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Posting list of input ids. Sparse sets are kept as sorted int array, dense ones switch to bitmap over [min, max] id range,
+ * so a set costs at most 4 bytes per id (a bit per id for frequent keys) instead of hash set entry.
+ * Ids are iterated in ascending order, intersection and union are linear merges (word-wise for two bitmaps).
+ * Copies share content until one of them is modified.
+ * Sets kept by the index are modified under its write lock only, so they may be copied and read under its read lock.
+ */
+final class SortedIdSet implements Cloneable {
+  private static final int SHIFT = 6;
+  private static final int MASK = (1 << SHIFT) - 1;
+  private static final int MIN_BITMAP_SIZE = 64;
+  // a set this many times smaller than the other one is intersected by probing the other one with its ids instead of merging
+  private static final int PROBE_RATIO = 16;
+
+  // sorted ids, first mySize are used; null when bitmap is used
+  private int[] myIds;
+  // bit (id - myBase) & MASK of word (id - myBase) >> SHIFT is set for every id; null when array is used
+  private long[] myBits;
+  private int myBase;
+  private int mySize;
+  // set by clone(); sets of the index are cloned under its read lock and changed (and unshared) under its write lock,
+  // so no set is cloned while it is being changed and the lock publishes the flag
+  private boolean myShared;
+
+  SortedIdSet() {
+    myIds = ArrayUtil.EMPTY_INT_ARRAY;
+  }
+
+  SortedIdSet(int capacity) {
+    myIds = new int[capacity];
+  }
+
+  int size() {
+    return mySize;
+  }
+
+  boolean isEmpty() {
+    return mySize == 0;
+  }
+
+  boolean contains(int id) {
+    if (myBits != null) {
+      long offset = (long)id - myBase;
+      if (offset < 0) return false;
+      long word = offset >> SHIFT;
+      return word < myBits.length && (myBits[(int)word] & (1L << (offset & MASK))) != 0;
+    }
+    return Arrays.binarySearch(myIds, 0, mySize, id) >= 0;
+  }
+
+  boolean add(int id) {
+    if (myBits != null) return addToBitmap(id);
+
+    int index = mySize == 0 || myIds[mySize - 1] < id ? -mySize - 1 : Arrays.binarySearch(myIds, 0, mySize, id);
+    if (index >= 0) return false;
+    index = -index - 1;
+
+    if (mySize == myIds.length) {
+      int[] ids = new int[Math.max(4, mySize + (mySize >> 1))];
+      System.arraycopy(myIds, 0, ids, 0, index);
+      System.arraycopy(myIds, index, ids, index + 1, mySize - index);
+      myIds = ids;
+      myShared = false;
+    }
+    else {
+      unshare();
+      System.arraycopy(myIds, index, myIds, index + 1, mySize - index);
+    }
+    myIds[index] = id;
+    ++mySize;
+
+    if (mySize >= MIN_BITMAP_SIZE && 2 * wordsForRange(myIds[0], myIds[mySize - 1]) <= mySize) {
+      switchToBitmap();
+    }
+    return true;
+  }
+
+  private boolean addToBitmap(int id) {
+    long offset = (long)id - myBase;
+    if (offset >= 0 && (offset >> SHIFT) < myBits.length) {
+      int word = (int)(offset >> SHIFT);
+      long bit = 1L << (offset & MASK);
+      if ((myBits[word] & bit) != 0) return false;
+      unshare();
+      myBits[word] |= bit;
+      ++mySize;
+      return true;
+    }
+
+    int base = Math.min(myBase, id & ~MASK);
+    int last = Math.max(id, lastId());
+    long words = wordsForRange(base, last);
+    if (words > mySize + 1) {
+      // bitmap would become more than twice as large as sorted array
+      switchToArray();
+      return add(id);
+    }
+
+    int wordShift = (myBase - base) >> SHIFT;
+    // reserve some space after the last id, ids are mostly added in ascending order
+    long[] bits = new long[(int)Math.min(Integer.MAX_VALUE, words + (base == myBase ? words >> 3 : 0))];
+    System.arraycopy(myBits, 0, bits, wordShift, Math.min(myBits.length, bits.length - wordShift));
+    myBits = bits;
+    myBase = base;
+    myShared = false;
+    return addToBitmap(id);
+  }
+
+  boolean remove(int id) {
+    if (myBits != null) {
+      if (!contains(id)) return false;
+      unshare();
+      int offset = id - myBase;
+      myBits[offset >> SHIFT] &= ~(1L << (offset & MASK));
+      --mySize;
+      if (myBits.length > mySize) switchToArray();
+      return true;
+    }
+
+    int index = Arrays.binarySearch(myIds, 0, mySize, id);
+    if (index < 0) return false;
+    unshare();
+    System.arraycopy(myIds, index + 1, myIds, index, mySize - index - 1);
+    --mySize;
+    return true;
+  }
+
+  void compact() {
+    if (myIds != null) {
+      if (myIds.length / Math.max(1, mySize) >= 3) {
+        myIds = mySize == 0 ? ArrayUtil.EMPTY_INT_ARRAY : Arrays.copyOf(myIds, mySize);
+        myShared = false;
+      }
+    }
+    else if (mySize == 0) {
+      switchToArray();
+    }
+    else {
+      int first = 0;
+      while (myBits[first] == 0) ++first;
+      int last = myBits.length - 1;
+      while (myBits[last] == 0) --last;
+      if (first != 0 || last != myBits.length - 1) {
+        myBits = Arrays.copyOfRange(myBits, first, last + 1);
+        myBase += first << SHIFT;
+        myShared = false;
+      }
+    }
+  }
+
+  @NotNull
+  ValueContainer.IntIterator iterator() {
+    return myBits != null ? new BitmapIterator(myBits, myBase, mySize) : new ArrayIterator(myIds, mySize);
+  }
+
+  boolean forEach(@NotNull TIntProcedure procedure) {
+    if (myBits != null) {
+      for (int i = 0; i < myBits.length; i++) {
+        long word = myBits[i];
+        while (word != 0) {
+          if (!procedure.execute(myBase + (i << SHIFT) + Long.numberOfTrailingZeros(word))) return false;
+          word &= word - 1;
+        }
+      }
+    }
+    else {
+      for (int i = 0; i < mySize; i++) {
+        if (!procedure.execute(myIds[i])) return false;
+      }
+    }
+    return true;
+  }
+
+  @NotNull
+  int[] toArray() {
+    if (myIds != null) return Arrays.copyOf(myIds, mySize);
+    final int[] result = new int[mySize];
+    forEach(new TIntProcedure() {
+      int myIndex;
+
+      @Override
+      public boolean execute(int id) {
+        result[myIndex++] = id;
+        return true;
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Sets of the index should be cloned under its read lock, see myShared.
+   */
+  @Override
+  public SortedIdSet clone() {
+    try {
+      myShared = true;
+      return (SortedIdSet)super.clone();
+    }
+    catch (CloneNotSupportedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @NotNull
+  static SortedIdSet intersection(@NotNull SortedIdSet first, @NotNull SortedIdSet second) {
+    if (first.myBits != null && second.myBits != null) {
+      int base = Math.max(first.myBase, second.myBase);
+      int words = Math.min(first.myBase + (first.myBits.length << SHIFT), second.myBase + (second.myBits.length << SHIFT)) - base >> SHIFT;
+      SortedIdSet result = new SortedIdSet();
+      if (words <= 0) return result;
+
+      long[] bits = new long[words];
+      int firstShift = (base - first.myBase) >> SHIFT;
+      int secondShift = (base - second.myBase) >> SHIFT;
+      int size = 0;
+      for (int i = 0; i < words; i++) {
+        bits[i] = first.myBits[i + firstShift] & second.myBits[i + secondShift];
+        size += Long.bitCount(bits[i]);
+      }
+      result.setBitmap(bits, base, size);
+      return result;
+    }
+
+    if (first.myIds != null && second.myIds != null) {
+      SortedIdSet result = new SortedIdSet(Math.min(first.mySize, second.mySize));
+      int[] ids = result.myIds;
+      int i = 0, j = 0, size = 0;
+      while (i < first.mySize && j < second.mySize) {
+        int id = first.myIds[i];
+        int other = second.myIds[j];
+        if (id < other) ++i;
+        else if (id > other) ++j;
+        else {
+          ids[size++] = id;
+          ++i;
+          ++j;
+        }
+      }
+      result.mySize = size;
+      result.compact();
+      return result;
+    }
+
+    // probe bitmap with ids from array
+    SortedIdSet array = first.myIds != null ? first : second;
+    SortedIdSet bitmap = first.myIds != null ? second : first;
+    SortedIdSet result = new SortedIdSet(array.mySize);
+    for (int i = 0; i < array.mySize; i++) {
+      int id = array.myIds[i];
+      if (bitmap.contains(id)) result.myIds[result.mySize++] = id;
+    }
+    result.compact();
+    return result;
+  }
+
+  /**
+   * @param predicate accepts the ids of the iterator, it is used to probe them from the set when the set is much smaller
+   */
+  @NotNull
+  static SortedIdSet intersection(@NotNull final SortedIdSet set,
+                                  @NotNull ValueContainer.IntIterator iterator,
+                                  @NotNull final ValueContainer.IntPredicate predicate) {
+    final int size = iterator.size();
+    if ((long)set.mySize * PROBE_RATIO <= size) {
+      final SortedIdSet result = new SortedIdSet(set.mySize);
+      set.forEach(new TIntProcedure() {
+        @Override
+        public boolean execute(int id) {
+          if (predicate.contains(id)) result.add(id);
+          return true;
+        }
+      });
+      result.compact();
+      return result;
+    }
+    if ((long)size * PROBE_RATIO <= set.mySize) {
+      SortedIdSet result = new SortedIdSet(size);
+      while (iterator.hasNext()) {
+        int id = iterator.next();
+        if (set.contains(id)) result.add(id);
+      }
+      result.compact();
+      return result;
+    }
+    return intersection(set, fromIterator(iterator));
+  }
+
+  @NotNull
+  static SortedIdSet union(@NotNull SortedIdSet first, @NotNull SortedIdSet second) {
+    if (first.myBits != null && second.myBits != null) {
+      int base = Math.min(first.myBase, second.myBase);
+      int end = Math.max(first.myBase + (first.myBits.length << SHIFT), second.myBase + (second.myBits.length << SHIFT));
+      long[] bits = new long[(end - base) >> SHIFT];
+      int firstShift = (first.myBase - base) >> SHIFT;
+      int secondShift = (second.myBase - base) >> SHIFT;
+      System.arraycopy(first.myBits, 0, bits, firstShift, first.myBits.length);
+      for (int i = 0; i < second.myBits.length; i++) {
+        bits[i + secondShift] |= second.myBits[i];
+      }
+      int size = 0;
+      for (long word : bits) {
+        size += Long.bitCount(word);
+      }
+      SortedIdSet result = new SortedIdSet();
+      result.setBitmap(bits, base, size);
+      return result;
+    }
+
+    // ids come in ascending order, so every add is an append
+    final SortedIdSet result = new SortedIdSet(first.mySize + second.mySize);
+    ValueContainer.IntIterator firstIterator = first.iterator();
+    ValueContainer.IntIterator secondIterator = second.iterator();
+    int id = firstIterator.hasNext() ? firstIterator.next() : 0;
+    int other = secondIterator.hasNext() ? secondIterator.next() : 0;
+    boolean hasId = first.mySize > 0, hasOther = second.mySize > 0;
+    while (hasId || hasOther) {
+      if (hasId && (!hasOther || id <= other)) {
+        if (hasOther && id == other) {
+          hasOther = secondIterator.hasNext();
+          if (hasOther) other = secondIterator.next();
+        }
+        result.add(id);
+        hasId = firstIterator.hasNext();
+        if (hasId) id = firstIterator.next();
+      }
+      else {
+        result.add(other);
+        hasOther = secondIterator.hasNext();
+        if (hasOther) other = secondIterator.next();
+      }
+    }
+    if (result.myIds != null) result.compact();
+    return result;
+  }
+
+  /**
+   * @return set with ids of the iterator; for iterator of a set that was not advanced the set itself is returned and should not be modified
+   */
+  @NotNull
+  static SortedIdSet fromIterator(@NotNull ValueContainer.IntIterator iterator) {
+    if (iterator instanceof ArrayIterator && ((ArrayIterator)iterator).myIndex == 0 ||
+        iterator instanceof BitmapIterator && ((BitmapIterator)iterator).myRemaining == iterator.size()) {
+      return ((IdSetIterator)iterator).getSet();
+    }
+    SortedIdSet result = new SortedIdSet(iterator.size());
+    while (iterator.hasNext()) {
+      result.add(iterator.next());
+    }
+    return result;
+  }
+
+  private void setBitmap(@NotNull long[] bits, int base, int size) {
+    myIds = null;
+    myBits = bits;
+    myBase = base;
+    mySize = size;
+    if (mySize < MIN_BITMAP_SIZE || myBits.length > mySize) {
+      switchToArray();
+    }
+    else {
+      compact();
+    }
+  }
+
+  private int lastId() {
+    for (int i = myBits.length - 1; i >= 0; i--) {
+      if (myBits[i] != 0) return myBase + (i << SHIFT) + MASK - Long.numberOfLeadingZeros(myBits[i]);
+    }
+    return myBase;
+  }
+
+  private static long wordsForRange(int first, int last) {
+    return (((long)last - (first & ~MASK)) >> SHIFT) + 1;
+  }
+
+  private void switchToBitmap() {
+    int base = myIds[0] & ~MASK;
+    long[] bits = new long[(int)wordsForRange(base, myIds[mySize - 1])];
+    for (int i = 0; i < mySize; i++) {
+      int offset = myIds[i] - base;
+      bits[offset >> SHIFT] |= 1L << (offset & MASK);
+    }
+    myBits = bits;
+    myBase = base;
+    myIds = null;
+    myShared = false;
+  }
+
+  private void switchToArray() {
+    myIds = toArray();
+    myBits = null;
+    myBase = 0;
+    myShared = false;
+  }
+
+  private void unshare() {
+    if (!myShared) return;
+    if (myIds != null) myIds = myIds.clone();
+    else myBits = myBits.clone();
+    myShared = false;
+  }
+
+  private abstract class IdSetIterator implements ValueContainer.IntIterator {
+    private final int myIteratedSize;
+
+    private IdSetIterator(int size) {
+      myIteratedSize = size;
+    }
+
+    @Override
+    public int size() {
+      return myIteratedSize;
+    }
+
+    SortedIdSet getSet() {
+      return SortedIdSet.this;
+    }
+  }
+
+  private class ArrayIterator extends IdSetIterator {
+    private final int[] myIterated;
+    private int myIndex;
+
+    private ArrayIterator(int[] ids, int size) {
+      super(size);
+      myIterated = ids;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return myIndex < size();
+    }
+
+    @Override
+    public int next() {
+      return myIterated[myIndex++];
+    }
+  }
+
+  private class BitmapIterator extends IdSetIterator {
+    private final long[] myIterated;
+    private final int myIteratedBase;
+    private int myRemaining;
+    private int myWordIndex;
+    private long myWord;
+
+    private BitmapIterator(long[] bits, int base, int size) {
+      super(size);
+      myIterated = bits;
+      myIteratedBase = base;
+      myRemaining = size;
+      myWord = bits.length > 0 ? bits[0] : 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return myRemaining > 0;
+    }
+
+    @Override
+    public int next() {
+      while (myWord == 0) myWord = myIterated[++myWordIndex];
+      int id = myIteratedBase + (myWordIndex << SHIFT) + Long.numberOfTrailingZeros(myWord);
+      myWord &= myWord - 1;
+      --myRemaining;
+      return id;
+    }
+  }
+}
@@ -36,6 +36,7 @@ public class UnindexedFilesUpdater implements CacheUpdater {
   private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.UnindexedFilesUpdater");
   private final FileBasedIndexImpl myIndex;
   private final Project myProject;
+  private final FileBasedIndexImpl.IndexingBatch myBatch = new FileBasedIndexImpl.IndexingBatch();
   private long myStarted;
 
   public UnindexedFilesUpdater(final Project project, FileBasedIndexImpl index) {
@@ -62,17 +63,19 @@ public class UnindexedFilesUpdater implements CacheUpdater {
 
   @Override
   public void processFile(final FileContent fileContent) {
-    myIndex.indexFileContent(myProject, fileContent);
+    myIndex.indexFileContent(myProject, fileContent, myBatch);
     IndexingStamp.flushCache(fileContent.getVirtualFile());
   }
 
   @Override
   public void updatingDone() {
+    myIndex.flushIndexingBatch(myBatch);
     LOG.info("Unindexed files update done in " + (System.currentTimeMillis() - myStarted) + " ms");
   }
 
   @Override
   public void canceled() {
+    myIndex.flushIndexingBatch(myBatch);
     LOG.info("Unindexed files update canceled");
   }
 }
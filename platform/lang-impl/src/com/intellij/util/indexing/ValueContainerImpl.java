@@ -20,8 +20,6 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.util.SmartList;
 import com.intellij.util.containers.EmptyIterator;
 import gnu.trove.THashMap;
-import gnu.trove.TIntHashSet;
-import gnu.trove.TIntIterator;
 import gnu.trove.TObjectObjectProcedure;
 
 import java.util.*;
@@ -58,15 +56,15 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
       }
     }
     else {
-      final TIntHashSet idSet;
+      final SortedIdSet idSet;
       if (input instanceof Integer) {
-        idSet = new IdSet(3, 0.98f);
+        idSet = new SortedIdSet(3);
         idSet.add(((Integer)input).intValue());
         if (!(myInputIdMapping instanceof THashMap)) myInputIdMappingValue = idSet;
         else ((THashMap<Value, Object>)myInputIdMapping).put(value, idSet);
       }
       else {
-        idSet = (TIntHashSet)input;
+        idSet = (SortedIdSet)input;
       }
       idSet.add(inputId);
     }
@@ -103,8 +101,8 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
       return false;
     }
 
-    if (input instanceof TIntHashSet) {
-      final TIntHashSet idSet = (TIntHashSet)input;
+    if (input instanceof SortedIdSet) {
+      final SortedIdSet idSet = (SortedIdSet)input;
       final boolean reallyRemoved = idSet.remove(inputId);
       if (reallyRemoved) {
         idSet.compact();
@@ -199,8 +197,8 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
   @Override
   public boolean isAssociated(Value value, final int inputId) {
     final Object input = getInput(value);
-    if (input instanceof TIntHashSet) {
-      return ((TIntHashSet)input).contains(inputId);
+    if (input instanceof SortedIdSet) {
+      return ((SortedIdSet)input).contains(inputId);
     }
     if (input instanceof Integer ){
       return inputId == ((Integer)input).intValue();
@@ -222,7 +220,7 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
       };
     }
     return new IntPredicate() {
-      final TIntHashSet mySet = (TIntHashSet)input;
+      final SortedIdSet mySet = (SortedIdSet)input;
       @Override
       boolean contains(int id) {
         return mySet.contains(id);
@@ -234,8 +232,8 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
   public IntIterator getInputIdsIterator(Value value) {
     final Object input = getInput(value);
     final IntIterator it;
-    if (input instanceof TIntHashSet) {
-      it = new IntSetIterator((TIntHashSet)input);
+    if (input instanceof SortedIdSet) {
+      it = ((SortedIdSet)input).iterator();
     }
     else if (input instanceof Integer ){
       it = new SingleValueIterator(((Integer)input).intValue());
@@ -267,8 +265,8 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
       final ValueContainerImpl clone = (ValueContainerImpl)super.clone();
       if (myInputIdMapping instanceof THashMap) {
         clone.myInputIdMapping = mapCopy((THashMap<Value, Object>)myInputIdMapping);
-      } else if (myInputIdMappingValue instanceof TIntHashSet) {
-        clone.myInputIdMappingValue = ((TIntHashSet)myInputIdMappingValue).clone();
+      } else if (myInputIdMappingValue instanceof SortedIdSet) {
+        clone.myInputIdMappingValue = ((SortedIdSet)myInputIdMappingValue).clone();
       }
       return clone;
     }
@@ -305,8 +303,8 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
       mapping.forEachEntry(new TObjectObjectProcedure<Value, Object>() {
         @Override
         public boolean execute(Value key, Object val) {
-          if (val instanceof TIntHashSet) {
-            newMapping.put(key, ((TIntHashSet)val).clone());
+          if (val instanceof SortedIdSet) {
+            newMapping.put(key, ((SortedIdSet)val).clone());
           }
           else {
             newMapping.put(key, val);
@@ -316,8 +314,8 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
       });
     } else {
       container.myInputIdMapping = myInputIdMapping;
-      container.myInputIdMappingValue = myInputIdMappingValue instanceof TIntHashSet ?
-                                        ((TIntHashSet)myInputIdMappingValue).clone():myInputIdMappingValue;
+      container.myInputIdMappingValue = myInputIdMappingValue instanceof SortedIdSet ?
+                                        ((SortedIdSet)myInputIdMappingValue).clone():myInputIdMappingValue;
     }
     return container;
   }
@@ -348,31 +346,6 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     }
   }
 
-  private static class IntSetIterator implements IntIterator {
-    private final TIntIterator mySetIterator;
-    private final int mySize;
-
-    public IntSetIterator(final TIntHashSet set) {
-      mySetIterator = set.iterator();
-      mySize = set.size();
-    }
-
-    @Override
-    public boolean hasNext() {
-      return mySetIterator.hasNext();
-    }
-
-    @Override
-    public int next() {
-      return mySetIterator.next();
-    }
-
-    @Override
-    public int size() {
-      return mySize;
-    }
-  }
-
   private THashMap<Value, Object> mapCopy(final THashMap<Value, Object> map) {
     if (map == null) {
       return null;
@@ -381,8 +354,8 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     cloned.forEachEntry(new TObjectObjectProcedure<Value, Object>() {
       @Override
       public boolean execute(Value key, Object val) {
-        if (val instanceof TIntHashSet) {
-          cloned.put(key, ((TIntHashSet)val).clone());
+        if (val instanceof SortedIdSet) {
+          cloned.put(key, ((SortedIdSet)val).clone());
         }
         return true;
       }
@@ -398,18 +371,4 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     }
   };
 
-  private static class IdSet extends TIntHashSet {
-
-    private IdSet(final int initialCapacity, final float loadFactor) {
-      super(initialCapacity, loadFactor);
-    }
-
-    @Override
-    public void compact() {
-      if (((int)(capacity() * _loadFactor)/ Math.max(1, size())) >= 3) {
-        super.compact();
-      }
-    }
-  }
-
 }
@@ -7,6 +7,7 @@ import gnu.trove.TIntHashSet;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
@@ -87,11 +88,7 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
 
         final ValueContainer.IntIterator ids = container.getInputIdsIterator(value);
         if (ids != null) {
-          DataInputOutputUtil.writeSINT(out, ids.size());
-          while (ids.hasNext()) {
-            final int id = ids.next();
-            DataInputOutputUtil.writeSINT(out, id);
-          }
+          saveIds(out, ids);
         }
         else {
           DataInputOutputUtil.writeSINT(out, 0);
@@ -99,6 +96,33 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
       }
     }
 
+    // several ids are stored as negated count followed by the first id and deltas between ascending ids
+    private static void saveIds(final DataOutput out, @NotNull final ValueContainer.IntIterator ids) throws IOException {
+      final int size = ids.size();
+      if (size == 1) {
+        DataInputOutputUtil.writeSINT(out, 1);
+        DataInputOutputUtil.writeSINT(out, ids.next());
+        return;
+      }
+
+      final int[] sorted = new int[size];
+      boolean ascending = true;
+      int count = 0;
+      while (ids.hasNext()) {
+        final int id = ids.next();
+        if (count > 0 && sorted[count - 1] >= id) ascending = false;
+        sorted[count++] = id;
+      }
+      if (!ascending) Arrays.sort(sorted, 0, count);
+
+      DataInputOutputUtil.writeSINT(out, -count);
+      int prev = 0;
+      for (int i = 0; i < count; i++) {
+        DataInputOutputUtil.writeSINT(out, sorted[i] - prev);
+        prev = sorted[i];
+      }
+    }
+
     @NotNull
     @Override
     public ValueContainerImpl<T> read(final DataInput in) throws IOException {
@@ -115,9 +139,18 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
           for (int valueIdx = 0; valueIdx < valueCount; valueIdx++) {
             final T value = myExternalizer.read(in);
             final int idCount = DataInputOutputUtil.readSINT(in);
-            for (int i = 0; i < idCount; i++) {
-              final int id = DataInputOutputUtil.readSINT(in);
-              valueContainer.addValue(id, value);
+            if (idCount < 0) {
+              int id = 0;
+              for (int i = 0; i < -idCount; i++) {
+                id += DataInputOutputUtil.readSINT(in);
+                valueContainer.addValue(id, value);
+              }
+            }
+            else {
+              for (int i = 0; i < idCount; i++) {
+                final int id = DataInputOutputUtil.readSINT(in);
+                valueContainer.addValue(id, value);
+              }
             }
           }
         }
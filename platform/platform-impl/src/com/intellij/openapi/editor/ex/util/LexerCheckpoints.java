@@ -0,0 +1,108 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.ex.util;
+
+import com.intellij.lexer.RestartableLexer;
+import gnu.trove.TIntArrayList;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Offsets of tokens which a {@link RestartableLexer} can be restarted from, with the lexer states there, sorted by offset.
+ * A checkpoint is recorded at the first token in a restartable state which is at least {@link #DISTANCE} chars away from
+ * the previous checkpoint or token in the initial state, so the text relexed after a change is limited even if there are
+ * no tokens in the initial state around.
+ */
+class LexerCheckpoints {
+  static final int DISTANCE = 1024;
+
+  private final RestartableLexer myLexer;
+  private final TIntArrayList myOffsets = new TIntArrayList();
+  private final TIntArrayList myStates = new TIntArrayList();
+  private int myLastRestartOffset;
+
+  LexerCheckpoints(@NotNull RestartableLexer lexer) {
+    myLexer = lexer;
+  }
+
+  void clear() {
+    myOffsets.clear();
+    myStates.clear();
+    myLastRestartOffset = 0;
+  }
+
+  /**
+   * Starts recording checkpoints for tokens lexed after the given restart offset, see {@link #tokenLexed(int, int, boolean)}.
+   */
+  void startRecording(int restartOffset) {
+    myLastRestartOffset = restartOffset;
+  }
+
+  void tokenLexed(int tokenStart, int state, boolean initialState) {
+    if (initialState) {
+      myLastRestartOffset = tokenStart;
+    }
+    else if (tokenStart - myLastRestartOffset >= DISTANCE && myLexer.isRestartableState(state)) {
+      myOffsets.add(tokenStart);
+      myStates.add(state);
+      myLastRestartOffset = tokenStart;
+    }
+  }
+
+  int size() {
+    return myOffsets.size();
+  }
+
+  int getOffset(int index) {
+    return myOffsets.getQuick(index);
+  }
+
+  int getState(int index) {
+    return myStates.getQuick(index);
+  }
+
+  /**
+   * @return index of the last checkpoint at or before the offset, -1 if there is none
+   */
+  int findBefore(int offset) {
+    int index = myOffsets.binarySearch(offset);
+    return index >= 0 ? index : -index - 2;
+  }
+
+  boolean hasCheckpoint(int offset, int state) {
+    int index = myOffsets.binarySearch(offset);
+    return index >= 0 && myStates.getQuick(index) == state;
+  }
+
+  /**
+   * Replaces checkpoints in the relexed range <code>(startOffset, oldEndOffset)</code> with the given ones and shifts checkpoints
+   * after the range. The lexer is restarted at <code>startOffset</code> in the same state, so a checkpoint there remains valid.
+   */
+  void replace(int startOffset, int oldEndOffset, @NotNull LexerCheckpoints newCheckpoints, int shift) {
+    int start = findBefore(startOffset) + 1;
+    int end = findBefore(oldEndOffset - 1) + 1;
+    for (int i = end; i < myOffsets.size(); i++) {
+      myOffsets.setQuick(i, myOffsets.getQuick(i) + shift);
+    }
+    if (end > start) {
+      myOffsets.remove(start, end - start);
+      myStates.remove(start, end - start);
+    }
+    if (newCheckpoints.size() > 0) {
+      myOffsets.insert(start, newCheckpoints.myOffsets.toNativeArray());
+      myStates.insert(start, newCheckpoints.myStates.toNativeArray());
+    }
+  }
+}
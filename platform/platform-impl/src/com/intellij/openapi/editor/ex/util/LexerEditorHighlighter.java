@@ -16,6 +16,7 @@
 package com.intellij.openapi.editor.ex.util;
 
 import com.intellij.lexer.Lexer;
+import com.intellij.lexer.RestartableLexer;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
@@ -52,6 +53,7 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   private final SyntaxHighlighter myHighlighter;
   private EditorColorsScheme myScheme;
   private final int myInitialState;
+  @Nullable private final LexerCheckpoints myCheckpoints;
 
   public LexerEditorHighlighter(@NotNull SyntaxHighlighter highlighter, @NotNull EditorColorsScheme scheme) {
     myScheme = scheme;
@@ -60,6 +62,7 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     myInitialState = myLexer.getState();
     myHighlighter = highlighter;
     mySegments = createSegments();
+    myCheckpoints = myLexer instanceof RestartableLexer ? new LexerCheckpoints((RestartableLexer)myLexer) : null;
   }
 
   protected SegmentArrayWithData createSegments() {
@@ -143,6 +146,7 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
 
     if (document instanceof DocumentEx && ((DocumentEx)document).isInBulkUpdate()) {
       mySegments.removeAll();
+      if (myCheckpoints != null) myCheckpoints.clear();
       return;
     }
 
@@ -164,10 +168,26 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     final int oldStartIndex = Math.max(0, segmentIndex);
     int startIndex = oldStartIndex;
 
+    // restart either at a token in the initial state or at the nearest checkpoint before it, whichever is closer
+    int checkpointOffset = -1;
+    int checkpointState = myInitialState;
+    if (myCheckpoints != null) {
+      int checkpoint = myCheckpoints.findBefore(mySegments.getSegmentStart(oldStartIndex));
+      if (checkpoint >= 0) {
+        checkpointOffset = myCheckpoints.getOffset(checkpoint);
+        checkpointState = myCheckpoints.getState(checkpoint);
+      }
+    }
+
     int data;
+    int restartState = myInitialState;
     do {
       data = mySegments.getSegmentData(startIndex);
       if (isInitialState(data)|| startIndex == 0) break;
+      if (mySegments.getSegmentStart(startIndex) == checkpointOffset) {
+        restartState = checkpointState;
+        break;
+      }
       startIndex--;
     }
     while (true);
@@ -175,7 +195,7 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     int startOffset = mySegments.getSegmentStart(startIndex);
     int newEndOffset = e.getOffset() + e.getNewLength();
 
-    myLexer.start(text, startOffset, text.length(), myInitialState);
+    myLexer.start(text, startOffset, text.length(), restartState);
 
     int lastTokenStart = -1;
     int lastLexerState = -1;
@@ -208,6 +228,11 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     int insertSegmentCount = 0;
     int oldEndIndex = -1;
     SegmentArrayWithData insertSegments = new SegmentArrayWithData();
+    LexerCheckpoints insertCheckpoints = null;
+    if (myCheckpoints != null) {
+      insertCheckpoints = new LexerCheckpoints((RestartableLexer)myLexer);
+      insertCheckpoints.startRecording(startOffset);
+    }
 
     while(myLexer.getTokenType() != null) {
       int tokenStart = myLexer.getTokenStart();
@@ -222,21 +247,30 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
 
       int tokenEnd = myLexer.getTokenEnd();
       data = packData(myLexer.getTokenType(), lexerState);
-      if(tokenStart >= newEndOffset && lexerState == myInitialState) {
+      if(tokenStart >= newEndOffset) {
         int shiftedTokenStart = tokenStart - e.getNewLength() + e.getOldLength();
-        int index = mySegments.findSegmentIndex(shiftedTokenStart);
-        if (mySegments.getSegmentStart(index) == shiftedTokenStart && mySegments.getSegmentData(index) == data) {
-          repaintEnd = tokenStart;
-          oldEndIndex = index;
-          break;
+        // the rest of the old tokens is valid if the lexer is at an old token in the same state it was there before
+        if (lexerState == myInitialState || myCheckpoints != null && myCheckpoints.hasCheckpoint(shiftedTokenStart, lexerState)) {
+          int index = mySegments.findSegmentIndex(shiftedTokenStart);
+          if (mySegments.getSegmentStart(index) == shiftedTokenStart && mySegments.getSegmentData(index) == data) {
+            repaintEnd = tokenStart;
+            oldEndIndex = index;
+            break;
+          }
         }
       }
+      if (insertCheckpoints != null) {
+        insertCheckpoints.tokenLexed(tokenStart, lexerState, lexerState == myInitialState);
+      }
       insertSegments.setElementAt(insertSegmentCount, tokenStart, tokenEnd, data);
       insertSegmentCount++;
       myLexer.advance();
     }
 
     final int shift = e.getNewLength() - e.getOldLength();
+    if (insertCheckpoints != null) {
+      myCheckpoints.replace(startOffset, repaintEnd < 0 ? Integer.MAX_VALUE : repaintEnd - shift, insertCheckpoints, shift);
+    }
     if (repaintEnd > 0) {
       while (insertSegmentCount > 0 && oldEndIndex > startIndex) {
         if (!segmentsEqual(mySegments, oldEndIndex - 1, insertSegments, insertSegmentCount - 1, shift)) {
@@ -306,12 +340,17 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     final TokenProcessor processor = createTokenProcessor(0);
     myLexer.start(text, 0, text.length(),myInitialState);
     mySegments.removeAll();
+    if (myCheckpoints != null) myCheckpoints.clear();
     int i = 0;
     while (true) {
       final IElementType tokenType = myLexer.getTokenType();
       if (tokenType == null) break;
 
-      int data = packData(tokenType, myLexer.getState());
+      int state = myLexer.getState();
+      if (myCheckpoints != null) {
+        myCheckpoints.tokenLexed(myLexer.getTokenStart(), state, state == myInitialState);
+      }
+      int data = packData(tokenType, state);
       processor.addToken(i, myLexer.getTokenStart(), myLexer.getTokenEnd(), data, tokenType);
       i++;
       myLexer.advance();
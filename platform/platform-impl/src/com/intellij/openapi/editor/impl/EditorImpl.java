@@ -79,7 +79,9 @@ import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.Convertor;
 import com.intellij.util.containers.HashMap;
 import com.intellij.util.messages.MessageBusConnection;
+import com.intellij.util.text.CharArrayCharSequence;
 import com.intellij.util.text.CharArrayUtil;
+import com.intellij.util.text.CharSequenceBackedByArray;
 import com.intellij.util.ui.ButtonlessScrollBarUI;
 import com.intellij.util.ui.MacUIUtil;
 import com.intellij.util.ui.UIUtil;
@@ -276,6 +278,8 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
   @Nullable
   private CharSequence myPlaceholderText;
   private int myLastPaintedPlaceholderWidth;
+  private CharSequence myPaintedText; // see getTextToPaint()
+  @Nullable private char[] myPaintedTextSource;
   
   private boolean myStickySelection;
   private int myStickySelectionStart;
@@ -2544,7 +2548,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
 
     Point position = new Point(0, visibleLine * lineHeight);
     if (startLine == 0 && myPrefixText != null) {
-      position.x = drawStringWithSoftWraps(g, myPrefixText, 0, myPrefixText.length, position, clip,
+      position.x = drawStringWithSoftWraps(g, new CharArrayCharSequence(myPrefixText), 0, myPrefixText.length, position, clip,
                                            myPrefixAttributes.getEffectColor(), myPrefixAttributes.getEffectType(),
                                            myPrefixAttributes.getFontType(), myPrefixAttributes.getForegroundColor(), logicalPosition);
     }
@@ -2571,7 +2575,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
       int fontType = attributes.getFontType();
       g.setColor(currentColor);
 
-      final char[] chars = myDocument.getRawChars();
+      final CharSequence chars = getTextToPaint();
 
       while (!iterationState.atEnd() && !lIterator.atEnd()) {
         int hEnd = iterationState.getEndOffset();
@@ -2670,7 +2674,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     }
     else {
       myLastPaintedPlaceholderWidth = drawString(
-        g, CharArrayUtil.fromSequence(hintText), 0, hintText.length(), new Point(0, 0), clip, null, null, Font.PLAIN,
+        g, hintText, 0, hintText.length(), new Point(0, 0), clip, null, null, Font.PLAIN,
         myFoldingModel.getPlaceholderAttributes().getForegroundColor()
       );
       flushCachedChars(g);
@@ -2697,8 +2701,27 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
            + "\n\ndocument info: " + myDocument.dumpState();
   }
   
+  /**
+   * @return text of the document to paint. The array of an array-backed document is wrapped once for as long as the document
+   * keeps it, so that paints don't allocate and CachedFontContent merges adjacent fragments of the text. Huge documents are not
+   * backed by an array, their text is painted without materializing it.
+   */
+  @NotNull
+  private CharSequence getTextToPaint() {
+    CharSequence text = myDocument.getCharsSequence();
+    if (!(text instanceof CharSequenceBackedByArray)) {
+      return text;
+    }
+    char[] chars = myDocument.getRawChars();
+    if (chars != myPaintedTextSource) {
+      myPaintedText = new CharArrayCharSequence(chars);
+      myPaintedTextSource = chars;
+    }
+    return myPaintedText;
+  }
+
   private class CachedFontContent {
-    final char[][] data = new char[CACHED_CHARS_BUFFER_SIZE][];
+    final CharSequence[] data = new CharSequence[CACHED_CHARS_BUFFER_SIZE];
     final int[] starts = new int[CACHED_CHARS_BUFFER_SIZE];
     final int[] ends = new int[CACHED_CHARS_BUFFER_SIZE];
     final int[] x = new int[CACHED_CHARS_BUFFER_SIZE];
@@ -2710,7 +2733,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     final boolean myHasBreakSymbols;
     final int spaceWidth;
 
-    @Nullable private char[] myLastData;
+    @Nullable private CharSequence myLastData;
 
     private CachedFontContent(@NotNull FontInfo fontInfo) {
       myFontType = fontInfo;
@@ -2741,14 +2764,14 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
       }
     }
 
-    private void addContent(@NotNull Graphics g, char[] _data, int _start, int _end, int _x, int _y, @Nullable Color _color) {
+    private void addContent(@NotNull Graphics g, CharSequence _data, int _start, int _end, int _x, int _y, @Nullable Color _color) {
       final int count = myCount;
       if (count > 0) {
         final int lastCount = count - 1;
         final Color lastColor = color[lastCount];
         if (_data == myLastData && _start == ends[lastCount] && (_color == null || lastColor == null || _color.equals(lastColor))
             && _y == y[lastCount] /* there is a possible case that vertical position is adjusted because of soft wrap */
-            && (!myHasBreakSymbols || !myFontType.getSymbolsToBreakDrawingIteration().contains(_data[ends[lastCount] - 1])))
+            && (!myHasBreakSymbols || !myFontType.getSymbolsToBreakDrawingIteration().contains(_data.charAt(ends[lastCount] - 1))))
         {
           ends[lastCount] = _end;
           if (lastColor == null) color[lastCount] = _color;
@@ -2853,12 +2876,12 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
                                       Color fontColor,
                                       @NotNull Ref<LogicalPosition> startDrawingLogicalPosition)
   {
-    return drawStringWithSoftWraps(g, text.toCharArray(), 0, text.length(), position, clip, effectColor, effectType,
+    return drawStringWithSoftWraps(g, text, 0, text.length(), position, clip, effectColor, effectType,
                                    fontType, fontColor, startDrawingLogicalPosition);
   }
 
   private int drawStringWithSoftWraps(@NotNull Graphics g,
-                                      final char[] text,
+                                      final CharSequence text,
                                       final int start,
                                       final int end,
                                       @NotNull Point position,
@@ -2907,6 +2930,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     outer:
     for (SoftWrap softWrap : getSoftWrapModel().getSoftWrapsForRange(startToUse, softWrapRetrievalEndOffset)) {
       char[] softWrapChars = softWrap.getChars();
+      CharSequence softWrapText = new CharArrayCharSequence(softWrapChars);
 
       if (softWrap.equals(lastSkippedSoftWrap)) {
         // If we are here that means that we are located on soft wrap-introduced visual line just after soft wrap. Hence, we need
@@ -2915,7 +2939,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
         if (i < softWrapChars.length - 1) {
           position.x = 0; // Soft wrap starts new visual line
           position.x = drawString(
-            g, softWrapChars, i + 1, softWrapChars.length, position, clip, null, null, fontType, fontColor
+            g, softWrapText, i + 1, softWrapChars.length, position, clip, null, null, fontType, fontColor
           );
         }
         position.x += mySoftWrapModel.paint(g, SoftWrapDrawingType.AFTER_SOFT_WRAP, position.x, position.y, getLineHeight());
@@ -2944,7 +2968,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
         // Draw soft wrap symbols on current visual line if any.
         if (i - softWrapSegmentStartIndex > 0) {
           drawString(
-            g, softWrapChars, softWrapSegmentStartIndex, i, position, clip, null, null, fontType, fontColor
+            g, softWrapText, softWrapSegmentStartIndex, i, position, clip, null, null, fontType, fontColor
           );
         }
         mySoftWrapModel.paint(g, SoftWrapDrawingType.BEFORE_SOFT_WRAP_LINE_FEED, position.x, position.y, getLineHeight());
@@ -2964,7 +2988,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
       // Draw remaining soft wrap symbols from its last line if any.
       if (softWrapSegmentStartIndex < softWrapChars.length) {
         position.x += drawString(
-          g, softWrapChars, softWrapSegmentStartIndex, softWrapChars.length, position, clip, null, null, fontType, fontColor
+          g, softWrapText, softWrapSegmentStartIndex, softWrapChars.length, position, clip, null, null, fontType, fontColor
         );
       }
       position.x += mySoftWrapModel.paint(g, SoftWrapDrawingType.AFTER_SOFT_WRAP, position.x, position.y, getLineHeight());
@@ -2974,7 +2998,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
   }
 
   private int drawString(@NotNull Graphics g,
-                         final char[] text,
+                         final CharSequence text,
                          int start,
                          int end,
                          @NotNull Point position,
@@ -3009,11 +3033,11 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     int y = getLineHeight() - getDescent() + position.y;
     int x = position.x;
 
-    return drawTabbedString(g, text.toCharArray(), 0, text.length(), x, y, effectColor, effectType, fontType, fontColor, clip);
+    return drawTabbedString(g, text, 0, text.length(), x, y, effectColor, effectType, fontType, fontColor, clip);
   }
 
   private int drawTabbedString(@NotNull Graphics g,
-                               char[] text,
+                               CharSequence text,
                                int start,
                                int end,
                                int x,
@@ -3026,7 +3050,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     int xStart = x;
 
     for (int i = start; i < end; i++) {
-      if (text[i] != '\t') continue;
+      if (text.charAt(i) != '\t') continue;
 
       x = drawTablessString(text, start, i, g, x, y, fontType, fontColor, clip);
 
@@ -3086,7 +3110,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     return x;
   }
 
-  private int drawTablessString(final char[] text,
+  private int drawTablessString(final CharSequence text,
                                 int start,
                                 final int end,
                                 @NotNull final Graphics g,
@@ -3097,9 +3121,9 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
                                 @NotNull final Rectangle clip) {
     int endX = x;
     if (start < end) {
-      FontInfo font = EditorUtil.fontForChar(text[start], fontType, this);
+      FontInfo font = EditorUtil.fontForChar(text.charAt(start), fontType, this);
       for (int j = start; j < end; j++) {
-        final char c = text[j];
+        final char c = text.charAt(j);
         FontInfo newFont = EditorUtil.fontForChar(c, fontType, this);
         if (font != newFont || endX > clip.x + clip.width) {
           if (!(x < clip.x && endX < clip.x || x > clip.x + clip.width && endX > clip.x + clip.width)) {
@@ -3156,18 +3180,18 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     }
   }
 
-  private void drawCharsCached(@NotNull Graphics g, char[] data, int start, int end, int x, int y, @JdkConstants.FontStyle int fontType, Color color) {
+  private void drawCharsCached(@NotNull Graphics g, CharSequence data, int start, int end, int x, int y, @JdkConstants.FontStyle int fontType, Color color) {
     if (!myForceRefreshFont && myCommonSpaceWidth > 0 && myLastCache != null && spacesOnly(data, start, end)) {
       myLastCache.addContent(g, data, start, end, x, y, null);
     }
     else {
       myForceRefreshFont = false;
-      FontInfo fnt = EditorUtil.fontForChar(data[start], fontType, this);
+      FontInfo fnt = EditorUtil.fontForChar(data.charAt(start), fontType, this);
       drawCharsCached(g, data, start, end, x, y, fnt, color);
     }
   }
 
-  private void drawCharsCached(@NotNull Graphics g, @NotNull char[] data, int start, int end, int x, int y, @NotNull FontInfo fnt, Color color) {
+  private void drawCharsCached(@NotNull Graphics g, @NotNull CharSequence data, int start, int end, int x, int y, @NotNull FontInfo fnt, Color color) {
     CachedFontContent cache = null;
     for (CachedFontContent fontCache : myFontCache) {
       if (fontCache.myFontType == fnt) {
@@ -3184,15 +3208,21 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     cache.addContent(g, data, start, end, x, y, color);
   }
 
-  private static boolean spacesOnly(char[] chars, int start, int end) {
+  private static boolean spacesOnly(CharSequence chars, int start, int end) {
     for (int i = start; i < end; i++) {
-      if (chars[i] != ' ') return false;
+      if (chars.charAt(i) != ' ') return false;
     }
     return true;
   }
 
-  private void drawChars(@NotNull Graphics g, char[] data, int start, int end, int x, int y) {
-    g.drawChars(data, start, end - start, x, y);
+  private void drawChars(@NotNull Graphics g, CharSequence data, int start, int end, int x, int y) {
+    char[] chars = CharArrayUtil.fromSequenceWithoutCopying(data);
+    if (chars != null) {
+      g.drawChars(chars, start, end - start, x, y);
+    }
+    else {
+      g.drawChars(data.subSequence(start, end).toString().toCharArray(), 0, end - start, x, y);
+    }
 
     if (mySettings.isWhitespacesShown()) {
       Color oldColor = g.getColor();
@@ -3200,10 +3230,11 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
       final FontMetrics metrics = g.getFontMetrics();
       int halfSpaceWidth = metrics.charWidth(' ') / 2;
       for (int i = start; i < end; i++) {
-        if (data[i] == ' ') {
+        char c = data.charAt(i);
+        if (c == ' ') {
           g.fillRect(x + halfSpaceWidth, y, 1, 1);
         }
-        x += metrics.charWidth(data[i]);
+        x += metrics.charWidth(c);
       }
       g.setColor(oldColor);
     }
@@ -6473,9 +6504,17 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
   }
 
   private class MyTextDrawingCallback implements TextDrawingCallback {
+    // the same wrapper is passed for the same array, so that CachedFontContent merges adjacent fragments of it
+    private char[] myLastData;
+    private CharSequence myLastText;
+
     @Override
     public void drawChars(@NotNull Graphics g, @NotNull char[] data, int start, int end, int x, int y, Color color, @NotNull FontInfo fontInfo) {
-      drawCharsCached(g, data, start, end, x, y, fontInfo, color);
+      if (data != myLastData) {
+        myLastData = data;
+        myLastText = new CharArrayCharSequence(data);
+      }
+      drawCharsCached(g, myLastText, start, end, x, y, fontInfo, color);
     }
   }
 }
@@ -310,7 +310,7 @@ public class SoftWrapModelImpl implements SoftWrapModelEx, PrioritizedDocumentLi
         result++; // Assuming that soft wrap has single line feed all the time
       }
     }
-    return result;
+    return result + myApplianceManager.getEstimatedPendingSoftWrapLinesNumber();
   }
 
   /**
@@ -32,6 +32,7 @@ import com.intellij.openapi.editor.impl.*;
 import com.intellij.openapi.editor.impl.softwrap.*;
 import com.intellij.openapi.editor.markup.TextAttributes;
 import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.Alarm;
 import org.intellij.lang.annotations.JdkConstants;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -58,6 +59,14 @@ import java.util.List;
 public class SoftWrapApplianceManager implements SoftWrapFoldingListener, DocumentListener, Dumpable {
   
   private static final Logger LOG = Logger.getInstance("#" + SoftWrapApplianceManager.class.getName());
+
+  /** Number of logical lines after the viewport (or caret) to calculate soft wraps for along with the viewport. */
+  private static final int VIEWPORT_MARGIN_LINES = 100;
+
+  /** Number of logical lines to calculate soft wraps for on every background refinement step. */
+  private static final int REFINEMENT_CHUNK_LINES = 2000;
+
+  private static final int REFINEMENT_DELAY_MILLIS = 10;
   
   /** Enumerates possible type of soft wrap indents to use. */
   enum IndentType {
@@ -77,6 +86,13 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
   private final ProcessingContext                          myContext              = new ProcessingContext();
   private final FontTypesStorage                           myOffset2fontType      = new FontTypesStorage();
   private final WidthsStorage                              myOffset2widthInPixels = new WidthsStorage();
+  private final Alarm                                      myRefinementAlarm      = new Alarm(Alarm.ThreadToUse.SWING_THREAD);
+  private final Runnable                                   myRefinementRequest    = new Runnable() {
+    @Override
+    public void run() {
+      refinePendingRegion();
+    }
+  };
 
   private final SoftWrapsStorage               myStorage;
   private final EditorEx                       myEditor;
@@ -94,6 +110,28 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
   private int myLastTopLeftCornerOffset = -1;
   private int myVerticalScrollBarWidth  = -1;
 
+  /**
+   * Complete soft wraps recalculation for a large document is too expensive to be performed at once, so, it's done
+   * on demand: soft wraps are calculated from the document start till the viewport (or caret) at first and the rest
+   * of the document is processed by chunks in background later.
+   * <p/>
+   * This field holds start offset of the document region that lasts till the document end and has no soft wraps calculated
+   * for it yet; <code>-1</code> if there is no such region.
+   */
+  private int myPendingStartOffset         = -1;
+
+  /**
+   * Cached result of {@link #getEstimatedPendingSoftWrapLinesNumber()}; <code>-1</code> if it's not calculated yet. The value
+   * is adjusted on document changes and on pending region shrinking, so, the whole pending region is scanned only once.
+   */
+  private int myEstimatedPendingWrapsLines = -1;
+  
+  /** Number of columns that fit into the visible area width used for {@link #myEstimatedPendingWrapsLines} calculation. */
+  private int myEstimateColumns;
+  
+  /** First logical line of the pending region changed by the document change being processed; <code>-1</code> if none. */
+  private int myEstimateChangeStartLine = -1;
+
   private VisibleAreaWidthProvider       myWidthProvider;
   private EditorTextRepresentationHelper myRepresentationHelper;
   private LineWrapPositionStrategy       myLineWrapPositionStrategy;
@@ -133,7 +171,10 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
 
   public void reset() {
     myEventsStorage.release();
-    myEventsStorage.add(myEditor.getDocument(), new IncrementalCacheUpdateEvent(myEditor.getDocument()));
+    myRefinementAlarm.cancelAllRequests();
+    myPendingStartOffset = 0;
+    myEstimatedPendingWrapsLines = -1;
+    myStorage.removeAll();
     for (SoftWrapAwareDocumentParsingListener listener : myListeners) {
       listener.reset();
     }
@@ -141,6 +182,8 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
   
   public void release() {
     myEventsStorage.release();
+    myRefinementAlarm.cancelAllRequests();
+    myPendingStartOffset = -1;
     myLineWrapPositionStrategy = null;
   }
 
@@ -167,13 +210,49 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
    */
   private boolean recalculateSoftWraps() {
     initListenerIfNecessary();
-    if (myEventsStorage.getEvents().isEmpty()) {
+    if (myEventsStorage.getEvents().isEmpty() && myPendingStartOffset < 0) {
       return true;
     }
     if (myVisibleAreaWidth <= 0) {
       return false;
     }
 
+    if (myPendingStartOffset >= 0) {
+      addPendingRegionEvent(getLastLineToCalculate());
+    }
+    processEvents(true);
+    return true;
+  }
+
+  /**
+   * Calculates soft wraps for the next chunk of the {@link #myPendingStartOffset pending document region}. Is expected to be
+   * called from background refinement request, i.e. outside of the viewport, hence, listeners are not notified on recalculation end
+   * in order not to scroll to caret etc.
+   */
+  void refinePendingRegion() {
+    if (myPendingStartOffset < 0 || myVisibleAreaWidth <= 0 || myEditor.isDisposed()
+        || !myEditor.getSoftWrapModel().isSoftWrappingEnabled())
+    {
+      return;
+    }
+    if (myInProgress || ((DocumentEx)myEditor.getDocument()).isInBulkUpdate()) {
+      scheduleRefinement();
+      return;
+    }
+
+    addPendingRegionEvent(myEditor.getDocument().getLineNumber(myPendingStartOffset) + REFINEMENT_CHUNK_LINES);
+    processEvents(false);
+    myEditor.getContentComponent().repaint();
+  }
+
+  private void processEvents(boolean notifyRecalculationEnd) {
+    if (myPendingStartOffset >= 0) {
+      scheduleRefinement();
+    }
+    if (myEventsStorage.getEvents().isEmpty()) {
+      return;
+    }
+
     // There is a possible case that new dirty regions are encountered during processing, hence, we iterate on regions snapshot here.
     List<IncrementalCacheUpdateEvent> events = new ArrayList<IncrementalCacheUpdateEvent>(myEventsStorage.getEvents());
     myActiveEvents.addAll(events);
@@ -189,7 +268,9 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
       ));
     }
     myInProgress = true;
-    myHasLinesWithFailedWrap = false;
+    if (notifyRecalculationEnd) {
+      myHasLinesWithFailedWrap = false;
+    }
     try {
       for (IncrementalCacheUpdateEvent event : events) {
         myEventBeingProcessed = event;
@@ -202,10 +283,121 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
       myEventBeingProcessed = null;
     }
     updateLastTopLeftCornerOffset();
-    for (SoftWrapAwareDocumentParsingListener listener : myListeners) {
-      listener.recalculationEnds();
+    if (notifyRecalculationEnd) {
+      for (SoftWrapAwareDocumentParsingListener listener : myListeners) {
+        listener.recalculationEnds();
+      }
     }
-    return true;
+  }
+
+  private void scheduleRefinement() {
+    if (myRefinementAlarm.getActiveRequestCount() <= 0) {
+      myRefinementAlarm.addRequest(myRefinementRequest, REFINEMENT_DELAY_MILLIS);
+    }
+  }
+
+  /**
+   * @return    logical line till which soft wraps should be calculated right now, i.e. the one that is a bit below the viewport
+   *            bottom or caret line
+   */
+  private int getLastLineToCalculate() {
+    Document document = myEditor.getDocument();
+    Rectangle visibleArea = myEditor.getScrollingModel().getVisibleArea();
+    int bottomVisualLine = (visibleArea.y + visibleArea.height) / myEditor.getLineHeight() + 1;
+    
+    // Soft wraps unaware mapping gives a logical line that is not above the actual one.
+    int bottomLine = myEditor.visualToLogicalPosition(new VisualPosition(bottomVisualLine, 0), false).line;
+    int caretLine = document.getLineNumber(Math.min(document.getTextLength(), myEditor.getCaretModel().getOffset()));
+    return Math.max(bottomLine, caretLine) + VIEWPORT_MARGIN_LINES;
+  }
+
+  /**
+   * Registers cache update event for the {@link #myPendingStartOffset pending document region} part that ends at the given
+   * logical line (the region end is adjusted to not lay inside collapsed fold region).
+   * 
+   * @param endLine   last logical line to calculate soft wraps for
+   */
+  private void addPendingRegionEvent(int endLine) {
+    if (myPendingStartOffset < 0) {
+      return;
+    }
+    Document document = myEditor.getDocument();
+    int startLine = document.getLineNumber(Math.min(myPendingStartOffset, document.getTextLength()));
+    if (endLine < startLine) {
+      return;
+    }
+
+    int startOffset = document.getLineStartOffset(startLine);
+    int endOffset = endLine < document.getLineCount() - 1 ? document.getLineEndOffset(endLine) : document.getTextLength();
+    FoldingModel foldingModel = myEditor.getFoldingModel();
+    for (
+      FoldRegion region = foldingModel.getCollapsedRegionAtOffset(endOffset);
+      region != null && endOffset < document.getTextLength();
+      region = foldingModel.getCollapsedRegionAtOffset(endOffset))
+    {
+      endOffset = document.getLineEndOffset(document.getLineNumber(region.getEndOffset()));
+    }
+    
+    if (endOffset >= document.getTextLength() - 1) {
+      endOffset = Math.max(0, document.getTextLength() - 1);
+      myPendingStartOffset = -1;
+      myEstimatedPendingWrapsLines = -1;
+      myRefinementAlarm.cancelAllRequests();
+    }
+    else {
+      myPendingStartOffset = endOffset + 1;
+      if (myEstimatedPendingWrapsLines >= 0) {
+        myEstimatedPendingWrapsLines -= estimateWrapLines(startLine, document.getLineNumber(myPendingStartOffset));
+      }
+    }
+    myEventsStorage.add(document, new IncrementalCacheUpdateEvent(document, startOffset, endOffset));
+  }
+
+  /**
+   * Soft wraps are not calculated for the document end until background refinement processes it
+   * (see {@link #myPendingStartOffset}). However, we want editor's height (and vertical scroll bar) to be close to the final
+   * one, hence, number of visual lines introduced by soft wraps there is estimated basing on the lines lengths. The estimate
+   * doesn't take into consideration tabulations, fold regions and wrap positions. 
+   * 
+   * @return    estimated number of visual lines to be introduced by soft wraps at the document region that is not processed yet
+   */
+  public int getEstimatedPendingSoftWrapLinesNumber() {
+    if (myPendingStartOffset < 0 || myVisibleAreaWidth <= 0) {
+      return 0;
+    }
+
+    int spaceWidth = Math.max(1, myRepresentationHelper.charWidth(' ', Font.PLAIN));
+    int width = myVisibleAreaWidth - myPainter.getMinDrawingWidth(SoftWrapDrawingType.BEFORE_SOFT_WRAP_LINE_FEED);
+    int columns = Math.max(1, width / spaceWidth);
+    if (myEstimatedPendingWrapsLines >= 0 && columns == myEstimateColumns) {
+      return myEstimatedPendingWrapsLines;
+    }
+
+    myEstimateColumns = columns;
+    return myEstimatedPendingWrapsLines = estimateWrapLines(getPendingStartLine(), myEditor.getDocument().getLineCount());
+  }
+
+  /**
+   * @param startLine   first logical line to process
+   * @param endLine     logical line to stop at (exclusive)
+   * @return            estimated number of visual lines introduced by soft wraps at the given lines for the
+   *                    {@link #myEstimateColumns current number of columns}
+   */
+  private int estimateWrapLines(int startLine, int endLine) {
+    Document document = myEditor.getDocument();
+    int result = 0;
+    for (int line = startLine; line < endLine; line++) {
+      int length = document.getLineEndOffset(line) - document.getLineStartOffset(line);
+      if (length > myEstimateColumns) {
+        result += (length - 1) / myEstimateColumns;
+      }
+    }
+    return result;
+  }
+
+  private int getPendingStartLine() {
+    Document document = myEditor.getDocument();
+    return document.getLineNumber(Math.min(myPendingStartOffset, document.getTextLength()));
   }
 
   private void recalculateSoftWraps(IncrementalCacheUpdateEvent event) {
@@ -1009,13 +1201,48 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
   @Override
   public void beforeDocumentChange(DocumentEvent event) {
     myEventsStorage.add(event.getDocument(), new IncrementalCacheUpdateEvent(event));
+    updatePendingEstimateBeforeChange(event);
+    if (myPendingStartOffset > event.getOffset()) {
+      myPendingStartOffset = event.getOffset() + event.getOldLength() > myPendingStartOffset
+                             ? event.getOffset() : myPendingStartOffset + event.getNewLength() - event.getOldLength();
+    }
   }
 
   @Override
   public void documentChanged(DocumentEvent event) {
+    if (myEstimateChangeStartLine >= 0) {
+      Document document = event.getDocument();
+      int endLine = document.getLineNumber(event.getOffset() + event.getNewLength());
+      myEstimatedPendingWrapsLines += estimateWrapLines(myEstimateChangeStartLine, endLine + 1);
+      myEstimateChangeStartLine = -1;
+    }
     recalculateIfNecessary();
   }
 
+  /**
+   * Keeps {@link #myEstimatedPendingWrapsLines cached estimate} up to date: the changed lines of the pending region are excluded
+   * from it here and included back with their new content on {@link #documentChanged(DocumentEvent)}. Changes located before
+   * the pending region don't affect the estimate.
+   */
+  private void updatePendingEstimateBeforeChange(DocumentEvent event) {
+    myEstimateChangeStartLine = -1;
+    if (myPendingStartOffset < 0 || myEstimatedPendingWrapsLines < 0) {
+      return;
+    }
+    Document document = event.getDocument();
+    int pendingStartLine = getPendingStartLine();
+    int changeEndOffset = event.getOffset() + event.getOldLength();
+    if (event.getOffset() >= myPendingStartOffset) {
+      int startLine = document.getLineNumber(event.getOffset());
+      myEstimatedPendingWrapsLines -= estimateWrapLines(startLine, document.getLineNumber(changeEndOffset) + 1);
+      myEstimateChangeStartLine = startLine;
+    }
+    else if (changeEndOffset >= document.getLineStartOffset(pendingStartLine)) {
+      // The change touches the pending region start line, the region is extended then.
+      myEstimatedPendingWrapsLines = -1;
+    }
+  }
+
   public void setWidthProvider(@NotNull VisibleAreaWidthProvider widthProvider) {
     myWidthProvider = widthProvider;
     reset();
@@ -1030,8 +1257,9 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
   @Override
   public String dumpState() {
     return String.format(
-      "recalculation in progress: %b; stored update events: %s; active update events: %s, event being processed: %s",
-      myInProgress, myEventsStorage, myActiveEvents, myEventBeingProcessed
+      "recalculation in progress: %b; stored update events: %s; active update events: %s, event being processed: %s, "
+      + "pending region start: %d",
+      myInProgress, myEventsStorage, myActiveEvents, myEventBeingProcessed, myPendingStartOffset
     );
   }
 
@@ -35,6 +35,9 @@ import gnu.trove.THashSet;
 import java.util.Collection;
 import java.util.Set;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 class CacheUpdateRunner {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.project.CacheUpdateRunner");
@@ -42,6 +45,9 @@ class CacheUpdateRunner {
   private final Project myProject;
   private final Collection<CacheUpdater> myUpdaters;
   private CacheUpdateSession mySession;
+  private final AtomicLong myIndexingTime = new AtomicLong(); // summed over indexing threads, ns
+  private final AtomicInteger myIndexedFiles = new AtomicInteger();
+  private int myIndexingThreadsCount;
 
   CacheUpdateRunner(Project project, Collection<CacheUpdater> updaters) {
     myProject = project;
@@ -69,7 +75,12 @@ class CacheUpdateRunner {
       final FileContentQueue queue = new FileContentQueue();
       Collection<VirtualFile> files = mySession.getFilesToUpdate();
       final double total = files.size();
-      queue.queue(files, indicator);
+      final long started = System.nanoTime();
+      int loadingThreadsCount = Registry.intValue("caches.contentLoaderThreadsCount");
+      if (loadingThreadsCount <= 0) {
+        loadingThreadsCount = Math.max(1, Math.min(PROC_COUNT / 2, 4));
+      }
+      queue.queue(files, indicator, loadingThreadsCount);
 
       Consumer<VirtualFile> progressUpdater = new Consumer<VirtualFile>() {
         // need set here to handle queue.pushbacks after checkCancelled() in order
@@ -103,6 +114,8 @@ class CacheUpdateRunner {
         indicator.cancel();
         indicator.checkCanceled();
       }
+
+      logStatistics(queue, loadingThreadsCount, System.nanoTime() - started);
     }
     catch (ProcessCanceledException e) {
       mySession.canceled();
@@ -110,6 +123,19 @@ class CacheUpdateRunner {
     }
   }
 
+  private void logStatistics(FileContentQueue queue, int loadingThreadsCount, long totalTime) {
+    final int files = myIndexedFiles.get();
+    if (files == 0) return;
+    final long loadingTime = TimeUnit.NANOSECONDS.toMillis(queue.getLoadingTimeNanos());
+    final long indexingTime = TimeUnit.NANOSECONDS.toMillis(myIndexingTime.get());
+    // per-stage rates are given per thread, so the stage limiting total throughput is the one with lowest rate * threads
+    LOG.info("Indexed " + files + " files in " + TimeUnit.NANOSECONDS.toMillis(totalTime) + "ms (" +
+             files * 1000L / Math.max(1, TimeUnit.NANOSECONDS.toMillis(totalTime)) + " files/s); " +
+             "loading: " + loadingThreadsCount + " thread(s), " + queue.getLoadedFilesCount() * 1000L / Math.max(1, loadingTime) +
+             " files/s per thread, " + queue.getLoadedBytes() * 1000 / Math.max(1, loadingTime) / (1024 * 1024) + "MB/s per thread; " +
+             "indexing: " + myIndexingThreadsCount + " thread(s), " + files * 1000L / Math.max(1, indexingTime) + " files/s per thread");
+  }
+
   public void updatingDone() {
     try {
       mySession.updatingDone();
@@ -142,8 +168,9 @@ class CacheUpdateRunner {
     try {
       int threadsCount = Registry.intValue("caches.indexerThreadsCount");
       if (threadsCount <= 0) {
-        threadsCount = Math.min(PROC_COUNT, 4);
+        threadsCount = PROC_COUNT;
       }
+      myIndexingThreadsCount = threadsCount;
       if (threadsCount == 1) {
         Runnable process = new MyRunnable(innerIndicator, queue, isFinished, progressUpdater, processInReadAction, application);
         ProgressManager.getInstance().runProcess(process, innerIndicator);
@@ -225,7 +252,10 @@ class CacheUpdateRunner {
 
               final VirtualFile file = fileContent.getVirtualFile();
               myProgressUpdater.consume(file);
+              final long started = System.nanoTime();
               mySession.processFile(fileContent);
+              myIndexingTime.addAndGet(System.nanoTime() - started);
+              myIndexedFiles.incrementAndGet();
             }
           };
           if (myProcessInReadAction) {
@@ -31,7 +31,10 @@ import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
 * @author peter
@@ -46,43 +49,83 @@ public class FileContentQueue {
   private long myTotalSize;
   private long myTakenSize;
   private boolean myLargeSizeRequested;
+  private long myQueuedSizeLimit = SIZE_THRESHOLD;
 
   private final ArrayBlockingQueue<FileContent> myQueue = new ArrayBlockingQueue<FileContent>(256);
   private final Queue<FileContent> myPushbackBuffer = new ArrayDeque<FileContent>();
   private volatile boolean myContentLoadingThreadTerminated = false;
 
+  private final AtomicLong myLoadingTime = new AtomicLong(); // summed over loading threads, ns
+  private final AtomicLong myLoadedBytes = new AtomicLong();
+  private final AtomicInteger myLoadedFiles = new AtomicInteger();
+
   public void queue(final Collection<VirtualFile> files, @Nullable final ProgressIndicator indicator) {
+    queue(files, indicator, 1);
+  }
+
+  /**
+   * Loads contents of the files in several pooled threads, the order of contents in the queue is not preserved then.
+   */
+  public void queue(final Collection<VirtualFile> files, @Nullable final ProgressIndicator indicator, int loadingThreadsCount) {
+    final Queue<VirtualFile> filesToLoad = new ConcurrentLinkedQueue<VirtualFile>(files);
+    final int threadsCount = Math.max(1, Math.min(loadingThreadsCount, files.size()));
+    final AtomicInteger runningThreads = new AtomicInteger(threadsCount);
+    final boolean[] canceled = new boolean[1];
+    synchronized (this) {
+      myQueuedSizeLimit = SIZE_THRESHOLD * threadsCount;
+    }
+
     final Runnable contentLoadingRunnable = new Runnable() {
       public void run() {
         try {
-          for (VirtualFile file : files) {
+          VirtualFile file;
+          while ((file = filesToLoad.poll()) != null) {
             if (indicator != null) {
               indicator.checkCanceled();
             }
             addLast(file);
           }
-
-          // put end-of-queue marker only if not canceled
-          try {
-            myQueue.put(new FileContent(null));
-          }
-          catch (InterruptedException e) {
-            LOG.error(e);
-          }
         }
         catch (ProcessCanceledException e) {
+          canceled[0] = true;
           // Do nothing, exit the thread.
         }
         catch (InterruptedException e) {
+          canceled[0] = true;
           LOG.error(e);
         }
         finally {
-          myContentLoadingThreadTerminated = true;
+          if (runningThreads.decrementAndGet() == 0) {
+            // put end-of-queue marker only if not canceled
+            if (!canceled[0]) {
+              try {
+                myQueue.put(new FileContent(null));
+              }
+              catch (InterruptedException e) {
+                LOG.error(e);
+              }
+            }
+            myContentLoadingThreadTerminated = true;
+          }
         }
       }
     };
 
-    ApplicationManager.getApplication().executeOnPooledThread(contentLoadingRunnable);
+    for (int i = 0; i < threadsCount; i++) {
+      ApplicationManager.getApplication().executeOnPooledThread(contentLoadingRunnable);
+    }
+  }
+
+  public long getLoadingTimeNanos() {
+    return myLoadingTime.get();
+  }
+
+  public long getLoadedBytes() {
+    return myLoadedBytes.get();
+  }
+
+  public int getLoadedFilesCount() {
+    return myLoadedFiles.get();
   }
 
   private void addLast(VirtualFile file) throws InterruptedException {
@@ -107,7 +150,7 @@ public class FileContentQueue {
     boolean counterUpdated = false;
     try {
       synchronized (this) {
-        while (myTotalSize > SIZE_THRESHOLD) {
+        while (myTotalSize > myQueuedSizeLimit || myTotalSize > 0 && isHeapShort(contentLength)) {
           if (indicator != null) {
             indicator.checkCanceled();
           }
@@ -117,7 +160,11 @@ public class FileContentQueue {
         counterUpdated = true;
       }
 
+      final long started = System.nanoTime();
       content.getBytes(); // Reads the content bytes and caches them.
+      myLoadingTime.addAndGet(System.nanoTime() - started);
+      myLoadedBytes.addAndGet(contentLength);
+      myLoadedFiles.incrementAndGet();
 
       return true;
     }
@@ -143,6 +190,14 @@ public class FileContentQueue {
     }
   }
 
+  // don't prefetch more contents when it can make indexing threads run out of memory, at least one content is always allowed though
+  private static boolean isHeapShort(long requested) {
+    final Runtime runtime = Runtime.getRuntime();
+    final long maxMemory = runtime.maxMemory();
+    final long available = maxMemory - (runtime.totalMemory() - runtime.freeMemory());
+    return available - requested < maxMemory / 10;
+  }
+
   @Nullable
   public FileContent take() {
 
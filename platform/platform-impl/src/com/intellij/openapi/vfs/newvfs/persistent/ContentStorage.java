@@ -0,0 +1,142 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.ByteSequence;
+import com.intellij.util.io.CompressionCodec;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import com.intellij.util.io.PersistentHashMap;
+import com.intellij.util.io.storage.CapacityAllocationPolicy;
+import com.intellij.util.io.storage.RefCountingStorage;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * File contents storage: every record starts with {@link CompressionCodec#getId() codec id} followed by raw or compressed bytes,
+ * contents are compressed with the {@link CompressionCodec#getPreferred() preferred} codec.
+ * <p/>
+ * Identical contents may share one record: records are registered by content hash once written,
+ * and {@link #acquireRecordWithContent(ByteSequence)} finds and acquires live record with equal content.
+ * Records are compared byte by byte, so hash collisions and stale hashes of freed or rewritten records are harmless.
+ */
+class ContentStorage extends RefCountingStorage {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.vfs.persistent.ContentStorage");
+
+  private static final int COMPRESSION_THRESHOLD = 64;
+
+  private final PersistentHashMap<Integer, Integer> myHashToRecord;
+
+  ContentStorage(@NotNull File contentsFile, @NotNull File hashesFile) throws IOException {
+    super(contentsFile.getCanonicalPath(), CapacityAllocationPolicy.FIVE_PERCENT_FOR_GROWTH); // sources usually zipped with 4x ratio
+    try {
+      myHashToRecord = new PersistentHashMap<Integer, Integer>(hashesFile, EnumeratorIntegerDescriptor.INSTANCE,
+                                                               EnumeratorIntegerDescriptor.INSTANCE);
+    }
+    catch (IOException e) {
+      super.dispose();
+      throw e;
+    }
+  }
+
+  /**
+   * @return acquired record holding the same content or 0 if there is none
+   */
+  int acquireRecordWithContent(@NotNull ByteSequence content) throws IOException {
+    if (content.getLength() == 0) return 0;
+    Integer record = myHashToRecord.get(hash(content));
+    if (record == null || !acquireRecordWithContent(record.intValue(), content)) return 0;
+    return record.intValue();
+  }
+
+  /**
+   * Makes content written to the record available for sharing
+   */
+  void registerContent(int record, @NotNull ByteSequence content) throws IOException {
+    if (content.getLength() == 0) return;
+    myHashToRecord.put(hash(content), record);
+  }
+
+  private static int hash(ByteSequence content) {
+    byte[] bytes = content.getBytes();
+    int hash = content.getLength();
+    for (int i = content.getOffset(), end = content.getOffset() + content.getLength(); i < end; i++) {
+      hash = 31 * hash + bytes[i];
+    }
+    return hash;
+  }
+
+  @NotNull
+  @Override
+  protected BufferExposingByteArrayOutputStream compress(@NotNull ByteSequence bytes) throws IOException {
+    int length = bytes.getLength();
+    BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream(length + 1);
+    if (length > COMPRESSION_THRESHOLD) {
+      CompressionCodec codec = CompressionCodec.getPreferred();
+      out.write(codec.getId());
+      if (codec.compress(bytes.getBytes(), bytes.getOffset(), length, out) < length) {
+        return out;
+      }
+      out.reset();
+    }
+    out.write(CompressionCodec.RAW.getId());
+    out.write(bytes.getBytes(), bytes.getOffset(), length);
+    return out;
+  }
+
+  @NotNull
+  @Override
+  protected BufferExposingByteArrayOutputStream decompress(@NotNull byte[] compressed) throws IOException {
+    if (compressed.length == 0) return new BufferExposingByteArrayOutputStream(0); // record acquired but not written yet
+
+    CompressionCodec codec = CompressionCodec.forId(compressed[0]);
+    int expectedLength = codec == CompressionCodec.RAW ? compressed.length - 1 : compressed.length * 4;
+    BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream(expectedLength);
+    codec.decompress(compressed, 1, compressed.length - 1, out);
+    return out;
+  }
+
+  @Override
+  public void force() {
+    super.force();
+    myHashToRecord.force();
+  }
+
+  @Override
+  public boolean isDirty() {
+    return super.isDirty() || myHashToRecord.isDirty();
+  }
+
+  @Override
+  public boolean flushSome() {
+    myHashToRecord.force();
+    return super.flushSome();
+  }
+
+  @Override
+  public void dispose() {
+    try {
+      myHashToRecord.close();
+    }
+    catch (IOException e) {
+      LOG.error(e);
+    }
+    super.dispose();
+  }
+}
@@ -30,6 +30,7 @@ import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.ByteSequence;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.ArrayUtil;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.concurrency.JBLock;
 import com.intellij.util.concurrency.JBReentrantReadWriteLock;
 import com.intellij.util.concurrency.LockFactory;
@@ -51,7 +52,7 @@ import java.util.concurrent.ScheduledFuture;
 public class FSRecords implements Forceable {
   private static final Logger LOG = Logger.getInstance("#com.intellij.vfs.persistent.FSRecords");
 
-  private static final int VERSION = 17;
+  private static final int VERSION = 18;
 
   private static final int PARENT_OFFSET = 0;
   private static final int PARENT_SIZE = 4;
@@ -74,8 +75,13 @@ public class FSRecords implements Forceable {
 
   private static final byte[] ZEROES = new byte[RECORD_SIZE];
 
+  // in columnar mode fields of records are kept in separate files (see RecordColumns) and records file contains header only
+  private static final boolean COLUMNAR_RECORDS = SystemProperties.getBooleanProperty("idea.vfs.columnar.records", false);
+  private static final int ROWS_STORAGE_MODE = 0;
+  private static final int COLUMNS_STORAGE_MODE = 1;
+
   private static final int HEADER_VERSION_OFFSET = 0;
-  //private static final int HEADER_RESERVED_4BYTES_OFFSET = 4; // reserved
+  private static final int HEADER_STORAGE_MODE_OFFSET = 4;
   private static final int HEADER_GLOBAL_MOD_COUNT_OFFSET = 8;
   private static final int HEADER_CONNECTION_STATUS_OFFSET = 12;
   private static final int HEADER_TIMESTAMP_OFFSET = 16;
@@ -89,6 +95,8 @@ public class FSRecords implements Forceable {
 
   private static final JBLock r;
   private static final JBLock w;
+  // guards reads of fixed-width record fields, these don't need lock in columnar mode
+  private static final JBLock fr;
 
   private static volatile int ourLocalModificationCount = 0;
   private static volatile boolean ourIsDisposed;
@@ -103,6 +111,15 @@ public class FSRecords implements Forceable {
     JBReentrantReadWriteLock lock = LockFactory.createReadWriteLock();
     r = lock.readLock();
     w = lock.writeLock();
+    fr = !COLUMNAR_RECORDS ? r : new JBLock() {
+      @Override
+      public void lock() {
+      }
+
+      @Override
+      public void unlock() {
+      }
+    };
   }
 
   private static class DbConnection {
@@ -111,8 +128,9 @@ public class FSRecords implements Forceable {
 
     private static PersistentStringEnumerator myNames;
     private static Storage myAttributes;
-    private static RefCountingStorage myContents;
+    private static ContentStorage myContents;
     private static ResizeableMappedFile myRecords;
+    private static RecordColumns myColumns;
     private static final TIntArrayList myFreeRecords = new TIntArrayList();
 
     private static boolean myDirty = false;
@@ -137,10 +155,7 @@ public class FSRecords implements Forceable {
     }
 
     private static void scanFreeRecords() {
-      final int filelength = (int)getRecords().length();
-      LOG.assertTrue(filelength % RECORD_SIZE == 0, "invalid file size: " + filelength);
-
-      int count = filelength / RECORD_SIZE;
+      int count = getRecordCount();
       for (int n = 2; n < count; n++) {
         if ((getFlags(n) & FREE_RECORD_FLAG) != 0) {
           addFreeRecord(n);
@@ -195,6 +210,7 @@ public class FSRecords implements Forceable {
       final File namesFile = new File(basePath, "names.dat");
       final File attributesFile = new File(basePath, "attrib.dat");
       final File contentsFile = new File(basePath, "content.dat");
+      final File contentHashesFile = new File(basePath, "content.hashes");
       final File recordsFile = new File(basePath, "records.dat");
 
       if (!namesFile.exists()) {
@@ -207,14 +223,19 @@ public class FSRecords implements Forceable {
           throw new IOException("Corruption marker file found");
         }
 
-        PagedFileStorage.StorageLockContext storageLockContext = new PagedFileStorage.StorageLock(false).myDefaultStorageLockContext;
+        PagedFileStorage.StorageLock storageLock = new PagedFileStorage.StorageLock(false);
+        PagedFileStorage.StorageLockContext storageLockContext = storageLock.myDefaultStorageLockContext;
         myNames = new PersistentStringEnumerator(namesFile, storageLockContext);
         myAttributes = new Storage(attributesFile.getCanonicalPath(), REASONABLY_SMALL);
-        myContents = new RefCountingStorage(contentsFile.getCanonicalPath(), CapacityAllocationPolicy.FIVE_PERCENT_FOR_GROWTH); // sources usually zipped with 4x ratio
+        myContents = new ContentStorage(contentsFile, contentHashesFile);
         boolean aligned = PagedFileStorage.BUFFER_SIZE % RECORD_SIZE == 0;
         assert aligned; // for performance
         myRecords = new ResizeableMappedFile(recordsFile, 20 * 1024, storageLockContext,
                                              PagedFileStorage.BUFFER_SIZE, aligned);
+        if (COLUMNAR_RECORDS) {
+          myColumns = new RecordColumns(recordsFile, storageLock, new int[]{PARENT_OFFSET, NAME_OFFSET, FLAGS_OFFSET, ATTR_REF_OFFSET,
+            CONTENT_OFFSET, TIMESTAMP_OFFSET, MOD_COUNT_OFFSET, LENGTH_OFFSET}, RECORD_SIZE);
+        }
 
         if (myRecords.length() == 0) {
           cleanRecord(0); // Clean header
@@ -226,6 +247,10 @@ public class FSRecords implements Forceable {
           throw new IOException("FS repository version mismatch");
         }
 
+        if (myRecords.getInt(HEADER_STORAGE_MODE_OFFSET) != getStorageMode()) {
+          throw new IOException("FS repository storage mode mismatch");
+        }
+
         if (myRecords.getInt(HEADER_CONNECTION_STATUS_OFFSET) != SAFELY_CLOSED_MAGIC) {
           throw new IOException("FS repository wasn't safely shut down");
         }
@@ -241,6 +266,7 @@ public class FSRecords implements Forceable {
           deleted &= deleteWithSubordinates(namesFile);
           deleted &= AbstractStorage.deleteFiles(attributesFile.getCanonicalPath());
           deleted &= AbstractStorage.deleteFiles(contentsFile.getCanonicalPath());
+          deleted &= deleteWithSubordinates(contentHashesFile);
           deleted &= deleteWithSubordinates(recordsFile);
 
           if (!deleted) {
@@ -358,6 +384,7 @@ public class FSRecords implements Forceable {
           myAttributes.force();
           myContents.force();
           myRecords.force();
+          if (myColumns != null) myColumns.force();
         }
       }
       finally {
@@ -380,6 +407,7 @@ public class FSRecords implements Forceable {
         if (attribsFlushed && contentsFlushed) {
           markClean();
           myRecords.force();
+          if (myColumns != null) myColumns.force();
         }
       }
       finally {
@@ -388,7 +416,8 @@ public class FSRecords implements Forceable {
     }
 
     public static boolean isDirty() {
-      return myDirty || myNames.isDirty() || myAttributes.isDirty() || myContents.isDirty() || myRecords.isDirty();
+      return myDirty || myNames.isDirty() || myAttributes.isDirty() || myContents.isDirty() || myRecords.isDirty() ||
+             myColumns != null && myColumns.isDirty();
     }
 
 
@@ -403,8 +432,13 @@ public class FSRecords implements Forceable {
       return myRecords.getLong(HEADER_TIMESTAMP_OFFSET);
     }
 
+    private static int getStorageMode() {
+      return myColumns != null ? COLUMNS_STORAGE_MODE : ROWS_STORAGE_MODE;
+    }
+
     private static void setCurrentVersion() {
       myRecords.putInt(HEADER_VERSION_OFFSET, VERSION);
+      myRecords.putInt(HEADER_STORAGE_MODE_OFFSET, getStorageMode());
       myRecords.putLong(HEADER_TIMESTAMP_OFFSET, System.currentTimeMillis());
       myAttributes.setVersion(VERSION);
       myContents.setVersion(VERSION);
@@ -412,9 +446,21 @@ public class FSRecords implements Forceable {
     }
 
     public static void cleanRecord(final int id) {
+      if (myColumns != null) {
+        myColumns.cleanRecord(id);
+        if (id != 0) return;
+      }
       myRecords.put(id * RECORD_SIZE, ZEROES, 0, RECORD_SIZE);
     }
 
+    public static int getRecordCount() {
+      if (myColumns != null) return myColumns.getRecordCount();
+
+      final int filelength = (int)myRecords.length();
+      LOG.assertTrue(filelength % RECORD_SIZE == 0, "invalid file size: " + filelength);
+      return filelength / RECORD_SIZE;
+    }
+
     public static PersistentStringEnumerator getNames() {
       return myNames;
     }
@@ -423,6 +469,11 @@ public class FSRecords implements Forceable {
       return myRecords;
     }
 
+    @Nullable
+    public static RecordColumns getColumns() {
+      return myColumns;
+    }
+
     private static void closeFiles() throws IOException {
       if (myFlushingFuture != null) {
         myFlushingFuture.cancel(false);
@@ -442,6 +493,7 @@ public class FSRecords implements Forceable {
       if (myContents != null) {
         Disposer.dispose(myContents);
         myContents = null;
+        LOG.info("VFS contents: " + IOStatistics.getContentStatistics());
       }
 
       if (myRecords != null) {
@@ -449,6 +501,11 @@ public class FSRecords implements Forceable {
         myRecords.close();
         myRecords = null;
       }
+
+      if (myColumns != null) {
+        myColumns.close();
+        myColumns = null;
+      }
       ourInitialized = false;
     }
 
@@ -518,7 +575,7 @@ public class FSRecords implements Forceable {
     return DbConnection.getRecords();
   }
 
-  private static RefCountingStorage getContentStorage() {
+  private static ContentStorage getContentStorage() {
     return DbConnection.myContents;
   }
 
@@ -537,11 +594,9 @@ public class FSRecords implements Forceable {
 
       final int free = DbConnection.getFreeRecord();
       if (free == 0) {
-        final int filelength = (int)getRecords().length();
-        LOG.assertTrue(filelength % RECORD_SIZE == 0);
-        int newrecord = filelength / RECORD_SIZE;
+        int newrecord = DbConnection.getRecordCount();
         DbConnection.cleanRecord(newrecord);
-        assert filelength + RECORD_SIZE == getRecords().length();
+        assert newrecord + 1 == DbConnection.getRecordCount();
         return newrecord;
       }
       else {
@@ -881,7 +936,7 @@ public class FSRecords implements Forceable {
 
   public static int getParent(int id) {
     try {
-      r.lock();
+      fr.lock();
       try {
         final int parentId = getRecordInt(id, PARENT_OFFSET);
         if (parentId == id) {
@@ -892,7 +947,7 @@ public class FSRecords implements Forceable {
         return parentId;
       }
       finally {
-        r.unlock();
+        fr.unlock();
       }
     }
     catch (Throwable e) {
@@ -921,13 +976,13 @@ public class FSRecords implements Forceable {
 
   public static String getName(int id) {
     try {
-      r.lock();
+      fr.lock();
       try {
         final int nameId = getRecordInt(id, NAME_OFFSET);
         return nameId != 0 ? getNames().valueOf(nameId) : "";
       }
       finally {
-        r.unlock();
+        fr.unlock();
       }
     }
     catch (Throwable e) {
@@ -951,11 +1006,11 @@ public class FSRecords implements Forceable {
 
   public static int getFlags(int id) {
     try {
-      r.lock();
+      fr.lock();
       return getRecordInt(id, FLAGS_OFFSET);
     }
     finally {
-      r.unlock();
+      fr.unlock();
     }
   }
 
@@ -977,11 +1032,11 @@ public class FSRecords implements Forceable {
 
   public static long getLength(int id) {
     try {
-      r.lock();
-      return getRecords().getLong(getOffset(id, LENGTH_OFFSET));
+      fr.lock();
+      return getRecordLong(id, LENGTH_OFFSET);
     }
     finally {
-      r.unlock();
+      fr.unlock();
     }
   }
 
@@ -989,7 +1044,7 @@ public class FSRecords implements Forceable {
     try {
       w.lock();
       incModCount(id);
-      getRecords().putLong(getOffset(id, LENGTH_OFFSET), len);
+      putRecordLong(id, LENGTH_OFFSET, len);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1001,11 +1056,11 @@ public class FSRecords implements Forceable {
 
   public static long getTimestamp(int id) {
     try {
-      r.lock();
-      return getRecords().getLong(getOffset(id, TIMESTAMP_OFFSET));
+      fr.lock();
+      return getRecordLong(id, TIMESTAMP_OFFSET);
     }
     finally {
-      r.unlock();
+      fr.unlock();
     }
   }
 
@@ -1013,7 +1068,7 @@ public class FSRecords implements Forceable {
     try {
       w.lock();
       incModCount(id);
-      getRecords().putLong(getOffset(id, TIMESTAMP_OFFSET), value);
+      putRecordLong(id, TIMESTAMP_OFFSET, value);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1025,11 +1080,11 @@ public class FSRecords implements Forceable {
 
   public static int getModCount(int id) {
     try {
-      r.lock();
+      fr.lock();
       return getRecordInt(id, MOD_COUNT_OFFSET);
     }
     finally {
-      r.unlock();
+      fr.unlock();
     }
   }
 
@@ -1054,11 +1109,35 @@ public class FSRecords implements Forceable {
   }
 
   private static int getRecordInt(int id, int offset) {
+    RecordColumns columns = DbConnection.getColumns();
+    if (columns != null) return columns.getInt(id, offset);
     return getRecords().getInt(getOffset(id, offset));
   }
 
   private static void putRecordInt(int id, int offset, int value) {
-    getRecords().putInt(getOffset(id, offset), value);
+    RecordColumns columns = DbConnection.getColumns();
+    if (columns != null) {
+      columns.putInt(id, offset, value);
+    }
+    else {
+      getRecords().putInt(getOffset(id, offset), value);
+    }
+  }
+
+  private static long getRecordLong(int id, int offset) {
+    RecordColumns columns = DbConnection.getColumns();
+    if (columns != null) return columns.getLong(id, offset);
+    return getRecords().getLong(getOffset(id, offset));
+  }
+
+  private static void putRecordLong(int id, int offset, long value) {
+    RecordColumns columns = DbConnection.getColumns();
+    if (columns != null) {
+      columns.putLong(id, offset, value);
+    }
+    else {
+      getRecords().putLong(getOffset(id, offset), value);
+    }
   }
 
   private static int getOffset(int id, int offset) {
@@ -1120,10 +1199,11 @@ public class FSRecords implements Forceable {
 
     int recordId = getContentRecordId(fileId);
     if (toWrite) {
-      if (recordId == 0 || getContentStorage().getRefCount(recordId) > 1) {
-        recordId = getContentStorage().acquireNewRecord();
-        setContentRecordId(fileId, recordId);
-      }
+      // records are never rewritten since they could have been found by content hash and shared meanwhile
+      int oldRecordId = recordId;
+      recordId = getContentStorage().acquireNewRecord();
+      setContentRecordId(fileId, recordId);
+      if (oldRecordId != 0) getContentStorage().releaseRecord(oldRecordId);
     }
 
     return recordId;
@@ -1231,10 +1311,13 @@ public class FSRecords implements Forceable {
 
   public static int storeUnlinkedContent(byte[] bytes) {
     try {
-      int recordId = getContentStorage().acquireNewRecord();
-      AbstractStorage.StorageDataOutput output = getContentStorage().writeStream(recordId, true);
-      output.write(bytes);
-      output.close();
+      ByteSequence content = new ByteSequence(bytes);
+      int recordId = getContentStorage().acquireRecordWithContent(content);
+      if (recordId != 0) return recordId;
+
+      recordId = getContentStorage().acquireNewRecord();
+      getContentStorage().writeBytes(recordId, content, true);
+      getContentStorage().registerContent(recordId, content);
       return recordId;
     }
     catch (IOException e) {
@@ -1252,6 +1335,34 @@ public class FSRecords implements Forceable {
       super(fileId, readOnly);
     }
 
+    @Override
+    public void writeBytes(ByteSequence bytes, int fileId) throws IOException {
+      ContentStorage contents = getContentStorage();
+      // hashing, lookup and comparison with the stored content are done outside of the lock;
+      // the acquired record can't be freed or rewritten until it is released
+      int sameContentPage = contents.acquireRecordWithContent(bytes);
+      final int page;
+      try {
+        w.lock();
+        incModCount(fileId);
+        if (sameContentPage != 0) {
+          int oldPage = getContentRecordId(fileId);
+          setContentRecordId(fileId, sameContentPage);
+          sameContentPage = 0;
+          if (oldPage != 0) contents.releaseRecord(oldPage);
+          return;
+        }
+        page = findOrCreatePage();
+      }
+      finally {
+        w.unlock();
+        if (sameContentPage != 0) contents.releaseRecord(sameContentPage);
+      }
+
+      contents.writeBytes(page, bytes, myFixedSize);
+      contents.registerContent(page, bytes);
+    }
+
     @Override
     protected int findOrCreatePage() throws IOException {
       return findContentPage(myFileId, true);
@@ -1359,9 +1470,7 @@ public class FSRecords implements Forceable {
 
     try {
       r.lock();
-      final int fileLength = (int)getRecords().length();
-      assert fileLength % RECORD_SIZE == 0;
-      int recordCount = fileLength / RECORD_SIZE;
+      int recordCount = DbConnection.getRecordCount();
 
       IntArrayList usedAttributeRecordIds = new IntArrayList();
       IntArrayList validAttributeIds = new IntArrayList();
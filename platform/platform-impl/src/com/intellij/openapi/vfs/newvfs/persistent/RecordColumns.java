@@ -0,0 +1,143 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.util.io.PagedFileStorage;
+import com.intellij.util.io.ResizeableMappedFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Fixed-width fields of records stored column-wise: every field lives in its own memory-mapped file
+ * {@code <records file>.<field offset>}, so traversals touching one or two fields read dense pages.
+ * <p/>
+ * Columns may be read without external lock: pages are read with concurrent reads storage lock context,
+ * and every put is followed by a volatile write which readers read first, so that values written under writer lock are visible to them.
+ * Writes and record count changes should be guarded by external lock. Puts also take the storage lock context lock: growing a column
+ * resizes its last page, which must not be mapped by a reader meanwhile.
+ */
+class RecordColumns {
+  private static final int PAGE_SIZE = 1024 * 1024;
+  private static final int INITIAL_SIZE = 16 * 1024;
+
+  private final ResizeableMappedFile[] myColumns; // by field offset / 4, null for second half of long fields
+  private final int[] myFieldSizes;
+  private volatile int myWriteCount;
+
+  /**
+   * @param fieldOffsets ascending offsets of fields in record, every field is 4 or 8 bytes long
+   */
+  RecordColumns(@NotNull File recordsFile, @NotNull PagedFileStorage.StorageLock lock, @NotNull int[] fieldOffsets, int recordSize)
+    throws IOException {
+    myColumns = new ResizeableMappedFile[recordSize >> 2];
+    myFieldSizes = new int[recordSize >> 2];
+    PagedFileStorage.StorageLockContext context = new PagedFileStorage.StorageLockContext(lock, true);
+    try {
+      for (int i = 0; i < fieldOffsets.length; i++) {
+        int offset = fieldOffsets[i];
+        int size = (i + 1 < fieldOffsets.length ? fieldOffsets[i + 1] : recordSize) - offset;
+        assert size == 4 || size == 8 : size;
+        File file = new File(recordsFile.getPath() + "." + offset);
+        myColumns[offset >> 2] = new ResizeableMappedFile(file, INITIAL_SIZE, context, PAGE_SIZE, true);
+        myFieldSizes[offset >> 2] = size;
+      }
+    }
+    catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  int getInt(int id, int fieldOffset) {
+    @SuppressWarnings("UnusedDeclaration") int writeCount = myWriteCount;
+    return myColumns[fieldOffset >> 2].getInt(id << 2);
+  }
+
+  void putInt(int id, int fieldOffset, int value) {
+    ResizeableMappedFile column = myColumns[fieldOffset >> 2];
+    column.getPagedFileStorage().lock();
+    try {
+      column.putInt(id << 2, value);
+    }
+    finally {
+      column.getPagedFileStorage().unlock();
+    }
+    myWriteCount++;
+  }
+
+  long getLong(int id, int fieldOffset) {
+    @SuppressWarnings("UnusedDeclaration") int writeCount = myWriteCount;
+    return myColumns[fieldOffset >> 2].getLong(id << 3);
+  }
+
+  void putLong(int id, int fieldOffset, long value) {
+    ResizeableMappedFile column = myColumns[fieldOffset >> 2];
+    column.getPagedFileStorage().lock();
+    try {
+      column.putLong(id << 3, value);
+    }
+    finally {
+      column.getPagedFileStorage().unlock();
+    }
+    myWriteCount++;
+  }
+
+  void cleanRecord(int id) {
+    ResizeableMappedFile first = myColumns[0]; // all columns share the storage lock context
+    first.getPagedFileStorage().lock();
+    try {
+      for (int i = 0; i < myColumns.length; i++) {
+        ResizeableMappedFile column = myColumns[i];
+        if (column == null) continue;
+        if (myFieldSizes[i] == 4) {
+          column.putInt(id << 2, 0);
+        }
+        else {
+          column.putLong(id << 3, 0);
+        }
+      }
+    }
+    finally {
+      first.getPagedFileStorage().unlock();
+    }
+    myWriteCount++;
+  }
+
+  int getRecordCount() {
+    return (int)(myColumns[0].length() >> 2);
+  }
+
+  boolean isDirty() {
+    for (ResizeableMappedFile column : myColumns) {
+      if (column != null && column.isDirty()) return true;
+    }
+    return false;
+  }
+
+  void force() {
+    for (ResizeableMappedFile column : myColumns) {
+      if (column != null) column.force();
+    }
+  }
+
+  void close() {
+    for (ResizeableMappedFile column : myColumns) {
+      if (column != null) column.close();
+    }
+  }
+}
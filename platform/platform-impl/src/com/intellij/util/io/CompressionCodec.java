@@ -0,0 +1,173 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.idea.StartupUtil;
+import org.jetbrains.annotations.NotNull;
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Field;
+
+/**
+ * Compression algorithms for persisted data. A codec is identified by its {@link #getId() id}, which is stored along with the data.
+ * <p/>
+ * Codecs are stateless and may be used concurrently: the native Snappy library is thread safe and {@link SourceCodeCompressor}
+ * pools its deflaters.
+ */
+public enum CompressionCodec {
+  RAW((byte)0) {
+    @Override
+    public int compress(@NotNull byte[] bytes, int offset, int length, @NotNull OutputStream out) throws IOException {
+      out.write(bytes, offset, length);
+      return length;
+    }
+
+    @Override
+    public void decompress(@NotNull byte[] bytes, int offset, int length, @NotNull OutputStream out) throws IOException {
+      out.write(bytes, offset, length);
+    }
+  },
+
+  SNAPPY((byte)1) {
+    @Override
+    public boolean isAvailable() {
+      return ourCanUseSnappy;
+    }
+
+    @Override
+    public int compress(@NotNull byte[] bytes, int offset, int length, @NotNull OutputStream out) throws IOException {
+      byte[] buffer = getSpareBuffer(Snappy.maxCompressedLength(length));
+      int compressedLength = Snappy.rawCompress(bytes, offset, length, buffer, 0);
+      out.write(buffer, 0, compressedLength);
+      return compressedLength;
+    }
+
+    @Override
+    public void decompress(@NotNull byte[] bytes, int offset, int length, @NotNull OutputStream out) throws IOException {
+      byte[] buffer = getSpareBuffer(Snappy.uncompressedLength(bytes, offset, length));
+      int uncompressedLength = Snappy.uncompress(bytes, offset, length, buffer, 0);
+      out.write(buffer, 0, uncompressedLength);
+    }
+
+    @NotNull
+    @Override
+    public byte[] decompress(@NotNull byte[] bytes, int offset, int length) throws IOException {
+      byte[] uncompressed = new byte[Snappy.uncompressedLength(bytes, offset, length)];
+      Snappy.uncompress(bytes, offset, length, uncompressed, 0);
+      return uncompressed;
+    }
+  },
+
+  /**
+   * Deflate with a preset dictionary of {@link SourceCodeCompressor}, slower than Snappy but doesn't need a native library
+   */
+  DEFLATE((byte)2) {
+    @Override
+    public int compress(@NotNull byte[] bytes, int offset, int length, @NotNull OutputStream out) throws IOException {
+      return SourceCodeCompressor.compress(bytes, offset, length, out);
+    }
+
+    @Override
+    public void decompress(@NotNull byte[] bytes, int offset, int length, @NotNull OutputStream out) throws IOException {
+      SourceCodeCompressor.decompress(bytes, offset, length, out);
+    }
+
+    @NotNull
+    @Override
+    public byte[] decompress(@NotNull byte[] bytes, int offset, int length) throws IOException {
+      return SourceCodeCompressor.decompress(bytes, length, offset);
+    }
+  };
+
+  private static final boolean ourCanUseSnappy;
+
+  static {
+    boolean canUseSnappy = false;
+    try {
+      if (!StartupUtil.NO_SNAPPY) {
+        Field impl = Snappy.class.getDeclaredField("impl");
+        impl.setAccessible(true);
+        canUseSnappy = impl.get(null) != null;
+      }
+    }
+    catch (Throwable ignored) { }
+
+    ourCanUseSnappy = canUseSnappy;
+  }
+
+  private static final ThreadLocal<SoftReference<byte[]>> ourSpareBuffer = new ThreadLocal<SoftReference<byte[]>>();
+
+  private final byte myId;
+
+  CompressionCodec(byte id) {
+    myId = id;
+  }
+
+  public byte getId() {
+    return myId;
+  }
+
+  public boolean isAvailable() {
+    return true;
+  }
+
+  /**
+   * @return the number of compressed bytes written to the stream
+   */
+  public abstract int compress(@NotNull byte[] bytes, int offset, int length, @NotNull OutputStream out) throws IOException;
+
+  public abstract void decompress(@NotNull byte[] bytes, int offset, int length, @NotNull OutputStream out) throws IOException;
+
+  @NotNull
+  public byte[] decompress(@NotNull byte[] bytes, int offset, int length) throws IOException {
+    UnsyncByteArrayOutputStream out = new UnsyncByteArrayOutputStream(length * 4);
+    decompress(bytes, offset, length, out);
+    return out.toByteArray();
+  }
+
+  /**
+   * @return the fastest available codec which actually compresses data
+   */
+  @NotNull
+  public static CompressionCodec getPreferred() {
+    return ourCanUseSnappy ? SNAPPY : DEFLATE;
+  }
+
+  @NotNull
+  public static CompressionCodec forId(byte id) throws IOException {
+    for (CompressionCodec codec : values()) {
+      if (codec.myId == id) {
+        if (!codec.isAvailable()) throw new IOException("Can not read " + codec + " compressed data");
+        return codec;
+      }
+    }
+    throw new IOException("Unknown compression codec: " + id);
+  }
+
+  @NotNull
+  private static byte[] getSpareBuffer(int size) {
+    SoftReference<byte[]> reference = ourSpareBuffer.get();
+    byte[] buffer = reference != null ? reference.get() : null;
+    if (buffer == null || buffer.length < size) {
+      buffer = new byte[size];
+      ourSpareBuffer.set(new SoftReference<byte[]>(buffer));
+    }
+    return buffer;
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.codeInsight.daemon.impl;
+
+import com.intellij.codeHighlighting.HighlightingPass;
+import com.intellij.codeHighlighting.Pass;
+import com.intellij.codeHighlighting.TextEditorHighlightingPass;
+import com.intellij.concurrency.Job;
+import com.intellij.concurrency.JobImpl;
+import com.intellij.concurrency.JobLauncher;
+import com.intellij.concurrency.JobSchedulerImpl;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.fileEditor.FileEditor;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.OpenFileDescriptor;
+import com.intellij.openapi.fileEditor.TextEditor;
+import com.intellij.openapi.fileEditor.impl.text.TextEditorProvider;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.testFramework.PlatformTestCase;
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase;
+import com.intellij.util.ui.UIUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passes are started by a single free pool thread, so the order in which they start is the order of their job priorities.
+ */
+public class PassExecutorServiceTest extends LightPlatformCodeInsightFixtureTestCase {
+  private static final String BUDGET_KEY = "daemon.pass.time.budget";
+  private static final int BUDGET = 50;
+  private static final int SLOW_PASS_ID = Pass.LAST_PASS + 1;
+  private static final int FAST_PASS_ID = Pass.LAST_PASS + 2;
+
+  private final List<String> myStarted = Collections.synchronizedList(new ArrayList<String>());
+  private PassExecutorService myService;
+
+  public PassExecutorServiceTest() {
+    PlatformTestCase.initPlatformLangPrefix();
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myService = new PassExecutorService(getProject()) {
+      @Override
+      protected void afterApplyInformationToEditor(TextEditorHighlightingPass pass, FileEditor fileEditor, ProgressIndicator updateProgress) {
+      }
+    };
+  }
+
+  @Override
+  protected boolean isWriteActionRequired() {
+    // passes read in background threads
+    return false;
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Disposer.dispose(myService);
+    myService = null;
+    super.tearDown();
+  }
+
+  public void testFocusedEditorPassesStartFirst() throws Throwable {
+    TextEditor background = openEditor("background.txt");
+    TextEditor focused = openEditor("focused.txt");
+    assertSame(focused.getEditor(), FileEditorManager.getInstance(getProject()).getSelectedTextEditor());
+
+    // the background editor passes are queued first, so they would be started first if all passes had the same priority
+    runWithOneFreeThread(Collections.<FileEditor, HighlightingPass[]>singletonMap(background, new HighlightingPass[]{
+                           new FastPass(background, Pass.UPDATE_ALL, "background")}),
+                         Collections.<FileEditor, HighlightingPass[]>singletonMap(focused, new HighlightingPass[]{
+                           new FastPass(focused, Pass.UPDATE_ALL, "focused")}));
+
+    assertEquals(Arrays.asList("focused", "background"), myStarted);
+    assertTrue(myService.getStatistics().getAverageLatency() >= 0);
+  }
+
+  public void testSlowPassesAreDeferredWhenLatencyExceedsBudget() throws Throwable {
+    TextEditor editor = openEditor("a.txt");
+    int budget = Registry.intValue(BUDGET_KEY);
+    Registry.get(BUDGET_KEY).setValue(BUDGET);
+    try {
+      // nothing has been measured yet, so the passes are started in the order of their ids
+      runWithOneFreeThread(Collections.<FileEditor, HighlightingPass[]>singletonMap(editor, createPasses(editor)));
+      assertEquals(Arrays.asList("all", "slow", "fast"), myStarted);
+
+      PassTimeStatistics statistics = myService.getStatistics();
+      assertTrue(statistics.getAverageLatency() > BUDGET);
+      assertTrue(statistics.getAverageWallTime(new SlowPass(editor, SLOW_PASS_ID, "slow")) > BUDGET);
+      assertTrue(statistics.getAverageWallTime(new FastPass(editor, FAST_PASS_ID, "fast")) <= BUDGET);
+
+      // the slow pass is started after the fast one now, the general highlighting is never deferred however slow it is
+      myStarted.clear();
+      runWithOneFreeThread(Collections.<FileEditor, HighlightingPass[]>singletonMap(editor, createPasses(editor)));
+      assertEquals(Arrays.asList("all", "fast", "slow"), myStarted);
+    }
+    finally {
+      Registry.get(BUDGET_KEY).setValue(budget);
+    }
+  }
+
+  @NotNull
+  private HighlightingPass[] createPasses(@NotNull TextEditor editor) {
+    return new HighlightingPass[]{
+      new SlowPass(editor, Pass.UPDATE_ALL, "all"), new SlowPass(editor, SLOW_PASS_ID, "slow"), new FastPass(editor, FAST_PASS_ID, "fast")
+    };
+  }
+
+  @NotNull
+  private TextEditor openEditor(@NotNull String fileName) {
+    VirtualFile file = myFixture.addFileToProject(fileName, fileName).getVirtualFile();
+    Editor editor = FileEditorManager.getInstance(getProject()).openTextEditor(new OpenFileDescriptor(getProject(), file), true);
+    assertNotNull(editor);
+    return TextEditorProvider.getInstance().getTextEditor(editor);
+  }
+
+  /**
+   * Occupies all pool threads, submits the passes in the given order and frees one thread to start them, then waits until the passes
+   * are applied
+   */
+  private void runWithOneFreeThread(@NotNull Map<FileEditor, HighlightingPass[]>... passes) throws Throwable {
+    final CountDownLatch started = new CountDownLatch(JobSchedulerImpl.CORES_COUNT);
+    List<CountDownLatch> releases = new ArrayList<CountDownLatch>();
+    List<Job<Void>> blockers = new ArrayList<Job<Void>>();
+    try {
+      for (int i = 0; i < JobSchedulerImpl.CORES_COUNT; i++) {
+        final CountDownLatch release = new CountDownLatch(1);
+        releases.add(release);
+        blockers.add(JobLauncher.getInstance().submitToJobThread(Job.DEFAULT_PRIORITY, new Runnable() {
+          @Override
+          public void run() {
+            started.countDown();
+            try {
+              release.await();
+            }
+            catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        }, null));
+      }
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+
+      List<DaemonProgressIndicator> progresses = new ArrayList<DaemonProgressIndicator>();
+      for (Map<FileEditor, HighlightingPass[]> editorPasses : passes) {
+        DaemonProgressIndicator progress = new DaemonProgressIndicator();
+        progress.start();
+        myService.submitPasses(editorPasses, progress, Job.DEFAULT_PRIORITY);
+        progresses.add(progress);
+      }
+      releases.get(0).countDown();
+
+      long deadline = System.currentTimeMillis() + 10000;
+      for (DaemonProgressIndicator progress : progresses) {
+        while (progress.isRunning()) {
+          assertTrue(System.currentTimeMillis() < deadline);
+          progress.waitFor(10);
+          UIUtil.dispatchAllInvocationEvents();
+        }
+        assertNull(PassExecutorService.getSavedException(progress));
+      }
+    }
+    finally {
+      for (CountDownLatch release : releases) {
+        release.countDown();
+      }
+      for (Job<Void> blocker : blockers) {
+        ((JobImpl)blocker).waitForTermination();
+      }
+    }
+  }
+
+  private class FastPass extends TextEditorHighlightingPass {
+    private final String myName;
+
+    private FastPass(@NotNull TextEditor editor, int id, @NotNull String name) {
+      super(getProject(), editor.getEditor().getDocument(), false);
+      myName = name;
+      setId(id);
+    }
+
+    @Override
+    public void doCollectInformation(@NotNull ProgressIndicator progress) {
+      myStarted.add(myName);
+    }
+
+    @Override
+    public void doApplyInformationToEditor() {
+    }
+  }
+
+  private class SlowPass extends FastPass {
+    private SlowPass(@NotNull TextEditor editor, int id, @NotNull String name) {
+      super(editor, id, name);
+    }
+
+    @Override
+    public void doCollectInformation(@NotNull ProgressIndicator progress) {
+      super.doCollectInformation(progress);
+      try {
+        Thread.sleep(2 * BUDGET);
+      }
+      catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+}
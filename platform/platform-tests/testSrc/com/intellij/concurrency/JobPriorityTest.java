@@ -0,0 +1,85 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.concurrency;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Highlighting passes of the focused editor are submitted with a higher priority (a smaller number) than passes of other editors,
+ * and must be picked up first even when they were submitted later.
+ */
+public class JobPriorityTest extends TestCase {
+  public void testHigherPriorityJobIsPickedUpFirst() throws Throwable {
+    JobLauncher launcher = new JobLauncherImpl();
+    final CountDownLatch started = new CountDownLatch(JobSchedulerImpl.CORES_COUNT);
+    final CountDownLatch release = new CountDownLatch(1);
+    List<Job<Void>> blockers = new ArrayList<Job<Void>>();
+    try {
+      // occupy all pool threads so the jobs below stay queued
+      for (int i = 0; i < JobSchedulerImpl.CORES_COUNT; i++) {
+        blockers.add(launcher.submitToJobThread(Job.DEFAULT_PRIORITY, new Runnable() {
+          @Override
+          public void run() {
+            started.countDown();
+            try {
+              release.await();
+            }
+            catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        }, null));
+      }
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+
+      final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+      Job<Void> background = launcher.submitToJobThread(Job.DEFAULT_PRIORITY + 1, record(order, "background"), null);
+      Job<Void> focused = launcher.submitToJobThread(Job.DEFAULT_PRIORITY, record(order, "focused"), null);
+
+      // take queued tasks in the order the pool threads would
+      Runnable task;
+      while ((task = JobSchedulerImpl.stealTask()) != null) {
+        task.run();
+      }
+      assertEquals(2, order.size());
+      assertEquals("focused", order.get(0));
+      assertEquals("background", order.get(1));
+      assertTrue(focused.isDone());
+      assertTrue(background.isDone());
+    }
+    finally {
+      release.countDown();
+      for (Job<Void> blocker : blockers) {
+        ((JobImpl)blocker).waitForTermination();
+      }
+    }
+  }
+
+  private static Runnable record(final List<String> order, final String name) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        order.add(name);
+      }
+    };
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.ide.util.gotoByName;
+
+import com.intellij.psi.codeStyle.MinusculeMatcher;
+import com.intellij.psi.codeStyle.NameUtil;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class NameSignaturesTest extends TestCase {
+  private static final String[] WORDS = {
+    "Abstract", "Action", "Base", "Builder", "Cache", "Class", "Component", "Default", "Editor", "Element", "Factory", "File",
+    "Handler", "Impl", "Index", "Java", "Listener", "Manager", "Model", "Name", "Psi", "Reference", "Resolve", "Service",
+    "Stub", "Util", "Visitor", "Xml", "2", "_", "$"
+  };
+
+  public void testSignatureDoesNotRejectMatchingNames() {
+    String[][] matching = {
+      {"NPE", "NullPointerException"}, {"nuPoE", "NullPointerException"}, {"*pointer", "NullPointerException"},
+      {"N P E", "NullPointerException"}, {"foo_bar", "FOO_BAR"}, {"a.b", "a.b.c"}, {"k", "Kelvin"},
+      {"ABC*", "AbcDef"}, {"html2", "Html2Text"}, {"", "anything"}, {"@", "@"}
+    };
+    for (String[] pair : matching) {
+      assertTrue(pair[0] + " " + pair[1], mayMatch(pair[0], pair[1]));
+    }
+    assertFalse(mayMatch("NPZ", "NullPointerException"));
+    assertFalse(mayMatch("foo.bar", "foo_bar"));
+    assertFalse(mayMatch("a1", "ab"));
+  }
+
+  public void testSameResultAsMatcher() {
+    Random random = new Random(42);
+    String[] names = generateNames(random, 20000);
+    NameSignatures signatures = new NameSignatures(names);
+    for (int i = 0; i < 300; i++) {
+      String pattern = generatePattern(random, names[random.nextInt(names.length)]);
+      for (NameUtil.MatchingCaseSensitivity sensitivity : NameUtil.MatchingCaseSensitivity.values()) {
+        MinusculeMatcher matcher = NameUtil.buildMatcher(pattern, sensitivity);
+        long patternSignature = NameSignatures.getPatternSignature(pattern);
+        for (int j = 0; j < names.length; j++) {
+          if (matcher.matches(names[j])) {
+            assertTrue(pattern + " " + names[j], signatures.mayMatch(j, patternSignature));
+          }
+        }
+      }
+    }
+  }
+
+  public void testFilteringPerformance() {
+    Random random = new Random(1);
+    final String[] names = generateNames(random, 100000);
+    final String[] patterns = {"V", "Vi", "Vis", "VisI", "VisIm", "VisImp", "VisImpl", "zq", "Xml", "XmlRefRes", "*Stub2"};
+    final NameSignatures signatures = new NameSignatures(names);
+    final MinusculeMatcher[] matchers = new MinusculeMatcher[patterns.length];
+    final int[] expectedCounts = new int[patterns.length];
+    for (int p = 0; p < patterns.length; p++) {
+      matchers[p] = NameUtil.buildMatcher(patterns[p], NameUtil.MatchingCaseSensitivity.NONE);
+      for (String name : names) {
+        if (matchers[p].matches(name)) expectedCounts[p]++;
+      }
+    }
+
+    PlatformTestUtil.startPerformanceTest("Filtering names by signatures", 500, new ThrowableRunnable() {
+      @Override
+      public void run() throws Throwable {
+        for (int attempt = 0; attempt < 10; attempt++) {
+          for (int p = 0; p < patterns.length; p++) {
+            long patternSignature = NameSignatures.getPatternSignature(patterns[p]);
+            int count = 0;
+            for (int i = 0; i < names.length; i++) {
+              if (signatures.mayMatch(i, patternSignature) && matchers[p].matches(names[i])) count++;
+            }
+            assertEquals(patterns[p], expectedCounts[p], count);
+          }
+        }
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  private static boolean mayMatch(String pattern, String name) {
+    return new NameSignatures(new String[]{name}).mayMatch(0, NameSignatures.getPatternSignature(pattern));
+  }
+
+  private static String[] generateNames(Random random, int count) {
+    String[] names = new String[count];
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      builder.setLength(0);
+      for (int j = random.nextInt(4); j >= 0; j--) {
+        builder.append(WORDS[random.nextInt(WORDS.length)]);
+      }
+      builder.append((char)('a' + random.nextInt(26)));
+      names[i] = builder.toString();
+    }
+    return names;
+  }
+
+  private static String generatePattern(Random random, String name) {
+    StringBuilder pattern = new StringBuilder();
+    if (random.nextInt(4) == 0) pattern.append('*');
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (random.nextInt(3) == 0) {
+        pattern.append(random.nextBoolean() ? Character.toLowerCase(c) : c);
+      }
+      else if (random.nextInt(20) == 0) {
+        pattern.append(' ');
+      }
+    }
+    if (random.nextInt(5) == 0) pattern.append((char)('a' + random.nextInt(26)));
+    return pattern.toString();
+  }
+}
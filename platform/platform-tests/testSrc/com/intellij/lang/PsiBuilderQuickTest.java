@@ -194,6 +194,35 @@ public class PsiBuilderQuickTest extends LightPlatformTestCase {
            "    PsiElement(LETTER)('b')\n");
   }
 
+  public void testDropAndRollback() {
+    doTest("a1b2c3",
+           new Parser() {
+             @Override
+             public void parse(PsiBuilder builder) {
+               final PsiBuilder.Marker dropped = builder.mark();
+               PsiBuilderUtil.advance(builder, 2);
+               dropped.done(OTHER);
+               dropped.drop();
+               final PsiBuilder.Marker rolledBack = builder.mark();
+               builder.advanceLexer();
+               builder.mark().done(OTHER);
+               rolledBack.rollbackTo();
+               final PsiBuilder.Marker marker = builder.mark();
+               PsiBuilderUtil.advance(builder, 2);
+               marker.done(OTHER);
+               PsiBuilderUtil.advance(builder, 2);
+             }
+           },
+           "Element(ROOT)\n" +
+           "  PsiElement(LETTER)('a')\n" +
+           "  PsiElement(DIGIT)('1')\n" +
+           "  Element(OTHER)\n" +
+           "    PsiElement(LETTER)('b')\n" +
+           "    PsiElement(DIGIT)('2')\n" +
+           "  PsiElement(LETTER)('c')\n" +
+           "  PsiElement(DIGIT)('3')\n");
+  }
+
   public void testErrorBefore() {
     doTest("a1",
            new Parser() {
@@ -24,7 +24,9 @@ import com.intellij.psi.impl.PsiDocumentManagerImpl;
 import com.intellij.psi.impl.PsiToDocumentSynchronizer;
 import com.intellij.testFramework.LeakHunter;
 import com.intellij.testFramework.LightPlatformTestCase;
+import com.intellij.testFramework.PlatformTestUtil;
 import com.intellij.testFramework.Timings;
+import com.intellij.util.ThrowableRunnable;
 import org.jetbrains.annotations.NonNls;
 
 import java.util.ArrayList;
@@ -1012,6 +1014,52 @@ public class RangeMarkerTest extends LightPlatformTestCase {
     assertEquals(2, ((DocumentImpl)document).getRangeMarkersSize());
     assertEquals(2, ((DocumentImpl)document).getRangeMarkersNodeSize());
   }
+
+  public void testBulkUpdateOfMillionMarkersPerformance_NoVerify() throws Exception {
+    final DocumentEx document = (DocumentEx)EditorFactory.getInstance().createDocument(StringUtil.repeatSymbol(' ', 2000000));
+    final Random gen = new Random(42);
+    final RangeMarker[] markers = new RangeMarker[1000000];
+    for (int i = 0; i < markers.length; i++) {
+      int start = i * 2;
+      // some markers enclose lots of others, like the ones for classes and methods do
+      int length = i % 1000 == 0 ? gen.nextInt(100000) : gen.nextInt(50);
+      markers[i] = document.createRangeMarker(start, Math.min(document.getTextLength(), start + length));
+    }
+
+    new WriteCommandAction(getProject()) {
+      @Override
+      protected void run(Result result) throws Exception {
+        PlatformTestUtil.startPerformanceTest("bulk update of 1M range markers", 3000, new ThrowableRunnable() {
+          @Override
+          public void run() throws Throwable {
+            document.setInBulkUpdate(true);
+            try {
+              for (int i = 0; i < 10000; i++) {
+                int offset = gen.nextInt(document.getTextLength());
+                if (gen.nextBoolean()) {
+                  document.insertString(offset, "xxx");
+                }
+                else {
+                  document.deleteString(offset, Math.min(document.getTextLength(), offset + 3));
+                }
+              }
+            }
+            finally {
+              document.setInBulkUpdate(false);
+            }
+          }
+        }).cpuBound().assertTiming();
+      }
+    }.execute();
+
+    for (RangeMarker marker : markers) {
+      if (marker.isValid()) {
+        assertTrue(marker.toString(), 0 <= marker.getStartOffset() && marker.getStartOffset() <= marker.getEndOffset());
+        assertTrue(marker.toString(), marker.getEndOffset() <= document.getTextLength());
+      }
+    }
+  }
+
   public void testRangeHighlightersRecreateBug() throws Exception {
     Document document = EditorFactory.getInstance().createDocument("[xxxxxxxxxxxxxx]");
 
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.ex.util;
+
+import com.intellij.lang.Language;
+import com.intellij.lexer.Lexer;
+import com.intellij.lexer.LexerBase;
+import com.intellij.lexer.RestartableLexer;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.colors.EditorColorsManager;
+import com.intellij.openapi.editor.colors.TextAttributesKey;
+import com.intellij.openapi.editor.highlighter.HighlighterClient;
+import com.intellij.openapi.editor.impl.DocumentImpl;
+import com.intellij.openapi.fileTypes.SyntaxHighlighterBase;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.testFramework.LightPlatformTestCase;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Random;
+
+public class LexerEditorHighlighterTest extends LightPlatformTestCase {
+  private static final IElementType TEXT = new IElementType("TEXT", Language.ANY);
+  private static final IElementType QUOTE = new IElementType("QUOTE", Language.ANY);
+  private static final IElementType STRING_TEXT = new IElementType("STRING_TEXT", Language.ANY);
+
+  public void testRandomEditsProduceSameTokensAsFullRelexing() throws Throwable {
+    final Random random = new Random(11);
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      text.append(randomLine(random));
+    }
+    final Document document = new DocumentImpl(text);
+    final TestLexer lexer = new TestLexer();
+    final LexerEditorHighlighter highlighter = createHighlighter(document, lexer);
+
+    runWriteCommand(new ThrowableRunnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 500; i++) {
+          int start = random.nextInt(document.getTextLength() + 1);
+          int end = Math.min(document.getTextLength(), start + random.nextInt(i % 50 == 0 ? 5000 : 20));
+          String line = randomLine(random);
+          String inserted = random.nextInt(5) == 0 ? "\"" : line.substring(0, Math.min(line.length(), random.nextInt(10)));
+          document.replaceString(start, end, inserted);
+          if (i % 10 == 0) {
+            assertSameSegments(document, highlighter);
+          }
+        }
+      }
+    });
+    assertSameSegments(document, highlighter);
+  }
+
+  public void testTypingInHugeStringLiteral() throws Throwable {
+    // 10 Mb file with a single string literal, there are no tokens in the initial state to restart the lexer from
+    StringBuilder text = new StringBuilder("\"");
+    Random random = new Random(13);
+    while (text.length() < 10 * 1024 * 1024) {
+      text.append(randomLine(random).replace('"', '\''));
+    }
+    text.append("\"\n");
+    final Document document = new DocumentImpl(text);
+    final TestLexer lexer = new TestLexer();
+    final LexerEditorHighlighter highlighter = createHighlighter(document, lexer);
+    final int typingOffset = document.getTextLength() / 2;
+
+    runWriteCommand(new ThrowableRunnable() {
+      @Override
+      public void run() {
+        PlatformTestUtil.startPerformanceTest("typing in a huge string literal", 2000, new ThrowableRunnable() {
+          @Override
+          public void run() {
+            lexer.myLexedChars = 0;
+            for (int i = 0; i < 1000; i++) {
+              document.insertString(typingOffset + i, i % 80 == 79 ? "\n" : "x");
+            }
+            // each change is relexed from the nearest checkpoint until the next one
+            assertTrue(String.valueOf(lexer.myLexedChars), lexer.myLexedChars < 1000 * 4 * LexerCheckpoints.DISTANCE);
+          }
+        }).cpuBound().assertTiming();
+      }
+    });
+    assertSameSegments(document, highlighter);
+  }
+
+  @NotNull
+  private static LexerEditorHighlighter createHighlighter(@NotNull final Document document, @NotNull final Lexer lexer) {
+    LexerEditorHighlighter highlighter = new LexerEditorHighlighter(new SyntaxHighlighterBase() {
+      @NotNull
+      @Override
+      public Lexer getHighlightingLexer() {
+        return lexer;
+      }
+
+      @NotNull
+      @Override
+      public TextAttributesKey[] getTokenHighlights(IElementType tokenType) {
+        return EMPTY;
+      }
+    }, EditorColorsManager.getInstance().getGlobalScheme());
+    highlighter.setEditor(new HighlighterClient() {
+      @Override
+      public Project getProject() {
+        return null;
+      }
+
+      @Override
+      public void repaint(int start, int end) {
+      }
+
+      @Override
+      public Document getDocument() {
+        return document;
+      }
+    });
+    highlighter.setText(document.getCharsSequence());
+    document.addDocumentListener(highlighter);
+    return highlighter;
+  }
+
+  private static void assertSameSegments(@NotNull Document document, @NotNull LexerEditorHighlighter highlighter) {
+    LexerEditorHighlighter expected = createHighlighter(document, new TestLexer());
+    document.removeDocumentListener(expected);
+    SegmentArrayWithData expectedSegments = expected.getSegments();
+    SegmentArrayWithData segments = highlighter.getSegments();
+    assertEquals(expectedSegments.getSegmentCount(), segments.getSegmentCount());
+    for (int i = 0; i < segments.getSegmentCount(); i++) {
+      assertEquals(expectedSegments.getSegmentStart(i), segments.getSegmentStart(i));
+      assertEquals(expectedSegments.getSegmentEnd(i), segments.getSegmentEnd(i));
+      assertEquals(expectedSegments.getSegmentData(i), segments.getSegmentData(i));
+    }
+  }
+
+  private void runWriteCommand(@NotNull final ThrowableRunnable runnable) throws Throwable {
+    new WriteCommandAction.Simple(getProject()) {
+      @Override
+      protected void run() throws Throwable {
+        runnable.run();
+      }
+    }.execute().throwException();
+  }
+
+  @NotNull
+  private static String randomLine(@NotNull Random random) {
+    char[] chars = new char[random.nextInt(80)];
+    for (int i = 0; i < chars.length; i++) {
+      int c = random.nextInt(30);
+      chars[i] = c == 0 ? '"' : c == 1 ? ' ' : (char)('a' + c - 2);
+    }
+    return new String(chars) + "\n";
+  }
+
+  /**
+   * Lexes string literals in double quotes line by line, the lexer is in state 1 inside a literal.
+   */
+  private static class TestLexer extends LexerBase implements RestartableLexer {
+    private CharSequence myBuffer;
+    private int myEndOffset;
+    private int myTokenStart;
+    private int myTokenEnd;
+    private int myState;
+    private IElementType myTokenType;
+    private int myLexedChars;
+
+    @Override
+    public boolean isRestartableState(int state) {
+      return true;
+    }
+
+    @Override
+    public void start(@NotNull CharSequence buffer, int startOffset, int endOffset, int initialState) {
+      myBuffer = buffer;
+      myEndOffset = endOffset;
+      myTokenEnd = startOffset;
+      myState = initialState;
+      locateToken();
+    }
+
+    private void locateToken() {
+      myTokenStart = myTokenEnd;
+      if (myTokenStart >= myEndOffset) {
+        myTokenType = null;
+        return;
+      }
+      if (myBuffer.charAt(myTokenStart) == '"') {
+        myTokenType = QUOTE;
+        myTokenEnd = myTokenStart + 1;
+      }
+      else {
+        myTokenType = myState == 0 ? TEXT : STRING_TEXT;
+        myTokenEnd = myTokenStart;
+        while (myTokenEnd < myEndOffset && myBuffer.charAt(myTokenEnd) != '"' && myBuffer.charAt(myTokenEnd++) != '\n') ;
+      }
+      myLexedChars += myTokenEnd - myTokenStart;
+    }
+
+    @Override
+    public int getState() {
+      return myState;
+    }
+
+    @Override
+    public IElementType getTokenType() {
+      return myTokenType;
+    }
+
+    @Override
+    public int getTokenStart() {
+      return myTokenStart;
+    }
+
+    @Override
+    public int getTokenEnd() {
+      return myTokenEnd;
+    }
+
+    @Override
+    public void advance() {
+      if (myTokenType == QUOTE) {
+        myState = 1 - myState;
+      }
+      locateToken();
+    }
+
+    @NotNull
+    @Override
+    public CharSequence getBufferSequence() {
+      return myBuffer;
+    }
+
+    @Override
+    public int getBufferEnd() {
+      return myEndOffset;
+    }
+  }
+}
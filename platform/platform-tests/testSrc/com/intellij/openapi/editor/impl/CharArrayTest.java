@@ -18,7 +18,9 @@ package com.intellij.openapi.editor.impl;
 import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.editor.impl.event.DocumentEventImpl;
 import com.intellij.openapi.util.Pair;
+import com.intellij.testFramework.PlatformTestUtil;
 import com.intellij.util.LocalTimeCounter;
+import com.intellij.util.ThrowableRunnable;
 import com.intellij.util.containers.Stack;
 import com.intellij.util.text.CharSequenceBackedByArray;
 import org.jetbrains.annotations.NonNls;
@@ -141,8 +143,88 @@ public class CharArrayTest {
     assertArrayEquals("1".toCharArray(), subsSequence.getChars());
   }
   
+  @Test
+  public void hugeTextSnapshotIsImmutable() {
+    char[] text = hugeText(2 * 1024 * 1024);
+    init(0, text);
+    CharSequence snapshot = myArray.getCharArray();
+    assertTrue(snapshot instanceof ImmutableText);
+
+    myArray.insert("abc", 10);
+    replace(1000, 1010, "X");
+    myArray.remove(0, 5, myArray.substring(0, 5));
+
+    String expected = new StringBuilder(new String(text)).insert(10, "abc").replace(1000, 1010, "X").delete(0, 5).toString();
+    assertEquals(expected, myArray.toString());
+    assertEquals(expected.length(), myArray.length());
+    assertEquals(expected.charAt(995), myArray.charAt(995));
+    assertEquals(expected.substring(990, 1010), myArray.substring(990, 1010).toString());
+    assertEquals(new String(text), snapshot.toString());
+  }
+
+  @Test
+  public void hugeTextIsChangedImmediatelyInDeferredMode() {
+    char[] text = hugeText(2 * 1024 * 1024);
+    init(0, text);
+    myArray.setDeferredChangeMode(true);
+    assertFalse(myArray.isDeferredChangeMode());
+
+    myArray.insert("abc", 10);
+    replace(1000, 1010, "X");
+    assertFalse(myArray.hasDeferredChanges());
+    String expected = new StringBuilder(new String(text)).insert(10, "abc").replace(1000, 1010, "X").toString();
+    assertEquals(expected.length(), myArray.length());
+    assertEquals(expected.charAt(1000), myArray.charAt(1000));
+
+    myArray.setDeferredChangeMode(false);
+    assertEquals(expected, myArray.toString());
+  }
+
+  /**
+   * Typing in the middle of a huge document must not shift the tail of its text on every keystroke.
+   */
+  @Test
+  public void typingInHugeText() {
+    final char[] text = hugeText(4 * 1024 * 1024);
+    final int offset = text.length / 2;
+    final int keystrokes = 10000;
+    PlatformTestUtil.startPerformanceTest("typing in the middle of a huge document", 500, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < keystrokes; i++) {
+          myArray.insert("a", offset + i);
+          myArray.getCharArray(); // snapshot taken for highlighting and commit after every keystroke
+        }
+      }
+    }).setup(new ThrowableRunnable() {
+      @Override
+      public void run() {
+        init(0, text);
+      }
+    }).cpuBound().assertTiming();
+
+    assertEquals(text.length + keystrokes, myArray.length());
+    CharSequence snapshot = myArray.getCharArray();
+    for (int i = 0; i < keystrokes; i++) {
+      assertEquals('a', snapshot.charAt(offset + i));
+    }
+    assertEquals(text[offset], snapshot.charAt(offset + keystrokes));
+  }
+
+  private static char[] hugeText(int length) {
+    char[] text = new char[length];
+    for (int i = 0; i < length; i++) {
+      text[i] = i % 80 == 79 ? '\n' : (char)('a' + i % 26);
+    }
+    return text;
+  }
+
   private void init(int size) {
-    myArray = new CharArray(size, new char[0], 0) {
+    init(size, new char[0]);
+  }
+
+  private void init(int size, @NotNull char[] data) {
+    myArray = new CharArray(size, data, data.length) {
       @NotNull
       @Override
       protected DocumentEvent beforeChangedUpdate(int offset, CharSequence oldString, CharSequence newString,
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ImmutableTextTest {
+
+  @Test
+  public void randomEdits() {
+    Random random = new Random(7);
+    StringBuilder expected = new StringBuilder(randomText(random, 5000));
+    ImmutableText text = ImmutableText.valueOf(expected.toString());
+
+    for (int i = 0; i < 3000; i++) {
+      int start = random.nextInt(expected.length() + 1);
+      int end = start + random.nextInt(Math.min(50, expected.length() - start) + 1);
+      String inserted = randomText(random, random.nextInt(i % 100 == 0 ? 2000 : 10));
+      switch (random.nextInt(3)) {
+        case 0:
+          text = text.insert(start, inserted);
+          expected.insert(start, inserted);
+          break;
+        case 1:
+          text = text.delete(start, end);
+          expected.delete(start, end);
+          break;
+        default:
+          text = text.replace(start, end, inserted);
+          expected.replace(start, end, inserted);
+      }
+      if (i % 100 == 0) {
+        check(expected.toString(), text);
+      }
+    }
+    check(expected.toString(), text);
+  }
+
+  @Test
+  public void editsDoNotChangeSnapshot() {
+    String original = randomText(new Random(1), 100000);
+    ImmutableText snapshot = ImmutableText.valueOf(original);
+
+    ImmutableText text = snapshot;
+    for (int i = 0; i < 1000; i++) {
+      text = text.insert(50000 + i, "x");
+    }
+    text = text.delete(0, 10000);
+
+    check(original, snapshot);
+    assertEquals(original.length() + 1000 - 10000, text.length());
+  }
+
+  @Test
+  public void typingKeepsTreeBalanced() {
+    ImmutableText text = ImmutableText.valueOf(randomText(new Random(2), 1 << 20));
+    int offset = text.length() / 3;
+    for (int i = 0; i < 100000; i++) {
+      text = text.insert(offset++, "a");
+    }
+    // about 2300 blocks, a balanced tree of them is far shallower
+    assertTrue(String.valueOf(text.getDepth()), text.getDepth() < 40);
+  }
+
+  @Test
+  public void subSequenceAndGetChars() {
+    String string = randomText(new Random(3), 3000);
+    ImmutableText text = ImmutableText.valueOf(string);
+    assertEquals(string.substring(100, 2900), text.subSequence(100, 2900).toString());
+    assertEquals(ImmutableText.valueOf(string.substring(7, 1500)), text.subSequence(7, 1500));
+
+    char[] chars = new char[1000];
+    text.getChars(400, 1400, chars, 0);
+    assertEquals(string.substring(400, 1400), new String(chars));
+  }
+
+  private static void check(@NotNull String expected, @NotNull ImmutableText text) {
+    assertEquals(expected.length(), text.length());
+    assertEquals(expected, text.toString());
+    for (int i = expected.length() - 1; i >= 0; i -= 7) {
+      assertEquals(expected.charAt(i), text.charAt(i));
+    }
+  }
+
+  @NotNull
+  private static String randomText(@NotNull Random random, int length) {
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = (char)('a' + random.nextInt(26));
+    }
+    return new String(chars);
+  }
+}
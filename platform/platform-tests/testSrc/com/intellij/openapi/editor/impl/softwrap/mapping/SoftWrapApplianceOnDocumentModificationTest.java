@@ -1023,7 +1023,51 @@ public class SoftWrapApplianceOnDocumentModificationTest extends AbstractEditorP
     }
     assertFalse(fail.get());
   }
-  
+
+  public void testSoftWrapsOfLargeDocumentAreCalculatedLazily() throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 5000; i++) {
+      text.append("line ").append(i).append(" that is long enough to be soft-wrapped\n");
+    }
+    init(20, text.toString());
+
+    SoftWrapApplianceManager applianceManager = getSoftWrapModel().getApplianceManager();
+    assertTrue(getSoftWrapModel().getRegisteredSoftWraps().size() < 5000);
+    assertTrue(applianceManager.getEstimatedPendingSoftWrapLinesNumber() > 0);
+
+    // Modify the document region which soft wraps are not calculated for yet.
+    int estimate = applianceManager.getEstimatedPendingSoftWrapLinesNumber();
+    int offset = text.indexOf("line 4000 ");
+    myEditor.getDocument().insertString(offset, "new line which is long enough to be soft-wrapped as well\n");
+    assertTrue(applianceManager.getEstimatedPendingSoftWrapLinesNumber() > estimate);
+    
+    // The estimate is not affected by the changes before the pending region.
+    estimate = applianceManager.getEstimatedPendingSoftWrapLinesNumber();
+    myEditor.getDocument().deleteString(text.indexOf("line 10 "), text.indexOf("line 11 "));
+    assertEquals(estimate, applianceManager.getEstimatedPendingSoftWrapLinesNumber());
+
+    for (int i = 0; i < 100 && applianceManager.getEstimatedPendingSoftWrapLinesNumber() > 0; i++) {
+      applianceManager.refinePendingRegion();
+    }
+    assertEquals(0, applianceManager.getEstimatedPendingSoftWrapLinesNumber());
+    List<Integer> refined = new ArrayList<Integer>();
+    for (SoftWrap softWrap : getSoftWrapModel().getRegisteredSoftWraps()) {
+      refined.add(softWrap.getStart());
+    }
+    assertTrue(refined.size() >= 5000);
+
+    // Soft wraps are calculated till the caret at once.
+    getSoftWrapModel().recalculate();
+    myEditor.getCaretModel().moveToOffset(myEditor.getDocument().getTextLength());
+    myEditor.offsetToVisualPosition(myEditor.getDocument().getTextLength());
+    assertEquals(0, applianceManager.getEstimatedPendingSoftWrapLinesNumber());
+    List<Integer> expected = new ArrayList<Integer>();
+    for (SoftWrap softWrap : getSoftWrapModel().getRegisteredSoftWraps()) {
+      expected.add(softWrap.getStart());
+    }
+    assertEquals(expected, refined);
+  }
+
   private void init(final int visibleWidthInColumns, @NotNull String fileText) throws IOException {
     init(visibleWidthInColumns, 7, fileText);
   }
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.util.io.ByteSequence;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.IOStatistics;
+import junit.framework.TestCase;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class ContentStorageTest extends TestCase {
+  private File myDir;
+  private ContentStorage myStorage;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("content", "storage");
+    myStorage = open();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myStorage.dispose();
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  private ContentStorage open() throws IOException {
+    return new ContentStorage(new File(myDir, "content.dat"), new File(myDir, "content.hashes"));
+  }
+
+  public void testRoundTrip() throws IOException {
+    byte[] source = sourceText(1000).getBytes();
+    byte[] random = new byte[10000];
+    new Random(1).nextBytes(random);
+    byte[][] contents = {new byte[0], "short".getBytes(), source, random};
+
+    int[] records = new int[contents.length];
+    for (int i = 0; i < contents.length; i++) {
+      records[i] = store(contents[i]);
+    }
+    for (int i = 0; i < contents.length; i++) {
+      assertTrue(Arrays.equals(contents[i], read(records[i])));
+    }
+
+    myStorage.dispose();
+    myStorage = open();
+    for (int i = 0; i < contents.length; i++) {
+      assertTrue(Arrays.equals(contents[i], read(records[i])));
+    }
+    assertTrue(IOStatistics.getContentCompressionRatio() < 1);
+  }
+
+  public void testSameContentSharesRecord() throws IOException {
+    ByteSequence content = new ByteSequence(sourceText(100).getBytes());
+    int record = store(content.getBytes());
+
+    assertEquals(record, myStorage.acquireRecordWithContent(content));
+    assertEquals(2, myStorage.getRefCount(record));
+    assertEquals(0, myStorage.acquireRecordWithContent(new ByteSequence(sourceText(101).getBytes())));
+
+    myStorage.dispose();
+    myStorage = open();
+    assertEquals(record, myStorage.acquireRecordWithContent(content));
+    assertEquals(3, myStorage.getRefCount(record));
+  }
+
+  public void testStaleHashIsIgnored() throws IOException {
+    ByteSequence content = new ByteSequence(sourceText(100).getBytes());
+    int record = store(content.getBytes());
+    myStorage.releaseRecord(record);
+    assertEquals(0, myStorage.acquireRecordWithContent(content));
+
+    int reused = myStorage.acquireNewRecord();
+    assertEquals(record, reused);
+    assertEquals(0, myStorage.acquireRecordWithContent(content)); // not written yet
+    myStorage.writeBytes(reused, new ByteSequence("other".getBytes()), false);
+    assertEquals(0, myStorage.acquireRecordWithContent(content));
+    assertEquals(1, myStorage.getRefCount(reused));
+  }
+
+  private int store(byte[] bytes) throws IOException {
+    int record = myStorage.acquireNewRecord();
+    ByteSequence content = new ByteSequence(bytes);
+    myStorage.writeBytes(record, content, false);
+    myStorage.registerContent(record, content);
+    myStorage.force(); // records being written in background aren't shared yet
+    return record;
+  }
+
+  private byte[] read(int record) throws IOException {
+    DataInputStream stream = myStorage.readStream(record);
+    try {
+      return FileUtil.loadBytes(stream);
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  private static String sourceText(int lines) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < lines; i++) {
+      builder.append("  public static int method").append(i).append("(int value) { return value * ").append(i).append("; }\n");
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import com.intellij.util.io.PagedFileStorage;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RecordColumnsTest extends TestCase {
+  private static final int RECORDS = 1000000;
+  private static final int WALKS_PER_THREAD = 100000;
+
+  // same layout as FSRecords: parent, name, flags, attributes, content, timestamp, mod count, length
+  private static final int[] FIELDS = {0, 4, 8, 12, 16, 20, 28, 32};
+  private static final int RECORD_SIZE = 40;
+  private static final int PARENT = 0;
+  private static final int FLAGS = 8;
+  private static final int TIMESTAMP = 20;
+  private static final int LENGTH = 32;
+
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("records", "columns");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testReadWrite() throws IOException {
+    RecordColumns columns = new RecordColumns(new File(myDir, "records.dat"), new PagedFileStorage.StorageLock(false), FIELDS, RECORD_SIZE);
+    try {
+      for (int id = 0; id < 1000; id++) {
+        columns.cleanRecord(id);
+        columns.putInt(id, PARENT, id / 2);
+        columns.putInt(id, FLAGS, id);
+        columns.putLong(id, TIMESTAMP, id * 1000000000L);
+      }
+      assertEquals(1000, columns.getRecordCount());
+      for (int id = 0; id < 1000; id++) {
+        assertEquals(id / 2, columns.getInt(id, PARENT));
+        assertEquals(id, columns.getInt(id, FLAGS));
+        assertEquals(id * 1000000000L, columns.getLong(id, TIMESTAMP));
+        assertEquals(0, columns.getLong(id, LENGTH));
+      }
+      columns.force();
+    }
+    finally {
+      columns.close();
+    }
+
+    columns = new RecordColumns(new File(myDir, "records.dat"), new PagedFileStorage.StorageLock(false), FIELDS, RECORD_SIZE);
+    try {
+      assertEquals(1000, columns.getRecordCount());
+      assertEquals(999L * 1000000000L, columns.getLong(999, TIMESTAMP));
+    }
+    finally {
+      columns.close();
+    }
+  }
+
+  public void testReadsWhileRecordsAreCreated() throws Exception {
+    final RecordColumns columns = new RecordColumns(new File(myDir, "records.dat"), new PagedFileStorage.StorageLock(false), FIELDS,
+                                                    RECORD_SIZE);
+    final AtomicInteger created = new AtomicInteger();
+    final AtomicBoolean finished = new AtomicBoolean();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    try {
+      Thread[] threads = new Thread[4];
+      for (int i = 0; i < threads.length; i++) {
+        final int seed = i;
+        threads[i] = new Thread("reader " + i) {
+          @Override
+          public void run() {
+            try {
+              Random random = new Random(seed);
+              while (!finished.get()) {
+                int count = created.get();
+                if (count == 0) continue;
+                // mostly the newest records, their pages are extended by the writer
+                int id = count - 1 - random.nextInt(Math.min(count, 64));
+                assertEquals(id / 16, columns.getInt(id, PARENT));
+                assertEquals(id & 0xff, columns.getInt(id, FLAGS));
+                assertEquals(id, columns.getLong(id, TIMESTAMP));
+              }
+            }
+            catch (Throwable t) {
+              failure.set(t);
+            }
+          }
+        };
+        threads[i].start();
+      }
+
+      try {
+        // columns grow past their first page
+        for (int id = 0; id < 300000 && failure.get() == null; id++) {
+          columns.cleanRecord(id);
+          columns.putInt(id, PARENT, id / 16);
+          columns.putInt(id, FLAGS, id & 0xff);
+          columns.putLong(id, TIMESTAMP, id);
+          created.set(id + 1);
+        }
+      }
+      finally {
+        finished.set(true);
+        for (Thread thread : threads) thread.join();
+      }
+      if (failure.get() != null) throw new RuntimeException(failure.get());
+    }
+    finally {
+      columns.close();
+    }
+  }
+
+  public void testConcurrentWalkPerformance() throws Exception {
+    final RecordColumns columns = new RecordColumns(new File(myDir, "records.dat"), new PagedFileStorage.StorageLock(false), FIELDS,
+                                                    RECORD_SIZE);
+    try {
+      for (int id = 0; id < RECORDS; id++) {
+        columns.cleanRecord(id);
+        columns.putInt(id, PARENT, id / 16);
+        columns.putInt(id, FLAGS, id & 0xff);
+        columns.putLong(id, TIMESTAMP, id);
+        columns.putLong(id, LENGTH, id);
+      }
+
+      PlatformTestUtil.startPerformanceTest("walking record columns to the root in 4 threads", 1500, new ThrowableRunnable() {
+        @Override
+        public void run() throws Exception {
+          walk(4, columns);
+        }
+      }).cpuBound().assertTiming();
+    }
+    finally {
+      columns.close();
+    }
+  }
+
+  // walks from random records up to the root as path computation and refresh do
+  private static void walk(int threadCount, final RecordColumns columns) throws InterruptedException {
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      final int seed = i;
+      threads[i] = new Thread("walker " + i) {
+        @Override
+        public void run() {
+          try {
+            int id = seed;
+            for (int j = 0; j < WALKS_PER_THREAD; j++) {
+              id = (id * 1103515245 + 12345) & Integer.MAX_VALUE;
+              int current = id % RECORDS;
+              while (current != 0) {
+                assertEquals(current & 0xff, columns.getInt(current, FLAGS));
+                assertEquals(current, columns.getLong(current, TIMESTAMP));
+                assertEquals(current, columns.getLong(current, LENGTH));
+                current = columns.getInt(current, PARENT);
+              }
+            }
+          }
+          catch (Throwable t) {
+            failure.set(t);
+          }
+        }
+      };
+    }
+
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+    if (failure.get() != null) throw new RuntimeException(failure.get());
+  }
+}
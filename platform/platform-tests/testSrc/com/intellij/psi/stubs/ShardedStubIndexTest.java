@@ -0,0 +1,282 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import com.intellij.util.indexing.*;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+
+public class ShardedStubIndexTest extends TestCase {
+  private static final int FILES = 2000;
+  private static final int KEYS = 5000;
+
+  private File myDir;
+  private ShardedStubIndex<String> myIndex;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("stubIndex", null);
+    //noinspection unchecked
+    IndexStorage<String, StubIdList>[] storages = new IndexStorage[8];
+    for (int i = 0; i < storages.length; i++) {
+      storages[i] = new MemoryIndexStorage<String, StubIdList>(new MapIndexStorage<String, StubIdList>(
+        new File(myDir, "index_" + i), new EnumeratorStringDescriptor(), new StubIndexImpl.StubIdExternalizer(), 1024));
+    }
+    myIndex = new ShardedStubIndex<String>(new EnumeratorStringDescriptor(), storages);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myIndex.dispose();
+      FileUtil.delete(myDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testUpdates() throws StorageException {
+    Map<String, StubIdList> data = new HashMap<String, StubIdList>();
+    for (int i = 0; i < 100; i++) {
+      data.put("key" + i, new StubIdList(i));
+    }
+    myIndex.update(1, Collections.<String, StubIdList>emptyMap(), data);
+    myIndex.update(2, Collections.<String, StubIdList>emptyMap(), Collections.singletonMap("key0", new StubIdList(5)));
+    assertEquals(100, myIndex.getAllKeys().size());
+    assertValues("key0", 1, 0, 2, 5);
+    assertValues("key42", 1, 42);
+
+    Map<String, StubIdList> newData = new HashMap<String, StubIdList>();
+    newData.put("key0", new StubIdList(7));
+    newData.put("other", new StubIdList(3));
+    myIndex.update(1, data, newData);
+    assertValues("key0", 1, 7, 2, 5);
+    assertValues("key42");
+    assertValues("other", 1, 3);
+    assertTrue(myIndex.getAllKeys().contains("other"));
+
+    Set<Integer> shards = new HashSet<Integer>();
+    for (String key : data.keySet()) {
+      shards.add(myIndex.getShards().indexOf(myIndex.getShard(key)));
+    }
+    assertEquals(8, shards.size());
+  }
+
+  public void testReaderIsNotBlockedByUpdateOfAnotherShard() throws Exception {
+    final String updatedKey = "key0";
+    String readKey = "key1";
+    for (int i = 2; myIndex.getShard(readKey) == myIndex.getShard(updatedKey); i++) {
+      readKey = "key" + i;
+    }
+
+    final CountDownLatch locked = new CountDownLatch(1);
+    final CountDownLatch finished = new CountDownLatch(1);
+    Thread writer = new Thread("writer") {
+      @Override
+      public void run() {
+        List<Lock> locks = new ArrayList<Lock>();
+        myIndex.collectWriteLocks(Collections.singleton(updatedKey), locks);
+        ShardedStubIndex.lockAll(locks);
+        try {
+          locked.countDown();
+          finished.await();
+        }
+        catch (InterruptedException ignored) {
+        }
+        finally {
+          ShardedStubIndex.unlockAll(locks);
+        }
+      }
+    };
+    writer.start();
+    try {
+      assertTrue(locked.await(10, TimeUnit.SECONDS));
+      assertFalse(myIndex.getShard(updatedKey).getReadLock().tryLock());
+      Lock readLock = myIndex.getShard(readKey).getReadLock();
+      assertTrue(readLock.tryLock());
+      readLock.unlock();
+    }
+    finally {
+      finished.countDown();
+      writer.join();
+    }
+  }
+
+  public void testWriterIsNotStarvedByReaders() throws Exception {
+    final List<Lock> locks = new ArrayList<Lock>();
+    myIndex.collectWriteLocks(locks);
+    final AtomicBoolean stop = new AtomicBoolean();
+    // every shard is read-locked by one of the readers most of the time, readers of different shards overlap
+    Thread[] readers = new Thread[4];
+    for (int i = 0; i < readers.length; i++) {
+      final int reader = i;
+      readers[i] = new Thread("reader " + i) {
+        @Override
+        public void run() {
+          List<MapReduceIndex<String, StubIdList, Void>> shards = new ArrayList<MapReduceIndex<String, StubIdList, Void>>(myIndex.getShards());
+          for (int j = reader; !stop.get(); j++) {
+            Lock readLock = shards.get(j % shards.size()).getReadLock();
+            readLock.lock();
+            try {
+              Thread.sleep(1);
+            }
+            catch (InterruptedException ignored) {
+            }
+            finally {
+              readLock.unlock();
+            }
+          }
+        }
+      };
+      readers[i].start();
+    }
+
+    final CountDownLatch locked = new CountDownLatch(1);
+    Thread writer = new Thread("writer") {
+      @Override
+      public void run() {
+        ShardedStubIndex.lockAll(locks);
+        ShardedStubIndex.unlockAll(locks);
+        locked.countDown();
+      }
+    };
+    try {
+      Thread.sleep(100);
+      writer.start();
+      assertTrue(locked.await(10, TimeUnit.SECONDS));
+    }
+    finally {
+      stop.set(true);
+      for (Thread reader : readers) {
+        reader.join();
+      }
+      writer.join();
+    }
+  }
+
+  public void testConcurrentReadersDuringReindexPerformance() throws Exception {
+    for (int file = 0; file < FILES; file++) {
+      myIndex.update(file, Collections.<String, StubIdList>emptyMap(), fileData(file, 0));
+    }
+
+    final AtomicBoolean stop = new AtomicBoolean();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    Thread writer = new Thread("reindex") {
+      @Override
+      public void run() {
+        try {
+          for (int pass = 0; !stop.get(); pass++) {
+            for (int file = 0; file < FILES && !stop.get(); file++) {
+              Map<String, StubIdList> oldData = fileData(file, pass);
+              Map<String, StubIdList> newData = fileData(file, pass + 1);
+              Set<String> keys = new HashSet<String>(oldData.keySet());
+              keys.addAll(newData.keySet());
+              List<Lock> locks = new ArrayList<Lock>();
+              myIndex.collectWriteLocks(keys, locks);
+              ShardedStubIndex.lockAll(locks);
+              try {
+                myIndex.update(file, oldData, newData);
+              }
+              finally {
+                ShardedStubIndex.unlockAll(locks);
+              }
+            }
+          }
+        }
+        catch (Throwable e) {
+          error.set(e);
+        }
+      }
+    };
+    writer.start();
+
+    try {
+      PlatformTestUtil.startPerformanceTest("stub index reads during reindex", 3000, new ThrowableRunnable() {
+        @Override
+        public void run() throws Exception {
+          Thread[] readers = new Thread[4];
+          for (int i = 0; i < readers.length; i++) {
+            final Random random = new Random(i);
+            readers[i] = new Thread("reader " + i) {
+              @Override
+              public void run() {
+                try {
+                  for (int j = 0; j < 50000; j++) {
+                    String key = "key" + random.nextInt(KEYS);
+                    myIndex.getShard(key).getData(key);
+                  }
+                }
+                catch (Throwable e) {
+                  error.compareAndSet(null, e);
+                }
+              }
+            };
+            readers[i].start();
+          }
+          for (Thread reader : readers) {
+            reader.join();
+          }
+        }
+      }).assertTiming();
+    }
+    finally {
+      stop.set(true);
+      writer.join();
+    }
+    if (error.get() != null) {
+      throw new RuntimeException(error.get());
+    }
+  }
+
+  private static Map<String, StubIdList> fileData(int file, int pass) {
+    Map<String, StubIdList> data = new HashMap<String, StubIdList>();
+    Random random = new Random(file * 31 + pass);
+    for (int i = 0; i < 5; i++) {
+      data.put("key" + random.nextInt(KEYS), new StubIdList(i));
+    }
+    return data;
+  }
+
+  private void assertValues(String key, int... inputsAndStubIds) throws StorageException {
+    ValueContainer<StubIdList> container = myIndex.getShard(key).getData(key);
+    Map<Integer, StubIdList> expected = new HashMap<Integer, StubIdList>();
+    for (int i = 0; i < inputsAndStubIds.length; i += 2) {
+      expected.put(inputsAndStubIds[i], new StubIdList(inputsAndStubIds[i + 1]));
+    }
+    final Map<Integer, StubIdList> actual = new HashMap<Integer, StubIdList>();
+    container.forEach(new ValueContainer.ContainerAction<StubIdList>() {
+      @Override
+      public boolean perform(int id, StubIdList value) {
+        actual.put(id, value);
+        return true;
+      }
+    });
+    assertEquals(expected, actual);
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import com.intellij.util.io.AbstractStringEnumerator;
+import com.intellij.util.io.UnsyncByteArrayInputStream;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class StubSerializationHelperTest extends TestCase {
+  private static final int CLASSES = 20;
+  private static final int METHODS = 10;
+
+  private StubSerializationHelper myHelper;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myHelper = new StubSerializationHelper(new AbstractStringEnumerator() {
+      private final List<String> myValues = new ArrayList<String>();
+
+      @Override
+      public int enumerate(@Nullable String value) {
+        int index = myValues.indexOf(value);
+        if (index < 0) {
+          myValues.add(value);
+          index = myValues.size() - 1;
+        }
+        return index + 1;
+      }
+
+      @Override
+      public String valueOf(int idx) {
+        return myValues.get(idx - 1);
+      }
+
+      @Override
+      public void markCorrupted() {
+      }
+
+      @Override
+      public boolean isDirty() {
+        return false;
+      }
+
+      @Override
+      public void force() {
+      }
+
+      @Override
+      public void close() {
+      }
+    });
+    myHelper.assignId(TestStub.SERIALIZER);
+  }
+
+  public void testFullDeserialization() throws IOException {
+    TestStub root = createTree(new Random(1), "file");
+    byte[] bytes = serialize(root);
+    assertEquals(root.printTree(), ((TestStub)myHelper.deserialize(new UnsyncByteArrayInputStream(bytes))).printTree());
+  }
+
+  public void testPartialDeserializationMaterializesRequestedStubsWithAncestors() throws IOException {
+    Random random = new Random(2);
+    for (int i = 0; i < 100; i++) {
+      TestStub root = createTree(random, "file" + i);
+      List<TestStub> plainList = new ArrayList<TestStub>();
+      root.enumerate(plainList);
+      byte[] bytes = serialize(root);
+
+      int[] indices = new int[random.nextInt(5) + 1];
+      for (int j = 0; j < indices.length; j++) {
+        indices[j] = random.nextInt(plainList.size());
+      }
+      Stub[] stubs = myHelper.deserializeStubs(bytes, bytes.length, indices);
+      assertEquals(indices.length, stubs.length);
+      for (int j = 0; j < indices.length; j++) {
+        TestStub expected = plainList.get(indices[j]);
+        TestStub actual = (TestStub)stubs[j];
+        while (expected != null) {
+          assertNotNull(actual);
+          assertEquals(expected.myName, actual.myName);
+          assertEquals(expected.myModifiers, actual.myModifiers);
+          expected = expected.getParentStub();
+          actual = actual.getParentStub();
+        }
+        assertNull(actual);
+      }
+
+      List<TestStub> materialized = new ArrayList<TestStub>();
+      ((TestStub)stubs[0]).getRoot().enumerate(materialized);
+      assertTrue(materialized.size() <= indices.length * 3);
+    }
+  }
+
+  public void testRootOnly() throws IOException {
+    TestStub root = createTree(new Random(3), "file");
+    byte[] bytes = serialize(root);
+    TestStub stub = (TestStub)myHelper.deserializeStubs(bytes, bytes.length, 0)[0];
+    assertEquals("file", stub.myName);
+    assertTrue(stub.getChildrenStubs().isEmpty());
+  }
+
+  public void testGotoClassOverManyFilesPerformance() throws IOException {
+    final List<byte[]> files = new ArrayList<byte[]>();
+    Random random = new Random(4);
+    for (int i = 0; i < 1000; i++) {
+      files.add(serialize(createTree(random, "file" + i)));
+    }
+
+    // look up a class stub in each of 100k stubbed files as a class name index query would do
+    PlatformTestUtil.startPerformanceTest("partial stub deserialization in 100k files", 2000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Exception {
+        for (int i = 0; i < 100000; i++) {
+          byte[] bytes = files.get(i % files.size());
+          int classIndex = 1 + (i % CLASSES) * (METHODS + 1);
+          TestStub stub = (TestStub)myHelper.deserializeStubs(bytes, bytes.length, classIndex)[0];
+          assertEquals("Class" + (i % CLASSES), stub.myName);
+        }
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  private byte[] serialize(TestStub root) throws IOException {
+    BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
+    myHelper.serialize(root, out);
+    return out.toByteArray();
+  }
+
+  private static TestStub createTree(Random random, String fileName) {
+    TestStub root = new TestStub(null, fileName, 0);
+    for (int i = 0; i < CLASSES; i++) {
+      TestStub aClass = new TestStub(root, "Class" + i, random.nextInt(16));
+      for (int j = 0; j < METHODS; j++) {
+        new TestStub(aClass, "method" + random.nextInt(100), random.nextInt(16));
+      }
+    }
+    return root;
+  }
+
+  private static class TestStub extends ObjectStubBase<TestStub> {
+    private static final ObjectStubSerializer<TestStub, TestStub> SERIALIZER = new ObjectStubSerializer<TestStub, TestStub>() {
+      @Override
+      public String getExternalId() {
+        return "test.stub";
+      }
+
+      @Override
+      public void serialize(TestStub stub, StubOutputStream dataStream) throws IOException {
+        dataStream.writeName(stub.myName);
+        dataStream.writeVarInt(stub.myModifiers);
+      }
+
+      @Override
+      public TestStub deserialize(StubInputStream dataStream, TestStub parentStub) throws IOException {
+        return new TestStub(parentStub, dataStream.readName().getString(), dataStream.readVarInt());
+      }
+
+      @Override
+      public void indexStub(TestStub stub, IndexSink sink) {
+      }
+    };
+
+    private final String myName;
+    private final int myModifiers;
+    private final List<TestStub> myChildren = new ArrayList<TestStub>();
+
+    private TestStub(TestStub parent, String name, int modifiers) {
+      super(parent);
+      myName = name;
+      myModifiers = modifiers;
+      if (parent != null) {
+        parent.myChildren.add(this);
+      }
+    }
+
+    @Override
+    public List<TestStub> getChildrenStubs() {
+      return myChildren;
+    }
+
+    @Override
+    public ObjectStubSerializer getStubType() {
+      return SERIALIZER;
+    }
+
+    private TestStub getRoot() {
+      return myParent == null ? this : myParent.getRoot();
+    }
+
+    private void enumerate(List<TestStub> result) {
+      result.add(this);
+      for (TestStub child : myChildren) {
+        child.enumerate(result);
+      }
+    }
+
+    private String printTree() {
+      StringBuilder builder = new StringBuilder(myName).append(':').append(myModifiers).append('(');
+      for (TestStub child : myChildren) {
+        builder.append(child.printTree()).append(' ');
+      }
+      return builder.append(')').toString();
+    }
+  }
+}
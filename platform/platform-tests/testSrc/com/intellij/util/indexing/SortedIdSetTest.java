@@ -0,0 +1,177 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class SortedIdSetTest extends TestCase {
+  public void testRandomUpdates() {
+    Random random = new Random(42);
+    for (int range : new int[]{100, 10000, 1000000}) {
+      SortedIdSet set = new SortedIdSet();
+      TIntHashSet expected = new TIntHashSet();
+      for (int i = 0; i < 20000; i++) {
+        int id = random.nextInt(range);
+        if (random.nextInt(3) == 0) {
+          assertEquals(expected.remove(id), set.remove(id));
+        }
+        else {
+          assertEquals(expected.add(id), set.add(id));
+        }
+        if (i % 1000 == 0) set.compact();
+      }
+      assertSameIds(expected, set);
+    }
+  }
+
+  public void testSwitchesToBitmapAndBack() {
+    SortedIdSet set = new SortedIdSet();
+    for (int i = 1000; i < 3000; i++) {
+      set.add(i);
+    }
+    set.add(1);
+    set.add(100000);
+    for (int i = 1000; i < 2990; i++) {
+      assertTrue(set.remove(i));
+    }
+    assertEquals(12, set.size());
+    assertTrue(set.contains(1));
+    assertTrue(set.contains(2995));
+    assertTrue(set.contains(100000));
+    assertFalse(set.contains(1500));
+  }
+
+  public void testClonesShareUntilModified() {
+    SortedIdSet set = new SortedIdSet();
+    for (int i = 0; i < 1000; i += 2) {
+      set.add(i);
+    }
+    SortedIdSet copy = set.clone();
+    copy.add(1);
+    set.remove(0);
+    assertTrue(copy.contains(0));
+    assertFalse(set.contains(1));
+    assertEquals(501, copy.size());
+    assertEquals(499, set.size());
+  }
+
+  public void testIntersectionAndUnion() {
+    Random random = new Random(7);
+    int[] densities = {2, 50, 5000};
+    for (int firstDensity : densities) {
+      for (int secondDensity : densities) {
+        SortedIdSet first = new SortedIdSet();
+        SortedIdSet second = new SortedIdSet();
+        TIntHashSet firstExpected = new TIntHashSet();
+        TIntHashSet secondExpected = new TIntHashSet();
+        for (int i = 0; i < 3000; i++) {
+          int id = 500 + random.nextInt(3000 * firstDensity);
+          first.add(id);
+          firstExpected.add(id);
+          id = random.nextInt(3000 * secondDensity);
+          second.add(id);
+          secondExpected.add(id);
+        }
+
+        TIntHashSet intersection = new TIntHashSet(firstExpected.toArray());
+        intersection.retainAll(secondExpected.toArray());
+        assertSameIds(intersection, SortedIdSet.intersection(first, second));
+
+        TIntHashSet union = new TIntHashSet(firstExpected.toArray());
+        union.addAll(secondExpected.toArray());
+        assertSameIds(union, SortedIdSet.union(first, second));
+      }
+    }
+  }
+
+  public void testIntersectionWithPostingList() {
+    Random random = new Random(11);
+    int[] sizes = {1, 100, 3000};
+    for (int firstSize : sizes) {
+      for (int secondSize : sizes) {
+        SortedIdSet first = new SortedIdSet();
+        final SortedIdSet second = new SortedIdSet();
+        for (int i = 0; i < firstSize; i++) {
+          first.add(random.nextInt(10000));
+        }
+        for (int i = 0; i < secondSize; i++) {
+          second.add(random.nextInt(10000));
+        }
+        ValueContainer.IntPredicate predicate = new ValueContainer.IntPredicate() {
+          @Override
+          boolean contains(int id) {
+            return second.contains(id);
+          }
+        };
+
+        TIntHashSet expected = new TIntHashSet(first.toArray());
+        expected.retainAll(second.toArray());
+        assertSameIds(expected, SortedIdSet.intersection(first, second.iterator(), predicate));
+      }
+    }
+  }
+
+  public void testPostingListIntersectionPerformance() {
+    Random random = new Random(1);
+    int files = 300000;
+    final SortedIdSet frequent = new SortedIdSet();
+    final SortedIdSet rare = new SortedIdSet();
+    final TIntHashSet expected = new TIntHashSet();
+    for (int id = 1; id < files; id++) {
+      if (random.nextInt(3) == 0) {
+        frequent.add(id);
+        expected.add(id);
+      }
+      if (random.nextInt(50) == 0) {
+        rare.add(id);
+      }
+    }
+
+    PlatformTestUtil.startPerformanceTest("intersection and union of frequent and rare posting lists", 400, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 100; i++) {
+          SortedIdSet result = SortedIdSet.intersection(frequent, SortedIdSet.union(rare, frequent));
+          assertEquals(expected.size(), result.size());
+        }
+      }
+    }).cpuBound().assertTiming();
+    assertSameIds(expected, SortedIdSet.intersection(frequent, SortedIdSet.union(rare, frequent)));
+  }
+
+  private static void assertSameIds(TIntHashSet expected, SortedIdSet set) {
+    int[] ids = expected.toArray();
+    Arrays.sort(ids);
+    assertEquals(ids.length, set.size());
+    assertTrue(Arrays.equals(ids, set.toArray()));
+
+    int[] iterated = new int[set.size()];
+    int count = 0;
+    for (ValueContainer.IntIterator iterator = set.iterator(); iterator.hasNext(); ) {
+      iterated[count++] = iterator.next();
+    }
+    assertTrue(Arrays.equals(ids, iterated));
+    for (int id : ids) {
+      assertTrue(set.contains(id));
+    }
+  }
+}
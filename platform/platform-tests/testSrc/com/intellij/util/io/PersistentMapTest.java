@@ -248,6 +248,81 @@ public class PersistentMapTest extends TestCase {
     }
   }
 
+  public void testIncrementalCompactionOnOpening() throws Exception {
+    final int keysCount = 600;
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < 1000; ++i) builder.append("0123456789");
+    final String longValue = builder.toString();
+
+    for (int attempt = 0; attempt < 3; ++attempt) { // more garbage than live values, so the map gets compacted on opening
+      for (int i = 0; i < keysCount; ++i) {
+        myMap.put("key" + i, i + "_value" + longValue);
+      }
+    }
+    myMap.close();
+    myMap = new PersistentHashMap<String, String>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    assertTrue(myMap.isCompactionInProgress());
+
+    // the map is usable while it's being compacted
+    for (int i = 0; i < keysCount; i += 2) {
+      myMap.put("key" + i, i + "_modified");
+    }
+
+    long started = System.currentTimeMillis();
+    while (myMap.isCompactionInProgress()) {
+      assertTrue(System.currentTimeMillis() - started < 60000);
+      Thread.sleep(10);
+    }
+
+    assertTrue(myMap.getGarbageRatio() < 0.5); // only values modified after compaction are garbage
+    assertTrue(myMap.getCompactionBandwidth() > 0);
+    for (int i = 0; i < keysCount; ++i) {
+      assertEquals(i % 2 == 0 ? i + "_modified" : i + "_value" + longValue, myMap.get("key" + i));
+    }
+    assertTrue(myDataFile.length() < 2 * keysCount * longValue.length());
+  }
+
+  public void testChangesBetweenIncrementalCompactionChunks() throws IOException {
+    final int keysCount = 5000;
+    final Map<String, String> expected = new HashMap<String, String>();
+    for (int attempt = 0; attempt < 2; ++attempt) {
+      for (int i = 0; i < keysCount; ++i) {
+        myMap.put("key" + i, i + "_value" + attempt);
+        expected.put("key" + i, i + "_value" + attempt);
+      }
+    }
+
+    myMap.startIncrementalCompaction(false);
+    int chunks = 0;
+    do {
+      // keys copied by the previous chunks are removed, removed keys are put back, others are changed before being copied
+      for (int i = chunks % 7; i < keysCount; i += 7) {
+        myMap.remove("key" + i);
+        expected.remove("key" + i);
+      }
+      for (int i = chunks % 11; i < keysCount; i += 11) {
+        myMap.put("key" + i, i + "_put" + chunks);
+        expected.put("key" + i, i + "_put" + chunks);
+      }
+      ++chunks;
+    }
+    while (myMap.compactIncrementally());
+    assertFalse(myMap.isCompactionInProgress());
+    assertTrue(chunks > 2);
+
+    checkContents(expected, keysCount);
+    myMap.close();
+    myMap = new PersistentHashMap<String, String>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    checkContents(expected, keysCount);
+  }
+
+  private void checkContents(Map<String, String> expected, int keysCount) throws IOException {
+    for (int i = 0; i < keysCount; ++i) {
+      assertEquals(expected.get("key" + i), myMap.get("key" + i));
+    }
+    assertEquals(expected.keySet(), new HashSet<String>(myMap.getAllKeysWithExistingMapping()));
+  }
+
   public void testPerformance() throws IOException {
     final IntObjectCache<String> stringCache = new IntObjectCache<String>(2000);
     final IntObjectCache.DeletedPairsListener listener = new IntObjectCache.DeletedPairsListener() {
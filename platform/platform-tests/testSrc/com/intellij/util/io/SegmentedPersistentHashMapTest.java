@@ -0,0 +1,167 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SegmentedPersistentHashMapTest extends TestCase {
+  private static final int KEYS = 5000;
+  private static final int OPERATIONS_PER_THREAD = 40000;
+
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("segmented", "map");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testMap() throws IOException {
+    File file = new File(myDir, "map");
+    SegmentedPersistentHashMap<String, String> map =
+      new SegmentedPersistentHashMap<String, String>(file, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor(), 3);
+    try {
+      for (int i = 0; i < 1000; i++) {
+        map.put("key" + i, "value" + i);
+      }
+      map.remove("key0");
+      assertNull(map.get("key0"));
+      assertFalse(map.containsMapping("key0"));
+      assertEquals(999, new HashSet<String>(map.getAllKeysWithExistingMapping()).size());
+    }
+    finally {
+      map.close();
+    }
+
+    map = new SegmentedPersistentHashMap<String, String>(file, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor(), 3);
+    try {
+      for (int i = 1; i < 1000; i++) {
+        assertEquals("value" + i, map.get("key" + i));
+      }
+    }
+    finally {
+      map.close();
+    }
+
+    try {
+      new SegmentedPersistentHashMap<String, String>(file, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor(), 5);
+      fail("segment count change must be detected");
+    }
+    catch (PersistentEnumeratorBase.CorruptedException ignored) {
+    }
+  }
+
+  public void testConcurrentAppendsAndReadsPerformance() throws Exception {
+    final SegmentedPersistentHashMap<String, List<Integer>> map =
+      new SegmentedPersistentHashMap<String, List<Integer>>(new File(myDir, "map"), new EnumeratorStringDescriptor(), new IntListExternalizer());
+    try {
+      final AtomicIntegerArray appended = new AtomicIntegerArray(KEYS);
+      PlatformTestUtil.startPerformanceTest("appends and reads of SegmentedPersistentHashMap in 4 threads", 3000, new ThrowableRunnable() {
+        @Override
+        public void run() throws Exception {
+          runMixedWorkload(4, map, appended);
+        }
+      }).cpuBound().assertTiming();
+
+      for (int i = 0; i < KEYS; i++) {
+        List<Integer> value = map.get("key" + i);
+        assertEquals(appended.get(i), value == null ? 0 : value.size());
+      }
+    }
+    finally {
+      map.close();
+    }
+  }
+
+  // 3 of 4 operations are reads, the rest appends to random keys
+  private static void runMixedWorkload(int threadCount,
+                                       final SegmentedPersistentHashMap<String, List<Integer>> map,
+                                       final AtomicIntegerArray appended) throws Exception {
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      final int seed = i;
+      threads[i] = new Thread("worker " + i) {
+        @Override
+        public void run() {
+          try {
+            Random random = new Random(seed);
+            for (int j = 0; j < OPERATIONS_PER_THREAD; j++) {
+              final int keyIndex = random.nextInt(KEYS);
+              String key = "key" + keyIndex;
+              if (j % 4 == 0) {
+                map.appendData(key, new PersistentHashMap.ValueDataAppender() {
+                  @Override
+                  public void append(DataOutput out) throws IOException {
+                    out.writeInt(keyIndex);
+                  }
+                });
+                appended.incrementAndGet(keyIndex);
+              }
+              else {
+                List<Integer> value = map.get(key);
+                if (value != null) {
+                  for (Integer integer : value) {
+                    assertEquals(keyIndex, integer.intValue());
+                  }
+                }
+              }
+            }
+          }
+          catch (Throwable t) {
+            failure.set(t);
+          }
+        }
+      };
+    }
+
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+    if (failure.get() != null) throw new RuntimeException(failure.get());
+  }
+
+  private static class IntListExternalizer implements DataExternalizer<List<Integer>> {
+    @Override
+    public void save(DataOutput out, List<Integer> value) throws IOException {
+      for (Integer integer : value) {
+        out.writeInt(integer);
+      }
+    }
+
+    @Override
+    public List<Integer> read(DataInput in) throws IOException {
+      List<Integer> result = new ArrayList<Integer>();
+      while (((DataInputStream)in).available() > 0) {
+        result.add(in.readInt());
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+public class SourceCodeCompressorTest extends TestCase {
+  public void testRoundTrip() throws IOException {
+    byte[] source = sourceText(new Random(1), 100000);
+    byte[] compressed = SourceCodeCompressor.compress(source);
+    assertTrue(compressed.length < source.length / 2);
+    assertTrue(Arrays.equals(source, SourceCodeCompressor.decompress(compressed)));
+
+    byte[] padded = new byte[compressed.length + 10];
+    System.arraycopy(compressed, 0, padded, 3, compressed.length);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    SourceCodeCompressor.decompress(padded, 3, compressed.length, out);
+    assertTrue(Arrays.equals(source, out.toByteArray()));
+  }
+
+  public void testStreamingCompressionWritesSameData() throws IOException {
+    byte[] source = sourceText(new Random(2), 10000);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int written = SourceCodeCompressor.compress(source, 100, 5000, out);
+    assertEquals(out.size(), written);
+    assertTrue(Arrays.equals(SourceCodeCompressor.compress(source, 100, 5000), out.toByteArray()));
+    assertTrue(Arrays.equals(Arrays.copyOfRange(source, 100, 5100), SourceCodeCompressor.decompress(out.toByteArray())));
+  }
+
+  public void testDecompressesDataWithoutDictionary() throws IOException {
+    byte[] source = sourceText(new Random(3), 1000);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    DeflaterOutputStream out = new DeflaterOutputStream(compressed, new Deflater(Deflater.BEST_COMPRESSION));
+    out.write(source);
+    out.close();
+    assertTrue(Arrays.equals(source, SourceCodeCompressor.decompress(compressed.toByteArray())));
+  }
+
+  public void testTruncatedData() {
+    byte[] compressed = SourceCodeCompressor.compress(sourceText(new Random(4), 1000));
+    try {
+      SourceCodeCompressor.decompress(Arrays.copyOf(compressed, compressed.length / 2));
+      fail();
+    }
+    catch (IOException ignored) {
+    }
+  }
+
+  public void testConcurrentUse() throws Exception {
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      final int seed = i;
+      threads[i] = new Thread("compressor " + i) {
+        @Override
+        public void run() {
+          try {
+            Random random = new Random(seed);
+            for (int j = 0; j < 200; j++) {
+              byte[] source = sourceText(random, random.nextInt(20000));
+              byte[] compressed = SourceCodeCompressor.compress(source);
+              assertTrue(Arrays.equals(source, SourceCodeCompressor.decompress(compressed, compressed.length, 0)));
+            }
+          }
+          catch (Throwable e) {
+            error.compareAndSet(null, e);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (error.get() != null) {
+      throw new RuntimeException(error.get());
+    }
+  }
+
+  public void testCodecs() throws IOException {
+    byte[] source = sourceText(new Random(5), 50000);
+    for (CompressionCodec codec : CompressionCodec.values()) {
+      if (!codec.isAvailable()) continue;
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      compressed.write(source, 0, 7);
+      int written = codec.compress(source, 7, 40000, compressed);
+      assertEquals(compressed.size() - 7, written);
+      assertSame(codec, CompressionCodec.forId(codec.getId()));
+
+      byte[] expected = Arrays.copyOfRange(source, 7, 40007);
+      assertTrue(codec.toString(), Arrays.equals(expected, codec.decompress(compressed.toByteArray(), 7, compressed.size() - 7)));
+      ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+      codec.decompress(compressed.toByteArray(), 7, compressed.size() - 7, decompressed);
+      assertTrue(codec.toString(), Arrays.equals(expected, decompressed.toByteArray()));
+    }
+    assertTrue(CompressionCodec.getPreferred().isAvailable());
+  }
+
+  private static byte[] sourceText(Random random, int length) {
+    String[] words = {"public ", "class ", "void ", "return ", "int ", "String ", "myField", " = ", ";\n", "{\n", "}\n", "if (", ") "};
+    StringBuilder text = new StringBuilder(length + 10);
+    while (text.length() < length) {
+      text.append(random.nextInt(4) == 0 ? String.valueOf(random.nextInt(1000)) : words[random.nextInt(words.length)]);
+    }
+    text.setLength(length);
+    return text.toString().getBytes();
+  }
+}
@@ -20,6 +20,7 @@ import org.jetbrains.annotations.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class ByteBufferWrapper {
   public static final boolean NO_MMAP = "true".equals(System.getProperty("idea.io.use.direct"));
@@ -28,6 +29,8 @@ public abstract class ByteBufferWrapper {
   protected final long myPosition;
   protected final long myLength;
   protected volatile boolean myDirty;
+  private final AtomicInteger myPinCount = new AtomicInteger();
+  private static final int RELEASED = -1;
 
   protected ByteBufferWrapper(final File file, final long offset, final long length) {
     myFile = file;
@@ -48,6 +51,29 @@ public abstract class ByteBufferWrapper {
 
   public abstract ByteBuffer getBuffer() throws IOException;
 
+  /**
+   * Prevents the buffer from being disposed until matching {@link #unpin()} is called.
+   * @return false if the buffer was already released and should be looked up again
+   */
+  public final boolean tryPin() {
+    while (true) {
+      int count = myPinCount.get();
+      if (count == RELEASED) return false;
+      if (myPinCount.compareAndSet(count, count + 1)) return true;
+    }
+  }
+
+  public final void unpin() {
+    myPinCount.decrementAndGet();
+  }
+
+  /**
+   * @return true if nobody holds the buffer pinned, after that the buffer can't be pinned anymore and may be disposed
+   */
+  final boolean tryRelease() {
+    return myPinCount.compareAndSet(0, RELEASED);
+  }
+
   public abstract void unmap();
 
   public abstract void flush();
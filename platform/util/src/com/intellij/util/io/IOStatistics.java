@@ -2,13 +2,49 @@ package com.intellij.util.io;
 
 import com.intellij.openapi.diagnostic.Logger;
 
-class IOStatistics {
+import java.util.concurrent.atomic.AtomicLong;
+
+public class IOStatistics {
   static final boolean DEBUG = System.getProperty("io.access.debug") != null;
   static final int MIN_IO_TIME_TO_REPORT = 100;
   static final Logger LOG = Logger.getInstance("#com.intellij.io.IOStatistics");
   static final int KEYS_FACTOR_MASK = 0xFFFF;
 
+  private static final AtomicLong ourContentBytes = new AtomicLong();
+  private static final AtomicLong ourCompressedContentBytes = new AtomicLong();
+  private static final AtomicLong ourDecompressedContents = new AtomicLong();
+  private static final AtomicLong ourDecompressionTime = new AtomicLong();
+
   static void dump(String msg) {
     LOG.info(msg);
   }
+
+  public static void contentCompressed(int length, int compressedLength) {
+    ourContentBytes.addAndGet(length);
+    ourCompressedContentBytes.addAndGet(compressedLength);
+  }
+
+  public static void contentDecompressed(long nanos) {
+    ourDecompressedContents.incrementAndGet();
+    ourDecompressionTime.addAndGet(nanos);
+  }
+
+  /**
+   * @return compressed to original size ratio of contents stored since start
+   */
+  public static double getContentCompressionRatio() {
+    long length = ourContentBytes.get();
+    return length == 0 ? 1 : (double)ourCompressedContentBytes.get() / length;
+  }
+
+  public static long getAverageContentDecompressionTimeNanos() {
+    long count = ourDecompressedContents.get();
+    return count == 0 ? 0 : ourDecompressionTime.get() / count;
+  }
+
+  public static String getContentStatistics() {
+    return "stored " + ourContentBytes.get() / 1024 + "K of contents as " + ourCompressedContentBytes.get() / 1024 + "K" +
+           " (ratio " + String.format("%.2f", getContentCompressionRatio()) + "), decompressed " + ourDecompressedContents.get() +
+           " contents, " + getAverageContentDecompressionTimeNanos() / 1000 + " us on average";
+  }
 }
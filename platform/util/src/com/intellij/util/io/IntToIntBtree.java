@@ -1098,6 +1098,39 @@ class IntToIntBtree {
     return processLeafPages(root, processor);
   }
 
+  /**
+   * Processes mappings of the leaf page holding the key and greater keys. Pages are split along key ranges, so all mappings
+   * existing before the first call are processed by subsequent calls even if the tree is modified in between.
+   *
+   * @return key to continue processing from or a value greater than {@link Integer#MAX_VALUE} if all mappings have been processed
+   */
+  public long processMappings(final int fromKey, @NotNull final KeyValueProcessor processor) throws IOException {
+    flushCachedMappings();
+    root.syncWithStore();
+
+    long toKey = (long)Integer.MAX_VALUE + 1;
+    BtreeIndexNodeView node = new BtreeIndexNodeView(this);
+    node.initTraversal(root.address);
+    while (!node.isIndexLeaf()) {
+      int i = node.search(fromKey);
+      int childIndex = i < 0 ? -i - 1 : i + 1;
+      if (childIndex < node.getChildrenCount()) toKey = node.keyAt(childIndex);
+      node.setAddress(-node.addressAt(childIndex));
+    }
+
+    if (hasZeroKey && fromKey <= 0 && 0 < toKey) {
+      if (!processor.process(0, zeroKeyValue)) return toKey;
+    }
+    // keys of the page below fromKey have been processed already
+    node.processMappings(new KeyValueProcessor() {
+      @Override
+      public boolean process(int key, int value) throws IOException {
+        return key < fromKey || processor.process(key, value);
+      }
+    });
+    return toKey;
+  }
+
   private boolean processLeafPages(@NotNull BtreeIndexNodeView node, @NotNull KeyValueProcessor processor) throws IOException {
     if (node.isIndexLeaf()) {
       return node.processMappings(processor);
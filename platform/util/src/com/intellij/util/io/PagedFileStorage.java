@@ -46,6 +46,7 @@ public class PagedFileStorage implements Forceable {
   private final static int UPPER_LIMIT;
   public final static int BUFFER_SIZE;
   private static final int UNKNOWN_PAGE = -1;
+  private static final boolean CONCURRENT_READS = SystemProperties.getBooleanProperty("idea.paged.storage.concurrent.reads", false);
 
   static {
     final int lower = 100;
@@ -65,7 +66,8 @@ public class PagedFileStorage implements Forceable {
     LOG.info("lower=" + (LOWER_LIMIT / MB) +
              "; upper=" + (UPPER_LIMIT / MB) +
              "; buffer=" + (BUFFER_SIZE / MB) +
-             "; mmap=" + (!ByteBufferWrapper.NO_MMAP));
+             "; mmap=" + (!ByteBufferWrapper.NO_MMAP) +
+             "; concurrentReads=" + CONCURRENT_READS);
   }
 
   private final StorageLockContext myStorageLockContext;
@@ -78,7 +80,8 @@ public class PagedFileStorage implements Forceable {
   private int myLastChangeCount;
   private int myLastChangeCount2;
   private int myLastChangeCount3;
-  private int myStorageIndex;
+  // changed under the lock, read without it by concurrent readers, see pinBuffer()
+  private volatile int myStorageIndex;
 
   private static final int MAX_PAGES_COUNT = 0xFFFF;
   private static final int MAX_LIVE_STORAGES_COUNT = 0xFFFF;
@@ -139,10 +142,20 @@ public class PagedFileStorage implements Forceable {
     if (myValuesAreBufferAligned) {
       int page = addr / myPageSize;
       int page_offset = addr % myPageSize;
+      if (myStorageLockContext.myConcurrentReads) {
+        ByteBufferWrapper wrapper = pinBuffer(page);
+        try {
+          return wrapper.getCachedBuffer().getInt(page_offset);
+        }
+        finally {
+          wrapper.unpin();
+        }
+      }
       return getBuffer(page, false).getInt(page_offset);
     } else {
-      get(addr, myTypedIOBuffer, 0, 4);
-      return Bits.getInt(myTypedIOBuffer, 0);
+      byte[] buffer = getTypedIOBuffer();
+      get(addr, buffer, 0, 4);
+      return Bits.getInt(buffer, 0);
     }
   }
 
@@ -170,10 +183,20 @@ public class PagedFileStorage implements Forceable {
     if (myValuesAreBufferAligned) {
       int page = addr / myPageSize;
       int page_offset = addr % myPageSize;
+      if (myStorageLockContext.myConcurrentReads) {
+        ByteBufferWrapper wrapper = pinBuffer(page);
+        try {
+          return wrapper.getCachedBuffer().getShort(page_offset);
+        }
+        finally {
+          wrapper.unpin();
+        }
+      }
       return getBuffer(page, false).getShort(page_offset);
     } else {
-      get(addr, myTypedIOBuffer, 0, 2);
-      return Bits.getShort(myTypedIOBuffer, 0);
+      byte[] buffer = getTypedIOBuffer();
+      get(addr, buffer, 0, 2);
+      return Bits.getShort(buffer, 0);
     }
   }
 
@@ -202,10 +225,20 @@ public class PagedFileStorage implements Forceable {
     if (myValuesAreBufferAligned) {
       int page = addr / myPageSize;
       int page_offset = addr % myPageSize;
+      if (myStorageLockContext.myConcurrentReads) {
+        ByteBufferWrapper wrapper = pinBuffer(page);
+        try {
+          return wrapper.getCachedBuffer().getLong(page_offset);
+        }
+        finally {
+          wrapper.unpin();
+        }
+      }
       return getBuffer(page, false).getLong(page_offset);
     } else {
-      get(addr, myTypedIOBuffer, 0, 8);
-      return Bits.getLong(myTypedIOBuffer, 0);
+      byte[] buffer = getTypedIOBuffer();
+      get(addr, buffer, 0, 8);
+      return Bits.getLong(buffer, 0);
     }
   }
 
@@ -213,6 +246,15 @@ public class PagedFileStorage implements Forceable {
     int page = index / myPageSize;
     int offset = index % myPageSize;
 
+    if (myStorageLockContext.myConcurrentReads) {
+      ByteBufferWrapper wrapper = pinBuffer(page);
+      try {
+        return wrapper.getCachedBuffer().get(offset);
+      }
+      finally {
+        wrapper.unpin();
+      }
+    }
     return getBuffer(page, false).get(offset);
   }
 
@@ -234,18 +276,19 @@ public class PagedFileStorage implements Forceable {
       int page_offset = i % myPageSize;
 
       int page_len = Math.min(l, myPageSize - page_offset);
-      final ByteBuffer buffer = getBuffer(page, false);
-      try {
-        buffer.position(page_offset);
+      if (myStorageLockContext.myConcurrentReads) {
+        ByteBufferWrapper wrapper = pinBuffer(page);
+        try {
+          // position of shared buffer can't be changed without lock, so read via private view
+          readFromBuffer(wrapper.getCachedBuffer().duplicate(), page, page_offset, dst, o, page_len);
+        }
+        finally {
+          wrapper.unpin();
+        }
       }
-      catch (IllegalArgumentException iae) {
-        throw new IllegalArgumentException("can't position buffer to offset " + page_offset + ", " +
-                                           "buffer.limit=" + buffer.limit() + ", " +
-                                           "page=" + page + ", " +
-                                           "file=" + myFile.getName() + ", "+
-                                           "file.length=" + mySize);
+      else {
+        readFromBuffer(getBuffer(page, false), page, page_offset, dst, o, page_len);
       }
-      buffer.get(dst, o, page_len);
 
       l -= page_len;
       o += page_len;
@@ -253,6 +296,25 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
+  private void readFromBuffer(ByteBuffer buffer, int page, int page_offset, byte[] dst, int offset, int length) {
+    try {
+      buffer.position(page_offset);
+    }
+    catch (IllegalArgumentException iae) {
+      throw new IllegalArgumentException("can't position buffer to offset " + page_offset + ", " +
+                                         "buffer.limit=" + buffer.limit() + ", " +
+                                         "page=" + page + ", " +
+                                         "file=" + myFile.getName() + ", "+
+                                         "file.length=" + mySize);
+    }
+    buffer.get(dst, offset, length);
+  }
+
+  private byte[] getTypedIOBuffer() {
+    // concurrent readers don't own the storage, so they can't share the buffer
+    return myStorageLockContext.myConcurrentReads ? new byte[8] : myTypedIOBuffer;
+  }
+
   public void put(int index, byte[] src, int offset, int length) {
     isDirty = true;
     int i = index;
@@ -415,6 +477,39 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
+  /**
+   * Returns page buffer pinned in memory without taking any storage lock, the caller must {@link ByteBufferWrapper#unpin()} it.
+   * Only valid when storage is opened with {@link StorageLockContext} allowing concurrent reads.
+   */
+  private ByteBufferWrapper pinBuffer(int page) {
+    assert page <= MAX_PAGES_COUNT;
+    int storageIndex = myStorageIndex;
+    if (storageIndex != -1) {
+      ByteBufferWrapper wrapper = myStorageLockContext.myStorageLock.getConcurrently(storageIndex | page);
+      if (wrapper != null && wrapper.tryPin()) {
+        // the storage may have been closed and its index reused by another storage before the page was pinned
+        if (myStorageIndex == storageIndex && wrapper.myFile == myFile) return wrapper;
+        wrapper.unpin();
+      }
+    }
+
+    // pages are mapped under the lock only: the last page mapped concurrently with resize() would be cut at the old file length
+    lock();
+    try {
+      if (myStorageIndex == -1) {
+        myStorageIndex = myStorageLockContext.myStorageLock.registerPagedFileStorage(this);
+      }
+      while (true) {
+        ByteBufferWrapper wrapper = myStorageLockContext.myStorageLock.get(myStorageIndex | page);
+        if (wrapper.tryPin()) return wrapper;
+        // the page was unmapped after the lookup, next lookup will map it again
+      }
+    }
+    finally {
+      unlock();
+    }
+  }
+
   public void force() {
     long started = IOStatistics.DEBUG ? System.currentTimeMillis():0;
     if (isDirty) {
@@ -442,10 +537,14 @@ public class PagedFileStorage implements Forceable {
     private final ConcurrentHashMap<Integer, PagedFileStorage> myIndex2Storage = new ConcurrentHashMap<Integer, PagedFileStorage>();
 
     private final LinkedHashMap<Integer, ByteBufferWrapper> mySegments;
+    // mirror of mySegments for lookups that don't maintain LRU order strictly, updated under mySegmentsAccessLock
+    private final ConcurrentHashMap<Integer, ByteBufferWrapper> myConcurrentSegments = new ConcurrentHashMap<Integer, ByteBufferWrapper>();
     private final SequenceLock mySegmentsAccessLock = new SequenceLock(); // protects map operations of mySegments, needed for LRU order, mySize and myMappingChangeCount
 
     private final SequenceLock mySegmentsAllocationLock = new SequenceLock();
     private final ConcurrentLinkedQueue<ByteBufferWrapper> mySegmentsToRemove = new ConcurrentLinkedQueue<ByteBufferWrapper>();
+    // removed segments still pinned by concurrent readers, already flushed, guarded by mySegmentsAllocationLock
+    private final List<ByteBufferWrapper> myPinnedSegmentsToRemove = new ArrayList<ByteBufferWrapper>();
     private volatile long mySize;
     private volatile long mySizeLimit;
     private volatile int myMappingChangeCount;
@@ -456,7 +555,7 @@ public class PagedFileStorage implements Forceable {
 
     public StorageLock(boolean checkThreadAccess) {
       this.checkThreadAccess = checkThreadAccess;
-      myDefaultStorageLockContext = new StorageLockContext(this);
+      myDefaultStorageLockContext = new StorageLockContext(this, CONCURRENT_READS);
 
       mySizeLimit = UPPER_LIMIT;
       mySegments = new LinkedHashMap<Integer, ByteBufferWrapper>(10, 0.75f) {
@@ -471,6 +570,7 @@ public class PagedFileStorage implements Forceable {
           // this method can be called after removeEldestEntry
           ByteBufferWrapper wrapper = super.remove(key);
           if (wrapper != null) {
+            myConcurrentSegments.remove(key);
             ++myMappingChangeCount;
             mySegmentsToRemove.offer(wrapper);
             mySize -= wrapper.myLength;
@@ -540,6 +640,7 @@ public class PagedFileStorage implements Forceable {
         mySegmentsAccessLock.lock();
         try {
           mySegments.put(key, wrapper);
+          myConcurrentSegments.put(key, wrapper);
           mySize += wrapper.myLength;
         }
         finally {
@@ -555,12 +656,46 @@ public class PagedFileStorage implements Forceable {
       }
     }
 
+    /**
+     * @return mapped page or null if it isn't mapped, the page must then be mapped with {@link #get(Integer)} under the storage lock
+     */
+    @Nullable
+    private ByteBufferWrapper getConcurrently(Integer key) {
+      ByteBufferWrapper wrapper = myConcurrentSegments.get(key);
+      if (wrapper == null) return null;
+
+      // touch LRU order only when uncontended, slightly inexact eviction is cheaper than serializing readers
+      if (mySegmentsAccessLock.tryLock()) {
+        try {
+          mySegments.get(key);
+        }
+        finally {
+          mySegmentsAccessLock.unlock();
+        }
+      }
+      return wrapper;
+    }
+
     private void disposeRemovedSegments() {
       assert mySegmentsAllocationLock.isHeldByCurrentThread();
-      Iterator<ByteBufferWrapper> iterator = mySegmentsToRemove.iterator();
-      while(iterator.hasNext()) {
-        iterator.next().dispose();
-        iterator.remove();
+      ByteBufferWrapper wrapper;
+      while ((wrapper = mySegmentsToRemove.poll()) != null) {
+        if (!wrapper.tryRelease()) {
+          // still pinned by concurrent reader, make changes visible to the page mapped anew and dispose later
+          wrapper.flush();
+          myPinnedSegmentsToRemove.add(wrapper);
+          continue;
+        }
+        wrapper.dispose();
+      }
+
+      // removed segments aren't changed anymore, so pinned ones are just released when readers are done
+      for (Iterator<ByteBufferWrapper> iterator = myPinnedSegmentsToRemove.iterator(); iterator.hasNext(); ) {
+        wrapper = iterator.next();
+        if (wrapper.tryRelease()) {
+          wrapper.dispose();
+          iterator.remove();
+        }
       }
     }
 
@@ -718,10 +853,24 @@ public class PagedFileStorage implements Forceable {
   public static class StorageLockContext {
     private final SequenceLock myLock;
     private final StorageLock myStorageLock;
+    private final boolean myConcurrentReads;
 
     public StorageLockContext(StorageLock lock) {
+      this(lock, CONCURRENT_READS);
+    }
+
+    /**
+     * @param concurrentReads when true, storages of this context can be read without holding the lock: pages are pinned
+     *                        for the duration of a read instead, only modifications must be done under the lock
+     */
+    public StorageLockContext(StorageLock lock, boolean concurrentReads) {
       myLock = new SequenceLock();
       myStorageLock = lock;
+      myConcurrentReads = concurrentReads;
+    }
+
+    public boolean isConcurrentReads() {
+      return myConcurrentReads;
     }
   }
 }
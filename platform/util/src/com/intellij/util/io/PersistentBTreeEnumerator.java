@@ -198,24 +198,24 @@ public class PersistentBTreeEnumerator<Data> extends PersistentEnumeratorBase<Da
   public boolean traverseAllRecords(@NotNull final RecordsProcessor p) throws IOException {
     try {
       lockStorage();
-      return btree.processMappings(new IntToIntBtree.KeyValueProcessor() {
-        public boolean process(int key, int value) throws IOException {
-          p.setCurrentKey(key);
+      return btree.processMappings(new RecordsTraversal(p));
+    }
+    catch (IllegalStateException e) {
+      CorruptedException corruptedException = new CorruptedException(myFile);
+      corruptedException.initCause(e);
+      throw corruptedException;
+    } finally {
+      unlockStorage();
+    }
+  }
 
-          if (value > 0) {
-            if (!p.process(value)) return false;
-          }
-          else {
-            int rec = -value;
-            while (rec != 0) {
-              int id = myStorage.getInt(rec);
-              if (!p.process(id)) return false;
-              rec = myStorage.getInt(rec + COLLISION_OFFSET);
-            }
-          }
-          return true;
-        }
-      });
+  @Override
+  public long traverseRecordsPart(long part, @NotNull RecordsProcessor p) throws IOException {
+    // parts are key hash code ranges, shifted to start from 0
+    try {
+      lockStorage();
+      long next = btree.processMappings((int)(part + Integer.MIN_VALUE), new RecordsTraversal(p)) - Integer.MIN_VALUE;
+      return next > 0xFFFFFFFFL ? -1 : next;
     }
     catch (IllegalStateException e) {
       CorruptedException corruptedException = new CorruptedException(myFile);
@@ -226,6 +226,31 @@ public class PersistentBTreeEnumerator<Data> extends PersistentEnumeratorBase<Da
     }
   }
 
+  private class RecordsTraversal extends IntToIntBtree.KeyValueProcessor {
+    private final RecordsProcessor myProcessor;
+
+    private RecordsTraversal(@NotNull RecordsProcessor processor) {
+      myProcessor = processor;
+    }
+
+    public boolean process(int key, int value) throws IOException {
+      myProcessor.setCurrentKey(key);
+
+      if (value > 0) {
+        if (!myProcessor.process(value)) return false;
+      }
+      else {
+        int rec = -value;
+        while (rec != 0) {
+          int id = myStorage.getInt(rec);
+          if (!myProcessor.process(id)) return false;
+          rec = myStorage.getInt(rec + COLLISION_OFFSET);
+        }
+      }
+      return true;
+    }
+  }
+
   @Override
   protected int indexToAddr(int idx) {
     if (myExternalKeysNoMapping) {
@@ -68,6 +68,13 @@ public class PersistentEnumerator<Data> extends PersistentEnumeratorBase<Data> {
     return traverseRecords(FIRST_VECTOR_OFFSET, SLOTS_PER_FIRST_VECTOR, p);
   }
 
+  @Override
+  public synchronized long traverseRecordsPart(long part, @NotNull RecordsProcessor p) throws IOException {
+    // records never move to another slot of the first vector, every slot with its subvectors is a part
+    traverseRecords(FIRST_VECTOR_OFFSET + (int)part * 4, 1, p);
+    return part + 1 < SLOTS_PER_FIRST_VECTOR ? part + 1 : -1;
+  }
+
   private boolean traverseRecords(int vectorStart, int slotsCount, @NotNull RecordsProcessor p) throws IOException {
     lockStorage();
     try {
@@ -368,6 +368,14 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
 
   public abstract boolean traverseAllRecords(RecordsProcessor p) throws IOException;
 
+  /**
+   * Traverses a part of records, starting with part 0 and continuing with the returned one. Records never move to another part,
+   * so all records existing before the first call are visited even if the enumerator is modified between the calls.
+   *
+   * @return next part to traverse or -1 if all records have been traversed
+   */
+  public abstract long traverseRecordsPart(long part, RecordsProcessor p) throws IOException;
+
   protected abstract int enumerateImpl(final Data value, final boolean onlyCheckForExisting, boolean saveNewValue) throws IOException;
 
   protected boolean isKeyAtIndex(Data value, int idx) throws IOException {
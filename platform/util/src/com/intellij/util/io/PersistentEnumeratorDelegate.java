@@ -83,6 +83,10 @@ public class PersistentEnumeratorDelegate<Data> implements Closeable, Forceable
     return myEnumerator.traverseAllRecords(recordsProcessor);
   }
 
+  public long traverseRecordsPart(long part, PersistentEnumeratorBase.RecordsProcessor recordsProcessor) throws IOException {
+    return myEnumerator.traverseRecordsPart(part, recordsProcessor);
+  }
+
   public Collection<Data> getAllDataObjects(@Nullable final PersistentEnumeratorBase.DataFilter filter) throws IOException {
     return myEnumerator.getAllDataObjects(filter);
   }
@@ -20,9 +20,17 @@ import com.intellij.openapi.util.LowMemoryWatcher;
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.CommonProcessors;
+import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.Processor;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.LimitedPool;
 import com.intellij.util.containers.SLRUCache;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntIntHashMap;
+import gnu.trove.TIntLongHashMap;
+import gnu.trove.TIntLongProcedure;
+import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -31,6 +39,7 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 /**
  * @author Eugene Zhuravlev
@@ -42,7 +51,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private PersistentHashMapValueStorage myValueStorage;
   protected final DataExternalizer<Value> myValueExternalizer;
   private static final long NULL_ADDR = 0;
-  private static final int INITIAL_INDEX_SIZE;
+  static final int INITIAL_INDEX_SIZE;
   static {
     String property = System.getProperty("idea.initialIndexSize");
     INITIAL_INDEX_SIZE = property == null ? 4 * 1024 : Integer.valueOf(property);
@@ -63,6 +72,14 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private boolean myIntAddressForNewRecord;
   private static final boolean doHardConsistencyChecks = false;
 
+  private static final boolean BACKGROUND_COMPACTION = SystemProperties.getBooleanProperty("idea.persistent.map.background.compaction", true);
+  private static final int COMPACTION_CHUNK_SIZE = 1000; // records copied under single lock hold
+  private static final ExecutorService ourCompactionExecutor = ConcurrencyUtil.newSingleThreadExecutor("PersistentHashMap compaction",
+                                                                                                     Thread.MIN_PRIORITY);
+  @Nullable private IncrementalCompaction myCompaction; // guarded by myEnumerator
+  private int myForegroundOperations; // guarded by myEnumerator, lets compaction back off while the map is in use
+  private long myLastCompactionBandwidth;
+
   private static class AppendStream extends DataOutputStream {
     private AppendStream() {
       super(new BufferExposingByteArrayOutputStream());
@@ -141,7 +158,15 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   }
   
   public PersistentHashMap(@NotNull final File file, @NotNull KeyDescriptor<Key> keyDescriptor, @NotNull DataExternalizer<Value> valueExternalizer, final int initialSize) throws IOException {
-    super(checkDataFiles(file), keyDescriptor, initialSize);
+    this(file, keyDescriptor, valueExternalizer, initialSize, null);
+  }
+
+  public PersistentHashMap(@NotNull final File file,
+                           @NotNull KeyDescriptor<Key> keyDescriptor,
+                           @NotNull DataExternalizer<Value> valueExternalizer,
+                           final int initialSize,
+                           @Nullable PagedFileStorage.StorageLockContext lockContext) throws IOException {
+    super(checkDataFiles(file), keyDescriptor, initialSize, lockContext);
 
     final PersistentEnumeratorBase.RecordBufferHandler<PersistentEnumeratorBase> recordHandler = myEnumerator.getRecordHandler();
     myParentValueRefOffset = recordHandler.getRecordBuffer(myEnumerator).length;
@@ -189,7 +214,12 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       myCanReEnumerate = myEnumerator.canReEnumerate();
 
       if (makesSenseToCompact()) {
-        compact();
+        if (BACKGROUND_COMPACTION) {
+          startIncrementalCompaction(true);
+        }
+        else {
+          compact();
+        }
       }
     }
     catch (IOException e) {
@@ -229,6 +259,32 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     return (int)myLiveAndGarbageKeysCounter;
   }
 
+  /**
+   * @return share of garbage (overwritten or removed) values among all values in the data file
+   */
+  public double getGarbageRatio() {
+    synchronized (myEnumerator) {
+      int liveKeys = (int)(myLiveAndGarbageKeysCounter / LIVE_KEY_MASK);
+      int deadKeys = (int)(myLiveAndGarbageKeysCounter & 0xFFFFFFFF);
+      return liveKeys + deadKeys == 0 ? 0 : (double)deadKeys / (liveKeys + deadKeys);
+    }
+  }
+
+  /**
+   * @return bytes per second copied by the last completed incremental compaction, 0 if there was none
+   */
+  public long getCompactionBandwidth() {
+    synchronized (myEnumerator) {
+      return myLastCompactionBandwidth;
+    }
+  }
+
+  public boolean isCompactionInProgress() {
+    synchronized (myEnumerator) {
+      return myCompaction != null;
+    }
+  }
+
   public File getBaseFile() {
     return myEnumerator.myFile;
   }
@@ -291,6 +347,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   protected void doPut(Key key, Value value) throws IOException {
     myEnumerator.lockStorage();
     try {
+      ++myForegroundOperations;
       myEnumerator.markDirty(true);
       myAppendCache.remove(key);
 
@@ -336,6 +393,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
 
   protected void doAppendData(Key key, @NotNull ValueDataAppender appender) throws IOException {
     myEnumerator.markDirty(true);
+    ++myForegroundOperations;
 
     final AppendStream stream = myAppendCache.get(key);
     appender.append(stream);
@@ -383,6 +441,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   protected Value doGet(Key key) throws IOException {
     myEnumerator.lockStorage();
     try {
+      ++myForegroundOperations;
       myAppendCache.remove(key);
       final int id = tryEnumerate(key);
       if (id == PersistentEnumerator.NULL_ID) {
@@ -511,6 +570,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       try {
         myAppendCacheFlusher.stop();
         myAppendCache.clear();
+        cancelIncrementalCompaction();
         final PersistentHashMapValueStorage valueStorage = myValueStorage;
         if (valueStorage != null) {
           valueStorage.dispose();
@@ -528,6 +588,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   // made public for tests
   public void compact() throws IOException {
     synchronized (myEnumerator) {
+      cancelIncrementalCompaction();
       final long now = System.currentTimeMillis();
       final String newPath = getDataFile(myEnumerator.myFile).getPath() + ".new";
       final PersistentHashMapValueStorage newStorage = PersistentHashMapValueStorage.create(newPath);
@@ -565,6 +626,229 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     }
   }
 
+  // made package-private for tests, which copy the values with compactIncrementally() instead of the background thread
+  void startIncrementalCompaction(boolean inBackground) throws IOException {
+    synchronized (myEnumerator) {
+      myCompaction = new IncrementalCompaction();
+      if (inBackground) ourCompactionExecutor.submit(myCompaction);
+    }
+  }
+
+  /**
+   * Copies the next chunk of values of the incremental compaction in progress, or finishes it.
+   *
+   * @return true if the compaction is still in progress
+   */
+  // made package-private for tests
+  boolean compactIncrementally() throws IOException {
+    synchronized (myEnumerator) {
+      final IncrementalCompaction compaction = myCompaction;
+      return compaction != null && compaction.copyNextChunk();
+    }
+  }
+
+  private void cancelIncrementalCompaction() {
+    final IncrementalCompaction compaction = myCompaction;
+    if (compaction != null) {
+      myCompaction = null;
+      compaction.abandon();
+    }
+  }
+
+  /**
+   * Copies live values into new data file in chunks, each under short hold of the map lock, so that the map stays usable meanwhile.
+   * Keys of every chunk are taken from the next parts of the key index traversal.
+   * Values modified after being copied are copied again, also in chunks, until few of them remain.
+   * Addresses of the copied values are kept aside and are written into the key index under a single lock hold, together with
+   * replacing the old file with the new one and copying the remaining modified values: until the old file is replaced, every
+   * address in the key index must point into it, so they can't be swapped part by part.
+   */
+  private class IncrementalCompaction implements Runnable {
+    private final String myNewPath = getDataFile(myEnumerator.myFile).getPath() + ".new";
+    private final PersistentHashMapValueStorage myNewStorage;
+    private final TIntLongHashMap myCopiedRecords = new TIntLongHashMap();
+    // keys visited by the traversal are resolved by these when their ids are reenumerated, see getValue(int, int)
+    private final TIntIntHashMap myProcessingKeys = new TIntIntHashMap();
+    private final TIntObjectHashMap<Key> myModifiedKeys = new TIntObjectHashMap<Key>(); // modified after the compaction started
+    private final TIntHashSet myKeysToCopyAgain = new TIntHashSet();
+    private long myNextPart; // of the key index traversal, -1 when all keys have been copied
+    private int myLastForegroundOperations = myForegroundOperations;
+    private long myCopiedBytes;
+    private int myCopiedAgain;
+    private final long myStarted = System.currentTimeMillis();
+    private long myCopyTime;
+
+    private IncrementalCompaction() throws IOException {
+      FileUtil.delete(new File(myNewPath));
+      myNewStorage = PersistentHashMapValueStorage.create(myNewPath);
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          long chunkStarted = System.currentTimeMillis();
+          boolean foregroundActive;
+          synchronized (myEnumerator) {
+            if (myCompaction != this || !copyNextChunk()) return;
+            foregroundActive = myLastForegroundOperations != myForegroundOperations;
+            myLastForegroundOperations = myForegroundOperations;
+          }
+          long chunkTime = System.currentTimeMillis() - chunkStarted;
+          // spend at most half of the time compacting, and much less while the map is in use
+          //noinspection BusyWait
+          Thread.sleep(Math.max(1, chunkTime) * (foregroundActive ? 8 : 1));
+        }
+      }
+      catch (InterruptedException ignored) {
+      }
+      catch (Throwable t) {
+        LOG.info("Incremental compaction of " + myEnumerator.myFile.getPath() + " failed", t);
+      }
+      synchronized (myEnumerator) {
+        if (myCompaction == this) {
+          myCompaction = null;
+          abandon();
+        }
+      }
+    }
+
+    /**
+     * Called under the map lock.
+     *
+     * @return false if all values have been copied and the compaction is finished
+     */
+    private boolean copyNextChunk() throws IOException {
+      final long chunkStarted = System.currentTimeMillis();
+      final boolean hasMore;
+      if (myNextPart != -1) {
+        copyChunk();
+        hasMore = true;
+      }
+      else {
+        // values modified faster than they are copied again are left to finish()
+        hasMore = myKeysToCopyAgain.size() > COMPACTION_CHUNK_SIZE && myCopiedAgain < myCopiedRecords.size();
+        if (hasMore) copyModifiedChunk();
+      }
+      myCopyTime += System.currentTimeMillis() - chunkStarted;
+      if (!hasMore) finish();
+      return hasMore;
+    }
+
+    private void copyChunk() throws IOException {
+      myEnumerator.lockStorage();
+      try {
+        // keys existing when the compaction started are visited by the traversal, keys added later are modified ones
+        final TIntArrayList keyIds = new TIntArrayList();
+        final PersistentEnumeratorBase.RecordsProcessor collector = new PersistentEnumeratorBase.RecordsProcessor() {
+          @Override
+          public boolean process(int keyId) throws IOException {
+            keyIds.add(keyId);
+            myProcessingKeys.put(keyId, getCurrentKey());
+            return true;
+          }
+        };
+        while (myNextPart != -1 && keyIds.size() < COMPACTION_CHUNK_SIZE) {
+          myNextPart = traverseRecordsPart(myNextPart, collector);
+        }
+
+        for (int i = 0; i < keyIds.size(); i++) {
+          int keyId = keyIds.get(i);
+          if (!myModifiedKeys.containsKey(keyId)) copyRecord(keyId);
+        }
+      }
+      finally {
+        myEnumerator.unlockStorage();
+      }
+    }
+
+    private void copyModifiedChunk() throws IOException {
+      myEnumerator.lockStorage();
+      try {
+        final int[] keyIds = myKeysToCopyAgain.toArray();
+        for (int i = 0; i < COMPACTION_CHUNK_SIZE; i++) {
+          myKeysToCopyAgain.remove(keyIds[i]);
+          copyRecord(keyIds[i]);
+        }
+        myCopiedAgain += COMPACTION_CHUNK_SIZE;
+      }
+      finally {
+        myEnumerator.unlockStorage();
+      }
+    }
+
+    private void copyRecord(int keyId) throws IOException {
+      final long record = readValueId(keyId);
+      if (record == NULL_ADDR) {
+        // removed after being copied
+        myCopiedRecords.remove(keyId);
+        return;
+      }
+      PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(record, false);
+      myCopiedRecords.put(keyId, myNewStorage.appendBytes(readResult.buffer, 0, readResult.buffer.length, 0));
+      myCopiedBytes += readResult.buffer.length;
+    }
+
+    private void keyModified(int keyId, @Nullable Key key) {
+      myModifiedKeys.put(keyId, key);
+      myKeysToCopyAgain.add(keyId);
+    }
+
+    private void finish() throws IOException {
+      final double garbageRatio = getGarbageRatio();
+      final long finishStarted = System.currentTimeMillis();
+      myEnumerator.lockStorage();
+      try {
+        myEnumerator.markDirty(true);
+        myAppendCache.clear();
+
+        for (int keyId : myKeysToCopyAgain.toArray()) {
+          copyRecord(keyId);
+        }
+
+        myNewStorage.dispose();
+        myValueStorage.dispose();
+        FileUtil.rename(new File(myNewPath), getDataFile(myEnumerator.myFile));
+        myValueStorage = PersistentHashMapValueStorage.create(getDataFile(myEnumerator.myFile).getPath());
+
+        myCompaction = null;
+        myLiveAndGarbageKeysCounter = 0;
+        myReadCompactionGarbageSize = 0;
+        final IOException[] exception = new IOException[1];
+        myCopiedRecords.forEachEntry(new TIntLongProcedure() {
+          @Override
+          public boolean execute(int keyId, long address) {
+            try {
+              // the key may have to be reenumerated to get a long address
+              updateValueId(keyId, address, readValueId(keyId), myModifiedKeys.get(keyId), myProcessingKeys.get(keyId));
+              myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
+              return true;
+            }
+            catch (IOException e) {
+              exception[0] = e;
+              return false;
+            }
+          }
+        });
+        if (exception[0] != null) throw exception[0];
+        myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
+      }
+      finally {
+        myEnumerator.unlockStorage();
+      }
+
+      myLastCompactionBandwidth = myCopiedBytes * 1000 / Math.max(1, myCopyTime);
+      LOG.info("Compacted " + myEnumerator.myFile.getPath() + " incrementally in " + (System.currentTimeMillis() - myStarted) + "ms" +
+               " (copying " + myCopyTime + "ms, replacing " + (System.currentTimeMillis() - finishStarted) + "ms), garbage ratio was " + (int)(garbageRatio * 100) + "%" +
+               ", bandwidth " + myLastCompactionBandwidth / 1024 + "KB/s");
+    }
+
+    private void abandon() {
+      myNewStorage.dispose();
+      FileUtil.delete(new File(myNewPath));
+    }
+  }
+
   private long readValueId(final int keyId) {
     long address = myEnumerator.myStorage.getInt(keyId + myParentValueRefOffset);
     if (address == 0 || address == -POSITIVE_VALUE_SHIFT) {
@@ -587,6 +871,8 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private int requests;
 
   private int updateValueId(int keyId, long value, long oldValue, @Nullable Key key, int processingKey) throws IOException {
+    final IncrementalCompaction compaction = myCompaction;
+    if (compaction != null) compaction.keyModified(keyId, key);
     final boolean newKey = oldValue == NULL_ADDR;
     if (newKey) ++requests;
     boolean defaultSizeInfo = true;
@@ -613,6 +899,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       myEnumerator.myStorage.putLong(keyId + myParentValueRefOffset, value | USED_LONG_VALUE_MASK);
       if (newKey) ++largeKeys;
     }
+    if (compaction != null) compaction.keyModified(keyId, key); // key could be reenumerated
 
     if (newKey && IOStatistics.DEBUG && (requests & IOStatistics.KEYS_FACTOR_MASK) == 0) {
       IOStatistics.dump("small:"+smallKeys + ", large:" + largeKeys + ", transformed:"+transformedKeys +
@@ -134,6 +134,13 @@ public class PersistentHashMapValueStorage {
    * Reads bytes pointed by tailChunkAddress into result passed, returns new address if linked list compactification have been performed
    */
   public ReadResult readBytes(long tailChunkAddress) throws IOException {
+    return readBytes(tailChunkAddress, true);
+  }
+
+  /**
+   * @param mayRelocate whether multi chunk value can be appended to the storage again as single chunk
+   */
+  ReadResult readBytes(long tailChunkAddress, boolean mayRelocate) throws IOException {
     force();
 
     long chunk = tailChunkAddress;
@@ -198,7 +205,7 @@ public class PersistentHashMapValueStorage {
       }
     }
 
-    if (chunkCount > 1 && !myCompactionMode) {
+    if (chunkCount > 1 && mayRelocate && !myCompactionMode) {
       long l = appendBytes(new ByteSequence(result), 0);
       return new ReadResult(l, result);
     }
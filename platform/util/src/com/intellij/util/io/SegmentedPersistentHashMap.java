@@ -0,0 +1,233 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.CommonProcessors;
+import com.intellij.util.Processor;
+import com.intellij.util.SystemProperties;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * {@link PersistentMap} partitioned by key hash into several {@link PersistentHashMap}s. Every segment has its own key enumerator,
+ * value log and lock, so operations on keys from different segments don't block each other.
+ * Segment count is recorded on disk, opening the map with another segment count is reported as corruption.
+ */
+public class SegmentedPersistentHashMap<Key, Value> implements PersistentMap<Key, Value> {
+  public static final int DEFAULT_SEGMENT_COUNT = Math.max(1, SystemProperties.getIntProperty("idea.persistent.map.segments", 4));
+  @NonNls private static final String SEGMENTS_FILE_EXTENSION = ".segments";
+
+  private final File myFile;
+  private final KeyDescriptor<Key> myKeyDescriptor;
+  private final PersistentHashMap<Key, Value>[] mySegments;
+
+  public SegmentedPersistentHashMap(@NotNull File file,
+                                    @NotNull KeyDescriptor<Key> keyDescriptor,
+                                    @NotNull DataExternalizer<Value> valueExternalizer) throws IOException {
+    this(file, keyDescriptor, valueExternalizer, DEFAULT_SEGMENT_COUNT);
+  }
+
+  public SegmentedPersistentHashMap(@NotNull File file,
+                                    @NotNull KeyDescriptor<Key> keyDescriptor,
+                                    @NotNull DataExternalizer<Value> valueExternalizer,
+                                    int segmentCount) throws IOException {
+    myFile = file;
+    myKeyDescriptor = keyDescriptor;
+    checkSegmentCount(file, segmentCount);
+
+    //noinspection unchecked
+    mySegments = new PersistentHashMap[segmentCount];
+    try {
+      for (int i = 0; i < segmentCount; i++) {
+        mySegments[i] = createSegment(getSegmentFile(file, i), keyDescriptor, valueExternalizer);
+      }
+    }
+    catch (IOException e) {
+      closeSegments();
+      throw e;
+    }
+  }
+
+  /**
+   * Segments are opened with own lock contexts (sharing page cache of {@link PersistentEnumeratorBase#ourLock}) to not contend on storage lock.
+   */
+  @NotNull
+  protected PersistentHashMap<Key, Value> createSegment(@NotNull File segmentFile,
+                                                        @NotNull KeyDescriptor<Key> keyDescriptor,
+                                                        @NotNull DataExternalizer<Value> valueExternalizer) throws IOException {
+    return new PersistentHashMap<Key, Value>(segmentFile, keyDescriptor, valueExternalizer, PersistentHashMap.INITIAL_INDEX_SIZE,
+                                             new PagedFileStorage.StorageLockContext(PersistentEnumeratorBase.ourLock));
+  }
+
+  @NotNull
+  private static File getSegmentFile(@NotNull File file, int segment) {
+    return new File(file.getParentFile(), file.getName() + "_" + segment);
+  }
+
+  private static void checkSegmentCount(@NotNull File file, int segmentCount) throws IOException {
+    File segmentsFile = new File(file.getParentFile(), file.getName() + SEGMENTS_FILE_EXTENSION);
+    if (segmentsFile.exists()) {
+      int storedCount;
+      try {
+        storedCount = Integer.parseInt(FileUtil.loadFile(segmentsFile).trim());
+      }
+      catch (NumberFormatException e) {
+        throw new PersistentEnumeratorBase.CorruptedException(file);
+      }
+      if (storedCount != segmentCount) throw new PersistentEnumeratorBase.CorruptedException(file);
+    }
+    else {
+      FileUtil.writeToFile(segmentsFile, String.valueOf(segmentCount));
+    }
+  }
+
+  @NotNull
+  protected final PersistentHashMap<Key, Value> getSegment(Key key) {
+    int hash = myKeyDescriptor.getHashCode(key);
+    // spread the hash, segment's enumerator uses low bits of the same hash code
+    hash ^= (hash >>> 20) ^ (hash >>> 12);
+    hash ^= (hash >>> 7) ^ (hash >>> 4);
+    return mySegments[(hash & Integer.MAX_VALUE) % mySegments.length];
+  }
+
+  public int getSegmentCount() {
+    return mySegments.length;
+  }
+
+  public File getBaseFile() {
+    return myFile;
+  }
+
+  @Override
+  public Value get(Key key) throws IOException {
+    return getSegment(key).get(key);
+  }
+
+  @Override
+  public void put(Key key, Value value) throws IOException {
+    getSegment(key).put(key, value);
+  }
+
+  public void appendData(Key key, @NotNull PersistentHashMap.ValueDataAppender appender) throws IOException {
+    getSegment(key).appendData(key, appender);
+  }
+
+  public void remove(Key key) throws IOException {
+    getSegment(key).remove(key);
+  }
+
+  public boolean containsMapping(Key key) throws IOException {
+    return getSegment(key).containsMapping(key);
+  }
+
+  @Override
+  public boolean processKeys(Processor<Key> processor) throws IOException {
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      if (!segment.processKeys(processor)) return false;
+    }
+    return true;
+  }
+
+  public boolean processKeysWithExistingMapping(Processor<Key> processor) throws IOException {
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      if (!segment.processKeysWithExistingMapping(processor)) return false;
+    }
+    return true;
+  }
+
+  @NotNull
+  public Collection<Key> getAllKeysWithExistingMapping() throws IOException {
+    final List<Key> keys = new ArrayList<Key>();
+    processKeysWithExistingMapping(new CommonProcessors.CollectProcessor<Key>(keys));
+    return keys;
+  }
+
+  public int getGarbageSize() {
+    int result = 0;
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      result += segment.getGarbageSize();
+    }
+    return result;
+  }
+
+  public void compact() throws IOException {
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      segment.compact();
+    }
+  }
+
+  public void dropMemoryCaches() {
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      segment.dropMemoryCaches();
+    }
+  }
+
+  @Override
+  public boolean isClosed() {
+    return mySegments[0].isClosed();
+  }
+
+  @Override
+  public boolean isDirty() {
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      if (segment.isDirty()) return true;
+    }
+    return false;
+  }
+
+  @Override
+  public void force() {
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      segment.force();
+    }
+  }
+
+  @Override
+  public void markDirty() throws IOException {
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      segment.markDirty();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOException exception = closeSegments();
+    if (exception != null) throw exception;
+  }
+
+  @Nullable
+  private IOException closeSegments() {
+    IOException exception = null;
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      if (segment == null) continue;
+      try {
+        segment.close();
+      }
+      catch (IOException e) {
+        if (exception == null) exception = e;
+      }
+    }
+    return exception;
+  }
+}
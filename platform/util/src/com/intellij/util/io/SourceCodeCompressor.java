@@ -20,21 +20,27 @@
 package com.intellij.util.io;
 
 import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 
+/**
+ * Deflate with a preset dictionary of common source code words.
+ * <p/>
+ * Deflaters and inflaters are taken from a small pool, so concurrent calls don't wait for each other. Streaming methods
+ * write their result to the given stream and read the source array directly.
+ */
 public class SourceCodeCompressor {
-  private final static VaultOutputStream OUTPUT;
   private final static byte[] PRESET_BUF;
-  private final static Deflater DEFLATER;
-  private final static Inflater INFLATER;
-  private final static byte[] INFLATE_BUFFER;
+  private final static BlockingQueue<Codec> ourPool = new ArrayBlockingQueue<Codec>(Runtime.getRuntime().availableProcessors());
 
   private SourceCodeCompressor() {
   }
@@ -54,72 +60,121 @@ public class SourceCodeCompressor {
       "titleframecaret<a href=\"http://</a><div </div><td </td><tr </tr><p </p><hscripttext/css<img src=" +
       "<!--><link rel=width=height=align=span=centerrightleftstyle=celljsp:rootxmlns:avascript";
     PRESET_BUF = preset_buf_string.getBytes();
-    OUTPUT = new VaultOutputStream();
-    DEFLATER = new Deflater(Deflater.BEST_COMPRESSION);
-    INFLATER = new Inflater();
-    INFLATE_BUFFER = new byte[4096];
   }
 
-  public static synchronized byte[] compress(byte[] source, int off, int len) {
+  public static byte[] compress(byte[] source, int off, int len) {
+    Codec codec = acquire();
     try {
-      DEFLATER.reset();
-      DEFLATER.setDictionary(PRESET_BUF);
-      try {
-        DeflaterOutputStream output = null;
-        try {
-          output = new DeflaterOutputStream(OUTPUT, DEFLATER);
-          output.write(source, off, len);
-        }
-        finally {
-          if (output != null) {
-            output.close();
-          }
-        }
-      }
-      catch (IOException e) {
-        return source;
-      }
-      return OUTPUT.toByteArray();
+      codec.deflate(source, off, len, codec.myOutput);
+      return codec.myOutput.toByteArray();
+    }
+    catch (IOException e) {
+      return source;
     }
     finally {
-      OUTPUT.reset();
+      release(codec);
     }
-
   }
 
-  public static synchronized byte[] compress(byte[] source) {
+  public static byte[] compress(byte[] source) {
     return compress(source, 0, source.length);
   }
 
-  public static synchronized byte[] decompress(byte[] compressed) throws IOException {
-    final int len = compressed.length;
-    final int off = 0;
-    return decompress(compressed, len, off);
+  /**
+   * @return number of compressed bytes written to the stream
+   */
+  public static int compress(@NotNull byte[] source, int off, int len, @NotNull OutputStream out) throws IOException {
+    Codec codec = acquire();
+    try {
+      return codec.deflate(source, off, len, out);
+    }
+    finally {
+      release(codec);
+    }
+  }
+
+  public static byte[] decompress(byte[] compressed) throws IOException {
+    return decompress(compressed, compressed.length, 0);
   }
 
   public static byte[] decompress(final byte[] compressed, final int len, final int off) throws IOException {
-    INFLATER.reset();
-    InflaterInputStream input = null;
+    Codec codec = acquire();
+    try {
+      codec.inflate(compressed, off, len, codec.myOutput);
+      return codec.myOutput.toByteArray();
+    }
+    finally {
+      release(codec);
+    }
+  }
+
+  public static void decompress(@NotNull byte[] compressed, int off, int len, @NotNull OutputStream out) throws IOException {
+    Codec codec = acquire();
     try {
-      input = new InflaterInputStream(new ByteArrayInputStream(compressed, off, len), INFLATER);
-      final int b = input.read();
-      if (b == -1) {
-        INFLATER.setDictionary(PRESET_BUF);
+      codec.inflate(compressed, off, len, out);
+    }
+    finally {
+      release(codec);
+    }
+  }
+
+  private static Codec acquire() {
+    Codec codec = ourPool.poll();
+    return codec != null ? codec : new Codec();
+  }
+
+  private static void release(@NotNull Codec codec) {
+    codec.myOutput.reset();
+    if (!ourPool.offer(codec)) {
+      codec.end();
+    }
+  }
+
+  private static class Codec {
+    private final Deflater myDeflater = new Deflater(Deflater.BEST_COMPRESSION);
+    private final Inflater myInflater = new Inflater();
+    private final byte[] myBuffer = new byte[4096];
+    private final VaultOutputStream myOutput = new VaultOutputStream();
+
+    private int deflate(@NotNull byte[] source, int off, int len, @NotNull OutputStream out) throws IOException {
+      myDeflater.reset();
+      myDeflater.setDictionary(PRESET_BUF);
+      myDeflater.setInput(source, off, len);
+      myDeflater.finish();
+      int written = 0;
+      while (!myDeflater.finished()) {
+        int count = myDeflater.deflate(myBuffer);
+        out.write(myBuffer, 0, count);
+        written += count;
       }
-      else {
-        OUTPUT.write(b);
+      return written;
+    }
+
+    private void inflate(@NotNull byte[] compressed, int off, int len, @NotNull OutputStream out) throws IOException {
+      myInflater.reset();
+      myInflater.setInput(compressed, off, len);
+      try {
+        while (!myInflater.finished()) {
+          int count = myInflater.inflate(myBuffer);
+          if (count > 0) {
+            out.write(myBuffer, 0, count);
+          }
+          else if (myInflater.needsDictionary()) {
+            myInflater.setDictionary(PRESET_BUF);
+          }
+          else if (myInflater.needsInput()) {
+            throw new EOFException("Unexpected end of compressed data");
+          }
+        }
       }
-      int readBytes;
-      while ((readBytes = input.read(INFLATE_BUFFER)) > 0) {
-        OUTPUT.write(INFLATE_BUFFER, 0, readBytes);
+      catch (DataFormatException e) {
+        throw new IOException(e);
       }
-      return OUTPUT.toByteArray();
     }
-    finally {
-      if (input != null) {
-        input.close();
-      }
-      OUTPUT.reset();
+
+    private void end() {
+      myDeflater.end();
+      myInflater.end();
     }
   }
 
@@ -24,8 +24,10 @@ import com.intellij.openapi.util.io.ByteSequence;
 import com.intellij.openapi.util.io.StreamUtil;
 import com.intellij.util.IncorrectOperationException;
 import com.intellij.util.containers.ConcurrentHashMap;
+import com.intellij.util.io.IOStatistics;
 import com.intellij.util.io.PagePool;
 import com.intellij.util.io.UnsyncByteArrayInputStream;
+import org.jetbrains.annotations.NotNull;
 
 import java.io.DataInputStream;
 import java.io.EOFException;
@@ -74,18 +76,44 @@ public class RefCountingStorage extends AbstractStorage {
     waitForPendingWriteForRecord(record);
 
     synchronized (myLock) {
-
       byte[] result = super.readBytes(record);
-      InflaterInputStream in = new CustomInflaterInputStream(result);
-      try {
-        final BufferExposingByteArrayOutputStream outputStream = new BufferExposingByteArrayOutputStream();
-        StreamUtil.copyStreamContent(in, outputStream);
-        return outputStream;
-      }
-      finally {
-        in.close();
-      }
+      long started = System.nanoTime();
+      BufferExposingByteArrayOutputStream outputStream = decompress(result);
+      IOStatistics.contentDecompressed(System.nanoTime() - started);
+      return outputStream;
+    }
+  }
+
+  /**
+   * Decodes record bytes written by {@link #compress(ByteSequence)}
+   */
+  @NotNull
+  protected BufferExposingByteArrayOutputStream decompress(@NotNull byte[] compressed) throws IOException {
+    InflaterInputStream in = new CustomInflaterInputStream(compressed);
+    try {
+      final BufferExposingByteArrayOutputStream outputStream = new BufferExposingByteArrayOutputStream();
+      StreamUtil.copyStreamContent(in, outputStream);
+      return outputStream;
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Encodes content to be stored in record, called from write helper thread as well.
+   */
+  @NotNull
+  protected BufferExposingByteArrayOutputStream compress(@NotNull ByteSequence bytes) throws IOException {
+    BufferExposingByteArrayOutputStream s = new BufferExposingByteArrayOutputStream();
+    DeflaterOutputStream out = new DeflaterOutputStream(s);
+    try {
+      out.write(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
+    }
+    finally {
+      out.close();
     }
+    return s;
   }
 
   private static class CustomInflaterInputStream extends InflaterInputStream {
@@ -154,14 +182,8 @@ public class RefCountingStorage extends AbstractStorage {
   }
 
   private void zipAndWrite(ByteSequence bytes, int record, boolean fixedSize) throws IOException {
-    BufferExposingByteArrayOutputStream s = new BufferExposingByteArrayOutputStream();
-    DeflaterOutputStream out = new DeflaterOutputStream(s);
-    try {
-      out.write(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
-    }
-    finally {
-      out.close();
-    }
+    BufferExposingByteArrayOutputStream s = compress(bytes);
+    IOStatistics.contentCompressed(bytes.getLength(), s.size());
 
     synchronized (myLock) {
       doWrite(record, fixedSize, s);
@@ -203,6 +225,47 @@ public class RefCountingStorage extends AbstractStorage {
     }
   }
 
+  /**
+   * Increments reference count of live record if it holds exactly given content, so that the content can be shared.
+   * Content of records being written is not compared.
+   *
+   * @return true if the record was acquired
+   */
+  public boolean acquireRecordWithContent(int record, ByteSequence content) throws IOException {
+    synchronized (myLock) {
+      if (record <= 0 || record > myRecordsTable.getRecordsCount() || myPendingWriteRequests.containsKey(record)) return false;
+      RefCountingRecordsTable recordsTable = (RefCountingRecordsTable)myRecordsTable;
+      if (recordsTable.getRefCount(record) <= 0) return false;
+
+      byte[] stored = super.readBytes(record);
+      boolean same;
+      if (stored.length == 0) {
+        same = content.getLength() == 0;
+      }
+      else if (myDoNotZipCaches) {
+        same = equal(stored, stored.length, content);
+      }
+      else {
+        BufferExposingByteArrayOutputStream decompressed = decompress(stored);
+        same = equal(decompressed.getInternalBuffer(), decompressed.size(), content);
+      }
+      if (!same) return false;
+
+      recordsTable.incRefCount(record);
+      return true;
+    }
+  }
+
+  private static boolean equal(byte[] bytes, int length, ByteSequence content) {
+    if (length != content.getLength()) return false;
+    byte[] contentBytes = content.getBytes();
+    int offset = content.getOffset();
+    for (int i = 0; i < length; i++) {
+      if (bytes[i] != contentBytes[offset + i]) return false;
+    }
+    return true;
+  }
+
   public int getRefCount(int record) {
     waitForPendingWriteForRecord(record);
     synchronized (myLock) {
@@ -23,6 +23,10 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class PagedFileStorageTest extends TestCase {
   private final PagedFileStorage.StorageLock lock = new PagedFileStorage.StorageLock();
@@ -118,6 +122,161 @@ public class PagedFileStorageTest extends TestCase {
     }
   }
 
+  public void testConcurrentReadsOfReopenedStorage() throws Exception {
+    final int pageSize = Page.PAGE_SIZE;
+    final int size = 16 * pageSize;
+    final PagedFileStorage.StorageLockContext context = new PagedFileStorage.StorageLockContext(lock, true);
+    File file = FileUtil.createTempFile("reopened", ".tmp");
+    File otherFile = FileUtil.createTempFile("other", ".tmp");
+    final PagedFileStorage storage = new PagedFileStorage(file, context, pageSize, true);
+    final AtomicBoolean finished = new AtomicBoolean();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    try {
+      fill(storage, size, 1);
+
+      Thread[] threads = new Thread[4];
+      for (int i = 0; i < threads.length; i++) {
+        final int seed = i;
+        threads[i] = new Thread("reader " + i) {
+          @Override
+          public void run() {
+            try {
+              Random random = new Random(seed);
+              while (!finished.get()) {
+                int addr = random.nextInt(size / 4) * 4;
+                assertEquals(addr, storage.getInt(addr));
+              }
+            }
+            catch (Throwable t) {
+              failure.set(t);
+            }
+          }
+        };
+        threads[i].start();
+      }
+
+      try {
+        for (int i = 0; i < 200 && failure.get() == null; i++) {
+          // the other storage takes the index of the closed one, readers must not see its pages
+          PagedFileStorage other;
+          storage.lock();
+          try {
+            storage.close();
+            other = new PagedFileStorage(otherFile, context, pageSize, true);
+          }
+          finally {
+            storage.unlock();
+          }
+          fill(other, size, -1);
+          other.lock();
+          try {
+            other.close();
+          }
+          finally {
+            other.unlock();
+          }
+        }
+      }
+      finally {
+        finished.set(true);
+        for (Thread thread : threads) thread.join();
+      }
+      if (failure.get() != null) throw new RuntimeException(failure.get());
+    }
+    finally {
+      storage.lock();
+      try {
+        storage.close();
+      }
+      finally {
+        storage.unlock();
+      }
+      FileUtil.delete(file);
+      FileUtil.delete(otherFile);
+    }
+  }
+
+  private static void fill(PagedFileStorage storage, int size, int sign) throws IOException {
+    storage.lock();
+    try {
+      storage.resize(size);
+      for (int addr = 0; addr < size; addr += 4) {
+        storage.putInt(addr, sign * addr);
+      }
+    }
+    finally {
+      storage.unlock();
+    }
+  }
+
+  public void testConcurrentReadsOfGrowingStorage() throws Exception {
+    final int pageSize = Page.PAGE_SIZE;
+    final int size = 64 * pageSize;
+    final int step = 1024;
+    final PagedFileStorage.StorageLockContext context = new PagedFileStorage.StorageLockContext(lock, true);
+    File file = FileUtil.createTempFile("growing", ".tmp");
+    final PagedFileStorage storage = new PagedFileStorage(file, context, pageSize, true);
+    final AtomicInteger written = new AtomicInteger();
+    final AtomicBoolean finished = new AtomicBoolean();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    try {
+      Thread[] threads = new Thread[4];
+      for (int i = 0; i < threads.length; i++) {
+        final int seed = i;
+        threads[i] = new Thread("reader " + i) {
+          @Override
+          public void run() {
+            try {
+              Random random = new Random(seed);
+              while (!finished.get()) {
+                // read near the end, the last page is mapped while it is being extended
+                int limit = written.get();
+                if (limit == 0) continue;
+                int addr = Math.max(0, limit - random.nextInt(step * 2) - 4) / 4 * 4;
+                assertEquals(addr, storage.getInt(addr));
+              }
+            }
+            catch (Throwable t) {
+              failure.set(t);
+            }
+          }
+        };
+        threads[i].start();
+      }
+
+      try {
+        for (int length = step; length <= size && failure.get() == null; length += step) {
+          storage.lock();
+          try {
+            storage.resize(length);
+            for (int addr = length - step; addr < length; addr += 4) {
+              storage.putInt(addr, addr);
+            }
+          }
+          finally {
+            storage.unlock();
+          }
+          written.set(length);
+        }
+      }
+      finally {
+        finished.set(true);
+        for (Thread thread : threads) thread.join();
+      }
+      if (failure.get() != null) throw new RuntimeException(failure.get());
+    }
+    finally {
+      storage.lock();
+      try {
+        storage.close();
+      }
+      finally {
+        storage.unlock();
+      }
+      FileUtil.delete(file);
+    }
+  }
+
   private static final SimpleDateFormat FORMATTER = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
 
   private static void printPct(int pct) {
@@ -21,11 +21,17 @@ import com.intellij.psi.xml.XmlTokenType;
 /**
  * @author mike
  */
-public class XmlHighlightingLexer extends DelegateLexer {
+public class XmlHighlightingLexer extends DelegateLexer implements RestartableLexer {
   public XmlHighlightingLexer() {
     super(new XmlLexer());
   }
 
+  @Override
+  public boolean isRestartableState(int state) {
+    // the flex lexer state and the state to return to is all _XmlLexer keeps between tokens
+    return true;
+  }
+
   public IElementType getTokenType() {
     IElementType tokenType = getDelegate().getTokenType();
 